@@ -0,0 +1,81 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.benchmark;
+
+import de.hybris.platform.core.Registry;
+import de.hybris.platform.core.Tenant;
+import de.hybris.platform.jalo.JaloSession;
+
+import org.springframework.context.ApplicationContext;
+
+import com.sap.rediscart.store.CartStore;
+import com.sap.rediscart.store.impl.InstrumentedCartStore;
+
+
+/**
+ * Starts the master tenant of a standalone platform once per benchmark JVM and binds it to the calling thread.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public final class BenchmarkPlatform
+{
+	private static Tenant tenant;
+
+	private BenchmarkPlatform()
+	{
+		// static helper
+	}
+
+	/**
+	 * Starts the platform if needed and makes its master tenant and a jalo session current for this thread.
+	 */
+	public static synchronized void activate()
+	{
+		if (tenant == null)
+		{
+			Registry.activateStandaloneMode();
+			tenant = Registry.activateMasterTenant();
+		}
+		Registry.setCurrentTenant(tenant);
+		JaloSession.getCurrentSession();
+	}
+
+	/**
+	 * @return the bean of the given name from the application context of the tenant
+	 */
+	public static <T> T getBean(final String name, final Class<T> type)
+	{
+		final ApplicationContext applicationContext = Registry.getApplicationContext();
+		return applicationContext.getBean(name, type);
+	}
+
+	/**
+	 * Puts the given store behind the instrumented cartStore, so carts built by the benchmarks don't need a redis
+	 * cluster.
+	 */
+	public static void useCartStore(final String cartStoreName)
+	{
+		useCartStore(getBean(cartStoreName, CartStore.class));
+	}
+
+	/**
+	 * Puts the given store behind the instrumented cartStore.
+	 */
+	public static void useCartStore(final CartStore cartStore)
+	{
+		getBean("instrumentedCartStore", InstrumentedCartStore.class).setDelegate(cartStore);
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.benchmark;
+
+import de.hybris.platform.basecommerce.model.site.BaseSiteModel;
+import de.hybris.platform.commerceservices.order.dao.CommerceCartDao;
+import de.hybris.platform.commerceservices.order.dao.SaveCartDao;
+import de.hybris.platform.commerceservices.search.pagedata.PageableData;
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.core.model.user.UserModel;
+import de.hybris.platform.servicelayer.user.UserService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sap.rediscart.model.order.RedisCartModel;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.impl.InMemoryCartStore;
+
+
+/**
+ * Runs the lookups of the commerce cart and save cart DAOs against an in-memory stand-in for redis, which waits the
+ * configured latency per round trip. The user owns cartsPerUser carts, half of them saved, on a site with cartsPerSite
+ * carts in total; the carts of the other users are only indexed. The roundTrips and calls counters give the round
+ * trips per lookup, run with -prof gc for the allocations.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CartDaoLookupBenchmark
+{
+	private static final int USERS_PER_SITE = 100_000;
+	private static final int ENTRIES_PER_CART = 2;
+	private static final int PAGE_SIZE = 10;
+
+	@Param(
+	{ "1", "10", "100", "500" })
+	private int cartsPerUser;
+
+	@Param(
+	{ "10000", "1000000" })
+	private int cartsPerSite;
+
+	@Param(
+	{ "0", "250" })
+	private long latencyMicros;
+
+	private SimulatedLatencyCartStore cartStore;
+	private CommerceCartDao commerceCartDao;
+	private SaveCartDao saveCartDao;
+	private UserModel user;
+	private BaseSiteModel site;
+	private String guid;
+	private PageableData firstPage;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		BenchmarkPlatform.activate();
+		cartStore = new SimulatedLatencyCartStore(new InMemoryCartStore(), 0);
+		BenchmarkPlatform.useCartStore(cartStore);
+
+		commerceCartDao = BenchmarkPlatform.getBean("commerceCartDao", CommerceCartDao.class);
+		saveCartDao = BenchmarkPlatform.getBean("saveCartDao", SaveCartDao.class);
+		user = BenchmarkPlatform.getBean("userService", UserService.class).getAnonymousUser();
+		site = CartGraphFixture.getBaseSite();
+
+		final List<RedisCartModel> carts = new ArrayList<>(cartsPerUser);
+		for (int i = 0; i < cartsPerUser; i++)
+		{
+			carts.add(CartGraphFixture.build(user, site, i % 2 == 1, ENTRIES_PER_CART));
+		}
+		guid = carts.get(0).getGuid();
+		for (int i = cartsPerUser; i < cartsPerSite; i++)
+		{
+			final String otherUserId = "benchmark-user-" + i % USERS_PER_SITE;
+			cartStore.index(new CartIndex("benchmark-other-" + i, otherUserId, null, site.getUid()));
+		}
+
+		firstPage = new PageableData();
+		firstPage.setCurrentPage(0);
+		firstPage.setPageSize(PAGE_SIZE);
+
+		cartStore = new SimulatedLatencyCartStore(cartStore.getDelegate(), latencyMicros);
+		BenchmarkPlatform.useCartStore(cartStore);
+	}
+
+	@Benchmark
+	public CartModel getCartForSiteAndUser(final RoundTrips roundTrips)
+	{
+		final long before = cartStore.getRoundTrips();
+		final CartModel cart = commerceCartDao.getCartForSiteAndUser(site, user);
+		roundTrips.record(cartStore.getRoundTrips() - before);
+		return cart;
+	}
+
+	@Benchmark
+	public List<CartModel> getCartsForSiteAndUser(final RoundTrips roundTrips)
+	{
+		final long before = cartStore.getRoundTrips();
+		final List<CartModel> carts = commerceCartDao.getCartsForSiteAndUser(site, user);
+		roundTrips.record(cartStore.getRoundTrips() - before);
+		return carts;
+	}
+
+	@Benchmark
+	public CartModel getCartForGuidAndSiteAndUser(final RoundTrips roundTrips)
+	{
+		final long before = cartStore.getRoundTrips();
+		final CartModel cart = commerceCartDao.getCartForGuidAndSiteAndUser(guid, site, user);
+		roundTrips.record(cartStore.getRoundTrips() - before);
+		return cart;
+	}
+
+	@Benchmark
+	public Object getSavedCartsForSiteAndUser(final RoundTrips roundTrips)
+	{
+		final long before = cartStore.getRoundTrips();
+		final Object page = saveCartDao.getSavedCartsForSiteAndUser(firstPage, site, user, Collections.emptyList());
+		roundTrips.record(cartStore.getRoundTrips() - before);
+		return page;
+	}
+
+	@Benchmark
+	public Integer getSavedCartsCountForSiteAndUser(final RoundTrips roundTrips)
+	{
+		final long before = cartStore.getRoundTrips();
+		final Integer count = saveCartDao.getSavedCartsCountForSiteAndUser(site, user);
+		roundTrips.record(cartStore.getRoundTrips() - before);
+		return count;
+	}
+
+	/**
+	 * Round trips and calls of an iteration, reported next to the score.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class RoundTrips
+	{
+		public long roundTrips;
+		public long calls;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			roundTrips = 0;
+			calls = 0;
+		}
+
+		private void record(final long count)
+		{
+			roundTrips += count;
+			calls++;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.benchmark;
+
+import de.hybris.platform.basecommerce.model.site.BaseSiteModel;
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.core.model.product.ProductModel;
+import de.hybris.platform.core.model.product.UnitModel;
+import de.hybris.platform.core.model.user.UserModel;
+import de.hybris.platform.promotions.jalo.PromotionResult;
+import de.hybris.platform.promotions.model.CachedPromotionResultModel;
+import de.hybris.platform.product.UnitService;
+import de.hybris.platform.servicelayer.i18n.CommonI18NService;
+import de.hybris.platform.servicelayer.model.ModelService;
+import de.hybris.platform.servicelayer.search.FlexibleSearchQuery;
+import de.hybris.platform.servicelayer.search.FlexibleSearchService;
+import de.hybris.platform.servicelayer.user.UserService;
+import de.hybris.platform.site.BaseSiteService;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.model.order.RedisCartEntryModel;
+import com.sap.rediscart.model.order.RedisCartModel;
+import com.sap.rediscart.model.promotion.action.RedisRuleBasedOrderAdjustTotalActionModel;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+
+
+/**
+ * Builds carts with a given number of entries and promotion results through the model service, the same way the
+ * storefront does, and keeps them in the in-memory cart store. Products are taken from the catalogs of the platform,
+ * so the entries reference real products, units and prices.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public final class CartGraphFixture
+{
+	/**
+	 * One promotion result per this many entries, at least one per cart.
+	 */
+	private static final int ENTRIES_PER_PROMOTION_RESULT = 10;
+
+	private static final long SAVED_CART_LIFETIME_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+	private CartGraphFixture()
+	{
+		// static helper
+	}
+
+	/**
+	 * Builds and saves a cart of the anonymous user, the platform must be activated and the in-memory store put behind
+	 * the cart store.
+	 *
+	 * @return the saved cart together with its promotion results
+	 */
+	public static CartGraph build(final int entryCount)
+	{
+		final UserService userService = BenchmarkPlatform.getBean("userService", UserService.class);
+		final RedisCartModel cart = build(userService.getAnonymousUser(), null, false, entryCount);
+		final CartStore cartStore = BenchmarkPlatform.getBean("cartStore", CartStore.class);
+		return new CartGraph(cartStore.load(cart.getCode()), cartStore.loadPromotionResults(cart.getCode()));
+	}
+
+	/**
+	 * Builds and saves a cart of the given user and site, saved carts get a name, a save time and an expiration time.
+	 *
+	 * @return the saved cart
+	 */
+	public static RedisCartModel build(final UserModel user, final BaseSiteModel site, final boolean saved,
+			final int entryCount)
+	{
+		final ModelService modelService = BenchmarkPlatform.getBean("modelService", ModelService.class);
+		final CommonI18NService commonI18NService = BenchmarkPlatform.getBean("commonI18NService", CommonI18NService.class);
+
+		final RedisCartModel cart = modelService.create(RedisCartModel.class);
+		cart.setCode("benchmark-" + UUID.randomUUID());
+		cart.setGuid(UUID.randomUUID().toString());
+		cart.setUser(user);
+		cart.setSite(site);
+		cart.setCurrency(commonI18NService.getBaseCurrency());
+		cart.setDate(new Date());
+		cart.setNet(Boolean.FALSE);
+		cart.setTotalPrice(Double.valueOf(0D));
+		if (saved)
+		{
+			final Date now = new Date();
+			cart.setName("Saved " + cart.getCode());
+			cart.setSaveTime(now);
+			cart.setExpirationTime(new Date(now.getTime() + SAVED_CART_LIFETIME_MILLIS));
+		}
+		modelService.save(cart);
+
+		final List<ProductModel> products = findProducts(entryCount);
+		final List<Object> toSave = new ArrayList<>();
+		for (int i = 0; i < entryCount; i++)
+		{
+			toSave.add(createEntry(cart, products.get(i % products.size()), i, 1 + i % 5));
+		}
+		modelService.saveAll(toSave);
+
+		final int promotionResultCount = Math.max(1, entryCount / ENTRIES_PER_PROMOTION_RESULT);
+		for (int i = 0; i < promotionResultCount; i++)
+		{
+			final CachedPromotionResultModel promotionResult = modelService.create(CachedPromotionResultModel.class);
+			promotionResult.setOrder(cart);
+			promotionResult.setCertainty(Float.valueOf(1.0F));
+			modelService.save(promotionResult);
+
+			final RedisRuleBasedOrderAdjustTotalActionModel action = modelService
+					.create(RedisRuleBasedOrderAdjustTotalActionModel.class);
+			action.setGuid(UUID.randomUUID().toString());
+			action.setAmount(BigDecimal.valueOf(5L + i));
+			action.setPromotionResult(promotionResult);
+			modelService.save(action);
+			modelService.save(promotionResult);
+		}
+
+		return cart;
+	}
+
+	/**
+	 * Creates an entry of the product at the given position of the cart, it still has to be saved.
+	 */
+	public static RedisCartEntryModel createEntry(final CartModel cart, final ProductModel product, final int entryNumber,
+			final long quantity)
+	{
+		final ModelService modelService = BenchmarkPlatform.getBean("modelService", ModelService.class);
+		final UnitService unitService = BenchmarkPlatform.getBean("unitService", UnitService.class);
+		final UnitModel unit = product.getUnit() == null ? unitService.getUnitForCode("pieces") : product.getUnit();
+		final RedisCartEntryModel entry = modelService.create(RedisCartEntryModel.class);
+		entry.setOrder(cart);
+		entry.setEntryNumber(Integer.valueOf(entryNumber));
+		entry.setProduct(product);
+		entry.setUnit(unit);
+		entry.setQuantity(Long.valueOf(quantity));
+		entry.setBasePrice(Double.valueOf(9.99 + entryNumber));
+		entry.setTotalPrice(Double.valueOf((9.99 + entryNumber) * quantity));
+		return entry;
+	}
+
+	/**
+	 * @return the first base site of the platform
+	 */
+	public static BaseSiteModel getBaseSite()
+	{
+		final BaseSiteService baseSiteService = BenchmarkPlatform.getBean("baseSiteService", BaseSiteService.class);
+		final Collection<BaseSiteModel> sites = baseSiteService.getAllBaseSites();
+		if (sites.isEmpty())
+		{
+			throw new IllegalStateException("The benchmarks need at least one base site in the platform");
+		}
+		return sites.iterator().next();
+	}
+
+	/**
+	 * Removes a cart built by {@link #build(int)} from the cart store.
+	 */
+	public static void remove(final CartGraph graph)
+	{
+		final CartStore cartStore = BenchmarkPlatform.getBean("cartStore", CartStore.class);
+		cartStore.remove(Collections.singleton(new CartIndex(graph.getCart().getCode(), null, null, null)));
+	}
+
+	/**
+	 * @return up to count products of the catalogs, at least one
+	 */
+	public static List<ProductModel> findProducts(final int count)
+	{
+		final FlexibleSearchService flexibleSearchService = BenchmarkPlatform.getBean("flexibleSearchService",
+				FlexibleSearchService.class);
+		final FlexibleSearchQuery query = new FlexibleSearchQuery("SELECT {pk} FROM {Product} ORDER BY {pk}");
+		query.setCount(Math.max(1, count));
+		final List<ProductModel> products = flexibleSearchService.<ProductModel> search(query).getResult();
+		if (products.isEmpty())
+		{
+			throw new IllegalStateException("The benchmarks need at least one product in the catalogs of the platform");
+		}
+		return products;
+	}
+
+	/**
+	 * A cart as loaded from the cart store, together with its promotion results.
+	 */
+	public static final class CartGraph
+	{
+		private final RedisCart cart;
+		private final List<PromotionResult> promotionResults;
+
+		private CartGraph(final RedisCart cart, final Collection<PromotionResult> promotionResults)
+		{
+			this.cart = cart;
+			this.promotionResults = new ArrayList<>(promotionResults);
+		}
+
+		/**
+		 * @return the cart
+		 */
+		public RedisCart getCart()
+		{
+			return cart;
+		}
+
+		/**
+		 * @return the promotionResults
+		 */
+		public List<PromotionResult> getPromotionResults()
+		{
+			return promotionResults;
+		}
+	}
+}
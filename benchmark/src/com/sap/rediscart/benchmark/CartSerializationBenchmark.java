@@ -0,0 +1,128 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.benchmark;
+
+import de.hybris.platform.promotions.jalo.PromotionResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import com.sap.rediscart.benchmark.CartGraphFixture.CartGraph;
+
+
+/**
+ * Encodes and decodes carts and their promotion results with each serializer, as they are written to and read from
+ * redis. Run with -prof gc to get the allocation rate; the payload sizes are printed when a trial starts.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CartSerializationBenchmark
+{
+	@Param(
+	{ "1", "10", "100", "1000" })
+	private int entries;
+
+	@Param(
+	{ "configured", "jdk", "jdk-lz4" })
+	private String serializer;
+
+	private RedisSerializer<Object> redisSerializer;
+	private CartGraph graph;
+	private byte[] cartPayload;
+	private List<byte[]> promotionResultPayloads;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		BenchmarkPlatform.activate();
+		BenchmarkPlatform.useCartStore("inMemoryCartStore");
+		redisSerializer = CartSerializers.get(serializer);
+		graph = CartGraphFixture.build(entries);
+
+		cartPayload = redisSerializer.serialize(graph.getCart());
+		promotionResultPayloads = new ArrayList<>();
+		long promotionResultBytes = 0;
+		for (final PromotionResult promotionResult : graph.getPromotionResults())
+		{
+			final byte[] payload = redisSerializer.serialize(promotionResult);
+			promotionResultPayloads.add(payload);
+			promotionResultBytes += payload.length;
+		}
+		System.out.println(String.format(
+				"%n[payload] serializer=%s entries=%d cartBytes=%d promotionResults=%d promotionResultBytes=%d", serializer,
+				Integer.valueOf(entries), Integer.valueOf(cartPayload.length), Integer.valueOf(promotionResultPayloads.size()),
+				Long.valueOf(promotionResultBytes)));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		CartGraphFixture.remove(graph);
+	}
+
+	@Benchmark
+	public byte[] encodeCart()
+	{
+		return redisSerializer.serialize(graph.getCart());
+	}
+
+	@Benchmark
+	public Object decodeCart()
+	{
+		return redisSerializer.deserialize(cartPayload);
+	}
+
+	@Benchmark
+	public void encodePromotionResults(final Blackhole blackhole)
+	{
+		for (final PromotionResult promotionResult : graph.getPromotionResults())
+		{
+			blackhole.consume(redisSerializer.serialize(promotionResult));
+		}
+	}
+
+	@Benchmark
+	public void decodePromotionResults(final Blackhole blackhole)
+	{
+		for (final byte[] payload : promotionResultPayloads)
+		{
+			blackhole.consume(redisSerializer.deserialize(payload));
+		}
+	}
+}
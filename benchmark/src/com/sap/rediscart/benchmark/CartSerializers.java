@@ -0,0 +1,89 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.benchmark;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import com.sap.rediscart.util.CompressingRedisSerializer;
+
+
+/**
+ * The value serializers the extension offers for carts, by the name used in the serializer parameter of the
+ * benchmarks. "configured" is whatever the redisTemplate of the running platform uses, "jdk-lz4" compresses every
+ * value regardless of its size.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public final class CartSerializers
+{
+	private static final Map<String, Supplier<RedisSerializer<Object>>> SERIALIZERS;
+
+	static
+	{
+		final Map<String, Supplier<RedisSerializer<Object>>> serializers = new LinkedHashMap<>();
+		serializers.put("configured", CartSerializers::getConfiguredSerializer);
+		serializers.put("jdk", CartSerializers::getJdkSerializer);
+		serializers.put("jdk-lz4", CartSerializers::getCompressingSerializer);
+		SERIALIZERS = Collections.unmodifiableMap(serializers);
+	}
+
+	private CartSerializers()
+	{
+		// static helper
+	}
+
+	/**
+	 * @return a serializer of the given name
+	 * @throws IllegalArgumentException
+	 *            if there is no serializer of that name
+	 */
+	public static RedisSerializer<Object> get(final String name)
+	{
+		final Supplier<RedisSerializer<Object>> serializer = SERIALIZERS.get(name);
+		if (serializer == null)
+		{
+			throw new IllegalArgumentException("Unknown serializer " + name + ", use one of " + SERIALIZERS.keySet());
+		}
+		return serializer.get();
+	}
+
+	private static RedisSerializer<Object> getJdkSerializer()
+	{
+		return new JdkSerializationRedisSerializer(Thread.currentThread().getContextClassLoader());
+	}
+
+	private static RedisSerializer<Object> getCompressingSerializer()
+	{
+		final CompressingRedisSerializer serializer = new CompressingRedisSerializer();
+		serializer.setDelegate(getJdkSerializer());
+		serializer.setThreshold(0);
+		return serializer;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static RedisSerializer<Object> getConfiguredSerializer()
+	{
+		final RedisTemplate<String, Object> redisTemplate = BenchmarkPlatform.getBean("redisTemplate", RedisTemplate.class);
+		return (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+	}
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.benchmark;
+
+import de.hybris.platform.basecommerce.model.site.BaseSiteModel;
+import de.hybris.platform.commerceservices.order.dao.CommerceCartDao;
+import de.hybris.platform.commerceservices.order.dao.SaveCartDao;
+import de.hybris.platform.commerceservices.search.pagedata.PageableData;
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.core.model.product.ProductModel;
+import de.hybris.platform.core.model.user.CustomerModel;
+import de.hybris.platform.core.model.user.UserModel;
+import de.hybris.platform.order.OrderService;
+import de.hybris.platform.promotions.PromotionsService;
+import de.hybris.platform.promotions.model.PromotionGroupModel;
+import de.hybris.platform.servicelayer.model.ModelService;
+import de.hybris.platform.servicelayer.user.UserService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.store.impl.InMemoryCartStore;
+
+
+/**
+ * Drives a storefront cart workload through the service layer: virtual users browse and add to their anonymous carts,
+ * log in and merge them, list saved carts, evaluate promotions and check out, while the removal job drops abandoned
+ * anonymous carts in the background. Latencies are recorded per operation after the warmup and written to
+ * results.json and results.csv in the output directory, together with the redis metrics of the run, so storage
+ * layouts and codecs can be compared under the same traffic.
+ * <p/>
+ * By default the carts live in the in-memory store with a simulated latency per round trip,
+ * load.cartStore=redisCartStore runs against the configured cluster instead. All settings are system properties
+ * starting with load., see benchmark/build.xml.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartWorkloadSimulator
+{
+	/**
+	 * The scenarios a virtual user picks from, weighted by load.mix.
+	 */
+	public enum Scenario
+	{
+		BROWSE, LOGIN, SAVED_CARTS, PROMOTIONS, CHECKOUT
+	}
+
+	private static final String REMOVAL_JOB = "removalJob.run";
+	private static final double[] PERCENTILES =
+	{ 0.5D, 0.9D, 0.95D, 0.99D, 0.999D };
+
+	private final int users = Integer.getInteger("load.users", 50).intValue();
+	private final long warmupSeconds = Long.getLong("load.warmupSeconds", 30).longValue();
+	private final long durationSeconds = Long.getLong("load.durationSeconds", 120).longValue();
+	private final long thinkTimeMillis = Long.getLong("load.thinkTimeMillis", 500).longValue();
+	private final long latencyMicros = Long.getLong("load.latencyMicros", 250).longValue();
+	private final String cartStoreName = System.getProperty("load.cartStore", "inMemoryCartStore");
+	private final int customerCount = Integer.getInteger("load.customers", 200).intValue();
+	private final int savedCartsPerCustomer = Integer.getInteger("load.savedCartsPerCustomer", 2).intValue();
+	private final long removalIntervalSeconds = Long.getLong("load.removalIntervalSeconds", 10).longValue();
+	private final long anonymousCartAgeSeconds = Long.getLong("load.anonymousCartAgeSeconds", 60).longValue();
+	private final String mix = System.getProperty("load.mix",
+			"browse:55,login:10,savedCarts:10,promotions:15,checkout:10");
+	private final File outputDir = new File(System.getProperty("load.output", "results"));
+
+	private final Map<Scenario, Integer> weights = new EnumMap<>(Scenario.class);
+	private final LatencySamples removalJobSamples = new LatencySamples();
+	private volatile boolean running;
+	private volatile boolean measuring;
+	private int totalWeight;
+
+	private ModelService modelService;
+	private CommerceCartDao commerceCartDao;
+	private SaveCartDao saveCartDao;
+	private PromotionsService promotionsService;
+	private OrderService orderService;
+	private RedisMetrics redisMetrics;
+	private UserModel anonymousUser;
+	private BaseSiteModel site;
+	private Collection<PromotionGroupModel> promotionGroups;
+	private PageableData firstPage;
+	private List<ProductModel> products;
+	private List<CustomerModel> customers;
+
+	public static void main(final String[] args) throws Exception
+	{
+		final CartWorkloadSimulator simulator = new CartWorkloadSimulator();
+		simulator.setUp();
+		simulator.run();
+		// the platform keeps non-daemon threads running
+		System.exit(0);
+	}
+
+	public void setUp()
+	{
+		parseMix();
+		BenchmarkPlatform.activate();
+		if ("inMemoryCartStore".equals(cartStoreName))
+		{
+			BenchmarkPlatform.useCartStore(new SimulatedLatencyCartStore(new InMemoryCartStore(), latencyMicros));
+		}
+		else
+		{
+			BenchmarkPlatform.useCartStore(cartStoreName);
+		}
+
+		modelService = BenchmarkPlatform.getBean("modelService", ModelService.class);
+		commerceCartDao = BenchmarkPlatform.getBean("commerceCartDao", CommerceCartDao.class);
+		saveCartDao = BenchmarkPlatform.getBean("saveCartDao", SaveCartDao.class);
+		promotionsService = BenchmarkPlatform.getBean("promotionEngineService", PromotionsService.class);
+		orderService = BenchmarkPlatform.getBean("orderService", OrderService.class);
+		redisMetrics = BenchmarkPlatform.getBean("redisMetrics", RedisMetrics.class);
+		final UserService userService = BenchmarkPlatform.getBean("userService", UserService.class);
+		anonymousUser = userService.getAnonymousUser();
+		site = CartGraphFixture.getBaseSite();
+		promotionGroups = site.getDefaultPromotionGroup() == null ? Collections.emptyList()
+				: Collections.singletonList(site.getDefaultPromotionGroup());
+		firstPage = new PageableData();
+		firstPage.setCurrentPage(0);
+		firstPage.setPageSize(10);
+		products = CartGraphFixture.findProducts(100);
+
+		customers = new ArrayList<>(customerCount);
+		for (int i = 0; i < customerCount; i++)
+		{
+			final String uid = "loadtest-" + i + "@example.com";
+			CustomerModel customer;
+			if (userService.isUserExisting(uid))
+			{
+				customer = userService.getUserForUID(uid, CustomerModel.class);
+			}
+			else
+			{
+				customer = modelService.create(CustomerModel.class);
+				customer.setUid(uid);
+				customer.setName("Load Test " + i);
+				modelService.save(customer);
+			}
+			for (int j = 0; j < savedCartsPerCustomer; j++)
+			{
+				CartGraphFixture.build(customer, site, true, 3);
+			}
+			customers.add(customer);
+		}
+		System.out.println("Load test set up: " + customerCount + " customers with " + savedCartsPerCustomer
+				+ " saved carts each, " + products.size() + " products, cart store " + cartStoreName);
+	}
+
+	public void run() throws InterruptedException, IOException
+	{
+		running = true;
+		final List<VirtualUser> virtualUsers = new ArrayList<>(users);
+		final List<Thread> threads = new ArrayList<>(users);
+		for (int i = 0; i < users; i++)
+		{
+			final VirtualUser virtualUser = new VirtualUser(this, i);
+			final Thread thread = new Thread(virtualUser, "virtual-user-" + i);
+			virtualUsers.add(virtualUser);
+			threads.add(thread);
+			thread.start();
+		}
+		final ScheduledExecutorService removalJob = Executors.newSingleThreadScheduledExecutor();
+		removalJob.scheduleWithFixedDelay(this::removeAbandonedCarts, removalIntervalSeconds, removalIntervalSeconds,
+				TimeUnit.SECONDS);
+
+		System.out.println("Warming up for " + warmupSeconds + "s with " + users + " virtual users");
+		Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+		redisMetrics.reset();
+		measuring = true;
+		System.out.println("Measuring for " + durationSeconds + "s");
+		Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+		measuring = false;
+		running = false;
+
+		removalJob.shutdown();
+		removalJob.awaitTermination(1, TimeUnit.MINUTES);
+		for (final Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		final Map<String, LatencySamples> results = new TreeMap<>();
+		results.put(REMOVAL_JOB, removalJobSamples);
+		for (final VirtualUser virtualUser : virtualUsers)
+		{
+			for (final Map.Entry<String, LatencySamples> entry : virtualUser.getSamples().entrySet())
+			{
+				results.computeIfAbsent(entry.getKey(), k -> new LatencySamples()).merge(entry.getValue());
+			}
+			if (virtualUser.getFirstError() != null)
+			{
+				System.out.println("First error of a virtual user: " + virtualUser.getFirstError());
+			}
+		}
+		report(results);
+	}
+
+	/**
+	 * @return the next scenario according to the weights of the mix
+	 */
+	Scenario nextScenario(final Random random)
+	{
+		int pick = random.nextInt(totalWeight);
+		for (final Map.Entry<Scenario, Integer> entry : weights.entrySet())
+		{
+			pick -= entry.getValue().intValue();
+			if (pick < 0)
+			{
+				return entry.getKey();
+			}
+		}
+		return Scenario.BROWSE;
+	}
+
+	private void removeAbandonedCarts()
+	{
+		BenchmarkPlatform.activate();
+		final long start = System.nanoTime();
+		try
+		{
+			final Date modifiedBefore = new Date(
+					System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(anonymousCartAgeSeconds));
+			final List<CartModel> carts = commerceCartDao.getCartsForRemovalForSiteAndUser(modifiedBefore, site, anonymousUser);
+			modelService.removeAll(carts);
+			if (measuring)
+			{
+				removalJobSamples.record((System.nanoTime() - start) / 1000L);
+			}
+		}
+		catch (final RuntimeException e)
+		{
+			if (measuring)
+			{
+				removalJobSamples.recordError();
+			}
+			System.out.println("Removal job failed: " + e);
+		}
+	}
+
+	private void parseMix()
+	{
+		for (final String part : mix.split(","))
+		{
+			final String[] nameAndWeight = part.trim().split(":");
+			final Scenario scenario = toScenario(nameAndWeight[0].trim());
+			final int weight = Integer.parseInt(nameAndWeight[1].trim());
+			weights.put(scenario, Integer.valueOf(weight));
+			totalWeight += weight;
+		}
+		if (totalWeight <= 0)
+		{
+			throw new IllegalArgumentException("load.mix needs at least one scenario with a positive weight: " + mix);
+		}
+	}
+
+	private static Scenario toScenario(final String name)
+	{
+		switch (name)
+		{
+			case "browse":
+				return Scenario.BROWSE;
+			case "login":
+				return Scenario.LOGIN;
+			case "savedCarts":
+				return Scenario.SAVED_CARTS;
+			case "promotions":
+				return Scenario.PROMOTIONS;
+			case "checkout":
+				return Scenario.CHECKOUT;
+			default:
+				throw new IllegalArgumentException("Unknown scenario in load.mix: " + name);
+		}
+	}
+
+	private void report(final Map<String, LatencySamples> results) throws IOException
+	{
+		if (!outputDir.isDirectory() && !outputDir.mkdirs())
+		{
+			throw new IOException("Cannot create " + outputDir);
+		}
+
+		System.out.println(String.format(Locale.ROOT, "%-22s %10s %8s %10s %8s %8s %8s %8s %8s %8s", "operation", "ops/s",
+				"errors", "mean(us)", "p50", "p90", "p95", "p99", "p99.9", "max"));
+		for (final Map.Entry<String, LatencySamples> entry : results.entrySet())
+		{
+			final LatencySamples samples = entry.getValue();
+			final StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-22s %10.1f %8d %10d", entry.getKey(),
+					Double.valueOf(getThroughput(samples)), Long.valueOf(samples.getErrors()), Long.valueOf(samples.getMean())));
+			for (final double percentile : PERCENTILES)
+			{
+				line.append(String.format(Locale.ROOT, " %8d", Long.valueOf(samples.getPercentile(percentile))));
+			}
+			line.append(String.format(Locale.ROOT, " %8d", Long.valueOf(samples.getMax())));
+			System.out.println(line);
+		}
+
+		try (PrintWriter csv = new PrintWriter(new File(outputDir, "results.csv"), StandardCharsets.UTF_8.name()))
+		{
+			csv.println("operation,count,errors,opsPerSecond,meanMicros,"
+					+ "p50Micros,p90Micros,p95Micros,p99Micros,p999Micros,maxMicros");
+			for (final Map.Entry<String, LatencySamples> entry : results.entrySet())
+			{
+				final LatencySamples samples = entry.getValue();
+				csv.print(String.format(Locale.ROOT, "%s,%d,%d,%.3f,%d", entry.getKey(), Integer.valueOf(samples.getCount()),
+						Long.valueOf(samples.getErrors()), Double.valueOf(getThroughput(samples)), Long.valueOf(samples.getMean())));
+				for (final double percentile : PERCENTILES)
+				{
+					csv.print("," + samples.getPercentile(percentile));
+				}
+				csv.println("," + samples.getMax());
+			}
+		}
+
+		try (PrintWriter json = new PrintWriter(new File(outputDir, "results.json"), StandardCharsets.UTF_8.name()))
+		{
+			json.println("{");
+			json.println(String.format(Locale.ROOT,
+					"  \"config\": {\"users\": %d, \"warmupSeconds\": %d, \"durationSeconds\": %d, \"thinkTimeMillis\": %d, "
+							+ "\"latencyMicros\": %d, \"cartStore\": \"%s\", \"customers\": %d, \"savedCartsPerCustomer\": %d, "
+							+ "\"mix\": \"%s\"},",
+					Integer.valueOf(users), Long.valueOf(warmupSeconds), Long.valueOf(durationSeconds), Long.valueOf(thinkTimeMillis),
+					Long.valueOf(latencyMicros), cartStoreName, Integer.valueOf(customerCount), Integer.valueOf(savedCartsPerCustomer),
+					mix));
+			json.println("  \"operations\": {");
+			int i = 0;
+			for (final Map.Entry<String, LatencySamples> entry : results.entrySet())
+			{
+				final LatencySamples samples = entry.getValue();
+				json.print(String.format(Locale.ROOT,
+						"    \"%s\": {\"count\": %d, \"errors\": %d, \"opsPerSecond\": %.3f, \"meanMicros\": %d, \"p50Micros\": %d, "
+								+ "\"p90Micros\": %d, \"p95Micros\": %d, \"p99Micros\": %d, \"p999Micros\": %d, \"maxMicros\": %d}",
+						entry.getKey(), Integer.valueOf(samples.getCount()), Long.valueOf(samples.getErrors()),
+						Double.valueOf(getThroughput(samples)), Long.valueOf(samples.getMean()),
+						Long.valueOf(samples.getPercentile(0.5D)), Long.valueOf(samples.getPercentile(0.9D)),
+						Long.valueOf(samples.getPercentile(0.95D)), Long.valueOf(samples.getPercentile(0.99D)),
+						Long.valueOf(samples.getPercentile(0.999D)), Long.valueOf(samples.getMax())));
+				json.println(++i < results.size() ? "," : "");
+			}
+			json.println("  }");
+			json.println("}");
+		}
+
+		try (PrintWriter prometheus = new PrintWriter(new File(outputDir, "redis-metrics.prom"),
+				StandardCharsets.UTF_8.name()))
+		{
+			prometheus.print(redisMetrics.toText());
+		}
+		System.out.println("Results written to " + outputDir.getAbsolutePath());
+	}
+
+	private double getThroughput(final LatencySamples samples)
+	{
+		return samples.getCount() / (double) durationSeconds;
+	}
+
+	boolean isRunning()
+	{
+		return running;
+	}
+
+	boolean isMeasuring()
+	{
+		return measuring;
+	}
+
+	long getThinkTimeMillis()
+	{
+		return thinkTimeMillis;
+	}
+
+	ModelService getModelService()
+	{
+		return modelService;
+	}
+
+	CommerceCartDao getCommerceCartDao()
+	{
+		return commerceCartDao;
+	}
+
+	SaveCartDao getSaveCartDao()
+	{
+		return saveCartDao;
+	}
+
+	PromotionsService getPromotionsService()
+	{
+		return promotionsService;
+	}
+
+	OrderService getOrderService()
+	{
+		return orderService;
+	}
+
+	UserModel getAnonymousUser()
+	{
+		return anonymousUser;
+	}
+
+	BaseSiteModel getSite()
+	{
+		return site;
+	}
+
+	Collection<PromotionGroupModel> getPromotionGroups()
+	{
+		return promotionGroups;
+	}
+
+	PageableData getFirstPage()
+	{
+		return firstPage;
+	}
+
+	List<ProductModel> getProducts()
+	{
+		return products;
+	}
+
+	List<CustomerModel> getCustomers()
+	{
+		return customers;
+	}
+}
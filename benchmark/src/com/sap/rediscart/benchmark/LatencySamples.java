@@ -0,0 +1,109 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.benchmark;
+
+import java.util.Arrays;
+
+
+/**
+ * Latencies of one operation in microseconds, kept completely so the percentiles of a load run are exact. Not thread
+ * safe, every virtual user records into its own samples and they are merged when the run is over.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class LatencySamples
+{
+	private long[] values = new long[1024];
+	private int size;
+	private long errors;
+	private boolean sorted;
+
+	public void record(final long micros)
+	{
+		if (size == values.length)
+		{
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = micros;
+		sorted = false;
+	}
+
+	public void recordError()
+	{
+		errors++;
+	}
+
+	public void merge(final LatencySamples other)
+	{
+		if (size + other.size > values.length)
+		{
+			values = Arrays.copyOf(values, Math.max(values.length * 2, size + other.size));
+		}
+		System.arraycopy(other.values, 0, values, size, other.size);
+		size += other.size;
+		errors += other.errors;
+		sorted = false;
+	}
+
+	/**
+	 * @return the number of successful calls
+	 */
+	public int getCount()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the number of failed calls
+	 */
+	public long getErrors()
+	{
+		return errors;
+	}
+
+	/**
+	 * @return the latency below which the given fraction of the calls completed, 0 without calls
+	 */
+	public long getPercentile(final double quantile)
+	{
+		if (size == 0)
+		{
+			return 0L;
+		}
+		if (!sorted)
+		{
+			Arrays.sort(values, 0, size);
+			sorted = true;
+		}
+		final int index = (int) Math.ceil(quantile * size) - 1;
+		return values[Math.max(0, Math.min(size - 1, index))];
+	}
+
+	public long getMean()
+	{
+		long sum = 0;
+		for (int i = 0; i < size; i++)
+		{
+			sum += values[i];
+		}
+		return size == 0 ? 0L : sum / size;
+	}
+
+	public long getMax()
+	{
+		return getPercentile(1.0D);
+	}
+}
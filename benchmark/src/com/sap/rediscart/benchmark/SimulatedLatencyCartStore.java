@@ -0,0 +1,207 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.benchmark;
+
+import de.hybris.platform.promotions.jalo.PromotionResult;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+
+
+/**
+ * Stands in for redis in the benchmarks: every call is one round trip to the delegate, which waits the configured
+ * latency before it is answered.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class SimulatedLatencyCartStore implements CartStore
+{
+	private final CartStore delegate;
+	private final long latencyNanos;
+	private final LongAdder roundTrips = new LongAdder();
+
+	public SimulatedLatencyCartStore(final CartStore delegate, final long latencyMicros)
+	{
+		this.delegate = delegate;
+		this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+	}
+
+	@Override
+	public RedisCart load(final String cartCode)
+	{
+		roundTrip();
+		return delegate.load(cartCode);
+	}
+
+	@Override
+	public Map<String, RedisCart> loadBatch(final Collection<String> cartCodes)
+	{
+		roundTrip();
+		return delegate.loadBatch(cartCodes);
+	}
+
+	@Override
+	public Map<String, RedisCart> peekBatch(final Collection<String> cartCodes)
+	{
+		roundTrip();
+		return delegate.peekBatch(cartCodes);
+	}
+
+	@Override
+	public void save(final String cartCode, final RedisCart cart)
+	{
+		roundTrip();
+		delegate.save(cartCode, cart);
+	}
+
+	@Override
+	public Set<String> remove(final Collection<CartIndex> carts)
+	{
+		roundTrip();
+		return delegate.remove(carts);
+	}
+
+	@Override
+	public void index(final CartIndex cart)
+	{
+		roundTrip();
+		delegate.index(cart);
+	}
+
+	@Override
+	public Set<String> findCartCodes(final CartIndex criteria)
+	{
+		roundTrip();
+		return delegate.findCartCodes(criteria);
+	}
+
+	@Override
+	public void unindex(final CartIndex cart)
+	{
+		roundTrip();
+		delegate.unindex(cart);
+	}
+
+	@Override
+	public long countCartCodes(final CartIndex criteria)
+	{
+		roundTrip();
+		return delegate.countCartCodes(criteria);
+	}
+
+	/**
+	 * Every page the cursor reads is one round trip.
+	 */
+	@Override
+	public CartCursor openCursor(final CartIndex criteria, final int batchSize, final String position)
+	{
+		return withLatency(delegate.openCursor(criteria, batchSize, position));
+	}
+
+	@Override
+	public List<String> getPartitions()
+	{
+		return delegate.getPartitions();
+	}
+
+	@Override
+	public CartCursor openPartitionCursor(final String partition, final int batchSize, final String position)
+	{
+		return withLatency(delegate.openPartitionCursor(partition, batchSize, position));
+	}
+
+	@Override
+	public void savePromotionResult(final String cartCode, final String promotionResultPk, final PromotionResult promotionResult)
+	{
+		roundTrip();
+		delegate.savePromotionResult(cartCode, promotionResultPk, promotionResult);
+	}
+
+	@Override
+	public void removePromotionResult(final String cartCode, final String promotionResultPk)
+	{
+		roundTrip();
+		delegate.removePromotionResult(cartCode, promotionResultPk);
+	}
+
+	@Override
+	public Collection<PromotionResult> loadPromotionResults(final String cartCode)
+	{
+		roundTrip();
+		return delegate.loadPromotionResults(cartCode);
+	}
+
+	/**
+	 * @return the round trips so far
+	 */
+	public long getRoundTrips()
+	{
+		return roundTrips.sum();
+	}
+
+	/**
+	 * @return the store the calls are passed to without latency
+	 */
+	public CartStore getDelegate()
+	{
+		return delegate;
+	}
+
+	private CartCursor withLatency(final CartCursor cursor)
+	{
+		return new CartCursor()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return cursor.hasNext();
+			}
+
+			@Override
+			public List<CartHeader> next()
+			{
+				roundTrip();
+				return cursor.next();
+			}
+
+			@Override
+			public String getPosition()
+			{
+				return cursor.getPosition();
+			}
+		};
+	}
+
+	private void roundTrip()
+	{
+		roundTrips.increment();
+		if (latencyNanos > 0)
+		{
+			LockSupport.parkNanos(latencyNanos);
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.benchmark;
+
+import de.hybris.platform.core.model.order.AbstractOrderEntryModel;
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.core.model.order.OrderModel;
+import de.hybris.platform.core.model.product.ProductModel;
+import de.hybris.platform.core.model.user.CustomerModel;
+import de.hybris.platform.order.InvalidCartException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import com.sap.rediscart.benchmark.CartWorkloadSimulator.Scenario;
+
+
+/**
+ * One shopper of the workload: picks a scenario according to the traffic mix, runs it through the service layer and
+ * thinks for a random, exponentially distributed time before the next one. An anonymous visitor keeps the guid of its
+ * cart until it logs in or checks out, then a new visitor takes its place.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class VirtualUser implements Runnable
+{
+	private final CartWorkloadSimulator simulator;
+	private final Random random;
+	private final Map<String, LatencySamples> samples = new HashMap<>();
+
+	private String anonymousCartGuid;
+	private Throwable firstError;
+
+	public VirtualUser(final CartWorkloadSimulator simulator, final long seed)
+	{
+		this.simulator = simulator;
+		this.random = new Random(seed);
+	}
+
+	@Override
+	public void run()
+	{
+		BenchmarkPlatform.activate();
+		while (simulator.isRunning())
+		{
+			final Scenario scenario = simulator.nextScenario(random);
+			try
+			{
+				runScenario(scenario);
+			}
+			catch (final RuntimeException | InvalidCartException e)
+			{
+				if (firstError == null)
+				{
+					firstError = e;
+				}
+				// start over with a fresh cart, the old one may be half written
+				anonymousCartGuid = null;
+			}
+			think();
+		}
+	}
+
+	/**
+	 * @return the latencies by operation recorded after the warmup
+	 */
+	public Map<String, LatencySamples> getSamples()
+	{
+		return samples;
+	}
+
+	/**
+	 * @return the first error of this user, or null
+	 */
+	public Throwable getFirstError()
+	{
+		return firstError;
+	}
+
+	private void runScenario(final Scenario scenario) throws InvalidCartException
+	{
+		switch (scenario)
+		{
+			case BROWSE:
+				browseAndAddToCart();
+				break;
+			case LOGIN:
+				loginAndMerge();
+				break;
+			case SAVED_CARTS:
+				listSavedCarts();
+				break;
+			case PROMOTIONS:
+				evaluatePromotions();
+				break;
+			case CHECKOUT:
+				checkout();
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown scenario " + scenario);
+		}
+	}
+
+	private CartModel browseAndAddToCart()
+	{
+		CartModel cart = loadAnonymousCart();
+		if (cart == null)
+		{
+			cart = timed("cart.create",
+					() -> CartGraphFixture.build(simulator.getAnonymousUser(), simulator.getSite(), false, 1));
+			anonymousCartGuid = cart.getGuid();
+		}
+		final CartModel current = cart;
+		final ProductModel product = randomProduct();
+		timed("cart.addEntry", () -> {
+			simulator.getModelService().save(CartGraphFixture.createEntry(current, product, current.getEntries().size(), 1));
+			return null;
+		});
+		return cart;
+	}
+
+	private void loginAndMerge()
+	{
+		final CartModel anonymousCart = loadAnonymousCart();
+		final CustomerModel customer = randomCustomer();
+		timed("login.merge", () -> {
+			final CartModel userCart = simulator.getCommerceCartDao().getCartForSiteAndUser(simulator.getSite(), customer);
+			if (anonymousCart == null)
+			{
+				return userCart;
+			}
+			if (userCart == null)
+			{
+				anonymousCart.setUser(customer);
+				simulator.getModelService().save(anonymousCart);
+				return anonymousCart;
+			}
+			final List<Object> entries = new ArrayList<>();
+			int entryNumber = userCart.getEntries().size();
+			for (final AbstractOrderEntryModel entry : anonymousCart.getEntries())
+			{
+				entries.add(CartGraphFixture.createEntry(userCart, entry.getProduct(), entryNumber++,
+						entry.getQuantity().longValue()));
+			}
+			simulator.getModelService().saveAll(entries);
+			simulator.getModelService().remove(anonymousCart);
+			return userCart;
+		});
+		anonymousCartGuid = null;
+	}
+
+	private void listSavedCarts()
+	{
+		final CustomerModel customer = randomCustomer();
+		timed("savedCarts.list", () -> simulator.getSaveCartDao().getSavedCartsForSiteAndUser(simulator.getFirstPage(),
+				simulator.getSite(), customer, Collections.emptyList()));
+	}
+
+	private void evaluatePromotions()
+	{
+		CartModel cart = loadAnonymousCart();
+		if (cart == null)
+		{
+			cart = browseAndAddToCart();
+		}
+		final CartModel current = cart;
+		timed("promotions.evaluate", () -> {
+			simulator.getPromotionsService().updatePromotions(simulator.getPromotionGroups(), current);
+			return simulator.getPromotionsService().getPromotionResults(current);
+		});
+	}
+
+	private void checkout() throws InvalidCartException
+	{
+		CartModel cart = loadAnonymousCart();
+		if (cart == null || cart.getEntries().isEmpty())
+		{
+			cart = browseAndAddToCart();
+		}
+		final long start = System.nanoTime();
+		final OrderModel order;
+		try
+		{
+			order = simulator.getOrderService().createOrderFromCart(cart);
+			simulator.getModelService().remove(cart);
+		}
+		catch (final InvalidCartException | RuntimeException e)
+		{
+			recordError("checkout.placeOrder");
+			throw e;
+		}
+		record("checkout.placeOrder", start);
+		anonymousCartGuid = null;
+		// the orders are not needed, keep the database from growing during long runs
+		simulator.getModelService().remove(order);
+	}
+
+	private CartModel loadAnonymousCart()
+	{
+		if (anonymousCartGuid == null)
+		{
+			return null;
+		}
+		return timed("cart.loadByGuid", () -> simulator.getCommerceCartDao().getCartForGuidAndSite(anonymousCartGuid,
+				simulator.getSite()));
+	}
+
+	private ProductModel randomProduct()
+	{
+		final List<ProductModel> products = simulator.getProducts();
+		return products.get(random.nextInt(products.size()));
+	}
+
+	private CustomerModel randomCustomer()
+	{
+		final List<CustomerModel> customers = simulator.getCustomers();
+		return customers.get(random.nextInt(customers.size()));
+	}
+
+	private <T> T timed(final String operation, final Supplier<T> call)
+	{
+		final long start = System.nanoTime();
+		try
+		{
+			final T result = call.get();
+			record(operation, start);
+			return result;
+		}
+		catch (final RuntimeException e)
+		{
+			recordError(operation);
+			throw e;
+		}
+	}
+
+	private void recordError(final String operation)
+	{
+		if (simulator.isMeasuring())
+		{
+			samples.computeIfAbsent(operation, k -> new LatencySamples()).recordError();
+		}
+	}
+
+	private void record(final String operation, final long start)
+	{
+		if (simulator.isMeasuring())
+		{
+			samples.computeIfAbsent(operation, k -> new LatencySamples()).record((System.nanoTime() - start) / 1000L);
+		}
+	}
+
+	private void think()
+	{
+		final long mean = simulator.getThinkTimeMillis();
+		if (mean <= 0)
+		{
+			return;
+		}
+		final long millis = (long) (-Math.log(1.0D - random.nextDouble()) * mean);
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,10 @@
+-- Acquires the lease of a cart if nobody holds it.
+-- KEYS[1] lock key, KEYS[2] fencing token key (both in the hash slot of the cart key)
+-- ARGV[1] owner, ARGV[2] lease time in milliseconds
+-- returns the fencing token, or 0 if the lease is held by somebody else
+if redis.call('EXISTS', KEYS[1]) == 1 then
+	return 0
+end
+local token = redis.call('INCR', KEYS[2])
+redis.call('SET', KEYS[1], ARGV[1] .. ':' .. token, 'PX', ARGV[2])
+return token
@@ -0,0 +1,11 @@
+-- Acquires the lease of a cart if the cart does not exist and nobody holds the lease, so what an expired cart has
+-- left behind is only removed while no new cart with the same code can be saved.
+-- KEYS[1] cart key, KEYS[2] lock key, KEYS[3] fencing token key (all in the hash slot of the cart key)
+-- ARGV[1] owner, ARGV[2] lease time in milliseconds
+-- returns the fencing token, or 0 if the cart exists or the lease is held by somebody else
+if redis.call('EXISTS', KEYS[1]) == 1 or redis.call('EXISTS', KEYS[2]) == 1 then
+	return 0
+end
+local token = redis.call('INCR', KEYS[3])
+redis.call('SET', KEYS[2], ARGV[1] .. ':' .. token, 'PX', ARGV[2])
+return token
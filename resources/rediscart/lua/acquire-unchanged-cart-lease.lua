@@ -0,0 +1,12 @@
+-- Acquires the lease of a cart if it is still at the expected version and nobody holds the lease, so the cart can be
+-- removed because of what that version held without a newer version being removed with it.
+-- KEYS[1] version key, KEYS[2] lock key, KEYS[3] fencing token key (all in the hash slot of the cart key)
+-- ARGV[1] owner, ARGV[2] lease time in milliseconds, ARGV[3] expected version (empty if never saved)
+-- returns the fencing token, or 0 if the cart has changed or the lease is held by somebody else
+local current = redis.call('GET', KEYS[1]) or ''
+if current ~= ARGV[3] or redis.call('EXISTS', KEYS[2]) == 1 then
+	return 0
+end
+local token = redis.call('INCR', KEYS[3])
+redis.call('SET', KEYS[2], ARGV[1] .. ':' .. token, 'PX', ARGV[2])
+return token
@@ -0,0 +1,22 @@
+-- Saves a cart only if its version in redis is still the one it was loaded with and nobody else holds its lease.
+-- KEYS[1] cart key, KEYS[2] version key, KEYS[3] lock key (both in the hash slot of the cart key)
+-- ARGV[1] expected version (empty if the cart has never been saved), ARGV[2] cart, ARGV[3] new version,
+-- ARGV[4] lease value held by the caller (empty if none), ARGV[5] seconds until the cart expires (0 if never)
+-- returns 1 if the cart was saved, 0 if it was changed concurrently, -1 if it is leased by somebody else
+local lease = redis.call('GET', KEYS[3])
+if lease and lease ~= ARGV[4] then
+	return -1
+end
+local current = redis.call('GET', KEYS[2]) or ''
+if current ~= ARGV[1] then
+	return 0
+end
+local ttl = tonumber(ARGV[5])
+if ttl and ttl > 0 then
+	redis.call('SET', KEYS[1], ARGV[2], 'EX', ttl)
+	redis.call('SET', KEYS[2], ARGV[3], 'EX', ttl)
+else
+	redis.call('SET', KEYS[1], ARGV[2])
+	redis.call('SET', KEYS[2], ARGV[3])
+end
+return 1
@@ -0,0 +1,18 @@
+-- Replaces a cart by the stub of its offloaded copy, only if it has not changed since it was read and nobody holds its
+-- lease. The time to live of the cart is kept, its version is not touched.
+-- KEYS[1] cart key, KEYS[2] lock key (in the hash slot of the cart key)
+-- ARGV[1] cart as read, ARGV[2] stub
+-- returns 1 if the cart was replaced, 0 if it was changed concurrently, -1 if it is leased
+if redis.call('EXISTS', KEYS[2]) == 1 then
+	return -1
+end
+if redis.call('GET', KEYS[1]) ~= ARGV[1] then
+	return 0
+end
+local ttl = redis.call('PTTL', KEYS[1])
+if ttl > 0 then
+	redis.call('SET', KEYS[1], ARGV[2], 'PX', ttl)
+else
+	redis.call('SET', KEYS[1], ARGV[2])
+end
+return 1
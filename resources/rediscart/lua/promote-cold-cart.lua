@@ -0,0 +1,15 @@
+-- Puts an offloaded cart back in place of its stub, unless the stub has been replaced meanwhile. The time to live of
+-- the stub is kept, its version is not touched.
+-- KEYS[1] cart key
+-- ARGV[1] stub as read, ARGV[2] cart
+-- returns 1 if the cart was put back, 0 if the stub has been replaced
+if redis.call('GET', KEYS[1]) ~= ARGV[1] then
+	return 0
+end
+local ttl = redis.call('PTTL', KEYS[1])
+if ttl > 0 then
+	redis.call('SET', KEYS[1], ARGV[2], 'PX', ttl)
+else
+	redis.call('SET', KEYS[1], ARGV[2])
+end
+return 1
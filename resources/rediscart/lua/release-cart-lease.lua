@@ -0,0 +1,8 @@
+-- Releases the lease of a cart if it is still held by the caller.
+-- KEYS[1] lock key
+-- ARGV[1] lease value as returned on acquisition (owner:token)
+-- returns 1 if the lease was released, 0 if it had expired or was taken over
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+	return redis.call('DEL', KEYS[1])
+end
+return 0
@@ -0,0 +1,11 @@
+-- Removes an index from the recorded indexes of a cart only if the cart has not been saved since it was checked, a
+-- newer version may belong to the index.
+-- KEYS[1] version key, KEYS[2] indexes key (both in the hash slot of the cart key)
+-- ARGV[1] version the cart was checked with (empty if it has never been saved), ARGV[2] recorded index key
+-- returns 1 if the index has been removed from the recorded ones, 0 if the cart has changed meanwhile
+local current = redis.call('GET', KEYS[1]) or ''
+if current ~= ARGV[1] then
+	return 0
+end
+redis.call('SREM', KEYS[2], ARGV[2])
+return 1
@@ -23,7 +23,7 @@ import de.hybris.platform.servicelayer.model.ModelService;
 import de.hybris.platform.servicelayer.search.FlexibleSearchService;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -36,11 +36,13 @@ import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Required;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.SetOperations;
-import org.springframework.data.redis.core.ValueOperations;
 
-import com.sap.rediscart.util.RedisKeyGenerator;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.jfr.CartEventRecorder;
+import com.sap.rediscart.jfr.CartEventRecorder.Operation;
+import com.sap.rediscart.jfr.CartEventRecorder.Recording;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
 
 
 /**
@@ -53,20 +55,8 @@ public class CustomizedCommerceCartDao extends AbstractCustomizedCartDao impleme
 
 	private final Comparator<CartModel> c = (o1, o2) -> o2.getModifiedtime().compareTo(o1.getModifiedtime());
 
-	private RedisTemplate<String, Object> redisTemplate;
-	private ValueOperations<String, Object> valueOps;
-	private SetOperations<String, Object> setOps;
-
-	@Resource
-	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
-	{
-		this.redisTemplate = redisTemplate;
-		this.valueOps = this.redisTemplate.opsForValue();
-		this.setOps = this.redisTemplate.opsForSet();
-	}
-
 	@Resource
-	private RedisKeyGenerator redisKeyGenerator;
+	private CartStore cartStore;
 
 	protected CartModel getCartByCode(final String cartCode)
 	{
@@ -74,13 +64,39 @@ public class CustomizedCommerceCartDao extends AbstractCustomizedCartDao impleme
 		{
 			return null;
 		}
-		final String cartKey = redisKeyGenerator.generateCartKey(cartCode);
-		final Object value = valueOps.get(cartKey);
-		if (value == null)
+		final Recording recording = CartEventRecorder.begin(Operation.LOAD);
+		RedisCart value = null;
+		try
 		{
-			return null;
+			value = cartStore.load(cartCode);
+			if (value == null)
+			{
+				return null;
+			}
+			return getModelService().get(value);
 		}
-		return getModelService().get(value);
+		finally
+		{
+			recording.end(cartCode, value == null ? 0 : value.getEntries().size());
+		}
+	}
+
+	/**
+	 * Loads the carts of all codes in one batch, codes without a cart are left out.
+	 */
+	protected List<CartModel> getCartsByCodes(final Collection<String> cartCodes)
+	{
+		final List<CartModel> cartModels = new ArrayList<>();
+		for (final RedisCart cart : cartStore.loadBatch(cartCodes).values())
+		{
+			cartModels.add(getModelService().get(cart));
+		}
+		return cartModels;
+	}
+
+	protected CartStore getCartStore()
+	{
+		return cartStore;
 	}
 
 	@Override
@@ -88,16 +104,8 @@ public class CustomizedCommerceCartDao extends AbstractCustomizedCartDao impleme
 	{
 		if (guid != null)
 		{
-			final String guidKey = redisKeyGenerator.generateGuidKey(guid);
-			final String userIdKey = redisKeyGenerator.generateUserIdKey(user.getUid());
-			final String siteIdKey = redisKeyGenerator.generateSiteIdKey(site.getUid());
-			final Set<Object> set = setOps.intersect(null, Arrays.asList(guidKey, userIdKey, siteIdKey));
-			final List<CartModel> cartModels = new ArrayList<>();
-			for (final Object key : set)
-			{
-				final String cartCode = key.toString();
-				cartModels.add(getCartByCode(cartCode));
-			}
+			final Set<String> set = cartStore.findCartCodes(new CartIndex(null, user.getUid(), guid, site.getUid()));
+			final List<CartModel> cartModels = getCartsByCodes(set);
 
 			Collections.sort(cartModels, c);
 
@@ -116,15 +124,8 @@ public class CustomizedCommerceCartDao extends AbstractCustomizedCartDao impleme
 	@Override
 	public CartModel getCartForGuidAndSite(final String guid, final BaseSiteModel site)
 	{
-		final String guidKey = redisKeyGenerator.generateGuidKey(guid);
-		final String siteIdKey = redisKeyGenerator.generateSiteIdKey(site.getUid());
-		final Set<Object> set = setOps.intersect(null, Arrays.asList(guidKey, siteIdKey));
-		final List<CartModel> cartModels = new ArrayList<>();
-		for (final Object key : set)
-		{
-			final String cartCode = key.toString();
-			cartModels.add(getCartByCode(cartCode));
-		}
+		final Set<String> set = cartStore.findCartCodes(new CartIndex(null, null, guid, site.getUid()));
+		final List<CartModel> cartModels = getCartsByCodes(set);
 
 		Collections.sort(cartModels, c);
 
@@ -138,15 +139,8 @@ public class CustomizedCommerceCartDao extends AbstractCustomizedCartDao impleme
 	@Override
 	public CartModel getCartForCodeAndUser(final String code, final UserModel user)
 	{
-		final String codeKey = redisKeyGenerator.generateCodeKey(code);
-		final String userIdKey = redisKeyGenerator.generateUserIdKey(user.getUid());
-		final Set<Object> set = setOps.intersect(null, Arrays.asList(codeKey, userIdKey));
-		final List<CartModel> cartModels = new ArrayList<>();
-		for (final Object key : set)
-		{
-			final String cartCode = key.toString();
-			cartModels.add(getCartByCode(cartCode));
-		}
+		final Set<String> set = cartStore.findCartCodes(new CartIndex(code, user.getUid(), null, null));
+		final List<CartModel> cartModels = getCartsByCodes(set);
 
 		Collections.sort(cartModels, c);
 
@@ -160,14 +154,10 @@ public class CustomizedCommerceCartDao extends AbstractCustomizedCartDao impleme
 	@Override
 	public CartModel getCartForSiteAndUser(final BaseSiteModel site, final UserModel user)
 	{
-		final String userIdKey = redisKeyGenerator.generateUserIdKey(user.getUid());
-		final String siteIdKey = redisKeyGenerator.generateSiteIdKey(site.getUid());
-		final Set<Object> set = setOps.intersect(null, Arrays.asList(userIdKey, siteIdKey));
+		final Set<String> set = cartStore.findCartCodes(new CartIndex(null, user.getUid(), null, site.getUid()));
 		final List<CartModel> cartModels = new ArrayList<>();
-		for (final Object key : set)
+		for (final CartModel cartModel : getCartsByCodes(set))
 		{
-			final String cartCode = key.toString();
-			final CartModel cartModel = getCartByCode(cartCode);
 			if (cartModel.getSaveTime() == null)
 			{
 				cartModels.add(cartModel);
@@ -186,14 +176,10 @@ public class CustomizedCommerceCartDao extends AbstractCustomizedCartDao impleme
 	@Override
 	public List<CartModel> getCartsForSiteAndUser(final BaseSiteModel site, final UserModel user)
 	{
-		final String userIdKey = redisKeyGenerator.generateUserIdKey(user.getUid());
-		final String siteIdKey = redisKeyGenerator.generateSiteIdKey(site.getUid());
-		final Set<Object> set = setOps.intersect(null, Arrays.asList(userIdKey, siteIdKey));
+		final Set<String> set = cartStore.findCartCodes(new CartIndex(null, user.getUid(), null, site.getUid()));
 		final List<CartModel> cartModels = new ArrayList<>();
-		for (final Object key : set)
+		for (final CartModel cartModel : getCartsByCodes(set))
 		{
-			final String cartCode = key.toString();
-			final CartModel cartModel = getCartByCode(cartCode);
 			if (cartModel.getSaveTime() == null)
 			{
 				cartModels.add(cartModel);
@@ -210,28 +196,14 @@ public class CustomizedCommerceCartDao extends AbstractCustomizedCartDao impleme
 			final UserModel user)
 	{
 		final List<CartModel> cartModels = new ArrayList<>();
-		final String siteIdKey = redisKeyGenerator.generateSiteIdKey(site.getUid());
-		Set<Object> set = null;
-		if (user == null)
-		{
-			set = setOps.intersect(null, Arrays.asList(siteIdKey));
-		}
-		else
-		{
-			final String userIdKey = redisKeyGenerator.generateUserIdKey(user.getUid());
-			set = setOps.intersect(null, Arrays.asList(userIdKey, siteIdKey));
-		}
-		for (final Object key : set)
+		final String userId = user == null ? null : user.getUid();
+		final Set<String> set = cartStore.findCartCodes(new CartIndex(null, userId, null, site.getUid()));
+		for (final CartModel cartModel : getCartsByCodes(set))
 		{
-			final String cartCode = key.toString();
-			final CartModel cartModel = getCartByCode(cartCode);
-			if (cartModel != null)
+			final Date modifiedtime = cartModel.getModifiedtime();
+			if ((modifiedtime.before(modifiedBefore) || modifiedtime.equals(modifiedBefore)) && cartModel.getSaveTime() == null)
 			{
-				final Date modifiedtime = cartModel.getModifiedtime();
-				if ((modifiedtime.before(modifiedBefore) || modifiedtime.equals(modifiedBefore)) && cartModel.getSaveTime() == null)
-				{
-					cartModels.add(cartModel);
-				}
+				cartModels.add(cartModel);
 			}
 		}
 
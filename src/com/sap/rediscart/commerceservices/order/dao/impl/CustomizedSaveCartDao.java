@@ -37,13 +37,15 @@ import javax.annotation.Resource;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.SetOperations;
 
-import com.sap.rediscart.util.RedisKeyGenerator;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.ReadPreference;
 
 
 /**
+ * Saved cart listings and counts read with the readPreference, they tolerate missing the latest saves of other nodes
+ * and can be served by replicas.
+ *
  * @author Henter Liu (henterji@163.com)
  */
 public class CustomizedSaveCartDao extends CustomizedCommerceCartDao implements SaveCartDao
@@ -63,33 +65,37 @@ public class CustomizedSaveCartDao extends CustomizedCommerceCartDao implements
 	protected static final String SORT_CODE_BY_CODE = "byCode";
 	protected static final String SORT_CODE_BY_TOTAL = "byTotal";
 
-	private RedisTemplate<String, Object> redisTemplate;
-	private SetOperations<String, Object> setOps;
+	@Resource
+	private ModelService modelService;
+
+	private ReadPreference readPreference = ReadPreference.MASTER;
 
 	@Override
-	@Resource
-	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	public List<CartModel> getSavedCartsForRemovalForSite(final BaseSiteModel site)
 	{
-		this.redisTemplate = redisTemplate;
-		this.setOps = this.redisTemplate.opsForSet();
+		return ReadPreference.apply(getReadPreference(), () -> findSavedCartsForRemovalForSite(site));
 	}
 
-	@Resource
-	private RedisKeyGenerator redisKeyGenerator;
-
-	@Resource
-	private ModelService modelService;
+	@Override
+	public SearchPageData<CartModel> getSavedCartsForSiteAndUser(final PageableData pageableData, final BaseSiteModel baseSite,
+			final UserModel user, final List<OrderStatus> orderStatus)
+	{
+		return ReadPreference.apply(getReadPreference(),
+				() -> findSavedCartsForSiteAndUser(pageableData, baseSite, user, orderStatus));
+	}
 
 	@Override
-	public List<CartModel> getSavedCartsForRemovalForSite(final BaseSiteModel site)
+	public Integer getSavedCartsCountForSiteAndUser(final BaseSiteModel baseSite, final UserModel user)
 	{
-		final String siteIdKey = redisKeyGenerator.generateSiteIdKey(site.getUid());
-		final Set<Object> set = setOps.intersect(null, Arrays.asList(siteIdKey));
+		return ReadPreference.apply(getReadPreference(), () -> countSavedCartsForSiteAndUser(baseSite, user));
+	}
+
+	protected List<CartModel> findSavedCartsForRemovalForSite(final BaseSiteModel site)
+	{
+		final Set<String> set = getCartStore().findCartCodes(new CartIndex(null, null, null, site.getUid()));
 		final List<CartModel> cartModels = new ArrayList<>();
-		for (final Object key : set)
+		for (final CartModel cartModel : getCartsByCodes(set))
 		{
-			final String cartCode = key.toString();
-			final CartModel cartModel = getCartByCode(cartCode);
 			if (cartModel.getSaveTime() != null)
 			{
 				final Date expirationTime = cartModel.getExpirationTime();
@@ -106,22 +112,18 @@ public class CustomizedSaveCartDao extends CustomizedCommerceCartDao implements
 		return cartModels;
 	}
 
-	@Override
-	public SearchPageData<CartModel> getSavedCartsForSiteAndUser(final PageableData pageableData, final BaseSiteModel baseSite,
-			final UserModel user, final List<OrderStatus> orderStatus)
+	protected SearchPageData<CartModel> findSavedCartsForSiteAndUser(final PageableData pageableData,
+			final BaseSiteModel baseSite, final UserModel user, final List<OrderStatus> orderStatus)
 	{
 		final List<CartModel> cartModels = new ArrayList<>();
 		if (baseSite != null)
 		{
 			if (CollectionUtils.isNotEmpty(orderStatus))
 			{
-				final String userIdKey = redisKeyGenerator.generateUserIdKey(user.getUid());
-				final String siteIdKey = redisKeyGenerator.generateSiteIdKey(baseSite.getUid());
-				final Set<Object> set = setOps.intersect(null, Arrays.asList(userIdKey, siteIdKey));
-				for (final Object key : set)
+				final Set<String> set = getCartStore()
+						.findCartCodes(new CartIndex(null, user.getUid(), null, baseSite.getUid()));
+				for (final CartModel cartModel : getCartsByCodes(set))
 				{
-					final String cartCode = key.toString();
-					final CartModel cartModel = getCartByCode(cartCode);
 					if (cartModel.getSaveTime() != null)
 					{
 						final OrderStatus cartStatus = cartModel.getStatus();
@@ -134,13 +136,10 @@ public class CustomizedSaveCartDao extends CustomizedCommerceCartDao implements
 			}
 			else
 			{
-				final String userIdKey = redisKeyGenerator.generateUserIdKey(user.getUid());
-				final String siteIdKey = redisKeyGenerator.generateSiteIdKey(baseSite.getUid());
-				final Set<Object> set = setOps.intersect(null, Arrays.asList(userIdKey, siteIdKey));
-				for (final Object key : set)
+				final Set<String> set = getCartStore()
+						.findCartCodes(new CartIndex(null, user.getUid(), null, baseSite.getUid()));
+				for (final CartModel cartModel : getCartsByCodes(set))
 				{
-					final String cartCode = key.toString();
-					final CartModel cartModel = getCartByCode(cartCode);
 					if (cartModel.getSaveTime() != null)
 					{
 						cartModels.add(cartModel);
@@ -152,12 +151,9 @@ public class CustomizedSaveCartDao extends CustomizedCommerceCartDao implements
 		{
 			if (CollectionUtils.isNotEmpty(orderStatus))
 			{
-				final String userIdKey = redisKeyGenerator.generateUserIdKey(user.getUid());
-				final Set<Object> set = setOps.intersect(null, Arrays.asList(userIdKey));
-				for (final Object key : set)
+				final Set<String> set = getCartStore().findCartCodes(new CartIndex(null, user.getUid(), null, null));
+				for (final CartModel cartModel : getCartsByCodes(set))
 				{
-					final String cartCode = key.toString();
-					final CartModel cartModel = getCartByCode(cartCode);
 					if (cartModel.getSaveTime() != null)
 					{
 						final OrderStatus cartStatus = cartModel.getStatus();
@@ -170,12 +166,9 @@ public class CustomizedSaveCartDao extends CustomizedCommerceCartDao implements
 			}
 			else
 			{
-				final String userIdKey = redisKeyGenerator.generateUserIdKey(user.getUid());
-				final Set<Object> set = setOps.intersect(null, Arrays.asList(userIdKey));
-				for (final Object key : set)
+				final Set<String> set = getCartStore().findCartCodes(new CartIndex(null, user.getUid(), null, null));
+				for (final CartModel cartModel : getCartsByCodes(set))
 				{
-					final String cartCode = key.toString();
-					final CartModel cartModel = getCartByCode(cartCode);
 					if (cartModel.getSaveTime() != null)
 					{
 						cartModels.add(cartModel);
@@ -246,26 +239,14 @@ public class CustomizedSaveCartDao extends CustomizedCommerceCartDao implements
 		Collections.sort(list, cmp);
 	}
 
-	@Override
-	public Integer getSavedCartsCountForSiteAndUser(final BaseSiteModel baseSite, final UserModel user)
+	protected Integer countSavedCartsForSiteAndUser(final BaseSiteModel baseSite, final UserModel user)
 	{
 		final List<CartModel> cartModels = new ArrayList<>();
 
-		final String userIdKey = redisKeyGenerator.generateUserIdKey(user.getUid());
-		Set<Object> set = null;
-		if (baseSite != null)
-		{
-			final String siteIdKey = redisKeyGenerator.generateSiteIdKey(baseSite.getUid());
-			set = setOps.intersect(null, Arrays.asList(userIdKey, siteIdKey));
-		}
-		else
-		{
-			set = setOps.intersect(null, Arrays.asList(userIdKey));
-		}
-		for (final Object key : set)
+		final String siteId = baseSite == null ? null : baseSite.getUid();
+		final Set<String> set = getCartStore().findCartCodes(new CartIndex(null, user.getUid(), null, siteId));
+		for (final CartModel cartModel : getCartsByCodes(set))
 		{
-			final String cartCode = key.toString();
-			final CartModel cartModel = getCartByCode(cartCode);
 			if (cartModel.getSaveTime() != null)
 			{
 				cartModels.add(cartModel);
@@ -274,4 +255,21 @@ public class CustomizedSaveCartDao extends CustomizedCommerceCartDao implements
 
 		return Integer.valueOf(cartModels.size());
 	}
+
+	/**
+	 * @return the readPreference
+	 */
+	public ReadPreference getReadPreference()
+	{
+		return readPreference;
+	}
+
+	/**
+	 * @param readPreference
+	 *           the readPreference to set
+	 */
+	public void setReadPreference(final ReadPreference readPreference)
+	{
+		this.readPreference = readPreference;
+	}
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.commerceservices.order.impl;
+
+import de.hybris.platform.commerceservices.order.impl.DefaultCommercePlaceOrderStrategy;
+import de.hybris.platform.commerceservices.service.data.CommerceCheckoutParameter;
+import de.hybris.platform.commerceservices.service.data.CommerceOrderResult;
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.order.InvalidCartException;
+
+import com.sap.rediscart.model.order.RedisCartModel;
+import com.sap.rediscart.util.RedisCartLeaseLock;
+
+
+/**
+ * Places orders of redis carts under the lease taken when the cart is cloned. The lease is released once the order is
+ * placed or has failed, unless it has gone together with the removed cart, so a failed checkout does not keep the cart
+ * locked until the lease expires.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CustomizedCommercePlaceOrderStrategy extends DefaultCommercePlaceOrderStrategy
+{
+	private RedisCartLeaseLock redisCartLeaseLock;
+
+	@Override
+	public CommerceOrderResult placeOrder(final CommerceCheckoutParameter parameter) throws InvalidCartException
+	{
+		final CartModel cart = parameter.getCart();
+		if (!(cart instanceof RedisCartModel) || getRedisCartLeaseLock().getHeldLease(cart.getCode()) != null)
+		{
+			// not a redis cart, or an outer operation holds the lease and releases it
+			return super.placeOrder(parameter);
+		}
+		try
+		{
+			return super.placeOrder(parameter);
+		}
+		finally
+		{
+			getRedisCartLeaseLock().releaseHeld(cart.getCode());
+		}
+	}
+
+	/**
+	 * @return the redisCartLeaseLock
+	 */
+	public RedisCartLeaseLock getRedisCartLeaseLock()
+	{
+		return redisCartLeaseLock;
+	}
+
+	/**
+	 * @param redisCartLeaseLock
+	 *           the redisCartLeaseLock to set
+	 */
+	public void setRedisCartLeaseLock(final RedisCartLeaseLock redisCartLeaseLock)
+	{
+		this.redisCartLeaseLock = redisCartLeaseLock;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.commerceservices.order.impl;
+
+import de.hybris.platform.commerceservices.order.CommerceCartModification;
+import de.hybris.platform.commerceservices.order.CommerceCartModificationException;
+import de.hybris.platform.commerceservices.order.impl.DefaultCommerceUpdateCartEntryStrategy;
+import de.hybris.platform.commerceservices.service.data.CommerceCartParameter;
+
+import com.sap.rediscart.service.impl.OptimisticCartUpdateService;
+
+
+/**
+ * Changes the quantity of cart entries, retrying on a reloaded cart if another node has saved the cart in between.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CustomizedCommerceUpdateCartEntryStrategy extends DefaultCommerceUpdateCartEntryStrategy
+{
+	private OptimisticCartUpdateService optimisticCartUpdateService;
+
+	@Override
+	public CommerceCartModification updateQuantityForCartEntry(final CommerceCartParameter parameter)
+			throws CommerceCartModificationException
+	{
+		return getOptimisticCartUpdateService().update(parameter.getCart(), cart -> {
+			parameter.setCart(cart);
+			return super.updateQuantityForCartEntry(parameter);
+		});
+	}
+
+	/**
+	 * @return the optimisticCartUpdateService
+	 */
+	public OptimisticCartUpdateService getOptimisticCartUpdateService()
+	{
+		return optimisticCartUpdateService;
+	}
+
+	/**
+	 * @param optimisticCartUpdateService
+	 *           the optimisticCartUpdateService to set
+	 */
+	public void setOptimisticCartUpdateService(final OptimisticCartUpdateService optimisticCartUpdateService)
+	{
+		this.optimisticCartUpdateService = optimisticCartUpdateService;
+	}
+}
@@ -32,4 +32,7 @@ public final class RediscartConstants extends GeneratedRediscartConstants
 	// implement here constants used by this extension
 
 	public static final String PLATFORM_LOGO_CODE = "rediscartPlatformLogo";
+
+	/** Code prefix of the synthetic carts of the warm-up, they are not indexed, measured or watched for hot carts. */
+	public static final String WARM_UP_CART_CODE_PREFIX = "rediscart-warm-up-";
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.cronjob;
+
+import de.hybris.platform.cronjob.enums.CronJobResult;
+import de.hybris.platform.cronjob.enums.CronJobStatus;
+import de.hybris.platform.cronjob.model.CronJobModel;
+import de.hybris.platform.servicelayer.cronjob.AbstractJobPerformable;
+import de.hybris.platform.servicelayer.cronjob.PerformResult;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.diagnostics.CartIndexReconciler;
+
+
+/**
+ * Runs the {@link CartIndexReconciler} for at most maxDurationSeconds, the next run continues where this one stopped.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartIndexReconciliationJob extends AbstractJobPerformable<CronJobModel>
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CartIndexReconciliationJob.class);
+
+	private CartIndexReconciler cartIndexReconciler;
+	private long maxDurationSeconds = 300;
+
+	@Override
+	public PerformResult perform(final CronJobModel cronJob)
+	{
+		final AtomicBoolean aborted = new AtomicBoolean();
+		try
+		{
+			final boolean completed = getCartIndexReconciler().reconcile(TimeUnit.SECONDS.toMillis(getMaxDurationSeconds()),
+					() -> {
+						if (clearAbortRequestedIfNeeded(cronJob))
+						{
+							aborted.set(true);
+						}
+						return aborted.get();
+					});
+			LOG.info(completed ? "Cart indexes reconciled" : "Cart index reconciliation paused, the next run continues");
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			aborted.set(true);
+		}
+		return aborted.get() ? new PerformResult(CronJobResult.UNKNOWN, CronJobStatus.ABORTED)
+				: new PerformResult(CronJobResult.SUCCESS, CronJobStatus.FINISHED);
+	}
+
+	@Override
+	public boolean isAbortable()
+	{
+		return true;
+	}
+
+	/**
+	 * @return the cartIndexReconciler
+	 */
+	public CartIndexReconciler getCartIndexReconciler()
+	{
+		return cartIndexReconciler;
+	}
+
+	/**
+	 * @param cartIndexReconciler
+	 *           the cartIndexReconciler to set
+	 */
+	public void setCartIndexReconciler(final CartIndexReconciler cartIndexReconciler)
+	{
+		this.cartIndexReconciler = cartIndexReconciler;
+	}
+
+	/**
+	 * @return the maxDurationSeconds
+	 */
+	public long getMaxDurationSeconds()
+	{
+		return maxDurationSeconds;
+	}
+
+	/**
+	 * @param maxDurationSeconds
+	 *           the maxDurationSeconds to set
+	 */
+	public void setMaxDurationSeconds(final long maxDurationSeconds)
+	{
+		this.maxDurationSeconds = maxDurationSeconds;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.cronjob;
+
+import de.hybris.platform.cronjob.enums.CronJobResult;
+import de.hybris.platform.cronjob.enums.CronJobStatus;
+import de.hybris.platform.cronjob.model.CronJobModel;
+import de.hybris.platform.servicelayer.cronjob.AbstractJobPerformable;
+import de.hybris.platform.servicelayer.cronjob.PerformResult;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.service.impl.ColdCartOffloader;
+
+
+/**
+ * Runs the {@link ColdCartOffloader} for at most maxDurationSeconds, the next run continues where this one stopped.
+ * Does nothing unless rediscart.tiering.coldAfterSeconds is set.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class ColdCartOffloadJob extends AbstractJobPerformable<CronJobModel>
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ColdCartOffloadJob.class);
+
+	private ColdCartOffloader coldCartOffloader;
+	private long maxDurationSeconds = 300;
+
+	@Override
+	public PerformResult perform(final CronJobModel cronJob)
+	{
+		final AtomicBoolean aborted = new AtomicBoolean();
+		try
+		{
+			final long maxMillis = TimeUnit.SECONDS.toMillis(getMaxDurationSeconds());
+			final boolean completed = getColdCartOffloader().offloadColdCarts(maxMillis, () -> {
+				if (clearAbortRequestedIfNeeded(cronJob))
+				{
+					aborted.set(true);
+				}
+				return aborted.get();
+			});
+			LOG.info(completed ? "Cold carts offloaded" : "Cold cart offloading paused, the next run continues");
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			aborted.set(true);
+		}
+		return aborted.get() ? new PerformResult(CronJobResult.UNKNOWN, CronJobStatus.ABORTED)
+				: new PerformResult(CronJobResult.SUCCESS, CronJobStatus.FINISHED);
+	}
+
+	@Override
+	public boolean isAbortable()
+	{
+		return true;
+	}
+
+	/**
+	 * @return the coldCartOffloader
+	 */
+	public ColdCartOffloader getColdCartOffloader()
+	{
+		return coldCartOffloader;
+	}
+
+	/**
+	 * @param coldCartOffloader
+	 *           the coldCartOffloader to set
+	 */
+	public void setColdCartOffloader(final ColdCartOffloader coldCartOffloader)
+	{
+		this.coldCartOffloader = coldCartOffloader;
+	}
+
+	/**
+	 * @return the maxDurationSeconds
+	 */
+	public long getMaxDurationSeconds()
+	{
+		return maxDurationSeconds;
+	}
+
+	/**
+	 * @param maxDurationSeconds
+	 *           the maxDurationSeconds to set
+	 */
+	public void setMaxDurationSeconds(final long maxDurationSeconds)
+	{
+		this.maxDurationSeconds = maxDurationSeconds;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.cronjob;
+
+import de.hybris.platform.cronjob.enums.CronJobResult;
+import de.hybris.platform.cronjob.enums.CronJobStatus;
+import de.hybris.platform.cronjob.model.CronJobModel;
+import de.hybris.platform.servicelayer.cronjob.AbstractJobPerformable;
+import de.hybris.platform.servicelayer.cronjob.PerformResult;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.service.impl.PromotionResultDependentsMigration;
+
+
+/**
+ * Runs the {@link PromotionResultDependentsMigration} for at most maxDurationSeconds, the next run continues where
+ * this one stopped. Once the migration is done a run only checks that.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class PromotionResultDependentsMigrationJob extends AbstractJobPerformable<CronJobModel>
+{
+	private static final Logger LOG = LoggerFactory.getLogger(PromotionResultDependentsMigrationJob.class);
+
+	private PromotionResultDependentsMigration promotionResultDependentsMigration;
+	private long maxDurationSeconds = 300;
+
+	@Override
+	public PerformResult perform(final CronJobModel cronJob)
+	{
+		final AtomicBoolean aborted = new AtomicBoolean();
+		final long maxMillis = TimeUnit.SECONDS.toMillis(getMaxDurationSeconds());
+		final boolean completed = getPromotionResultDependentsMigration().migrate(maxMillis, () -> {
+			if (clearAbortRequestedIfNeeded(cronJob))
+			{
+				aborted.set(true);
+			}
+			return aborted.get();
+		});
+		LOG.debug(completed ? "Promotion result dependents migrated" : "Promotion result dependents migration paused");
+		return aborted.get() ? new PerformResult(CronJobResult.UNKNOWN, CronJobStatus.ABORTED)
+				: new PerformResult(CronJobResult.SUCCESS, CronJobStatus.FINISHED);
+	}
+
+	@Override
+	public boolean isAbortable()
+	{
+		return true;
+	}
+
+	/**
+	 * @return the promotionResultDependentsMigration
+	 */
+	public PromotionResultDependentsMigration getPromotionResultDependentsMigration()
+	{
+		return promotionResultDependentsMigration;
+	}
+
+	/**
+	 * @param promotionResultDependentsMigration
+	 *           the promotionResultDependentsMigration to set
+	 */
+	public void setPromotionResultDependentsMigration(final PromotionResultDependentsMigration promotionResultDependentsMigration)
+	{
+		this.promotionResultDependentsMigration = promotionResultDependentsMigration;
+	}
+
+	/**
+	 * @return the maxDurationSeconds
+	 */
+	public long getMaxDurationSeconds()
+	{
+		return maxDurationSeconds;
+	}
+
+	/**
+	 * @param maxDurationSeconds
+	 *           the maxDurationSeconds to set
+	 */
+	public void setMaxDurationSeconds(final long maxDurationSeconds)
+	{
+		this.maxDurationSeconds = maxDurationSeconds;
+	}
+}
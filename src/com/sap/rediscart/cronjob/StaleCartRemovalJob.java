@@ -0,0 +1,110 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.cronjob;
+
+import de.hybris.platform.cronjob.enums.CronJobResult;
+import de.hybris.platform.cronjob.enums.CronJobStatus;
+import de.hybris.platform.cronjob.model.CronJobModel;
+import de.hybris.platform.servicelayer.cronjob.AbstractJobPerformable;
+import de.hybris.platform.servicelayer.cronjob.PerformResult;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.service.impl.StaleCartRemover;
+
+
+/**
+ * Runs the {@link StaleCartRemover} for at most maxDurationSeconds, the next run continues where this one stopped.
+ * Meant to replace the platform's cart removal cron jobs for redis carts.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class StaleCartRemovalJob extends AbstractJobPerformable<CronJobModel>
+{
+	private static final Logger LOG = LoggerFactory.getLogger(StaleCartRemovalJob.class);
+
+	private StaleCartRemover staleCartRemover;
+	private long maxDurationSeconds = 300;
+
+	@Override
+	public PerformResult perform(final CronJobModel cronJob)
+	{
+		final AtomicBoolean aborted = new AtomicBoolean();
+		try
+		{
+			final long maxMillis = TimeUnit.SECONDS.toMillis(getMaxDurationSeconds());
+			final boolean completed = getStaleCartRemover().removeStaleCarts(maxMillis, () -> {
+				if (clearAbortRequestedIfNeeded(cronJob))
+				{
+					aborted.set(true);
+				}
+				return aborted.get();
+			});
+			LOG.info(completed ? "Stale carts removed" : "Stale cart removal paused, the next run continues");
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			aborted.set(true);
+		}
+		return aborted.get() ? new PerformResult(CronJobResult.UNKNOWN, CronJobStatus.ABORTED)
+				: new PerformResult(CronJobResult.SUCCESS, CronJobStatus.FINISHED);
+	}
+
+	@Override
+	public boolean isAbortable()
+	{
+		return true;
+	}
+
+	/**
+	 * @return the staleCartRemover
+	 */
+	public StaleCartRemover getStaleCartRemover()
+	{
+		return staleCartRemover;
+	}
+
+	/**
+	 * @param staleCartRemover
+	 *           the staleCartRemover to set
+	 */
+	public void setStaleCartRemover(final StaleCartRemover staleCartRemover)
+	{
+		this.staleCartRemover = staleCartRemover;
+	}
+
+	/**
+	 * @return the maxDurationSeconds
+	 */
+	public long getMaxDurationSeconds()
+	{
+		return maxDurationSeconds;
+	}
+
+	/**
+	 * @param maxDurationSeconds
+	 *           the maxDurationSeconds to set
+	 */
+	public void setMaxDurationSeconds(final long maxDurationSeconds)
+	{
+		this.maxDurationSeconds = maxDurationSeconds;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.diagnostics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Outcome of checking one cart code against the stored cart and the indexes it should be found by.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartConsistencyReport
+{
+	private final String cartCode;
+	private final boolean cartStored;
+	private final List<String> problems = new ArrayList<>();
+	private boolean repaired;
+
+	public CartConsistencyReport(final String cartCode, final boolean cartStored)
+	{
+		this.cartCode = cartCode;
+		this.cartStored = cartStored;
+	}
+
+	public void addProblem(final String problem)
+	{
+		problems.add(problem);
+	}
+
+	/**
+	 * @return true if no problem has been found
+	 */
+	public boolean isConsistent()
+	{
+		return problems.isEmpty();
+	}
+
+	/**
+	 * @return the cartCode
+	 */
+	public String getCartCode()
+	{
+		return cartCode;
+	}
+
+	/**
+	 * @return true if a cart is stored under the code
+	 */
+	public boolean isCartStored()
+	{
+		return cartStored;
+	}
+
+	/**
+	 * @return the problems
+	 */
+	public List<String> getProblems()
+	{
+		return problems;
+	}
+
+	/**
+	 * @return true if the indexes have been rebuilt after the check
+	 */
+	public boolean isRepaired()
+	{
+		return repaired;
+	}
+
+	/**
+	 * @param repaired
+	 *           the repaired to set
+	 */
+	public void setRepaired(final boolean repaired)
+	{
+		this.repaired = repaired;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CartConsistencyReport[cartCode=" + cartCode + ", cartStored=" + cartStored + ", problems=" + problems
+				+ ", repaired=" + repaired + "]";
+	}
+}
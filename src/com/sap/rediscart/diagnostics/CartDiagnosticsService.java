@@ -0,0 +1,285 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.diagnostics;
+
+import de.hybris.platform.basecommerce.model.site.BaseSiteModel;
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.servicelayer.model.ModelService;
+import de.hybris.platform.site.BaseSiteService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.metrics.OperationMetrics;
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+
+
+/**
+ * Backs the diagnostics page of the web module: throughput of the cart store operations, cart counts per site, and
+ * consistency checks of carts against their indexes, optionally repairing the indexes.
+ * <p/>
+ * A cart is consistent if it is found by its code, user, guid and site, and if every code in the index of a user has a
+ * stored cart of that user. Index entries of a cart that no longer exists are only found through the user they were
+ * indexed by.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartDiagnosticsService
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CartDiagnosticsService.class);
+
+	private final Map<String, long[]> previousCalls = new HashMap<>();
+
+	private CartStore cartStore;
+	private ModelService modelService;
+	private BaseSiteService baseSiteService;
+	private RedisMetrics redisMetrics;
+
+	/**
+	 * @return the calls per second of every operation since the previous invocation, -1 on the first one
+	 */
+	public Map<String, Double> getOperationRates()
+	{
+		final long now = System.nanoTime();
+		final Map<String, Double> rates = new TreeMap<>();
+		synchronized (previousCalls)
+		{
+			for (final Map.Entry<String, OperationMetrics> entry : getRedisMetrics().getOperations().entrySet())
+			{
+				final long calls = entry.getValue().getCalls();
+				final long[] previous = previousCalls.put(entry.getKey(), new long[]
+				{ calls, now });
+				final double rate = previous == null || now == previous[1] ? -1D
+						: (calls - previous[0]) * 1_000_000_000D / (now - previous[1]);
+				rates.put(entry.getKey(), Double.valueOf(rate));
+			}
+		}
+		return rates;
+	}
+
+	/**
+	 * @return the number of carts in the index of every site by site uid
+	 */
+	public Map<String, Long> getCartCountsBySite()
+	{
+		final Map<String, Long> counts = new TreeMap<>();
+		for (final BaseSiteModel site : getBaseSiteService().getAllBaseSites())
+		{
+			counts.put(site.getUid(), Long.valueOf(getCartStore().countCartCodes(new CartIndex(null, null, null, site.getUid()))));
+		}
+		return counts;
+	}
+
+	public CartConsistencyReport checkCart(final String cartCode)
+	{
+		return check(cartCode, null, false);
+	}
+
+	/**
+	 * @return a report per cart code in the index of the user
+	 */
+	public List<CartConsistencyReport> checkUser(final String userId)
+	{
+		return checkUser(userId, false);
+	}
+
+	/**
+	 * Checks the cart and adds it to the indexes it is missing from, or drops its code index if there is no cart.
+	 */
+	public CartConsistencyReport rebuildCartIndex(final String cartCode)
+	{
+		return check(cartCode, null, true);
+	}
+
+	/**
+	 * Checks the carts in the index of the user and repairs the inconsistent ones, codes of carts that do not exist or
+	 * belong to another user are dropped from the index of the user.
+	 */
+	public List<CartConsistencyReport> rebuildUserIndex(final String userId)
+	{
+		return checkUser(userId, true);
+	}
+
+	protected List<CartConsistencyReport> checkUser(final String userId, final boolean repair)
+	{
+		final List<CartConsistencyReport> reports = new ArrayList<>();
+		if (StringUtils.isBlank(userId))
+		{
+			return reports;
+		}
+		for (final String cartCode : getCartStore().findCartCodes(new CartIndex(null, userId, null, null)))
+		{
+			reports.add(check(cartCode, userId, repair));
+		}
+		return reports;
+	}
+
+	/**
+	 * @param indexedUserId
+	 *           the user whose index the code has been found in, or null
+	 */
+	protected CartConsistencyReport check(final String cartCode, final String indexedUserId, final boolean repair)
+	{
+		final RedisCart redisCart = getCartStore().load(cartCode);
+		final boolean inCodeIndex = getCartStore().countCartCodes(new CartIndex(cartCode, null, null, null)) > 0;
+		final CartConsistencyReport report = new CartConsistencyReport(cartCode, redisCart != null);
+
+		if (redisCart == null)
+		{
+			if (inCodeIndex)
+			{
+				report.addProblem("indexed by code but not stored");
+			}
+			if (indexedUserId != null)
+			{
+				report.addProblem("indexed by user " + indexedUserId + " but not stored");
+			}
+			if (repair && !report.isConsistent())
+			{
+				getCartStore().unindex(new CartIndex(cartCode, indexedUserId, null, null));
+				report.setRepaired(true);
+			}
+			return report;
+		}
+
+		final CartIndex expected = toCartIndex(getModelService().get(redisCart));
+		if (inCodeIndex)
+		{
+			checkIndexed(report, new CartIndex(cartCode, expected.getUserId(), null, null), "user " + expected.getUserId());
+			checkIndexed(report, new CartIndex(cartCode, null, expected.getGuid(), null), "guid " + expected.getGuid());
+			checkIndexed(report, new CartIndex(cartCode, null, null, expected.getSiteId()), "site " + expected.getSiteId());
+		}
+		else
+		{
+			report.addProblem("missing from the code index, the other indexes cannot be checked");
+		}
+		final boolean otherUser = indexedUserId != null && !indexedUserId.equals(expected.getUserId());
+		if (otherUser)
+		{
+			report.addProblem("indexed by user " + indexedUserId + " but belongs to user " + expected.getUserId());
+		}
+
+		if (repair && !report.isConsistent())
+		{
+			if (otherUser)
+			{
+				getCartStore().unindex(new CartIndex(cartCode, indexedUserId, null, null));
+			}
+			getCartStore().index(expected);
+			report.setRepaired(true);
+		}
+		if (!report.isConsistent())
+		{
+			LOG.info("Inconsistent cart: {}", report);
+		}
+		return report;
+	}
+
+	private void checkIndexed(final CartConsistencyReport report, final CartIndex criteria, final String index)
+	{
+		final boolean attributeSet = StringUtils.isNotBlank(criteria.getUserId()) || StringUtils.isNotBlank(criteria.getGuid())
+				|| StringUtils.isNotBlank(criteria.getSiteId());
+		// the intersection with the code index is a membership test, also for the large site indexes
+		if (attributeSet && getCartStore().countCartCodes(criteria) == 0)
+		{
+			report.addProblem("missing from the index of " + index);
+		}
+	}
+
+	protected CartIndex toCartIndex(final CartModel cart)
+	{
+		return new CartIndex(cart.getCode(), cart.getUser() == null ? null : cart.getUser().getUid(), cart.getGuid(),
+				cart.getSite() == null ? null : cart.getSite().getUid());
+	}
+
+	/**
+	 * @return the cartStore
+	 */
+	public CartStore getCartStore()
+	{
+		return cartStore;
+	}
+
+	/**
+	 * @param cartStore
+	 *           the cartStore to set
+	 */
+	public void setCartStore(final CartStore cartStore)
+	{
+		this.cartStore = cartStore;
+	}
+
+	/**
+	 * @return the modelService
+	 */
+	public ModelService getModelService()
+	{
+		return modelService;
+	}
+
+	/**
+	 * @param modelService
+	 *           the modelService to set
+	 */
+	public void setModelService(final ModelService modelService)
+	{
+		this.modelService = modelService;
+	}
+
+	/**
+	 * @return the baseSiteService
+	 */
+	public BaseSiteService getBaseSiteService()
+	{
+		return baseSiteService;
+	}
+
+	/**
+	 * @param baseSiteService
+	 *           the baseSiteService to set
+	 */
+	public void setBaseSiteService(final BaseSiteService baseSiteService)
+	{
+		this.baseSiteService = baseSiteService;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+}
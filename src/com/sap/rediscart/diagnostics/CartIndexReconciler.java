@@ -0,0 +1,584 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.diagnostics;
+
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.servicelayer.model.ModelService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.RedisClusterNode;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.impl.RedisCartStore;
+import com.sap.rediscart.util.RedisClusterPipelineExecutor;
+import com.sap.rediscart.util.RedisKeyGenerator;
+import com.sap.rediscart.util.Throttle;
+
+import redis.clients.jedis.ScanResult;
+
+
+/**
+ * Walks the keyspace of every master with SCAN and reconciles the index sets with the carts, in small pages at a
+ * limited rate, so it can run next to the storefront:
+ * <ul>
+ * <li>carts missing from one of their indexes are added to it</li>
+ * <li>codes in an index of a user, guid or site the cart no longer has are removed from it, as far as the indexes of
+ * the cart have been recorded, see {@link RedisKeyGenerator#generateIndexesKey(String)}, and the cart has not been
+ * saved since it was checked</li>
+ * <li>codes of carts that do not exist are removed from the index sets, walked with SSCAN, together with what is left
+ * of the cart</li>
+ * </ul>
+ * Where a run stops is kept in redis, so the next run, possibly on another node, continues from there. Drift is counted
+ * in the {@link RedisMetrics}, with repair disabled it is only counted.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartIndexReconciler
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CartIndexReconciler.class);
+
+	private static final String START = "0";
+	private static final String NODE = "node";
+	private static final String CURSOR = "cursor";
+	private static final byte[] EMPTY = new byte[0];
+
+	private RedisCartStore redisCartStore;
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private RedisKeyGenerator redisKeyGenerator;
+	private RedisTemplate<String, Object> redisTemplate;
+	private ModelService modelService;
+	private RedisMetrics redisMetrics;
+	private RedisScript<Long> unrecordCartIndexScript;
+	private boolean repair = true;
+	private double keysPerSecond = 500D;
+	private int scanCount = 100;
+	private String cursorKey = "rediscart:reconciler:cursor";
+
+	/**
+	 * Reconciles page by page until every master has been walked, the time is up or the run is aborted.
+	 *
+	 * @param maxMillis
+	 *           how long to run at most, the page in progress is always finished
+	 * @param aborted
+	 *           polled between pages
+	 * @return whether the walk over the keyspace has been completed
+	 * @throws InterruptedException
+	 *            if the thread is interrupted while throttled
+	 */
+	public boolean reconcile(final long maxMillis, final BooleanSupplier aborted) throws InterruptedException
+	{
+		final List<RedisClusterNode> masters = getRedisClusterPipelineExecutor().getMasterNodes();
+		masters.sort(Comparator.comparing(this::toAddress));
+		final Throttle throttle = new Throttle(getKeysPerSecond());
+		final long deadline = System.currentTimeMillis() + maxMillis;
+
+		final Map<Object, Object> state = getRedisTemplate().opsForHash().entries(getCursorKey());
+		int nodeIndex = 0;
+		String cursor = START;
+		for (int i = 0; i < masters.size(); i++)
+		{
+			// after a change of the topology the walk of the master starts over
+			if (toAddress(masters.get(i)).equals(state.get(NODE)))
+			{
+				nodeIndex = i;
+				cursor = String.valueOf(state.get(CURSOR));
+			}
+		}
+
+		while (nodeIndex < masters.size())
+		{
+			if (aborted.getAsBoolean() || System.currentTimeMillis() > deadline)
+			{
+				return false;
+			}
+			final RedisClusterNode node = masters.get(nodeIndex);
+			final ScanResult<String> page = getRedisClusterPipelineExecutor().scan(node, cursor, "cart:*", getScanCount());
+			throttle.acquire(page.getResult().size());
+			if (!reconcileKeys(page.getResult(), throttle, aborted))
+			{
+				// the cursor is not moved, the page is done again by the next run
+				return false;
+			}
+
+			cursor = page.getStringCursor();
+			if (START.equals(cursor))
+			{
+				nodeIndex++;
+			}
+			if (nodeIndex < masters.size())
+			{
+				final Map<String, String> next = new HashMap<>();
+				next.put(NODE, toAddress(masters.get(nodeIndex)));
+				next.put(CURSOR, cursor);
+				getRedisTemplate().opsForHash().putAll(getCursorKey(), next);
+			}
+		}
+
+		getRedisTemplate().delete(getCursorKey());
+		getRedisMetrics().recordReconciliation(RedisMetrics.RECONCILER_PASSES, 1);
+		LOG.info("Reconciled the cart indexes of {} masters", Integer.valueOf(masters.size()));
+		return true;
+	}
+
+	/**
+	 * @return false if aborted while walking an index set
+	 */
+	private boolean reconcileKeys(final List<String> keys, final Throttle throttle, final BooleanSupplier aborted)
+			throws InterruptedException
+	{
+		final List<String> cartCodes = new ArrayList<>();
+		final List<String> indexKeys = new ArrayList<>();
+		for (final String key : keys)
+		{
+			final String cartCode = getRedisKeyGenerator().parseCartCode(key);
+			if (cartCode != null)
+			{
+				cartCodes.add(cartCode);
+			}
+			else if (getRedisKeyGenerator().isIndexKey(key))
+			{
+				indexKeys.add(key);
+			}
+		}
+		reconcileCarts(cartCodes);
+		for (final String indexKey : indexKeys)
+		{
+			if (!reconcileIndex(indexKey, throttle, aborted))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the carts to the indexes they are missing from and removes them from recorded indexes they no longer belong
+	 * to, checked with one pipelined pass. The carts and their recorded indexes are not read at once, so a recorded
+	 * index is only removed if the version of the cart is still the one it was checked with.
+	 */
+	private void reconcileCarts(final List<String> cartCodes)
+	{
+		if (cartCodes.isEmpty())
+		{
+			return;
+		}
+		// read without refreshing the time to live and without promoting offloaded carts, the walk must not keep the
+		// carts alive
+		final Map<String, RedisCart> carts = getRedisCartStore().getRedisCartOperations().getAll(cartCodes, false);
+		getRedisMetrics().recordReconciliation(RedisMetrics.RECONCILER_CARTS_CHECKED, carts.size());
+
+		final Map<String, CartIndex> expected = new LinkedHashMap<>();
+		final Map<String, Set<String>> codesByIndexKey = new LinkedHashMap<>();
+		final Map<String, String> codeByIndexesKey = new LinkedHashMap<>();
+		for (final Map.Entry<String, RedisCart> entry : carts.entrySet())
+		{
+			final CartModel cart = getModelService().get(entry.getValue());
+			final CartIndex cartIndex = toCartIndex(cart);
+			// the walk loads every cart, so they must not pile up in the model context
+			getModelService().detach(cart);
+			expected.put(entry.getKey(), cartIndex);
+			for (final String indexKey : getRedisCartStore().getIndexKeys(cartIndex))
+			{
+				codesByIndexKey.computeIfAbsent(indexKey, k -> new LinkedHashSet<>()).add(entry.getKey());
+			}
+			codeByIndexesKey.put(getRedisKeyGenerator().generateIndexesKey(entry.getKey()), entry.getKey());
+		}
+
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final Set<String> keys = new LinkedHashSet<>(codesByIndexKey.keySet());
+		keys.addAll(codeByIndexesKey.keySet());
+		// replies come back in the order the commands are issued, master by master
+		final List<Check> checks = new ArrayList<>();
+		final List<Object> replies = executor.executePipelined(keys, (pipeline, nodeKeys) -> {
+			for (final String key : nodeKeys)
+			{
+				final String indexedCode = codeByIndexesKey.get(key);
+				if (indexedCode != null)
+				{
+					pipeline.smembers(executor.serializeKey(key));
+					checks.add(new Check(key, indexedCode, false));
+				}
+				for (final String code : codesByIndexKey.getOrDefault(key, Collections.emptySet()))
+				{
+					pipeline.sismember(executor.serializeKey(key), executor.serializeValue(code));
+					checks.add(new Check(key, code, true));
+				}
+			}
+		});
+
+		final Set<String> missingCodes = new LinkedHashSet<>();
+		long missing = 0;
+		long foreign = 0;
+		for (int i = 0; i < checks.size() && i < replies.size(); i++)
+		{
+			final Check check = checks.get(i);
+			final Object reply = replies.get(i);
+			if (check.membership)
+			{
+				if (Boolean.FALSE.equals(reply))
+				{
+					missingCodes.add(check.code);
+					missing++;
+				}
+			}
+			else if (reply instanceof Set)
+			{
+				final List<String> expectedKeys = getRedisCartStore().getIndexKeys(expected.get(check.code));
+				for (final Object member : (Set) reply)
+				{
+					final String recordedKey = String.valueOf(executor.deserializeValue((byte[]) member));
+					if (expectedKeys.contains(recordedKey))
+					{
+						continue;
+					}
+					if (!isRepair())
+					{
+						foreign++;
+					}
+					else if (unrecordIndex(check, carts.get(check.code), (byte[]) member))
+					{
+						foreign++;
+						getRedisTemplate().opsForSet().remove(recordedKey, check.code);
+					}
+					else
+					{
+						LOG.debug("Cart {} has changed since it was checked, index {} is kept", check.code, recordedKey);
+						continue;
+					}
+					LOG.debug("Cart {} is indexed by {} it does not belong to", check.code, recordedKey);
+				}
+			}
+		}
+
+		if (isRepair())
+		{
+			for (final String code : missingCodes)
+			{
+				getRedisCartStore().index(expected.get(code));
+			}
+		}
+		if (!missingCodes.isEmpty())
+		{
+			LOG.debug("Carts missing from their indexes: {}", missingCodes);
+		}
+		getRedisMetrics().recordReconciliation(RedisMetrics.RECONCILER_MISSING, missing);
+		getRedisMetrics().recordReconciliation(RedisMetrics.RECONCILER_FOREIGN, foreign);
+	}
+
+	/**
+	 * Removes the index from the recorded indexes of the cart unless the cart has been saved since it was read. The
+	 * index set lives in another hash slot, the code is removed from it afterwards, a save adding it back meanwhile
+	 * leaves the cart missing from it until the next pass.
+	 *
+	 * @return whether the index has been removed from the recorded ones
+	 */
+	private boolean unrecordIndex(final Check check, final RedisCart cart, final byte[] recordedKey)
+	{
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final long version = cart.getRedisVersion();
+		final Object reply = executor.eval(getUnrecordCartIndexScript(), 2, //
+				executor.serializeKey(getRedisKeyGenerator().generateVersionKey(check.code)), //
+				executor.serializeKey(check.key), //
+				version == 0 ? EMPTY : executor.serializeValue(Long.valueOf(version)), //
+				recordedKey);
+		return reply instanceof Long && ((Long) reply).longValue() == 1L;
+	}
+
+	/**
+	 * Walks the index set with SSCAN and removes the codes of carts that do not exist.
+	 *
+	 * @return false if aborted
+	 */
+	private boolean reconcileIndex(final String indexKey, final Throttle throttle, final BooleanSupplier aborted)
+			throws InterruptedException
+	{
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		String cursor = START;
+		do
+		{
+			if (aborted.getAsBoolean())
+			{
+				return false;
+			}
+			final ScanResult<Object> page = executor.sscan(indexKey, cursor, getScanCount());
+			throttle.acquire(page.getResult().size());
+			getRedisMetrics().recordReconciliation(RedisMetrics.RECONCILER_INDEX_MEMBERS_CHECKED, page.getResult().size());
+
+			final Map<String, String> codeByCartKey = new LinkedHashMap<>();
+			for (final Object member : page.getResult())
+			{
+				codeByCartKey.put(getRedisKeyGenerator().generateCartKey(String.valueOf(member)), String.valueOf(member));
+			}
+			final Map<String, Object> replies = executor.executePipelinedPerKey(codeByCartKey.keySet(),
+					(pipeline, key) -> pipeline.exists(executor.serializeKey(key)));
+			final List<String> orphans = new ArrayList<>();
+			for (final Map.Entry<String, String> entry : codeByCartKey.entrySet())
+			{
+				if (Boolean.FALSE.equals(replies.get(entry.getKey())))
+				{
+					orphans.add(entry.getValue());
+				}
+			}
+
+			if (!orphans.isEmpty())
+			{
+				getRedisMetrics().recordReconciliation(RedisMetrics.RECONCILER_ORPHANED, orphans.size());
+				LOG.debug("Index {} holds codes of carts that do not exist: {}", indexKey, orphans);
+				if (isRepair())
+				{
+					getRedisCartStore().removeExpired(orphans);
+					// carts indexed before their indexes were recorded
+					getRedisTemplate().opsForSet().remove(indexKey, orphans.toArray());
+				}
+			}
+			cursor = page.getStringCursor();
+		}
+		while (!START.equals(cursor));
+		return true;
+	}
+
+	protected CartIndex toCartIndex(final CartModel cart)
+	{
+		return new CartIndex(cart.getCode(), cart.getUser() == null ? null : cart.getUser().getUid(), cart.getGuid(),
+				cart.getSite() == null ? null : cart.getSite().getUid());
+	}
+
+	private String toAddress(final RedisClusterNode node)
+	{
+		return node.getHost() + ":" + node.getPort();
+	}
+
+	/**
+	 * A pipelined command of the cart check: SISMEMBER of the code in an index it should be in, or SMEMBERS of the
+	 * recorded indexes of the cart.
+	 */
+	private static final class Check
+	{
+		private final String key;
+		private final String code;
+		private final boolean membership;
+
+		private Check(final String key, final String code, final boolean membership)
+		{
+			this.key = key;
+			this.code = code;
+			this.membership = membership;
+		}
+	}
+
+	/**
+	 * @return the redisCartStore
+	 */
+	public RedisCartStore getRedisCartStore()
+	{
+		return redisCartStore;
+	}
+
+	/**
+	 * @param redisCartStore
+	 *           the redisCartStore to set
+	 */
+	public void setRedisCartStore(final RedisCartStore redisCartStore)
+	{
+		this.redisCartStore = redisCartStore;
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the redisKeyGenerator
+	 */
+	public RedisKeyGenerator getRedisKeyGenerator()
+	{
+		return redisKeyGenerator;
+	}
+
+	/**
+	 * @param redisKeyGenerator
+	 *           the redisKeyGenerator to set
+	 */
+	public void setRedisKeyGenerator(final RedisKeyGenerator redisKeyGenerator)
+	{
+		this.redisKeyGenerator = redisKeyGenerator;
+	}
+
+	/**
+	 * @return the redisTemplate
+	 */
+	public RedisTemplate<String, Object> getRedisTemplate()
+	{
+		return redisTemplate;
+	}
+
+	/**
+	 * @param redisTemplate
+	 *           the redisTemplate to set
+	 */
+	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	{
+		this.redisTemplate = redisTemplate;
+	}
+
+	/**
+	 * @return the modelService
+	 */
+	public ModelService getModelService()
+	{
+		return modelService;
+	}
+
+	/**
+	 * @param modelService
+	 *           the modelService to set
+	 */
+	public void setModelService(final ModelService modelService)
+	{
+		this.modelService = modelService;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+
+	/**
+	 * @return the repair
+	 */
+	public boolean isRepair()
+	{
+		return repair;
+	}
+
+	/**
+	 * @param repair
+	 *           the repair to set
+	 */
+	public void setRepair(final boolean repair)
+	{
+		this.repair = repair;
+	}
+
+	/**
+	 * @return the keysPerSecond
+	 */
+	public double getKeysPerSecond()
+	{
+		return keysPerSecond;
+	}
+
+	/**
+	 * @param keysPerSecond
+	 *           the keysPerSecond to set
+	 */
+	public void setKeysPerSecond(final double keysPerSecond)
+	{
+		this.keysPerSecond = keysPerSecond;
+	}
+
+	/**
+	 * @return the scanCount
+	 */
+	public int getScanCount()
+	{
+		return scanCount;
+	}
+
+	/**
+	 * @param scanCount
+	 *           the scanCount to set
+	 */
+	public void setScanCount(final int scanCount)
+	{
+		this.scanCount = scanCount;
+	}
+
+	/**
+	 * @return the cursorKey
+	 */
+	public String getCursorKey()
+	{
+		return cursorKey;
+	}
+
+	/**
+	 * @param cursorKey
+	 *           the cursorKey to set
+	 */
+	public void setCursorKey(final String cursorKey)
+	{
+		this.cursorKey = cursorKey;
+	}
+
+	/**
+	 * @return the unrecordCartIndexScript
+	 */
+	public RedisScript<Long> getUnrecordCartIndexScript()
+	{
+		return unrecordCartIndexScript;
+	}
+
+	/**
+	 * @param unrecordCartIndexScript
+	 *           the unrecordCartIndexScript to set
+	 */
+	public void setUnrecordCartIndexScript(final RedisScript<Long> unrecordCartIndexScript)
+	{
+		this.unrecordCartIndexScript = unrecordCartIndexScript;
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.exceptions;
+
+import de.hybris.platform.servicelayer.exceptions.ModelSavingException;
+
+import java.util.Collection;
+
+
+/**
+ * Thrown when a nested cart operation cannot take the in-JVM lock of its cart in time because it would have to wait
+ * out of lock order. Nothing has been changed, the operation can be retried.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartLockBusyException extends ModelSavingException
+{
+	private final Collection<String> cartCodes;
+
+	public CartLockBusyException(final Collection<String> cartCodes, final long timeoutMillis)
+	{
+		super("Cart lock for " + cartCodes + " is busy and could not be taken within " + timeoutMillis
+				+ " ms while locks of other carts are held");
+		this.cartCodes = cartCodes;
+	}
+
+	/**
+	 * @return the cartCodes
+	 */
+	public Collection<String> getCartCodes()
+	{
+		return cartCodes;
+	}
+}
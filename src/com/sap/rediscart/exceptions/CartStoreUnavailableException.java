@@ -0,0 +1,43 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.exceptions;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+
+
+/**
+ * Thrown instead of calling a redis node whose circuit breaker is open, the caller is expected to take its fallback.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartStoreUnavailableException extends DataAccessResourceFailureException
+{
+	private final String node;
+
+	public CartStoreUnavailableException(final String node)
+	{
+		super("Circuit breaker of redis node " + node + " is open");
+		this.node = node;
+	}
+
+	/**
+	 * @return the node
+	 */
+	public String getNode()
+	{
+		return node;
+	}
+}
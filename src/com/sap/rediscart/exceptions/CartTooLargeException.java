@@ -0,0 +1,43 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.exceptions;
+
+import de.hybris.platform.servicelayer.exceptions.ModelSavingException;
+
+
+/**
+ * Thrown when a cart that has already exceeded the size limits would grow further.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartTooLargeException extends ModelSavingException
+{
+	private final String cartCode;
+
+	public CartTooLargeException(final String cartCode, final int entryCount)
+	{
+		super("Cart " + cartCode + " exceeds the size limits and cannot grow beyond " + entryCount + " entries");
+		this.cartCode = cartCode;
+	}
+
+	/**
+	 * @return the cartCode
+	 */
+	public String getCartCode()
+	{
+		return cartCode;
+	}
+}
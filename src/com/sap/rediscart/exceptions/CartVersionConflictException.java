@@ -0,0 +1,53 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.exceptions;
+
+import de.hybris.platform.servicelayer.exceptions.ModelSavingException;
+
+
+/**
+ * Thrown when a cart is saved but has been changed in redis since it was loaded.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartVersionConflictException extends ModelSavingException
+{
+	private final String cartCode;
+	private final long expectedVersion;
+
+	public CartVersionConflictException(final String cartCode, final long expectedVersion)
+	{
+		super("Cart " + cartCode + " has been modified concurrently, expected version " + expectedVersion);
+		this.cartCode = cartCode;
+		this.expectedVersion = expectedVersion;
+	}
+
+	/**
+	 * @return the cartCode
+	 */
+	public String getCartCode()
+	{
+		return cartCode;
+	}
+
+	/**
+	 * @return the expectedVersion
+	 */
+	public long getExpectedVersion()
+	{
+		return expectedVersion;
+	}
+}
@@ -16,6 +16,11 @@
 package com.sap.rediscart.jalo;
 
 import de.hybris.platform.core.Registry;
+import de.hybris.platform.core.Tenant;
+import de.hybris.platform.jalo.JaloSession;
+import de.hybris.platform.jalo.type.ComposedType;
+import de.hybris.platform.jalo.type.TypeManager;
+import de.hybris.platform.util.Config;
 import de.hybris.platform.util.JspContext;
 
 import java.util.Map;
@@ -24,6 +29,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sap.rediscart.constants.RediscartConstants;
+import com.sap.rediscart.service.impl.RediscartWarmer;
 
 
 /**
@@ -36,6 +42,8 @@ public class RediscartManager extends GeneratedRediscartManager
 	/** Edit the local|project.properties to change logging behavior (properties 'log4j.*'). */
 	private static final Logger LOG = LoggerFactory.getLogger(RediscartManager.class);
 
+	private static final String WARM_UP_RETRY_MILLIS = "rediscart.warmup.retryMillis";
+
 	/*
 	 * Some important tips for development: Do NEVER use the default constructor of manager's or items. => If you want to do
 	 * something whenever the manger is created use the init() or destroy() methods described below Do NEVER use STATIC
@@ -43,6 +51,8 @@ public class RediscartManager extends GeneratedRediscartManager
 	 * manager, the manager is created only once in the lifetime of a "deployment" or tenant.
 	 */
 
+	private volatile ComposedType redisCartEntryType;
+	private volatile Thread warmUpThread;
 
 	/**
 	 * Get the valid instance of this manager.
@@ -69,22 +79,57 @@ public class RediscartManager extends GeneratedRediscartManager
 	 * Use this method to do some basic work only ONCE in the lifetime of a tenant resp. "deployment". This method is called
 	 * after manager creation (for example within startup of a tenant). Note that if you have more than one tenant you have
 	 * a manager instance for each tenant.
+	 * <p/>
+	 * Starts the {@link RediscartWarmer} in the background, the tenant startup does not wait for redis. Nothing is
+	 * warmed up while the system is not initialized, its types do not exist yet.
 	 */
 	@Override
 	public void init()
 	{
 		LOG.debug("init() of RediscartManager called, current tenant: {}", getTenant().getTenantID());
+		final Tenant tenant = getTenant();
+		if (!tenant.getJaloConnection().isSystemInitialized())
+		{
+			LOG.info("System of tenant {} is not initialized, rediscart is not warmed up", tenant.getTenantID());
+			return;
+		}
+		final Thread warmUp = new Thread(() -> warmUp(tenant), "rediscart-warm-up-" + tenant.getTenantID());
+		warmUp.setDaemon(true);
+		warmUpThread = warmUp;
+		warmUp.start();
 	}
 
 	/**
 	 * Use this method as a callback when the manager instance is being destroyed (this happens before system
 	 * initialization, at redeployment or if you shutdown your VM). Note that if you have more than one tenant you have a
 	 * manager instance for each tenant.
+	 * <p/>
+	 * Stops a warm-up still running, it must not go on against the destroyed tenant.
 	 */
 	@Override
 	public void destroy()
 	{
 		LOG.debug("destroy() of RediscartManager called, current tenant: {}", getTenant().getTenantID());
+		final Thread warmUp = warmUpThread;
+		warmUpThread = null;
+		if (warmUp != null)
+		{
+			warmUp.interrupt();
+		}
+	}
+
+	/**
+	 * @return the type of the entries of redis carts, resolved once per tenant
+	 */
+	public ComposedType getRedisCartEntryType()
+	{
+		ComposedType type = redisCartEntryType;
+		if (type == null)
+		{
+			type = TypeManager.getInstance().getComposedType(RediscartConstants.TC.REDISCARTENTRY);
+			redisCartEntryType = type;
+		}
+		return type;
 	}
 
 	/**
@@ -118,4 +163,50 @@ public class RediscartManager extends GeneratedRediscartManager
 	{
 		// implement here code creating project data
 	}
+
+	/**
+	 * Warms the node up until it is ready. The warmer retries its failed steps itself, a failing lookup of the warmer or
+	 * an error outside of its steps is retried here, so the node cannot stay unready after a transient failure.
+	 */
+	private void warmUp(final Tenant tenant)
+	{
+		Registry.setCurrentTenant(tenant);
+		try
+		{
+			final long retryMillis = Config.getLong(WARM_UP_RETRY_MILLIS, 10000);
+			while (!Thread.currentThread().isInterrupted() && !tryWarmUp())
+			{
+				Thread.sleep(retryMillis);
+			}
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			LOG.warn("Warming up rediscart has been interrupted, the node is not reported ready");
+		}
+		finally
+		{
+			if (JaloSession.hasCurrentSession())
+			{
+				JaloSession.getCurrentSession().close();
+			}
+			Registry.unsetCurrentTenant();
+		}
+	}
+
+	private boolean tryWarmUp()
+	{
+		try
+		{
+			final RediscartWarmer warmer = Registry.getApplicationContext().getBean("rediscartWarmer",
+					RediscartWarmer.class);
+			warmer.warmUp();
+			return warmer.isReady();
+		}
+		catch (final RuntimeException e)
+		{
+			LOG.error("Warming up rediscart failed, the node is not reported ready until a retry succeeds", e);
+			return false;
+		}
+	}
 }
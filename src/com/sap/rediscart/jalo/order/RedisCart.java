@@ -42,7 +42,6 @@ import de.hybris.platform.jalo.product.Unit;
 import de.hybris.platform.jalo.security.JaloSecurityException;
 import de.hybris.platform.jalo.type.ComposedType;
 import de.hybris.platform.jalo.type.JaloGenericCreationException;
-import de.hybris.platform.jalo.type.TypeManager;
 import de.hybris.platform.jalo.user.Address;
 import de.hybris.platform.jalo.user.User;
 import de.hybris.platform.promotions.jalo.PromotionResult;
@@ -62,6 +61,7 @@ import java.util.Map;
 import java.util.Set;
 
 import com.sap.rediscart.constants.RediscartConstants;
+import com.sap.rediscart.jalo.RediscartManager;
 
 
 
@@ -111,10 +111,23 @@ import com.sap.rediscart.constants.RediscartConstants;
 @SuppressWarnings("deprecation")
 public class RedisCart extends GeneratedRedisCart implements JaloOnlyItem
 {
+	/**
+	 * Carts are stored with JDK serialization. The value is the one computed from the class before the redis version was
+	 * added, so carts written by older nodes, in redis, in the cold tier or in the journal, stay readable and the other
+	 * way round during a rolling deploy.
+	 */
+	private static final long serialVersionUID = 7299933047895640194L;
+
 	private JaloOnlyItemHelper data;
 
 	private final List<RedisCartEntry> entries = new ArrayList<RedisCartEntry>();
 
+	/**
+	 * The version this cart was loaded with from redis, 0 if it has never been saved. It is serialized with the cart for
+	 * the journal, carts written before it existed are read with 0. Loads from redis set it from the version key.
+	 */
+	private long redisVersion;
+
 	/**
 	 * Returns a new wizard instance.
 	 */
@@ -939,8 +952,7 @@ public class RedisCart extends GeneratedRedisCart implements JaloOnlyItem
 	public RedisCartEntry createNewEntry(final SessionContext ctx, final ComposedType entryType, final Product p,
 			final long amount, final Unit u, final int pos)
 	{
-		final ComposedType t = entryType != null ? entryType
-				: TypeManager.getInstance().getComposedType(RediscartConstants.TC.REDISCARTENTRY);
+		final ComposedType t = entryType != null ? entryType : RediscartManager.getInstance().getRedisCartEntryType();
 
 		final Map<String, Object> values = new HashMap<String, Object>();
 		values.put(AbstractOrderEntry.ORDER, this);
@@ -963,6 +975,23 @@ public class RedisCart extends GeneratedRedisCart implements JaloOnlyItem
 	// --- Business
 	//----------------------------------------------------------------------------------
 
+	/**
+	 * @return the version this cart was loaded with from redis, 0 if it has never been saved
+	 */
+	public long getRedisVersion()
+	{
+		return redisVersion;
+	}
+
+	/**
+	 * @param redisVersion
+	 *           the version currently stored in redis
+	 */
+	public void setRedisVersion(final long redisVersion)
+	{
+		this.redisVersion = redisVersion;
+	}
+
 	@Override
 	@ForceJALO(reason = ForceJALO.SOMETHING_ELSE)
 	protected String getAbstractOrderEntryTypeCode()
@@ -0,0 +1,50 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Fields shared by the events of all cart operations, the duration is the one of the event itself.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+@Category("Rediscart")
+@StackTrace(false)
+abstract class AbstractCartEvent extends Event
+{
+	@Label("Cart Code Hash")
+	@Description("Hash code of the cart code, the code itself is not recorded")
+	int cartCodeHash;
+
+	@Label("Entry Count")
+	int entryCount;
+
+	@Label("Payload Size")
+	@Description("Bytes written to and read from redis")
+	@DataAmount
+	long payloadBytes;
+
+	@Label("Round Trips")
+	@Description("Redis commands sent")
+	int roundTrips;
+}
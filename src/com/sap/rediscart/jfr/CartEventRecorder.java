@@ -0,0 +1,127 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.jfr;
+
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Emits the Java Flight Recorder events of the cart operations. The events need the jdk.jfr API (JDK 11, or 8u262 and
+ * later); on other JVMs and while no recording has the events enabled, recordings cost nothing but a check.
+ * <p/>
+ * Usage:
+ *
+ * <pre>
+ * final Recording recording = CartEventRecorder.begin(Operation.LOAD);
+ * try
+ * {
+ * 	...
+ * }
+ * finally
+ * {
+ * 	recording.end(cartCode, entryCount);
+ * }
+ * </pre>
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public final class CartEventRecorder
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CartEventRecorder.class);
+
+	private static final boolean AVAILABLE = isJfrAvailable();
+
+	/**
+	 * The cart operations with an event of their own.
+	 */
+	public enum Operation
+	{
+		LOAD, SAVE, REMOVE, PROMOTION_EVALUATION, CONVERSION
+	}
+
+	/**
+	 * One running operation, ended exactly once.
+	 */
+	public interface Recording
+	{
+		/**
+		 * Ends the operation and commits its event.
+		 *
+		 * @param cartCode
+		 *           the code of the cart, only its hash is recorded; may be null
+		 * @param entryCount
+		 *           the number of cart entries involved
+		 */
+		void end(String cartCode, int entryCount);
+
+		/**
+		 * Ends the operation like {@link #end(String, int)}, but only computes the cart code and entry count if the
+		 * event is committed.
+		 */
+		default void end(final Supplier<String> cartCode, final IntSupplier entryCount)
+		{
+			end(cartCode.get(), entryCount.getAsInt());
+		}
+	}
+
+	private static final Recording NOOP = new Recording()
+	{
+		@Override
+		public void end(final String cartCode, final int entryCount)
+		{
+			// JFR is not available or the event is disabled
+		}
+
+		@Override
+		public void end(final Supplier<String> cartCode, final IntSupplier entryCount)
+		{
+			// nothing to compute
+		}
+	};
+
+	private CartEventRecorder()
+	{
+		// static helper
+	}
+
+	public static Recording begin(final Operation operation)
+	{
+		return AVAILABLE ? JfrCartRecording.begin(operation) : NOOP;
+	}
+
+	static Recording noop()
+	{
+		return NOOP;
+	}
+
+	private static boolean isJfrAvailable()
+	{
+		try
+		{
+			Class.forName("jdk.jfr.Event", false, CartEventRecorder.class.getClassLoader());
+			return true;
+		}
+		catch (final ClassNotFoundException | LinkageError e)
+		{
+			LOG.info("Java Flight Recorder events are not available on this JVM, cart events are not emitted");
+			return false;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.jfr;
+
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import com.sap.rediscart.jfr.CartEventRecorder.Operation;
+import com.sap.rediscart.jfr.CartEventRecorder.Recording;
+import com.sap.rediscart.metrics.ThreadRedisUsage;
+
+
+/**
+ * A running cart operation backed by a JFR event, only loaded if the jdk.jfr API is available.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+final class JfrCartRecording implements Recording
+{
+	private final AbstractCartEvent event;
+	private final long commandsBefore;
+	private final long bytesBefore;
+
+	private JfrCartRecording(final AbstractCartEvent event)
+	{
+		this.event = event;
+		this.commandsBefore = ThreadRedisUsage.getCommands();
+		this.bytesBefore = ThreadRedisUsage.getBytes();
+	}
+
+	static Recording begin(final Operation operation)
+	{
+		final AbstractCartEvent event = newEvent(operation);
+		if (!event.isEnabled())
+		{
+			return CartEventRecorder.noop();
+		}
+		event.begin();
+		return new JfrCartRecording(event);
+	}
+
+	@Override
+	public void end(final String cartCode, final int entryCount)
+	{
+		event.end();
+		if (event.shouldCommit())
+		{
+			commit(cartCode, entryCount);
+		}
+	}
+
+	@Override
+	public void end(final Supplier<String> cartCode, final IntSupplier entryCount)
+	{
+		event.end();
+		if (event.shouldCommit())
+		{
+			commit(cartCode.get(), entryCount.getAsInt());
+		}
+	}
+
+	private void commit(final String cartCode, final int entryCount)
+	{
+		event.cartCodeHash = cartCode == null ? 0 : cartCode.hashCode();
+		event.entryCount = entryCount;
+		event.roundTrips = (int) (ThreadRedisUsage.getCommands() - commandsBefore);
+		event.payloadBytes = ThreadRedisUsage.getBytes() - bytesBefore;
+		event.commit();
+	}
+
+	private static AbstractCartEvent newEvent(final Operation operation)
+	{
+		switch (operation)
+		{
+			case LOAD:
+				return new CartLoadEvent();
+			case SAVE:
+				return new CartSaveEvent();
+			case REMOVE:
+				return new CartRemoveEvent();
+			case PROMOTION_EVALUATION:
+				return new PromotionEvaluationEvent();
+			case CONVERSION:
+				return new CartConversionEvent();
+			default:
+				throw new IllegalArgumentException("Unknown cart operation " + operation);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * @author Henter Liu (henterji@163.com)
+ */
+@Name("com.sap.rediscart.PromotionEvaluation")
+@Label("Promotion Evaluation")
+@Description("Promotion results of a cart loaded and evaluated")
+class PromotionEvaluationEvent extends AbstractCartEvent
+{
+	// fields are inherited
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * CPU time in nanoseconds and sizes before and after compression of the values compressed or decompressed by the value
+ * serializer.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CodecMetrics implements CodecMetricsMBean
+{
+	private final Histogram latency = new Histogram();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+
+	public void record(final long nanos, final long uncompressed, final long compressed)
+	{
+		latency.record(nanos);
+		uncompressedBytes.add(uncompressed);
+		compressedBytes.add(compressed);
+	}
+
+	/**
+	 * @return the latency histogram in nanoseconds
+	 */
+	public Histogram getLatency()
+	{
+		return latency;
+	}
+
+	@Override
+	public long getCalls()
+	{
+		return latency.getCount();
+	}
+
+	@Override
+	public long getUncompressedBytes()
+	{
+		return uncompressedBytes.sum();
+	}
+
+	@Override
+	public long getCompressedBytes()
+	{
+		return compressedBytes.sum();
+	}
+
+	/**
+	 * @return the uncompressed bytes per compressed byte, 1 if nothing has been recorded
+	 */
+	@Override
+	public double getRatio()
+	{
+		final long compressed = getCompressedBytes();
+		return compressed == 0 ? 1D : (double) getUncompressedBytes() / compressed;
+	}
+
+	@Override
+	public long getMeanMicros()
+	{
+		return TimeUnit.NANOSECONDS.toMicros(latency.getMean());
+	}
+
+	@Override
+	public long getP50Micros()
+	{
+		return TimeUnit.NANOSECONDS.toMicros(latency.getP50());
+	}
+
+	@Override
+	public long getP95Micros()
+	{
+		return TimeUnit.NANOSECONDS.toMicros(latency.getP95());
+	}
+
+	@Override
+	public long getP99Micros()
+	{
+		return TimeUnit.NANOSECONDS.toMicros(latency.getP99());
+	}
+
+	@Override
+	public long getMaxMicros()
+	{
+		return TimeUnit.NANOSECONDS.toMicros(latency.getMax());
+	}
+
+	@Override
+	public void reset()
+	{
+		latency.reset();
+		uncompressedBytes.reset();
+		compressedBytes.reset();
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+/**
+ * JMX view of the {@link CodecMetrics} of compressing or decompressing values.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public interface CodecMetricsMBean
+{
+	long getCalls();
+
+	long getUncompressedBytes();
+
+	long getCompressedBytes();
+
+	double getRatio();
+
+	long getMeanMicros();
+
+	long getP50Micros();
+
+	long getP95Micros();
+
+	long getP99Micros();
+
+	long getMaxMicros();
+
+	void reset();
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Number of times something has happened, e.g. index entries repaired by the index reconciler.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class Counter implements CounterMBean
+{
+	private final LongAdder count = new LongAdder();
+
+	public void add(final long n)
+	{
+		count.add(n);
+	}
+
+	@Override
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	@Override
+	public void reset()
+	{
+		count.reset();
+	}
+}
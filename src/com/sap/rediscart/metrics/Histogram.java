@@ -0,0 +1,162 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Lock-free histogram of non-negative values in power-of-two buckets: bucket i counts the values below 2^i that are
+ * not counted by a lower bucket. Percentiles are reported as the upper bound of their bucket, so they are at most
+ * twice the real value.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class Histogram implements HistogramMBean
+{
+	static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public Histogram()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(final long value)
+	{
+		final long v = Math.max(0L, value);
+		buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v))].increment();
+		count.increment();
+		sum.add(v);
+		long current = max.get();
+		while (v > current && !max.compareAndSet(current, v))
+		{
+			current = max.get();
+		}
+	}
+
+	@Override
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	@Override
+	public long getSum()
+	{
+		return sum.sum();
+	}
+
+	@Override
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	@Override
+	public long getMean()
+	{
+		final long n = getCount();
+		return n == 0 ? 0 : getSum() / n;
+	}
+
+	@Override
+	public long getP50()
+	{
+		return getPercentile(0.5D);
+	}
+
+	@Override
+	public long getP95()
+	{
+		return getPercentile(0.95D);
+	}
+
+	@Override
+	public long getP99()
+	{
+		return getPercentile(0.99D);
+	}
+
+	/**
+	 * @return the upper bound of the bucket holding the given quantile, capped at the maximum
+	 */
+	public long getPercentile(final double quantile)
+	{
+		final long[] counts = getBucketCounts();
+		long total = 0;
+		for (final long c : counts)
+		{
+			total += c;
+		}
+		if (total == 0)
+		{
+			return 0;
+		}
+		final long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+			{
+				return Math.min(getUpperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * @return a snapshot of the counts per bucket
+	 */
+	public long[] getBucketCounts()
+	{
+		final long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] = buckets[i].sum();
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the largest value counted by the bucket
+	 */
+	public static long getUpperBound(final int bucket)
+	{
+		return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+	@Override
+	public void reset()
+	{
+		for (final LongAdder bucket : buckets)
+		{
+			bucket.reset();
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+}
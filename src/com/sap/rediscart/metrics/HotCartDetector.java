@@ -0,0 +1,476 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.exceptions.CartTooLargeException;
+
+
+/**
+ * Finds the few carts causing most of the redis traffic: the largest carts by serialized size, and the most written
+ * and most read carts of the current time window, estimated from a sample of the calls with space-saving sketches.
+ * <p/>
+ * Carts written with more bytes or entries than allowed are logged once. With rejectGrowth they are kept from growing
+ * any further, saves adding entries to them fail with a {@link CartTooLargeException}.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class HotCartDetector
+{
+	private static final Logger LOG = LoggerFactory.getLogger(HotCartDetector.class);
+
+	private final Object lock = new Object();
+	private final Map<String, CartSize> largestCarts = new ConcurrentHashMap<>();
+	private final Map<String, Integer> oversizedCarts = new ConcurrentHashMap<>();
+	private final Set<String> reportedHotCarts = ConcurrentHashMap.newKeySet();
+	/**
+	 * The size a cart must exceed to enter the full list of largest carts, so smaller carts are turned away without
+	 * locking.
+	 */
+	private volatile long admissionBytes;
+
+	private SpaceSavingTopK mostWritten;
+	private SpaceSavingTopK mostRead;
+	private volatile long windowStart = System.currentTimeMillis();
+
+	private boolean enabled = true;
+	private int capacity = 100;
+	private double sampleRate = 0.1D;
+	private long windowSeconds = 300;
+	private long maxCartBytes = 512L * 1024L;
+	private int maxEntries = 500;
+	private long hotWriteThreshold = 1000;
+	private long hotReadThreshold = 10000;
+	private boolean rejectGrowth;
+
+	public void init()
+	{
+		mostWritten = new SpaceSavingTopK(getCapacity());
+		mostRead = new SpaceSavingTopK(getCapacity());
+	}
+
+	/**
+	 * Called before a cart is saved.
+	 *
+	 * @throws CartTooLargeException
+	 *            if the cart has exceeded the limits before, would grow and growth is rejected
+	 */
+	public void checkGrowth(final String cartCode, final int entryCount)
+	{
+		if (!isEnabled() || !isRejectGrowth())
+		{
+			return;
+		}
+		final Integer limit = oversizedCarts.get(cartCode);
+		if (limit != null && entryCount > limit.intValue())
+		{
+			LOG.warn("Rejected growth of oversized cart {} from {} to {} entries", cartCode, limit, Integer.valueOf(entryCount));
+			throw new CartTooLargeException(cartCode, limit.intValue());
+		}
+	}
+
+	/**
+	 * Called after a cart has been saved with the serialized size of the cart.
+	 */
+	public void recordWrite(final String cartCode, final long bytes, final int entryCount)
+	{
+		if (!isEnabled() || cartCode == null)
+		{
+			return;
+		}
+		recordSize(cartCode, bytes, entryCount);
+		if (sampled())
+		{
+			rollWindow();
+			final long estimate = Math.round(mostWritten.offer(cartCode) / getSampleRate());
+			reportHot(cartCode, "written", estimate, getHotWriteThreshold());
+		}
+	}
+
+	/**
+	 * Called after a cart has been loaded, bytes is 0 if the size is not known.
+	 */
+	public void recordRead(final String cartCode, final long bytes, final int entryCount)
+	{
+		if (!isEnabled() || cartCode == null)
+		{
+			return;
+		}
+		if (bytes > 0)
+		{
+			recordSize(cartCode, bytes, entryCount);
+		}
+		if (sampled())
+		{
+			rollWindow();
+			final long estimate = Math.round(mostRead.offer(cartCode) / getSampleRate());
+			reportHot(cartCode, "read", estimate, getHotReadThreshold());
+		}
+	}
+
+	/**
+	 * @return the largest carts by their last known serialized size, largest first
+	 */
+	public List<CartSize> getLargestCarts()
+	{
+		final List<CartSize> carts = new ArrayList<>(largestCarts.values());
+		carts.sort((c1, c2) -> Long.compare(c2.getBytes(), c1.getBytes()));
+		return carts;
+	}
+
+	/**
+	 * @return the most written carts of the current window with their sampled counts, most first
+	 */
+	public List<SpaceSavingTopK.Estimate> getMostWrittenCarts()
+	{
+		return mostWritten.getTop();
+	}
+
+	/**
+	 * @return the most read carts of the current window with their sampled counts, most first
+	 */
+	public List<SpaceSavingTopK.Estimate> getMostReadCarts()
+	{
+		return mostRead.getTop();
+	}
+
+	/**
+	 * @return the start of the current window in epoch milliseconds
+	 */
+	public long getWindowStart()
+	{
+		return windowStart;
+	}
+
+	public void reset()
+	{
+		synchronized (lock)
+		{
+			largestCarts.clear();
+			oversizedCarts.clear();
+			reportedHotCarts.clear();
+			admissionBytes = 0L;
+		}
+		mostWritten.clear();
+		mostRead.clear();
+		windowStart = System.currentTimeMillis();
+	}
+
+	/**
+	 * Only carts of the list of largest carts or larger than its smallest one take the lock, the list is bounded by
+	 * capacity, so that happens rarely once it is full.
+	 */
+	private void recordSize(final String cartCode, final long bytes, final int entryCount)
+	{
+		final CartSize size = new CartSize(cartCode, bytes, entryCount);
+		if (largestCarts.replace(cartCode, size) == null && bytes > admissionBytes)
+		{
+			admit(size);
+		}
+
+		if (bytes > getMaxCartBytes() || entryCount > getMaxEntries())
+		{
+			if (oversizedCarts.put(cartCode, Integer.valueOf(entryCount)) == null)
+			{
+				boundOversizedCarts();
+				LOG.warn("Oversized cart: cartCode={} bytes={} maxBytes={} entries={} maxEntries={}", cartCode,
+						Long.valueOf(bytes), Long.valueOf(getMaxCartBytes()), Integer.valueOf(entryCount),
+						Integer.valueOf(getMaxEntries()));
+			}
+		}
+		else if (!oversizedCarts.isEmpty())
+		{
+			oversizedCarts.remove(cartCode);
+		}
+	}
+
+	private void admit(final CartSize size)
+	{
+		synchronized (lock)
+		{
+			if (largestCarts.size() >= getCapacity())
+			{
+				final CartSize smallest = findSmallest();
+				if (size.getBytes() <= smallest.getBytes())
+				{
+					admissionBytes = smallest.getBytes();
+					return;
+				}
+				largestCarts.remove(smallest.getCartCode());
+			}
+			largestCarts.put(size.getCartCode(), size);
+			admissionBytes = largestCarts.size() < getCapacity() ? 0L : findSmallest().getBytes();
+		}
+	}
+
+	private void boundOversizedCarts()
+	{
+		// any cart will do, the oversized ones still written are added again with their next save
+		final Iterator<String> codes = oversizedCarts.keySet().iterator();
+		while (oversizedCarts.size() > getCapacity() * 10 && codes.hasNext())
+		{
+			codes.next();
+			codes.remove();
+		}
+	}
+
+	private CartSize findSmallest()
+	{
+		CartSize smallest = null;
+		for (final CartSize size : largestCarts.values())
+		{
+			if (smallest == null || size.getBytes() < smallest.getBytes())
+			{
+				smallest = size;
+			}
+		}
+		return smallest;
+	}
+
+	private void reportHot(final String cartCode, final String access, final long estimate, final long threshold)
+	{
+		if (estimate < threshold)
+		{
+			return;
+		}
+		if (reportedHotCarts.add(access + ":" + cartCode))
+		{
+			LOG.warn("Hot cart: cartCode={} access={} estimatedCount={} threshold={} windowSeconds={}", cartCode, access,
+					Long.valueOf(estimate), Long.valueOf(threshold), Long.valueOf(getWindowSeconds()));
+		}
+	}
+
+	private void rollWindow()
+	{
+		final long now = System.currentTimeMillis();
+		if (now - windowStart < TimeUnit.SECONDS.toMillis(getWindowSeconds()))
+		{
+			return;
+		}
+		synchronized (lock)
+		{
+			if (now - windowStart < TimeUnit.SECONDS.toMillis(getWindowSeconds()))
+			{
+				return;
+			}
+			mostWritten.clear();
+			mostRead.clear();
+			reportedHotCarts.clear();
+			windowStart = now;
+		}
+	}
+
+	private boolean sampled()
+	{
+		return getSampleRate() >= 1.0D || ThreadLocalRandom.current().nextDouble() < getSampleRate();
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *           the enabled to set
+	 */
+	public void setEnabled(final boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the capacity
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @param capacity
+	 *           the capacity to set
+	 */
+	public void setCapacity(final int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the sampleRate
+	 */
+	public double getSampleRate()
+	{
+		return sampleRate;
+	}
+
+	/**
+	 * @param sampleRate
+	 *           the sampleRate to set
+	 */
+	public void setSampleRate(final double sampleRate)
+	{
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @return the windowSeconds
+	 */
+	public long getWindowSeconds()
+	{
+		return windowSeconds;
+	}
+
+	/**
+	 * @param windowSeconds
+	 *           the windowSeconds to set
+	 */
+	public void setWindowSeconds(final long windowSeconds)
+	{
+		this.windowSeconds = windowSeconds;
+	}
+
+	/**
+	 * @return the maxCartBytes
+	 */
+	public long getMaxCartBytes()
+	{
+		return maxCartBytes;
+	}
+
+	/**
+	 * @param maxCartBytes
+	 *           the maxCartBytes to set
+	 */
+	public void setMaxCartBytes(final long maxCartBytes)
+	{
+		this.maxCartBytes = maxCartBytes;
+	}
+
+	/**
+	 * @return the maxEntries
+	 */
+	public int getMaxEntries()
+	{
+		return maxEntries;
+	}
+
+	/**
+	 * @param maxEntries
+	 *           the maxEntries to set
+	 */
+	public void setMaxEntries(final int maxEntries)
+	{
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return the hotWriteThreshold
+	 */
+	public long getHotWriteThreshold()
+	{
+		return hotWriteThreshold;
+	}
+
+	/**
+	 * @param hotWriteThreshold
+	 *           the hotWriteThreshold to set
+	 */
+	public void setHotWriteThreshold(final long hotWriteThreshold)
+	{
+		this.hotWriteThreshold = hotWriteThreshold;
+	}
+
+	/**
+	 * @return the hotReadThreshold
+	 */
+	public long getHotReadThreshold()
+	{
+		return hotReadThreshold;
+	}
+
+	/**
+	 * @param hotReadThreshold
+	 *           the hotReadThreshold to set
+	 */
+	public void setHotReadThreshold(final long hotReadThreshold)
+	{
+		this.hotReadThreshold = hotReadThreshold;
+	}
+
+	/**
+	 * @return the rejectGrowth
+	 */
+	public boolean isRejectGrowth()
+	{
+		return rejectGrowth;
+	}
+
+	/**
+	 * @param rejectGrowth
+	 *           the rejectGrowth to set
+	 */
+	public void setRejectGrowth(final boolean rejectGrowth)
+	{
+		this.rejectGrowth = rejectGrowth;
+	}
+
+	/**
+	 * Last known serialized size and entry count of a cart.
+	 */
+	public static final class CartSize
+	{
+		private final String cartCode;
+		private final long bytes;
+		private final int entryCount;
+
+		private CartSize(final String cartCode, final long bytes, final int entryCount)
+		{
+			this.cartCode = cartCode;
+			this.bytes = bytes;
+			this.entryCount = entryCount;
+		}
+
+		public String getCartCode()
+		{
+			return cartCode;
+		}
+
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		public int getEntryCount()
+		{
+			return entryCount;
+		}
+	}
+}
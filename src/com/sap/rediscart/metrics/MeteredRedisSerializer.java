@@ -0,0 +1,87 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+
+/**
+ * Decorates the value serializer of the redis template and records the size of every payload written to or read from
+ * redis.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class MeteredRedisSerializer implements RedisSerializer<Object>
+{
+	private RedisSerializer<Object> delegate;
+	private RedisMetrics redisMetrics;
+
+	@Override
+	public byte[] serialize(final Object value) throws SerializationException
+	{
+		final byte[] bytes = getDelegate().serialize(value);
+		if (bytes != null)
+		{
+			getRedisMetrics().recordPayload(RedisMetrics.PAYLOAD_WRITE, bytes.length);
+		}
+		return bytes;
+	}
+
+	@Override
+	public Object deserialize(final byte[] bytes) throws SerializationException
+	{
+		if (bytes != null)
+		{
+			getRedisMetrics().recordPayload(RedisMetrics.PAYLOAD_READ, bytes.length);
+		}
+		return getDelegate().deserialize(bytes);
+	}
+
+	/**
+	 * @return the delegate
+	 */
+	public RedisSerializer<Object> getDelegate()
+	{
+		return delegate;
+	}
+
+	/**
+	 * @param delegate
+	 *           the delegate to set
+	 */
+	public void setDelegate(final RedisSerializer<Object> delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+}
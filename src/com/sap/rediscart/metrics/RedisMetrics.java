@@ -0,0 +1,539 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Latency and error metrics per type of redis operation, size metrics of the payloads written to and read from redis,
+ * CPU time and compression ratio of the value compression, the drift found by the index reconciler, the progress of
+ * the stale cart removal, the carts moved between redis and the cold tier and how the cart store rode out redis being
+ * unavailable. Every metric is registered as MBean under the domain com.sap.rediscart when it is first used, and all of
+ * them can be written in the prometheus text format for scraping.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class RedisMetrics
+{
+	private static final Logger LOG = LoggerFactory.getLogger(RedisMetrics.class);
+
+	public static final String CART_GET = "cart.get";
+	public static final String CART_GET_BATCH = "cart.getBatch";
+	public static final String CART_SET = "cart.set";
+	public static final String CART_REMOVE = "cart.remove";
+	public static final String INDEX_READ = "index.read";
+	public static final String INDEX_WRITE = "index.write";
+	public static final String INDEX_SCAN = "index.scan";
+	public static final String PROMOTION_RESULT_READ = "promotionResult.read";
+	public static final String PROMOTION_RESULT_WRITE = "promotionResult.write";
+	public static final String PROMOTION_RESULT_REMOVE = "promotionResult.remove";
+	public static final String LEASE_ACQUIRE = "lease.acquire";
+	public static final String LEASE_RELEASE = "lease.release";
+
+	public static final String PAYLOAD_READ = "read";
+	public static final String PAYLOAD_WRITE = "write";
+
+	public static final String CODEC_COMPRESS = "compress";
+	public static final String CODEC_DECOMPRESS = "decompress";
+
+	public static final String RECONCILER_CARTS_CHECKED = "cartsChecked";
+	public static final String RECONCILER_INDEX_MEMBERS_CHECKED = "indexMembersChecked";
+	public static final String RECONCILER_ORPHANED = "orphaned";
+	public static final String RECONCILER_MISSING = "missing";
+	public static final String RECONCILER_FOREIGN = "foreign";
+	public static final String RECONCILER_PASSES = "passes";
+
+	public static final String REMOVAL_CARTS_SCANNED = "cartsScanned";
+	public static final String REMOVAL_CARTS_REMOVED = "cartsRemoved";
+	public static final String REMOVAL_CARTS_SKIPPED = "cartsSkipped";
+	public static final String REMOVAL_PASSES = "passes";
+
+	public static final String TIERING_OFFLOADED = "offloaded";
+	public static final String TIERING_PROMOTED = "promoted";
+	public static final String TIERING_EXPIRED = "expired";
+	public static final String TIERING_PASSES = "passes";
+
+	public static final String RESILIENCE_JOURNALED = "journaled";
+	public static final String RESILIENCE_REPLAYED = "replayed";
+	public static final String RESILIENCE_REPLAY_FAILED = "replayFailed";
+	public static final String RESILIENCE_BREAKER_OPENED = "breakerOpened";
+	public static final String RESILIENCE_REJECTED = "rejected";
+	public static final String RESILIENCE_NEAR_CACHE_READS = "nearCacheReads";
+	public static final String RESILIENCE_EMPTY_READS = "emptyReads";
+
+	private static final String DOMAIN = "com.sap.rediscart";
+
+	private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Histogram> payloads = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, CodecMetrics> codecs = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Counter> reconciliations = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Counter> removals = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Counter> tierings = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Counter> resilience = new ConcurrentHashMap<>();
+
+	private RedisRequestBudget redisRequestBudget;
+	private boolean jmxEnabled = true;
+
+	/**
+	 * Runs the call and records its latency under the operation, a call ending with an exception counts as error.
+	 */
+	public <T> T measure(final String operation, final Supplier<T> call)
+	{
+		final long start = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			final T result = call.get();
+			failed = false;
+			return result;
+		}
+		finally
+		{
+			recordOperation(operation, System.nanoTime() - start, failed);
+		}
+	}
+
+	public void recordOperation(final String operation, final long nanos, final boolean failed)
+	{
+		getOperation(operation).record(nanos, failed);
+		ThreadRedisUsage.recordCommand();
+		if (getRedisRequestBudget() != null)
+		{
+			getRedisRequestBudget().recordCommand(operation);
+		}
+	}
+
+	public void recordPayload(final String direction, final long bytes)
+	{
+		getPayload(direction).record(bytes);
+		ThreadRedisUsage.recordBytes(bytes);
+		if (getRedisRequestBudget() != null)
+		{
+			getRedisRequestBudget().recordBytes(bytes);
+		}
+	}
+
+	/**
+	 * Records compressing or decompressing a value, not counted as redis command.
+	 */
+	public void recordCodec(final String operation, final long nanos, final long uncompressedBytes,
+			final long compressedBytes)
+	{
+		getCodec(operation).record(nanos, uncompressedBytes, compressedBytes);
+	}
+
+	/**
+	 * Counts an event of the index reconciler, e.g. index entries of carts that do not exist.
+	 */
+	public void recordReconciliation(final String event, final long count)
+	{
+		getReconciliation(event).add(count);
+	}
+
+	/**
+	 * Counts an event of the stale cart removal, e.g. carts removed.
+	 */
+	public void recordRemoval(final String event, final long count)
+	{
+		getRemoval(event).add(count);
+	}
+
+	/**
+	 * Counts an event of the cold cart tier, e.g. carts promoted back to redis.
+	 */
+	public void recordTiering(final String event, final long count)
+	{
+		getTiering(event).add(count);
+	}
+
+	/**
+	 * Counts an event of riding out an unavailable redis, e.g. a cart write journaled.
+	 */
+	public void recordResilience(final String event, final long count)
+	{
+		getResilience(event).add(count);
+	}
+
+	public OperationMetrics getOperation(final String operation)
+	{
+		final OperationMetrics metrics = operations.get(operation);
+		return metrics != null ? metrics
+				: register(operations, operation, new OperationMetrics(), "type=RedisOperation,name=" + operation);
+	}
+
+	public Histogram getPayload(final String direction)
+	{
+		final Histogram histogram = payloads.get(direction);
+		return histogram != null ? histogram
+				: register(payloads, direction, new Histogram(), "type=RedisPayload,name=" + direction);
+	}
+
+	public CodecMetrics getCodec(final String operation)
+	{
+		final CodecMetrics metrics = codecs.get(operation);
+		return metrics != null ? metrics
+				: register(codecs, operation, new CodecMetrics(), "type=RedisCodec,name=" + operation);
+	}
+
+	public Counter getReconciliation(final String event)
+	{
+		final Counter counter = reconciliations.get(event);
+		return counter != null ? counter
+				: register(reconciliations, event, new Counter(), "type=IndexReconciler,name=" + event);
+	}
+
+	public Counter getRemoval(final String event)
+	{
+		final Counter counter = removals.get(event);
+		return counter != null ? counter
+				: register(removals, event, new Counter(), "type=StaleCartRemoval,name=" + event);
+	}
+
+	public Counter getTiering(final String event)
+	{
+		final Counter counter = tierings.get(event);
+		return counter != null ? counter : register(tierings, event, new Counter(), "type=ColdCartTier,name=" + event);
+	}
+
+	public Counter getResilience(final String event)
+	{
+		final Counter counter = resilience.get(event);
+		return counter != null ? counter : register(resilience, event, new Counter(), "type=Resilience,name=" + event);
+	}
+
+	/**
+	 * @return the metrics by operation name
+	 */
+	public Map<String, OperationMetrics> getOperations()
+	{
+		return Collections.unmodifiableMap(new TreeMap<>(operations));
+	}
+
+	/**
+	 * @return the payload size histograms in bytes by direction
+	 */
+	public Map<String, Histogram> getPayloads()
+	{
+		return Collections.unmodifiableMap(new TreeMap<>(payloads));
+	}
+
+	/**
+	 * @return the compression metrics by codec operation
+	 */
+	public Map<String, CodecMetrics> getCodecs()
+	{
+		return Collections.unmodifiableMap(new TreeMap<>(codecs));
+	}
+
+	/**
+	 * @return the index reconciler counters by event
+	 */
+	public Map<String, Counter> getReconciliations()
+	{
+		return Collections.unmodifiableMap(new TreeMap<>(reconciliations));
+	}
+
+	/**
+	 * @return the stale cart removal counters by event
+	 */
+	public Map<String, Counter> getRemovals()
+	{
+		return Collections.unmodifiableMap(new TreeMap<>(removals));
+	}
+
+	/**
+	 * @return the cold cart tier counters by event
+	 */
+	public Map<String, Counter> getTierings()
+	{
+		return Collections.unmodifiableMap(new TreeMap<>(tierings));
+	}
+
+	/**
+	 * @return the resilience counters by event
+	 */
+	public Map<String, Counter> getResilience()
+	{
+		return Collections.unmodifiableMap(new TreeMap<>(resilience));
+	}
+
+	/**
+	 * Writes all metrics in the prometheus text exposition format, latencies in seconds and payloads in bytes.
+	 */
+	public String toText()
+	{
+		final StringBuilder text = new StringBuilder(4096);
+		final Map<String, OperationMetrics> operationsByName = getOperations();
+
+		text.append("# HELP rediscart_redis_operation_seconds Latency of redis operations\n");
+		text.append("# TYPE rediscart_redis_operation_seconds histogram\n");
+		for (final Map.Entry<String, OperationMetrics> entry : operationsByName.entrySet())
+		{
+			appendHistogram(text, "rediscart_redis_operation_seconds", "operation", entry.getKey(),
+					entry.getValue().getLatency(), 1e-9D);
+		}
+
+		text.append("# HELP rediscart_redis_operation_errors_total Redis operations ended with an exception\n");
+		text.append("# TYPE rediscart_redis_operation_errors_total counter\n");
+		for (final Map.Entry<String, OperationMetrics> entry : operationsByName.entrySet())
+		{
+			text.append("rediscart_redis_operation_errors_total{operation=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue().getErrors()).append('\n');
+		}
+
+		text.append("# HELP rediscart_redis_payload_bytes Size of the values written to and read from redis\n");
+		text.append("# TYPE rediscart_redis_payload_bytes histogram\n");
+		for (final Map.Entry<String, Histogram> entry : getPayloads().entrySet())
+		{
+			appendHistogram(text, "rediscart_redis_payload_bytes", "direction", entry.getKey(), entry.getValue(), 1D);
+		}
+
+		final Map<String, CodecMetrics> codecsByOperation = getCodecs();
+		text.append("# HELP rediscart_redis_codec_seconds CPU time of compressing and decompressing values\n");
+		text.append("# TYPE rediscart_redis_codec_seconds histogram\n");
+		for (final Map.Entry<String, CodecMetrics> entry : codecsByOperation.entrySet())
+		{
+			appendHistogram(text, "rediscart_redis_codec_seconds", "operation", entry.getKey(), entry.getValue().getLatency(),
+					1e-9D);
+		}
+		text.append("# HELP rediscart_redis_codec_uncompressed_bytes_total Size of the values before compression\n");
+		text.append("# TYPE rediscart_redis_codec_uncompressed_bytes_total counter\n");
+		for (final Map.Entry<String, CodecMetrics> entry : codecsByOperation.entrySet())
+		{
+			text.append("rediscart_redis_codec_uncompressed_bytes_total{operation=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue().getUncompressedBytes()).append('\n');
+		}
+		text.append("# HELP rediscart_redis_codec_compressed_bytes_total Size of the values after compression\n");
+		text.append("# TYPE rediscart_redis_codec_compressed_bytes_total counter\n");
+		for (final Map.Entry<String, CodecMetrics> entry : codecsByOperation.entrySet())
+		{
+			text.append("rediscart_redis_codec_compressed_bytes_total{operation=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue().getCompressedBytes()).append('\n');
+		}
+
+		text.append("# HELP rediscart_index_reconciler_total Index entries checked and drift found by the index reconciler\n");
+		text.append("# TYPE rediscart_index_reconciler_total counter\n");
+		for (final Map.Entry<String, Counter> entry : getReconciliations().entrySet())
+		{
+			text.append("rediscart_index_reconciler_total{event=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue().getCount()).append('\n');
+		}
+
+		text.append("# HELP rediscart_stale_cart_removal_total Carts scanned and removed by the stale cart removal\n");
+		text.append("# TYPE rediscart_stale_cart_removal_total counter\n");
+		for (final Map.Entry<String, Counter> entry : getRemovals().entrySet())
+		{
+			text.append("rediscart_stale_cart_removal_total{event=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue().getCount()).append('\n');
+		}
+
+		text.append("# HELP rediscart_cold_cart_total Saved carts offloaded to and promoted from the cold tier\n");
+		text.append("# TYPE rediscart_cold_cart_total counter\n");
+		for (final Map.Entry<String, Counter> entry : getTierings().entrySet())
+		{
+			text.append("rediscart_cold_cart_total{event=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue().getCount()).append('\n');
+		}
+
+		text.append("# HELP rediscart_resilience_total Journaled and replayed cart writes, breaker openings, degraded reads\n");
+		text.append("# TYPE rediscart_resilience_total counter\n");
+		for (final Map.Entry<String, Counter> entry : getResilience().entrySet())
+		{
+			text.append("rediscart_resilience_total{event=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue().getCount()).append('\n');
+		}
+		return text.toString();
+	}
+
+	public void reset()
+	{
+		for (final OperationMetrics metrics : operations.values())
+		{
+			metrics.reset();
+		}
+		for (final Histogram histogram : payloads.values())
+		{
+			histogram.reset();
+		}
+		for (final CodecMetrics metrics : codecs.values())
+		{
+			metrics.reset();
+		}
+		for (final Counter counter : reconciliations.values())
+		{
+			counter.reset();
+		}
+		for (final Counter counter : removals.values())
+		{
+			counter.reset();
+		}
+		for (final Counter counter : tierings.values())
+		{
+			counter.reset();
+		}
+		for (final Counter counter : resilience.values())
+		{
+			counter.reset();
+		}
+	}
+
+	public void destroy()
+	{
+		if (!isJmxEnabled())
+		{
+			return;
+		}
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			for (final ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":type=RedisOperation,*"), null))
+			{
+				server.unregisterMBean(name);
+			}
+			for (final ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":type=RedisPayload,*"), null))
+			{
+				server.unregisterMBean(name);
+			}
+			for (final ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":type=RedisCodec,*"), null))
+			{
+				server.unregisterMBean(name);
+			}
+			for (final ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":type=IndexReconciler,*"), null))
+			{
+				server.unregisterMBean(name);
+			}
+			for (final ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":type=StaleCartRemoval,*"), null))
+			{
+				server.unregisterMBean(name);
+			}
+			for (final ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":type=ColdCartTier,*"), null))
+			{
+				server.unregisterMBean(name);
+			}
+			for (final ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":type=Resilience,*"), null))
+			{
+				server.unregisterMBean(name);
+			}
+		}
+		catch (final JMException e)
+		{
+			LOG.warn("Could not unregister the redis metrics", e);
+		}
+	}
+
+	private <T> T register(final ConcurrentMap<String, T> metrics, final String name, final T created, final String keys)
+	{
+		final T existing = metrics.putIfAbsent(name, created);
+		if (existing != null)
+		{
+			return existing;
+		}
+		if (isJmxEnabled())
+		{
+			try
+			{
+				final ObjectName objectName = new ObjectName(DOMAIN + ":" + keys);
+				final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				if (!server.isRegistered(objectName))
+				{
+					server.registerMBean(created, objectName);
+				}
+			}
+			catch (final JMException e)
+			{
+				LOG.warn("Could not register metrics {} as MBean", name, e);
+			}
+		}
+		return created;
+	}
+
+	private void appendHistogram(final StringBuilder text, final String metric, final String label, final String value,
+			final Histogram histogram, final double scale)
+	{
+		final long[] counts = histogram.getBucketCounts();
+		int last = counts.length - 1;
+		while (last > 0 && counts[last] == 0)
+		{
+			last--;
+		}
+		long cumulative = 0;
+		for (int i = 0; i <= last; i++)
+		{
+			cumulative += counts[i];
+			text.append(metric).append("_bucket{").append(label).append("=\"").append(value).append("\",le=\"")
+					.append(Histogram.getUpperBound(i) * scale).append("\"} ").append(cumulative).append('\n');
+		}
+		long total = cumulative;
+		for (int i = last + 1; i < counts.length; i++)
+		{
+			total += counts[i];
+		}
+		text.append(metric).append("_bucket{").append(label).append("=\"").append(value).append("\",le=\"+Inf\"} ")
+				.append(total).append('\n');
+		text.append(metric).append("_sum{").append(label).append("=\"").append(value).append("\"} ")
+				.append(histogram.getSum() * scale).append('\n');
+		text.append(metric).append("_count{").append(label).append("=\"").append(value).append("\"} ").append(total)
+				.append('\n');
+	}
+
+	/**
+	 * @return the jmxEnabled
+	 */
+	public boolean isJmxEnabled()
+	{
+		return jmxEnabled;
+	}
+
+	/**
+	 * @param jmxEnabled
+	 *           the jmxEnabled to set
+	 */
+	public void setJmxEnabled(final boolean jmxEnabled)
+	{
+		this.jmxEnabled = jmxEnabled;
+	}
+
+	/**
+	 * @return the redisRequestBudget
+	 */
+	public RedisRequestBudget getRedisRequestBudget()
+	{
+		return redisRequestBudget;
+	}
+
+	/**
+	 * @param redisRequestBudget
+	 *           the redisRequestBudget to set
+	 */
+	public void setRedisRequestBudget(final RedisRequestBudget redisRequestBudget)
+	{
+		this.redisRequestBudget = redisRequestBudget;
+	}
+}
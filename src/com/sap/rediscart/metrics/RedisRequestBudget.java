@@ -0,0 +1,295 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Counts the redis commands and payload bytes of the current request per call site and warns when a request exceeds
+ * its budget or repeats the same command from one call site too often, which usually is a lookup in a loop. A request
+ * is tracked between {@link #begin(String)} and {@link #end()}, commands outside of a request are not counted.
+ * <p/>
+ * Finding the call site walks the stack of every command, so this is meant for load tests and is switched off by
+ * default.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class RedisRequestBudget
+{
+	private static final Logger LOG = LoggerFactory.getLogger(RedisRequestBudget.class);
+
+	private static final String[] INFRASTRUCTURE_PACKAGES =
+	{ "com.sap.rediscart.metrics.", "com.sap.rediscart.store.", "com.sap.rediscart.util.", "java.", "javax.", "sun.",
+			"com.sun.", "jdk.", "org.springframework.data." };
+
+	private static final int REPORTED_CALL_SITES = 5;
+
+	private final ThreadLocal<RequestUsage> currentUsage = new ThreadLocal<>();
+
+	private boolean enabled;
+	private int maxCommands = 20;
+	private long maxBytes = 1024L * 1024L;
+	private int maxRepeats = 5;
+
+	/**
+	 * Starts counting the commands of the current thread for the given request, a request already being counted is
+	 * continued.
+	 */
+	public void begin(final String request)
+	{
+		if (isEnabled() && currentUsage.get() == null)
+		{
+			currentUsage.set(new RequestUsage(request));
+		}
+	}
+
+	/**
+	 * Stops counting and logs a warning if the request has exceeded its budget.
+	 *
+	 * @return the usage of the request, or null if none was counted
+	 */
+	public RequestUsage end()
+	{
+		final RequestUsage usage = currentUsage.get();
+		currentUsage.remove();
+		if (usage != null)
+		{
+			check(usage);
+		}
+		return usage;
+	}
+
+	public void recordCommand(final String operation)
+	{
+		final RequestUsage usage = currentUsage.get();
+		if (usage != null)
+		{
+			usage.recordCommand(findCallSite() + " " + operation);
+		}
+	}
+
+	public void recordBytes(final long bytes)
+	{
+		final RequestUsage usage = currentUsage.get();
+		if (usage != null)
+		{
+			usage.bytes += bytes;
+		}
+	}
+
+	/**
+	 * @return the usage of the current request, or null if none is counted
+	 */
+	public RequestUsage getCurrentUsage()
+	{
+		return currentUsage.get();
+	}
+
+	protected void check(final RequestUsage usage)
+	{
+		final Map.Entry<String, Integer> mostRepeated = usage.getMostRepeated();
+		final boolean overCommands = usage.getCommands() > getMaxCommands();
+		final boolean overBytes = usage.getBytes() > getMaxBytes();
+		final boolean repeated = mostRepeated != null && mostRepeated.getValue().intValue() > getMaxRepeats();
+		if (overCommands || overBytes || repeated)
+		{
+			LOG.warn("Redis budget exceeded: request=\"{}\" commands={} maxCommands={} bytes={} maxBytes={} "
+					+ "callSite=\"{}\" repeats={} maxRepeats={} topCallSites={}", usage.getRequest(),
+					Integer.valueOf(usage.getCommands()), Integer.valueOf(getMaxCommands()), Long.valueOf(usage.getBytes()),
+					Long.valueOf(getMaxBytes()), mostRepeated == null ? "" : mostRepeated.getKey(),
+					mostRepeated == null ? Integer.valueOf(0) : mostRepeated.getValue(), Integer.valueOf(getMaxRepeats()),
+					usage.getTopCallSites(REPORTED_CALL_SITES));
+		}
+	}
+
+	protected String findCallSite()
+	{
+		for (final StackTraceElement element : new Throwable().getStackTrace())
+		{
+			if (!isInfrastructure(element.getClassName()))
+			{
+				final String className = element.getClassName();
+				return className.substring(className.lastIndexOf('.') + 1) + "." + element.getMethodName() + ":"
+						+ element.getLineNumber();
+			}
+		}
+		return "unknown";
+	}
+
+	private boolean isInfrastructure(final String className)
+	{
+		for (final String infrastructurePackage : INFRASTRUCTURE_PACKAGES)
+		{
+			if (className.startsWith(infrastructurePackage))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *           the enabled to set
+	 */
+	public void setEnabled(final boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the maxCommands
+	 */
+	public int getMaxCommands()
+	{
+		return maxCommands;
+	}
+
+	/**
+	 * @param maxCommands
+	 *           the maxCommands to set
+	 */
+	public void setMaxCommands(final int maxCommands)
+	{
+		this.maxCommands = maxCommands;
+	}
+
+	/**
+	 * @return the maxBytes
+	 */
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxBytes
+	 *           the maxBytes to set
+	 */
+	public void setMaxBytes(final long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the maxRepeats
+	 */
+	public int getMaxRepeats()
+	{
+		return maxRepeats;
+	}
+
+	/**
+	 * @param maxRepeats
+	 *           the maxRepeats to set
+	 */
+	public void setMaxRepeats(final int maxRepeats)
+	{
+		this.maxRepeats = maxRepeats;
+	}
+
+	/**
+	 * Commands and bytes of one request, only used by the thread serving it.
+	 */
+	public static class RequestUsage
+	{
+		private final String request;
+		private final Map<String, Integer> commandsByCallSite = new HashMap<>();
+		private int commands;
+		private long bytes;
+
+		private RequestUsage(final String request)
+		{
+			this.request = request;
+		}
+
+		private void recordCommand(final String callSite)
+		{
+			commands++;
+			commandsByCallSite.merge(callSite, Integer.valueOf(1), (a, b) -> Integer.valueOf(a.intValue() + b.intValue()));
+		}
+
+		public String getRequest()
+		{
+			return request;
+		}
+
+		public int getCommands()
+		{
+			return commands;
+		}
+
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		/**
+		 * @return the commands by call site and operation
+		 */
+		public Map<String, Integer> getCommandsByCallSite()
+		{
+			return Collections.unmodifiableMap(commandsByCallSite);
+		}
+
+		/**
+		 * @return the call site and operation repeated most often, or null if there were no commands
+		 */
+		public Map.Entry<String, Integer> getMostRepeated()
+		{
+			Map.Entry<String, Integer> mostRepeated = null;
+			for (final Map.Entry<String, Integer> entry : commandsByCallSite.entrySet())
+			{
+				if (mostRepeated == null || entry.getValue().intValue() > mostRepeated.getValue().intValue())
+				{
+					mostRepeated = entry;
+				}
+			}
+			return mostRepeated;
+		}
+
+		/**
+		 * @return the call sites with the most commands, most first
+		 */
+		public List<String> getTopCallSites(final int limit)
+		{
+			final List<Map.Entry<String, Integer>> entries = new ArrayList<>(commandsByCallSite.entrySet());
+			entries.sort((e1, e2) -> e2.getValue().compareTo(e1.getValue()));
+			final List<String> top = new ArrayList<>();
+			for (final Map.Entry<String, Integer> entry : entries.subList(0, Math.min(limit, entries.size())))
+			{
+				top.add(entry.getKey() + "=" + entry.getValue());
+			}
+			return top;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.filter.OncePerRequestFilter;
+
+
+/**
+ * Tracks the redis commands of each request with the {@link RedisRequestBudget}. Add it to the platform filter chain of
+ * every web application whose requests should be checked, e.g. the storefront.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class RedisRequestBudgetFilter extends OncePerRequestFilter
+{
+	private RedisRequestBudget redisRequestBudget;
+
+	@Override
+	protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+			final FilterChain filterChain) throws ServletException, IOException
+	{
+		getRedisRequestBudget().begin(request.getMethod() + " " + request.getRequestURI());
+		try
+		{
+			filterChain.doFilter(request, response);
+		}
+		finally
+		{
+			getRedisRequestBudget().end();
+		}
+	}
+
+	/**
+	 * @return the redisRequestBudget
+	 */
+	public RedisRequestBudget getRedisRequestBudget()
+	{
+		return redisRequestBudget;
+	}
+
+	/**
+	 * @param redisRequestBudget
+	 *           the redisRequestBudget to set
+	 */
+	public void setRedisRequestBudget(final RedisRequestBudget redisRequestBudget)
+	{
+		this.redisRequestBudget = redisRequestBudget;
+	}
+}
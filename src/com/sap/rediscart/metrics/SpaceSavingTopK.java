@@ -0,0 +1,145 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Space-saving sketch of the most frequent keys: at most capacity keys are counted, a new key replaces the one with the
+ * lowest count and inherits that count as its possible overestimation. Keys more frequent than 1/capacity of all
+ * offers are guaranteed to be kept.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class SpaceSavingTopK
+{
+	private final int capacity;
+	private final Map<String, Counter> counters;
+
+	public SpaceSavingTopK(final int capacity)
+	{
+		this.capacity = capacity;
+		this.counters = new HashMap<>(capacity * 2);
+	}
+
+	/**
+	 * Counts one occurrence of the key.
+	 *
+	 * @return the estimated count of the key
+	 */
+	public synchronized long offer(final String key)
+	{
+		Counter counter = counters.get(key);
+		if (counter == null)
+		{
+			if (counters.size() < capacity)
+			{
+				counter = new Counter(key, 0);
+			}
+			else
+			{
+				final Counter min = findMin();
+				counters.remove(min.key);
+				counter = new Counter(key, min.count);
+			}
+			counters.put(key, counter);
+		}
+		counter.count++;
+		return counter.count;
+	}
+
+	/**
+	 * @return the counted keys, most frequent first
+	 */
+	public synchronized List<Estimate> getTop()
+	{
+		final List<Estimate> top = new ArrayList<>(counters.size());
+		for (final Counter counter : counters.values())
+		{
+			top.add(new Estimate(counter.key, counter.count, counter.error));
+		}
+		top.sort((e1, e2) -> Long.compare(e2.getCount(), e1.getCount()));
+		return top;
+	}
+
+	public synchronized void clear()
+	{
+		counters.clear();
+	}
+
+	private Counter findMin()
+	{
+		Counter min = null;
+		for (final Counter counter : counters.values())
+		{
+			if (min == null || counter.count < min.count)
+			{
+				min = counter;
+			}
+		}
+		return min;
+	}
+
+	private static final class Counter
+	{
+		private final String key;
+		private final long error;
+		private long count;
+
+		private Counter(final String key, final long error)
+		{
+			this.key = key;
+			this.error = error;
+			this.count = error;
+		}
+	}
+
+	/**
+	 * Estimated count of a key, at most error above the real count.
+	 */
+	public static final class Estimate
+	{
+		private final String key;
+		private final long count;
+		private final long error;
+
+		private Estimate(final String key, final long count, final long error)
+		{
+			this.key = key;
+			this.count = count;
+			this.error = error;
+		}
+
+		public String getKey()
+		{
+			return key;
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		public long getError()
+		{
+			return error;
+		}
+	}
+}
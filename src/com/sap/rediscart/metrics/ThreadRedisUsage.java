@@ -0,0 +1,58 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.metrics;
+
+/**
+ * Running totals of the redis commands and payload bytes of the current thread, fed by {@link RedisMetrics}. Callers
+ * take the totals before and after a piece of work to get its round trips and bytes.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public final class ThreadRedisUsage
+{
+	private static final ThreadLocal<long[]> USAGE = ThreadLocal.withInitial(() -> new long[2]);
+
+	private ThreadRedisUsage()
+	{
+		// static helper
+	}
+
+	public static void recordCommand()
+	{
+		USAGE.get()[0]++;
+	}
+
+	public static void recordBytes(final long bytes)
+	{
+		USAGE.get()[1] += bytes;
+	}
+
+	/**
+	 * @return the redis commands of the current thread so far
+	 */
+	public static long getCommands()
+	{
+		return USAGE.get()[0];
+	}
+
+	/**
+	 * @return the payload bytes of the current thread so far
+	 */
+	public static long getBytes()
+	{
+		return USAGE.get()[1];
+	}
+}
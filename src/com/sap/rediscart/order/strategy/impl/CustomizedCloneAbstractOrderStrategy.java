@@ -20,6 +20,7 @@ import static de.hybris.platform.servicelayer.util.ServicesUtil.validateParamete
 import de.hybris.platform.core.model.ItemModel;
 import de.hybris.platform.core.model.order.AbstractOrderEntryModel;
 import de.hybris.platform.core.model.order.AbstractOrderModel;
+import de.hybris.platform.core.model.order.OrderModel;
 import de.hybris.platform.core.model.type.ComposedTypeModel;
 import de.hybris.platform.order.AbstractOrderEntryTypeService;
 import de.hybris.platform.order.strategies.ordercloning.impl.DefaultCloneAbstractOrderStrategy;
@@ -36,11 +37,22 @@ import de.hybris.platform.servicelayer.internal.model.impl.ItemModelCloneCreator
 import de.hybris.platform.servicelayer.internal.model.impl.ItemModelCloneCreator.CopyContext;
 import de.hybris.platform.servicelayer.type.TypeService;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.sap.rediscart.exceptions.CartLockedException;
+import com.sap.rediscart.jfr.CartEventRecorder;
+import com.sap.rediscart.jfr.CartEventRecorder.Operation;
+import com.sap.rediscart.jfr.CartEventRecorder.Recording;
+import com.sap.rediscart.model.order.RedisCartModel;
 import com.sap.rediscart.model.promotion.action.RedisRuleBasedOrderAddProductActionModel;
 import com.sap.rediscart.model.promotion.action.RedisRuleBasedOrderAdjustTotalActionModel;
 import com.sap.rediscart.model.promotion.action.RedisRuleBasedOrderChangeDeliveryModeActionModel;
 import com.sap.rediscart.model.promotion.action.RedisRuleBasedOrderEntryAdjustActionModel;
 import com.sap.rediscart.model.promotion.action.RedisRuleBasedPotentialPromotionMessageActionModel;
+import com.sap.rediscart.util.RedisCartLeaseLock;
 
 
 /**
@@ -48,10 +60,34 @@ import com.sap.rediscart.model.promotion.action.RedisRuleBasedPotentialPromotion
  */
 public class CustomizedCloneAbstractOrderStrategy extends DefaultCloneAbstractOrderStrategy
 {
+	/**
+	 * The redis only promotion results and actions of a cart and the types they become in the order.
+	 */
+	private static final Map<Class<? extends ItemModel>, Class<? extends ItemModel>> TARGET_CLASSES;
+
+	static
+	{
+		final Map<Class<? extends ItemModel>, Class<? extends ItemModel>> targets = new LinkedHashMap<>();
+		// promotion results
+		targets.put(CachedPromotionResultModel.class, PromotionResultModel.class);
+		targets.put(CachedPromotionOrderEntryConsumedModel.class, PromotionOrderEntryConsumedModel.class);
+		// promotion actions
+		targets.put(RedisRuleBasedOrderAddProductActionModel.class, RuleBasedOrderAddProductActionModel.class);
+		targets.put(RedisRuleBasedOrderAdjustTotalActionModel.class, RuleBasedOrderAdjustTotalActionModel.class);
+		targets.put(RedisRuleBasedOrderChangeDeliveryModeActionModel.class,
+				RuleBasedOrderChangeDeliveryModeActionModel.class);
+		targets.put(RedisRuleBasedOrderEntryAdjustActionModel.class, RuleBasedOrderEntryAdjustActionModel.class);
+		targets.put(RedisRuleBasedPotentialPromotionMessageActionModel.class,
+				RuleBasedPotentialPromotionMessageActionModel.class);
+		TARGET_CLASSES = Collections.unmodifiableMap(targets);
+	}
+
 	private final TypeService typeService;
 	private final ItemModelCloneCreator itemModelCloneCreator;
 	private final AbstractOrderEntryTypeService abstractOrderEntryTypeService;
 
+	private RedisCartLeaseLock redisCartLeaseLock;
+
 	/**
 	 * @param typeService
 	 * @param itemModelCloneCreator
@@ -75,6 +111,45 @@ public class CustomizedCloneAbstractOrderStrategy extends DefaultCloneAbstractOr
 		validateParameterNotNull(abstractOrderClassResult, "abstractOrderClassResult must not be null!");
 		validateParameterNotNull(abstractOrderEntryClassResult, "abstractOrderEntryClassResult must not be null!");
 
+		final Recording recording = CartEventRecorder.begin(Operation.CONVERSION);
+		try
+		{
+			return doClone(_orderType, _entryType, original, code, abstractOrderClassResult, abstractOrderEntryClassResult);
+		}
+		finally
+		{
+			recording.end(original.getCode(), original.getEntries() == null ? 0 : original.getEntries().size());
+		}
+	}
+
+	private <T extends AbstractOrderModel> T doClone(final ComposedTypeModel _orderType, final ComposedTypeModel _entryType,
+			final AbstractOrderModel original, final String code, final Class abstractOrderClassResult,
+			final Class abstractOrderEntryClassResult)
+	{
+		if (original instanceof RedisCartModel && OrderModel.class.isAssignableFrom(abstractOrderClassResult)
+				&& redisCartLeaseLock.getHeldLease(original.getCode()) == null)
+		{
+			// checkout: keep other nodes from changing the cart while it is turned into an order, the lease is kept for
+			// the rest of the checkout and released by the place order strategy
+			acquireLease(original.getCode());
+			try
+			{
+				return copy(_orderType, _entryType, original, code, abstractOrderClassResult,
+						abstractOrderEntryClassResult);
+			}
+			catch (final RuntimeException e)
+			{
+				redisCartLeaseLock.releaseHeld(original.getCode());
+				throw e;
+			}
+		}
+		return copy(_orderType, _entryType, original, code, abstractOrderClassResult, abstractOrderEntryClassResult);
+	}
+
+	private <T extends AbstractOrderModel> T copy(final ComposedTypeModel _orderType, final ComposedTypeModel _entryType,
+			final AbstractOrderModel original, final String code, final Class abstractOrderClassResult,
+			final Class abstractOrderEntryClassResult)
+	{
 		final ComposedTypeModel orderType = getOrderType(_orderType, original, abstractOrderClassResult);
 		final ComposedTypeModel entryType = getOrderEntryType(_entryType, original, abstractOrderClassResult,
 				abstractOrderEntryClassResult);
@@ -88,35 +163,14 @@ public class CustomizedCloneAbstractOrderStrategy extends DefaultCloneAbstractOr
 				{
 					return entryType;
 				}
-				// promotion results
-				if (originalModel instanceof CachedPromotionResultModel)
-				{
-					return typeService.getComposedTypeForClass(PromotionResultModel.class);
-				}
-				if (originalModel instanceof CachedPromotionOrderEntryConsumedModel)
+				// promotion results and actions
+				for (final Map.Entry<Class<? extends ItemModel>, Class<? extends ItemModel>> target : TARGET_CLASSES
+						.entrySet())
 				{
-					return typeService.getComposedTypeForClass(PromotionOrderEntryConsumedModel.class);
-				}
-				// promotion actions
-				if (originalModel instanceof RedisRuleBasedOrderAddProductActionModel)
-				{
-					return typeService.getComposedTypeForClass(RuleBasedOrderAddProductActionModel.class);
-				}
-				if (originalModel instanceof RedisRuleBasedOrderAdjustTotalActionModel)
-				{
-					return typeService.getComposedTypeForClass(RuleBasedOrderAdjustTotalActionModel.class);
-				}
-				if (originalModel instanceof RedisRuleBasedOrderChangeDeliveryModeActionModel)
-				{
-					return typeService.getComposedTypeForClass(RuleBasedOrderChangeDeliveryModeActionModel.class);
-				}
-				if (originalModel instanceof RedisRuleBasedOrderEntryAdjustActionModel)
-				{
-					return typeService.getComposedTypeForClass(RuleBasedOrderEntryAdjustActionModel.class);
-				}
-				if (originalModel instanceof RedisRuleBasedPotentialPromotionMessageActionModel)
-				{
-					return typeService.getComposedTypeForClass(RuleBasedPotentialPromotionMessageActionModel.class);
+					if (target.getKey().isInstance(originalModel))
+					{
+						return typeService.getComposedTypeForClass(target.getValue());
+					}
 				}
 				return super.getTargetType(originalModel);
 			}
@@ -131,6 +185,22 @@ public class CustomizedCloneAbstractOrderStrategy extends DefaultCloneAbstractOr
 		return orderClone;
 	}
 
+	/**
+	 * @return the classes the promotion results and actions of a redis cart are cloned to
+	 */
+	public Collection<Class<? extends ItemModel>> getTargetClasses()
+	{
+		return TARGET_CLASSES.values();
+	}
+
+	private void acquireLease(final String cartCode)
+	{
+		if (redisCartLeaseLock.tryAcquire(cartCode) == null)
+		{
+			throw new CartLockedException(cartCode);
+		}
+	}
+
 	private <T extends AbstractOrderModel> ComposedTypeModel getOrderType(final ComposedTypeModel orderType,
 			final AbstractOrderModel original, final Class<T> clazz)
 	{
@@ -162,4 +232,21 @@ public class CustomizedCloneAbstractOrderStrategy extends DefaultCloneAbstractOr
 
 		return typeService.getComposedTypeForClass(clazz);
 	}
+
+	/**
+	 * @return the redisCartLeaseLock
+	 */
+	public RedisCartLeaseLock getRedisCartLeaseLock()
+	{
+		return redisCartLeaseLock;
+	}
+
+	/**
+	 * @param redisCartLeaseLock
+	 *           the redisCartLeaseLock to set
+	 */
+	public void setRedisCartLeaseLock(final RedisCartLeaseLock redisCartLeaseLock)
+	{
+		this.redisCartLeaseLock = redisCartLeaseLock;
+	}
 }
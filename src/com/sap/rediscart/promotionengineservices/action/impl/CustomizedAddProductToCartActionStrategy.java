@@ -73,7 +73,7 @@ public class CustomizedAddProductToCartActionStrategy extends CustomizedRuleActi
 	 * @return list of {@link PromotionResultModel} as a result of the {@link DiscountRAO} application.
 	 */
 	@Override
-	public List<PromotionResultModel> apply(final AbstractRuleActionRAO action)
+	protected List<PromotionResultModel> doApply(final AbstractRuleActionRAO action)
 	{
 		if (!(action instanceof FreeProductRAO))
 		{
@@ -159,7 +159,7 @@ public class CustomizedAddProductToCartActionStrategy extends CustomizedRuleActi
 	}
 
 	@Override
-	public void undo(final ItemModel item)
+	protected void doUndo(final ItemModel item)
 	{
 		if (item instanceof RuleBasedOrderAddProductActionModel)
 		{
@@ -45,7 +45,7 @@ public class CustomizedOrderAdjustTotalActionStrategy extends CustomizedRuleActi
 	 * @return list of {@link PromotionResultModel} as a result of the {@link DiscountRAO} application.
 	 */
 	@Override
-	public List<PromotionResultModel> apply(final AbstractRuleActionRAO action)
+	protected List<PromotionResultModel> doApply(final AbstractRuleActionRAO action)
 	{
 		if (!(action instanceof DiscountRAO))
 		{
@@ -93,7 +93,7 @@ public class CustomizedOrderAdjustTotalActionStrategy extends CustomizedRuleActi
 	}
 
 	@Override
-	public void undo(final ItemModel action)
+	protected void doUndo(final ItemModel action)
 	{
 		if (action instanceof RuleBasedOrderAdjustTotalActionModel)
 		{
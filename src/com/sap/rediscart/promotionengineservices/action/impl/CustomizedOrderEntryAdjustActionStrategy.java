@@ -49,7 +49,7 @@ public class CustomizedOrderEntryAdjustActionStrategy extends CustomizedRuleActi
 	 * @return list of {@link PromotionResultModel} as a result of the {@link DiscountRAO} application.
 	 */
 	@Override
-	public List<PromotionResultModel> apply(final AbstractRuleActionRAO action)
+	protected List<PromotionResultModel> doApply(final AbstractRuleActionRAO action)
 	{
 		if (!(action instanceof DiscountRAO))
 		{
@@ -126,7 +126,7 @@ public class CustomizedOrderEntryAdjustActionStrategy extends CustomizedRuleActi
 	}
 
 	@Override
-	public void undo(final ItemModel action)
+	protected void doUndo(final ItemModel action)
 	{
 		if (action instanceof RuleBasedOrderEntryAdjustActionModel)
 		{
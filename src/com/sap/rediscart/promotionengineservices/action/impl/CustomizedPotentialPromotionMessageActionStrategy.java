@@ -51,7 +51,7 @@ public class CustomizedPotentialPromotionMessageActionStrategy
 	 * @return list of {@link PromotionResultModel} as a result of the {@link DisplayMessageRAO} application.
 	 */
 	@Override
-	public List<PromotionResultModel> apply(final AbstractRuleActionRAO action)
+	protected List<PromotionResultModel> doApply(final AbstractRuleActionRAO action)
 	{
 		if (!(action instanceof DisplayMessageRAO))
 		{
@@ -106,7 +106,7 @@ public class CustomizedPotentialPromotionMessageActionStrategy
 	}
 
 	@Override
-	public void undo(final ItemModel item)
+	protected void doUndo(final ItemModel item)
 	{
 		if (item instanceof RuleBasedPotentialPromotionMessageActionModel)
 		{
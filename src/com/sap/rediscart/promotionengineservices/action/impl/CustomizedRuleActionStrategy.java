@@ -15,22 +15,79 @@
  */
 package com.sap.rediscart.promotionengineservices.action.impl;
 
+import de.hybris.platform.core.model.ItemModel;
+import de.hybris.platform.core.model.order.AbstractOrderModel;
 import de.hybris.platform.promotionengineservices.action.impl.AbstractRuleActionStrategy;
 import de.hybris.platform.promotionengineservices.model.AbstractRuleBasedPromotionActionModel;
 import de.hybris.platform.promotions.model.AbstractPromotionActionModel;
 import de.hybris.platform.promotions.model.PromotionResultModel;
+import de.hybris.platform.ruleengineservices.rao.AbstractActionedRAO;
+import de.hybris.platform.ruleengineservices.rao.AbstractOrderRAO;
 import de.hybris.platform.ruleengineservices.rao.AbstractRuleActionRAO;
+import de.hybris.platform.ruleengineservices.rao.OrderEntryRAO;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+
+import com.sap.rediscart.util.CartLockRegistry;
 
 
 /**
+ * Base class of the action strategies. Actions are applied and undone while holding the in-JVM lock of the cart they
+ * change, see {@link CartLockRegistry}.
+ *
  * @author Henter Liu (henterji@163.com)
  */
 public abstract class CustomizedRuleActionStrategy<RULE_BASED_ACTION extends AbstractRuleBasedPromotionActionModel>
 		extends AbstractRuleActionStrategy<RULE_BASED_ACTION>
 {
+	private CartLockRegistry cartLockRegistry;
+
+	@Override
+	public List<PromotionResultModel> apply(final AbstractRuleActionRAO action)
+	{
+		return getCartLockRegistry().withLock(getCartCode(action), () -> doApply(action));
+	}
+
+	@Override
+	public void undo(final ItemModel item)
+	{
+		getCartLockRegistry().withLock(getCartCode(item), () -> {
+			doUndo(item);
+			return null;
+		});
+	}
+
+	protected abstract List<PromotionResultModel> doApply(AbstractRuleActionRAO action);
+
+	protected abstract void doUndo(ItemModel item);
+
+	protected String getCartCode(final AbstractRuleActionRAO action)
+	{
+		final AbstractActionedRAO appliedTo = action == null ? null : action.getAppliedToObject();
+		if (appliedTo instanceof AbstractOrderRAO)
+		{
+			return ((AbstractOrderRAO) appliedTo).getCode();
+		}
+		if (appliedTo instanceof OrderEntryRAO && ((OrderEntryRAO) appliedTo).getOrder() != null)
+		{
+			return ((OrderEntryRAO) appliedTo).getOrder().getCode();
+		}
+		return null;
+	}
+
+	protected String getCartCode(final ItemModel item)
+	{
+		if (item instanceof AbstractPromotionActionModel)
+		{
+			final PromotionResultModel promotionResult = ((AbstractPromotionActionModel) item).getPromotionResult();
+			final AbstractOrderModel order = promotionResult == null ? null : promotionResult.getOrder();
+			return order == null ? null : order.getCode();
+		}
+		return null;
+	}
+
 	@Override
 	protected RULE_BASED_ACTION createPromotionAction(final PromotionResultModel promotionResult,
 			final AbstractRuleActionRAO action)
@@ -46,4 +103,21 @@ public abstract class CustomizedRuleActionStrategy<RULE_BASED_ACTION extends Abs
 
 		return result;
 	}
+
+	/**
+	 * @return the cartLockRegistry
+	 */
+	public CartLockRegistry getCartLockRegistry()
+	{
+		return cartLockRegistry;
+	}
+
+	/**
+	 * @param cartLockRegistry
+	 *           the cartLockRegistry to set
+	 */
+	public void setCartLockRegistry(final CartLockRegistry cartLockRegistry)
+	{
+		this.cartLockRegistry = cartLockRegistry;
+	}
 }
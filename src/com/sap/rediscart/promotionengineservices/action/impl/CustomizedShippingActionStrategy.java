@@ -55,7 +55,7 @@ public class CustomizedShippingActionStrategy extends CustomizedRuleActionStrate
 	 * @return empty list since no any PromotionResultModel can correspond to Shipment Promotion Action.
 	 */
 	@Override
-	public List<PromotionResultModel> apply(final AbstractRuleActionRAO action)
+	protected List<PromotionResultModel> doApply(final AbstractRuleActionRAO action)
 	{
 		if (!(action instanceof ShipmentRAO))
 		{
@@ -112,7 +112,7 @@ public class CustomizedShippingActionStrategy extends CustomizedRuleActionStrate
 	}
 
 	@Override
-	public void undo(final ItemModel item)
+	protected void doUndo(final ItemModel item)
 	{
 		if (item instanceof RuleBasedOrderChangeDeliveryModeActionModel)
 		{
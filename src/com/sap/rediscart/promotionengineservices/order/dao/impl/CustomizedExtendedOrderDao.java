@@ -20,9 +20,8 @@ import de.hybris.platform.promotionengineservices.order.dao.impl.DefaultExtended
 import de.hybris.platform.servicelayer.user.UserService;
 
 import org.apache.commons.lang.StringUtils;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.ValueOperations;
 
+import com.sap.rediscart.store.CartStore;
 import com.sap.rediscart.util.RedisKeyGenerator;
 
 
@@ -31,11 +30,9 @@ import com.sap.rediscart.util.RedisKeyGenerator;
  */
 public class CustomizedExtendedOrderDao extends DefaultExtendedOrderDao
 {
-	private ValueOperations<String, Object> valueOps;
-	private RedisTemplate<String, Object> redisTemplate;
-
 	private UserService userService;
 	private RedisKeyGenerator redisKeyGenerator;
+	private CartStore cartStore;
 
 	/*
 	 * (non-Javadoc)
@@ -49,8 +46,7 @@ public class CustomizedExtendedOrderDao extends DefaultExtendedOrderDao
 		{
 			return null;
 		}
-		final String cartKey = getRedisKeyGenerator().generateCartKey(code);
-		final Object value = valueOps.get(cartKey);
+		final Object value = getCartStore().load(code);
 		if (value == null)
 		{
 			return super.findOrderByCode(code);
@@ -58,24 +54,6 @@ public class CustomizedExtendedOrderDao extends DefaultExtendedOrderDao
 		return getModelService().get(value);
 	}
 
-	/**
-	 * @return the redisTemplate
-	 */
-	public RedisTemplate<String, Object> getRedisTemplate()
-	{
-		return redisTemplate;
-	}
-
-	/**
-	 * @param redisTemplate
-	 *           the redisTemplate to set
-	 */
-	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
-	{
-		this.redisTemplate = redisTemplate;
-		this.valueOps = this.redisTemplate.opsForValue();
-	}
-
 	/**
 	 * @return the userService
 	 */
@@ -109,4 +87,21 @@ public class CustomizedExtendedOrderDao extends DefaultExtendedOrderDao
 	{
 		this.redisKeyGenerator = redisKeyGenerator;
 	}
+
+	/**
+	 * @return the cartStore
+	 */
+	public CartStore getCartStore()
+	{
+		return cartStore;
+	}
+
+	/**
+	 * @param cartStore
+	 *           the cartStore to set
+	 */
+	public void setCartStore(final CartStore cartStore)
+	{
+		this.cartStore = cartStore;
+	}
 }
@@ -45,15 +45,18 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-import org.apache.commons.collections.CollectionUtils;
-import org.springframework.data.redis.core.RedisTemplate;
-
+import com.sap.rediscart.exceptions.CartLockedException;
+import com.sap.rediscart.jfr.CartEventRecorder;
+import com.sap.rediscart.jfr.CartEventRecorder.Operation;
+import com.sap.rediscart.jfr.CartEventRecorder.Recording;
 import com.sap.rediscart.model.order.RedisCartModel;
 import com.sap.rediscart.model.promotion.action.RedisRuleBasedOrderAddProductActionModel;
 import com.sap.rediscart.model.promotion.action.RedisRuleBasedOrderAdjustTotalActionModel;
 import com.sap.rediscart.model.promotion.action.RedisRuleBasedOrderChangeDeliveryModeActionModel;
 import com.sap.rediscart.model.promotion.action.RedisRuleBasedOrderEntryAdjustActionModel;
 import com.sap.rediscart.model.promotion.action.RedisRuleBasedPotentialPromotionMessageActionModel;
+import com.sap.rediscart.store.CartStore;
+import com.sap.rediscart.util.RedisCartLeaseLock;
 import com.sap.rediscart.util.RedisKeyGenerator;
 
 
@@ -62,22 +65,31 @@ import com.sap.rediscart.util.RedisKeyGenerator;
  */
 public class CustomizedPromotionEngineService extends DefaultPromotionEngineService
 {
-	private RedisTemplate<String, Object> redisTemplate;
+	private CartStore cartStore;
 	private RedisKeyGenerator redisKeyGenerator;
+	private RedisCartLeaseLock redisCartLeaseLock;
 
 	private ModelCloningStrategy modelCloningStrategy;
 
 	@Override
 	public PromotionOrderResults getPromotionResults(final AbstractOrderModel order)
 	{
-		fixCartModel(order);
+		final Recording recording = CartEventRecorder.begin(Operation.PROMOTION_EVALUATION);
+		try
+		{
+			fixCartModel(order);
 
-		final Set<PromotionResultModel> promotionResultModels = order.getAllPromotionResults();
+			final Set<PromotionResultModel> promotionResultModels = order.getAllPromotionResults();
 
-		final List promotionResults = getModelService().getAllSources(promotionResultModels, new ArrayList());
+			final List promotionResults = getModelService().getAllSources(promotionResultModels, new ArrayList());
 
-		return new PromotionOrderResults(JaloSession.getCurrentSession().getSessionContext(),
-				(AbstractOrder) getModelService().getSource(order), promotionResults, 0.0D);
+			return new PromotionOrderResults(JaloSession.getCurrentSession().getSessionContext(),
+					(AbstractOrder) getModelService().getSource(order), promotionResults, 0.0D);
+		}
+		finally
+		{
+			recording.end(order.getCode(), countEntries(order));
+		}
 	}
 
 	@Override
@@ -85,9 +97,17 @@ public class CustomizedPromotionEngineService extends DefaultPromotionEngineServ
 			final AbstractOrderModel order, final boolean evaluateRestrictions, final AutoApplyMode productPromotionMode,
 			final AutoApplyMode orderPromotionMode, final Date date)
 	{
-		fixCartModel(order);
-		return super.getPromotionResults(promotionGroups, order, evaluateRestrictions, productPromotionMode, orderPromotionMode,
-				date);
+		final Recording recording = CartEventRecorder.begin(Operation.PROMOTION_EVALUATION);
+		try
+		{
+			fixCartModel(order);
+			return super.getPromotionResults(promotionGroups, order, evaluateRestrictions, productPromotionMode,
+					orderPromotionMode, date);
+		}
+		finally
+		{
+			recording.end(order.getCode(), countEntries(order));
+		}
 	}
 
 	@Override
@@ -100,32 +120,51 @@ public class CustomizedPromotionEngineService extends DefaultPromotionEngineServ
 	@Override
 	public void transferPromotionsToOrder(final AbstractOrderModel source, final OrderModel target,
 			final boolean onlyTransferAppliedPromotions)
+	{
+		if (!(source instanceof RedisCartModel) || getRedisCartLeaseLock().getHeldLease(source.getCode()) != null)
+		{
+			// the lease taken when the cart was cloned is reused, so this costs no round trip during checkout
+			doTransferPromotionsToOrder(source, target, onlyTransferAppliedPromotions);
+			return;
+		}
+		if (getRedisCartLeaseLock().tryAcquire(source.getCode()) == null)
+		{
+			throw new CartLockedException(source.getCode());
+		}
+		try
+		{
+			doTransferPromotionsToOrder(source, target, onlyTransferAppliedPromotions);
+		}
+		finally
+		{
+			getRedisCartLeaseLock().releaseHeld(source.getCode());
+		}
+	}
+
+	private void doTransferPromotionsToOrder(final AbstractOrderModel source, final OrderModel target,
+			final boolean onlyTransferAppliedPromotions)
 	{
 		fixCartModel(source);
 		fixPromotionResultforOrder(source);
 		super.transferPromotionsToOrder(source, target, onlyTransferAppliedPromotions);
 	}
 
+	private int countEntries(final AbstractOrderModel order)
+	{
+		return order.getEntries() == null ? 0 : order.getEntries().size();
+	}
+
 	private void fixCartModel(final AbstractOrderModel model)
 	{
 		if (!model.getItemtype().equals(RedisCartModel._TYPECODE))
 		{
 			return; // Do nothing if it is not redis cart.
 		}
-		final String prPattern = getRedisKeyGenerator().generateCartKey((CartModel) model);
-		final Set prKeys = getRedisTemplate().keys(prPattern + ":promotionResult:*");
 		final Set promotionResultModels = new HashSet();
-		if (CollectionUtils.isNotEmpty(prKeys))
+		for (final PromotionResult promotionResult : getCartStore().loadPromotionResults(model.getCode()))
 		{
-			for (final Object prKey : prKeys)
-			{
-				final Object prObj = getRedisTemplate().opsForValue().get(prKey);
-				if (prObj instanceof PromotionResult)
-				{
-					final CachedPromotionResultModel promotionResultModel = getModelService().get(prObj);
-					promotionResultModels.add(promotionResultModel);
-				}
-			}
+			final CachedPromotionResultModel promotionResultModel = getModelService().get(promotionResult);
+			promotionResultModels.add(promotionResultModel);
 		}
 		model.setAllPromotionResults(promotionResultModels);
 	}
@@ -234,23 +273,6 @@ public class CustomizedPromotionEngineService extends DefaultPromotionEngineServ
 		};
 	}
 
-	/**
-	 * @return the redisTemplate
-	 */
-	public RedisTemplate<String, Object> getRedisTemplate()
-	{
-		return redisTemplate;
-	}
-
-	/**
-	 * @param redisTemplate
-	 *           the redisTemplate to set
-	 */
-	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
-	{
-		this.redisTemplate = redisTemplate;
-	}
-
 	/**
 	 * @return the redisKeyGenerator
 	 */
@@ -284,4 +306,38 @@ public class CustomizedPromotionEngineService extends DefaultPromotionEngineServ
 	{
 		this.modelCloningStrategy = modelCloningStrategy;
 	}
+
+	/**
+	 * @return the redisCartLeaseLock
+	 */
+	public RedisCartLeaseLock getRedisCartLeaseLock()
+	{
+		return redisCartLeaseLock;
+	}
+
+	/**
+	 * @param redisCartLeaseLock
+	 *           the redisCartLeaseLock to set
+	 */
+	public void setRedisCartLeaseLock(final RedisCartLeaseLock redisCartLeaseLock)
+	{
+		this.redisCartLeaseLock = redisCartLeaseLock;
+	}
+
+	/**
+	 * @return the cartStore
+	 */
+	public CartStore getCartStore()
+	{
+		return cartStore;
+	}
+
+	/**
+	 * @param cartStore
+	 *           the cartStore to set
+	 */
+	public void setCartStore(final CartStore cartStore)
+	{
+		this.cartStore = cartStore;
+	}
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.service.impl;
+
+import de.hybris.platform.core.Registry;
+import de.hybris.platform.core.Tenant;
+import de.hybris.platform.jalo.JaloSession;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+import com.sap.rediscart.store.impl.CartShardRouter;
+import com.sap.rediscart.store.impl.ShardedCartStore;
+import com.sap.rediscart.util.Throttle;
+
+
+/**
+ * Moves the carts of a base site from one shard of the {@link ShardedCartStore} to another while the site is in use.
+ * <ol>
+ * <li>The site is marked as moving in the directory of the {@link CartShardRouter}. Once every node has picked that up,
+ * after twice its refreshMillis, carts of the site are saved to the target only and read from both shards.</li>
+ * <li>The carts indexed for the site on the source are walked batch by batch, at most cartsPerSecond, and each is moved
+ * with {@link ShardedCartStore#migrate(CartIndex, String, String)}. The position is kept in redis after every batch,
+ * a move interrupted by a restart continues from there when it is started again.</li>
+ * <li>Carts leased during the walk are left on the source, the walk is repeated for them up to maxPasses times.</li>
+ * <li>Once the source holds no carts of the site the move is finished, the source is not read any more.</li>
+ * </ol>
+ * A move which still leaves carts behind after maxPasses stays in progress, starting it again retries them.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartShardRebalancer
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CartShardRebalancer.class);
+
+	private final AtomicBoolean moving = new AtomicBoolean();
+	private volatile String status = "No site has been moved since the start of this node";
+
+	private ShardedCartStore shardedCartStore;
+	private CartShardRouter cartShardRouter;
+	private RedisTemplate<String, Object> redisTemplate;
+	private int batchSize = 100;
+	private double cartsPerSecond = 200;
+	private int maxPasses = 5;
+	private String cursorKey = "rediscart:shards:cursor";
+
+	/**
+	 * Marks the site as moving and moves its carts in a background thread, see {@link #getStatus()} for its progress.
+	 *
+	 * @return false if this node is moving a site already
+	 * @throws IllegalArgumentException
+	 *            if the shard is unknown or holds the site already
+	 * @throws IllegalStateException
+	 *            if the site is being moved to another shard
+	 */
+	public boolean startMove(final String siteId, final String targetShard)
+	{
+		if (!moving.compareAndSet(false, true))
+		{
+			return false;
+		}
+		try
+		{
+			final String sourceShard = getCartShardRouter().startMove(siteId, targetShard);
+			status = "Moving site " + siteId + " from shard " + sourceShard + " to shard " + targetShard;
+			final Tenant tenant = Registry.getCurrentTenantNoFallback();
+			final Thread mover = new Thread(() -> moveInBackground(tenant, siteId, sourceShard, targetShard),
+					"rediscart-shard-rebalancer");
+			mover.setDaemon(true);
+			mover.start();
+			return true;
+		}
+		catch (final RuntimeException e)
+		{
+			moving.set(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Moves the carts of a site already marked as moving and finishes the move if none is left behind.
+	 *
+	 * @return whether the move has been finished
+	 * @throws InterruptedException
+	 *            if the thread is interrupted while waiting, the move stays in progress
+	 */
+	public boolean moveSite(final String siteId, final String sourceShard, final String targetShard)
+			throws InterruptedException
+	{
+		// nodes still routing by the old directory may save carts to the source until they have refreshed it
+		Thread.sleep(2 * getCartShardRouter().getRefreshMillis());
+		final Throttle throttle = new Throttle(getCartsPerSecond());
+		long moved = 0;
+		long left = 0;
+		for (int pass = 1; pass <= getMaxPasses(); pass++)
+		{
+			final long[] counts = walk(siteId, sourceShard, targetShard, throttle);
+			moved += counts[0];
+			left = counts[1];
+			status = "Moving site " + siteId + " from shard " + sourceShard + " to shard " + targetShard + ": pass " + pass
+					+ ", " + moved + " carts moved, " + left + " left behind";
+			if (left == 0)
+			{
+				getCartShardRouter().finishMove(siteId, targetShard);
+				status = "Site " + siteId + " moved from shard " + sourceShard + " to shard " + targetShard + ", " + moved
+						+ " carts moved";
+				return true;
+			}
+			Thread.sleep(getCartShardRouter().getRefreshMillis());
+		}
+		LOG.warn("{} carts of site {} are still leased on shard {}, start the move again later", Long.valueOf(left),
+				siteId, sourceShard);
+		return false;
+	}
+
+	/**
+	 * @return a line about the last move started on this node
+	 */
+	public String getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * @return the number of carts moved and left behind
+	 */
+	private long[] walk(final String siteId, final String sourceShard, final String targetShard, final Throttle throttle)
+			throws InterruptedException
+	{
+		final CartStore source = getShardedCartStore().getShards().get(sourceShard);
+		final Object saved = getRedisTemplate().opsForHash().get(getCursorKey(), siteId);
+		final CartCursor cursor = source.openCursor(new CartIndex(null, null, null, siteId), getBatchSize(),
+				saved == null ? CartCursor.START : saved.toString());
+		long moved = 0;
+		long left = 0;
+		while (cursor.hasNext())
+		{
+			final List<CartHeader> batch = cursor.next();
+			throttle.acquire(batch.size());
+			for (final CartHeader header : batch)
+			{
+				if (getShardedCartStore().migrate(header.getIndex(), sourceShard, targetShard))
+				{
+					moved++;
+				}
+				else
+				{
+					left++;
+				}
+			}
+			getRedisTemplate().opsForHash().put(getCursorKey(), siteId, cursor.getPosition());
+		}
+		getRedisTemplate().opsForHash().delete(getCursorKey(), siteId);
+		LOG.info("Site {}: {} carts moved to shard {}, {} left on shard {}", siteId, Long.valueOf(moved), targetShard,
+				Long.valueOf(left), sourceShard);
+		return new long[]
+		{ moved, left };
+	}
+
+	private void moveInBackground(final Tenant tenant, final String siteId, final String sourceShard,
+			final String targetShard)
+	{
+		if (tenant != null)
+		{
+			Registry.setCurrentTenant(tenant);
+		}
+		try
+		{
+			moveSite(siteId, sourceShard, targetShard);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (final RuntimeException e)
+		{
+			LOG.error("Moving site " + siteId + " to shard " + targetShard + " failed, start it again to continue", e);
+			status = "Moving site " + siteId + " to shard " + targetShard + " failed: " + e.getMessage();
+		}
+		finally
+		{
+			moving.set(false);
+			if (JaloSession.hasCurrentSession())
+			{
+				JaloSession.getCurrentSession().close();
+			}
+			if (tenant != null)
+			{
+				Registry.unsetCurrentTenant();
+			}
+		}
+	}
+
+	/**
+	 * @return the shardedCartStore
+	 */
+	public ShardedCartStore getShardedCartStore()
+	{
+		return shardedCartStore;
+	}
+
+	/**
+	 * @param shardedCartStore
+	 *           the shardedCartStore to set
+	 */
+	public void setShardedCartStore(final ShardedCartStore shardedCartStore)
+	{
+		this.shardedCartStore = shardedCartStore;
+	}
+
+	/**
+	 * @return the cartShardRouter
+	 */
+	public CartShardRouter getCartShardRouter()
+	{
+		return cartShardRouter;
+	}
+
+	/**
+	 * @param cartShardRouter
+	 *           the cartShardRouter to set
+	 */
+	public void setCartShardRouter(final CartShardRouter cartShardRouter)
+	{
+		this.cartShardRouter = cartShardRouter;
+	}
+
+	/**
+	 * @return the redisTemplate
+	 */
+	public RedisTemplate<String, Object> getRedisTemplate()
+	{
+		return redisTemplate;
+	}
+
+	/**
+	 * @param redisTemplate
+	 *           the redisTemplate to set
+	 */
+	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	{
+		this.redisTemplate = redisTemplate;
+	}
+
+	/**
+	 * @return the batchSize
+	 */
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *           the batchSize to set
+	 */
+	public void setBatchSize(final int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the cartsPerSecond
+	 */
+	public double getCartsPerSecond()
+	{
+		return cartsPerSecond;
+	}
+
+	/**
+	 * @param cartsPerSecond
+	 *           the cartsPerSecond to set
+	 */
+	public void setCartsPerSecond(final double cartsPerSecond)
+	{
+		this.cartsPerSecond = cartsPerSecond;
+	}
+
+	/**
+	 * @return the maxPasses
+	 */
+	public int getMaxPasses()
+	{
+		return maxPasses;
+	}
+
+	/**
+	 * @param maxPasses
+	 *           the maxPasses to set
+	 */
+	public void setMaxPasses(final int maxPasses)
+	{
+		this.maxPasses = maxPasses;
+	}
+
+	/**
+	 * @return the cursorKey
+	 */
+	public String getCursorKey()
+	{
+		return cursorKey;
+	}
+
+	/**
+	 * @param cursorKey
+	 *           the cursorKey to set
+	 */
+	public void setCursorKey(final String cursorKey)
+	{
+		this.cursorKey = cursorKey;
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.service.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.store.CartBatchProcessor;
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+import com.sap.rediscart.util.ColdCartTier;
+import com.sap.rediscart.util.Throttle;
+
+
+/**
+ * Walks all carts of the cart store and offloads the saved carts nobody has modified for a while to the
+ * {@link ColdCartTier}. Offloaded carts whose expiration time has passed are removed on the way, the stale cart
+ * removal does not see them. Batches are processed by concurrency threads, reading at most cartsPerSecond carts
+ * together. The position of the walk is kept in redis, so a run stopped by its time limit, an abort or a restart is
+ * continued by the next one.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class ColdCartOffloader
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ColdCartOffloader.class);
+
+	private CartStore cartStore;
+	private ColdCartTier coldCartTier;
+	private RedisTemplate<String, Object> redisTemplate;
+	private RedisMetrics redisMetrics;
+	private int concurrency = 2;
+	private int batchSize = 100;
+	private double cartsPerSecond = 500;
+	private String cursorKey = "rediscart:tiering:cursor";
+
+	/**
+	 * @param maxMillis
+	 *           the time after which the run is stopped, the next run continues from there
+	 * @param aborted
+	 *           polled before every batch
+	 * @return true if all carts have been walked, false if the run has been stopped before
+	 * @throws InterruptedException
+	 *            if the thread is interrupted while waiting for the batches
+	 */
+	public boolean offloadColdCarts(final long maxMillis, final BooleanSupplier aborted) throws InterruptedException
+	{
+		if (!getColdCartTier().isEnabled())
+		{
+			LOG.info("Offloading of cold carts is disabled");
+			return true;
+		}
+		final long deadline = System.currentTimeMillis() + maxMillis;
+		final Object position = getRedisTemplate().opsForValue().get(getCursorKey());
+		final CartCursor cursor = getCartStore().openCursor(new CartIndex(null, null, null, null), getBatchSize(),
+				position == null ? CartCursor.START : position.toString());
+		final CartBatchProcessor processor = new CartBatchProcessor(getConcurrency());
+		final Throttle throttle = new Throttle(getCartsPerSecond());
+		final AtomicLong offloaded = new AtomicLong();
+		final AtomicLong expired = new AtomicLong();
+
+		final boolean complete = processor.process(cursor, batch -> {
+			acquire(throttle, batch.size());
+			offload(batch, offloaded, expired);
+			getRedisTemplate().opsForValue().set(getCursorKey(), processor.getPosition());
+		}, () -> aborted.getAsBoolean() || System.currentTimeMillis() > deadline);
+
+		if (complete)
+		{
+			getRedisTemplate().delete(getCursorKey());
+			getRedisMetrics().recordTiering(RedisMetrics.TIERING_PASSES, 1);
+		}
+		else
+		{
+			getRedisTemplate().opsForValue().set(getCursorKey(), processor.getPosition());
+		}
+		LOG.info("Cold cart offloading {}: {} carts scanned, {} offloaded and {} expired ones removed",
+				complete ? "done" : "paused", Long.valueOf(processor.getProcessed()), Long.valueOf(offloaded.get()),
+				Long.valueOf(expired.get()));
+		return complete;
+	}
+
+	private void offload(final List<CartHeader> batch, final AtomicLong offloaded, final AtomicLong expired)
+	{
+		final Map<String, CartHeader> headers = batch.stream()
+				.collect(Collectors.toMap(CartHeader::getCode, Function.identity(), (a, b) -> a));
+		final Set<String> expiredCodes = new LinkedHashSet<>();
+		offloaded.addAndGet(getColdCartTier().offload(headers.keySet(), System.currentTimeMillis(), expiredCodes));
+		if (expiredCodes.isEmpty())
+		{
+			return;
+		}
+		final List<CartIndex> toRemove = new ArrayList<>(expiredCodes.size());
+		for (final String code : expiredCodes)
+		{
+			// the recorded indexes of the cart are removed as well
+			toRemove.add(headers.get(code).getIndex());
+		}
+		final int removed = getCartStore().remove(toRemove).size();
+		expired.addAndGet(removed);
+		getRedisMetrics().recordTiering(RedisMetrics.TIERING_EXPIRED, removed);
+	}
+
+	private void acquire(final Throttle throttle, final int permits)
+	{
+		try
+		{
+			throttle.acquire(permits);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			// fails the batch, so the position does not move past it
+			throw new IllegalStateException("Interrupted while throttled", e);
+		}
+	}
+
+	/**
+	 * @return the cartStore
+	 */
+	public CartStore getCartStore()
+	{
+		return cartStore;
+	}
+
+	/**
+	 * @param cartStore
+	 *           the cartStore to set
+	 */
+	public void setCartStore(final CartStore cartStore)
+	{
+		this.cartStore = cartStore;
+	}
+
+	/**
+	 * @return the coldCartTier
+	 */
+	public ColdCartTier getColdCartTier()
+	{
+		return coldCartTier;
+	}
+
+	/**
+	 * @param coldCartTier
+	 *           the coldCartTier to set
+	 */
+	public void setColdCartTier(final ColdCartTier coldCartTier)
+	{
+		this.coldCartTier = coldCartTier;
+	}
+
+	/**
+	 * @return the redisTemplate
+	 */
+	public RedisTemplate<String, Object> getRedisTemplate()
+	{
+		return redisTemplate;
+	}
+
+	/**
+	 * @param redisTemplate
+	 *           the redisTemplate to set
+	 */
+	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	{
+		this.redisTemplate = redisTemplate;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+
+	/**
+	 * @return the concurrency
+	 */
+	public int getConcurrency()
+	{
+		return concurrency;
+	}
+
+	/**
+	 * @param concurrency
+	 *           the concurrency to set
+	 */
+	public void setConcurrency(final int concurrency)
+	{
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @return the batchSize
+	 */
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *           the batchSize to set
+	 */
+	public void setBatchSize(final int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the cartsPerSecond
+	 */
+	public double getCartsPerSecond()
+	{
+		return cartsPerSecond;
+	}
+
+	/**
+	 * @param cartsPerSecond
+	 *           the cartsPerSecond to set
+	 */
+	public void setCartsPerSecond(final double cartsPerSecond)
+	{
+		this.cartsPerSecond = cartsPerSecond;
+	}
+
+	/**
+	 * @return the cursorKey
+	 */
+	public String getCursorKey()
+	{
+		return cursorKey;
+	}
+
+	/**
+	 * @param cursorKey
+	 *           the cursorKey to set
+	 */
+	public void setCursorKey(final String cursorKey)
+	{
+		this.cursorKey = cursorKey;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.service.impl;
+
+import static de.hybris.platform.servicelayer.util.ServicesUtil.validateParameterNotNull;
+
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.order.CartService;
+import de.hybris.platform.servicelayer.model.ModelService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.exceptions.CartVersionConflictException;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.store.CartStore;
+
+
+/**
+ * Applies a change to a cart and retries it on a freshly loaded cart if another node has saved the cart in between.
+ * The callback must therefore be repeatable and must only work on the cart it is given. An attempt is only retried if
+ * the conflict came before any of its saves succeeded: the commerce strategies save a cart several times, the entry
+ * first and the calculated totals after, and a retry after the first save would apply the change twice. The commerce
+ * add to cart and update entry strategies run through it.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class OptimisticCartUpdateService
+{
+	private static final Logger LOG = LoggerFactory.getLogger(OptimisticCartUpdateService.class);
+
+	private ModelService modelService;
+	private CartStore cartStore;
+	private CartService cartService;
+	private int maxAttempts = 3;
+	private long retryBackoffMillis = 20;
+
+	/**
+	 * A change to a cart, expected to save the cart through the model service.
+	 */
+	public interface CartUpdateCallback<T, E extends Exception>
+	{
+		T doInCart(CartModel cart) throws E;
+	}
+
+	/**
+	 * Runs the callback on the cart, on a version conflict the cart is reloaded and the callback runs again. A session
+	 * cart is replaced by the reloaded one, so later requests of the session do not conflict again.
+	 *
+	 * @throws CartVersionConflictException
+	 *            if the cart could not be saved within the configured number of attempts, or if the conflict came after
+	 *            the callback had already saved a part of its change
+	 */
+	public <T, E extends Exception> T update(final CartModel cart, final CartUpdateCallback<T, E> callback) throws E
+	{
+		validateParameterNotNull(cart, "cart must not be null");
+		validateParameterNotNull(callback, "callback must not be null");
+
+		CartModel current = cart;
+		int attempt = 1;
+		while (true)
+		{
+			final long startVersion = getRedisVersion(current);
+			try
+			{
+				return callback.doInCart(current);
+			}
+			catch (final CartVersionConflictException e)
+			{
+				if (getRedisVersion(current) != startVersion)
+				{
+					LOG.warn("Not retrying update of cart {}, a part of it has been saved already", cart.getCode());
+					throw e;
+				}
+				if (attempt >= getMaxAttempts())
+				{
+					LOG.warn("Giving up updating cart {} after {} attempts", cart.getCode(), Integer.valueOf(attempt));
+					throw e;
+				}
+				LOG.debug("Retrying update of cart {}, attempt {}", cart.getCode(), Integer.valueOf(attempt));
+				backoff(attempt);
+				current = reload(current);
+				attempt++;
+			}
+		}
+	}
+
+	/**
+	 * @return the redis version of the cart, which every successful save of it increments
+	 */
+	private long getRedisVersion(final CartModel cart)
+	{
+		final Object source = getModelService().getSource(cart);
+		return source instanceof RedisCart ? ((RedisCart) source).getRedisVersion() : 0L;
+	}
+
+	private CartModel reload(final CartModel stale)
+	{
+		final RedisCart redisCart = getCartStore().load(stale.getCode());
+		if (redisCart == null)
+		{
+			throw new CartVersionConflictException(stale.getCode(), 0L);
+		}
+		final boolean sessionCart = getCartService().hasSessionCart() && getCartService().getSessionCart() == stale;
+		// the stale model must not be handed out again by the model context
+		getModelService().detach(stale);
+		final CartModel reloaded = getModelService().get(redisCart);
+		if (sessionCart)
+		{
+			getCartService().setSessionCart(reloaded);
+		}
+		return reloaded;
+	}
+
+	private void backoff(final int attempt)
+	{
+		if (getRetryBackoffMillis() <= 0)
+		{
+			return;
+		}
+		try
+		{
+			Thread.sleep(getRetryBackoffMillis() * attempt);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the modelService
+	 */
+	public ModelService getModelService()
+	{
+		return modelService;
+	}
+
+	/**
+	 * @param modelService
+	 *           the modelService to set
+	 */
+	public void setModelService(final ModelService modelService)
+	{
+		this.modelService = modelService;
+	}
+
+	/**
+	 * @return the cartStore
+	 */
+	public CartStore getCartStore()
+	{
+		return cartStore;
+	}
+
+	/**
+	 * @param cartStore
+	 *           the cartStore to set
+	 */
+	public void setCartStore(final CartStore cartStore)
+	{
+		this.cartStore = cartStore;
+	}
+
+	/**
+	 * @return the maxAttempts
+	 */
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+
+	/**
+	 * @param maxAttempts
+	 *           the maxAttempts to set
+	 */
+	public void setMaxAttempts(final int maxAttempts)
+	{
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return the retryBackoffMillis
+	 */
+	public long getRetryBackoffMillis()
+	{
+		return retryBackoffMillis;
+	}
+
+	/**
+	 * @param retryBackoffMillis
+	 *           the retryBackoffMillis to set
+	 */
+	public void setRetryBackoffMillis(final long retryBackoffMillis)
+	{
+		this.retryBackoffMillis = retryBackoffMillis;
+	}
+
+	/**
+	 * @return the cartService
+	 */
+	public CartService getCartService()
+	{
+		return cartService;
+	}
+
+	/**
+	 * @param cartService
+	 *           the cartService to set
+	 */
+	public void setCartService(final CartService cartService)
+	{
+		this.cartService = cartService;
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.service.impl;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.RedisClusterNode;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import com.sap.rediscart.util.RedisClusterPipelineExecutor;
+import com.sap.rediscart.util.RedisKeyGenerator;
+
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+
+/**
+ * Adds the promotion results of carts saved before the dependents set existed to the dependents set of their cart, so
+ * promotion results are always read from it and never looked up by pattern. The keyspace of every master is scanned
+ * once, the scan position is kept in redis after each batch, so a run stopped by its time limit or an abort is
+ * continued by the next one. Once all masters have been scanned the migration is marked done and further runs return
+ * right away.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class PromotionResultDependentsMigration
+{
+	private static final Logger LOG = LoggerFactory.getLogger(PromotionResultDependentsMigration.class);
+
+	private static final String DONE = "done";
+	private static final String PATTERN = "cart:*:promotionResult:*";
+
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private RedisKeyGenerator redisKeyGenerator;
+	private RedisTemplate<String, Object> redisTemplate;
+	private int batchSize = 1000;
+	private String stateKey = "rediscart:migration:dependents";
+
+	/**
+	 * @param maxMillis
+	 *           the time after which the run is stopped, the next run continues from there
+	 * @param aborted
+	 *           polled after each batch
+	 * @return true if the migration is done, false if the run has been stopped before
+	 */
+	public boolean migrate(final long maxMillis, final BooleanSupplier aborted)
+	{
+		if (isDone())
+		{
+			return true;
+		}
+		final long deadline = System.currentTimeMillis() + maxMillis;
+		long added = 0;
+		for (final RedisClusterNode master : getRedisClusterPipelineExecutor().getMasterNodes())
+		{
+			// a master replaced by a failover is scanned again from the start, adding to a set is idempotent
+			final String field = master.getHost() + ":" + master.getPort();
+			final Object position = getRedisTemplate().opsForHash().get(getStateKey(), field);
+			String cursor = position == null ? ScanParams.SCAN_POINTER_START : position.toString();
+			while (!DONE.equals(cursor))
+			{
+				if (aborted.getAsBoolean() || System.currentTimeMillis() > deadline)
+				{
+					LOG.info("Promotion result dependents migration paused, {} promotion results added",
+							Long.valueOf(added));
+					return false;
+				}
+				final ScanResult<String> page = getRedisClusterPipelineExecutor().scan(master, cursor, PATTERN,
+						getBatchSize());
+				added += addToDependents(page.getResult());
+				cursor = ScanParams.SCAN_POINTER_START.equals(page.getStringCursor()) ? DONE : page.getStringCursor();
+				getRedisTemplate().opsForHash().put(getStateKey(), field, cursor);
+			}
+		}
+		getRedisTemplate().opsForHash().put(getStateKey(), DONE, DONE);
+		LOG.info("Promotion result dependents migration done, {} promotion results added", Long.valueOf(added));
+		return true;
+	}
+
+	/**
+	 * @return whether all masters have been scanned
+	 */
+	public boolean isDone()
+	{
+		return DONE.equals(getRedisTemplate().opsForHash().get(getStateKey(), DONE));
+	}
+
+	/**
+	 * Adds the promotion result keys to the dependents sets of their carts, keys of carts no longer present are left
+	 * alone.
+	 *
+	 * @return the number of keys added
+	 */
+	private long addToDependents(final Iterable<String> prKeys)
+	{
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final Map<String, Set<String>> prKeysByCartKey = new LinkedHashMap<>();
+		for (final String prKey : prKeys)
+		{
+			final String cartCode = getRedisKeyGenerator().parsePromotionResultCartCode(prKey);
+			if (cartCode != null)
+			{
+				prKeysByCartKey.computeIfAbsent(getRedisKeyGenerator().generateCartKey(cartCode),
+						k -> new LinkedHashSet<>()).add(prKey);
+			}
+		}
+		final Map<String, Object> exists = executor.executePipelinedPerKey(prKeysByCartKey.keySet(),
+				(pipeline, key) -> pipeline.exists(executor.serializeKey(key)));
+
+		final Map<String, Set<String>> prKeysByDependentsKey = new LinkedHashMap<>();
+		for (final Map.Entry<String, Set<String>> entry : prKeysByCartKey.entrySet())
+		{
+			if (Boolean.TRUE.equals(exists.get(entry.getKey())))
+			{
+				final String cartCode = getRedisKeyGenerator().parseCartCode(entry.getKey());
+				prKeysByDependentsKey.put(getRedisKeyGenerator().generateDependentsKey(cartCode), entry.getValue());
+			}
+		}
+		executor.executePipelinedPerKey(prKeysByDependentsKey.keySet(), (pipeline, key) -> {
+			final Set<String> members = prKeysByDependentsKey.get(key);
+			final byte[][] values = new byte[members.size()][];
+			int i = 0;
+			for (final String member : members)
+			{
+				values[i++] = executor.serializeValue(member);
+			}
+			pipeline.sadd(executor.serializeKey(key), values);
+		});
+
+		long added = 0;
+		for (final Set<String> members : prKeysByDependentsKey.values())
+		{
+			added += members.size();
+		}
+		return added;
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the redisKeyGenerator
+	 */
+	public RedisKeyGenerator getRedisKeyGenerator()
+	{
+		return redisKeyGenerator;
+	}
+
+	/**
+	 * @param redisKeyGenerator
+	 *           the redisKeyGenerator to set
+	 */
+	public void setRedisKeyGenerator(final RedisKeyGenerator redisKeyGenerator)
+	{
+		this.redisKeyGenerator = redisKeyGenerator;
+	}
+
+	/**
+	 * @return the redisTemplate
+	 */
+	public RedisTemplate<String, Object> getRedisTemplate()
+	{
+		return redisTemplate;
+	}
+
+	/**
+	 * @param redisTemplate
+	 *           the redisTemplate to set
+	 */
+	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	{
+		this.redisTemplate = redisTemplate;
+	}
+
+	/**
+	 * @return the batchSize
+	 */
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *           the batchSize to set
+	 */
+	public void setBatchSize(final int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the stateKey
+	 */
+	public String getStateKey()
+	{
+		return stateKey;
+	}
+
+	/**
+	 * @param stateKey
+	 *           the stateKey to set
+	 */
+	public void setStateKey(final String stateKey)
+	{
+		this.stateKey = stateKey;
+	}
+}
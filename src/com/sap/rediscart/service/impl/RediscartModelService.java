@@ -19,14 +19,19 @@ import static de.hybris.platform.servicelayer.util.ServicesUtil.validateParamete
 
 import de.hybris.platform.core.PK;
 import de.hybris.platform.core.model.ItemModel;
+import de.hybris.platform.core.model.order.AbstractOrderModel;
+import de.hybris.platform.promotions.model.AbstractPromotionActionModel;
+import de.hybris.platform.promotions.model.CachedPromotionResultModel;
 import de.hybris.platform.servicelayer.exceptions.ModelRemovalException;
 import de.hybris.platform.servicelayer.exceptions.ModelSavingException;
 import de.hybris.platform.servicelayer.internal.model.impl.DefaultModelService;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
@@ -34,7 +39,13 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sap.rediscart.jfr.CartEventRecorder;
+import com.sap.rediscart.jfr.CartEventRecorder.Operation;
+import com.sap.rediscart.jfr.CartEventRecorder.Recording;
+import com.sap.rediscart.model.order.RedisCartEntryModel;
+import com.sap.rediscart.model.order.RedisCartModel;
 import com.sap.rediscart.strategy.ModelSaveStrategy;
+import com.sap.rediscart.util.CartLockRegistry;
 
 
 /**
@@ -46,6 +57,7 @@ public class RediscartModelService extends DefaultModelService
 	private static final Logger LOG = LoggerFactory.getLogger(RediscartModelService.class);
 
 	private Map<String, ModelSaveStrategy> modelSaveHandlers;
+	private CartLockRegistry cartLockRegistry;
 
 	@Override
 	public void save(final Object model)
@@ -74,9 +86,31 @@ public class RediscartModelService extends DefaultModelService
 	}
 
 	/**
-	 * The real save method
+	 * The real save method, runs while holding the locks of the redis carts being saved
 	 */
 	private void doSaveAll(final Collection<? extends Object> models) throws ModelSavingException
+	{
+		final Collection<String> cartCodes = collectCartCodes(models);
+		if (cartCodes.isEmpty())
+		{
+			doSaveAllLocked(models);
+			return;
+		}
+		final Recording recording = CartEventRecorder.begin(Operation.SAVE);
+		try
+		{
+			getCartLockRegistry().withLocks(cartCodes, () -> {
+				doSaveAllLocked(models);
+				return null;
+			});
+		}
+		finally
+		{
+			recording.end(() -> getEventCartCode(cartCodes), () -> countEntries(models));
+		}
+	}
+
+	private void doSaveAllLocked(final Collection<? extends Object> models) throws ModelSavingException
 	{
 		final Set<Object> toSave = new HashSet<Object>(models);
 
@@ -184,6 +218,28 @@ public class RediscartModelService extends DefaultModelService
 	}
 
 	private void doRemoveAll(final Collection<? extends Object> models) throws ModelRemovalException
+	{
+		final Collection<String> cartCodes = collectCartCodes(models);
+		if (cartCodes.isEmpty())
+		{
+			doRemoveAllLocked(models);
+			return;
+		}
+		final Recording recording = CartEventRecorder.begin(Operation.REMOVE);
+		try
+		{
+			getCartLockRegistry().withLocks(cartCodes, () -> {
+				doRemoveAllLocked(models);
+				return null;
+			});
+		}
+		finally
+		{
+			recording.end(() -> getEventCartCode(cartCodes), () -> countEntries(models));
+		}
+	}
+
+	private void doRemoveAllLocked(final Collection<? extends Object> models) throws ModelRemovalException
 	{
 		final Set<Object> toRemove = new HashSet<Object>(models);
 
@@ -200,24 +256,42 @@ public class RediscartModelService extends DefaultModelService
 
 	private void beforeRemove(final Collection<? extends Object> toSave, final Collection<? extends Object> models)
 	{
+		// group by type, so that strategies can remove e.g. many carts in one batch
+		final Map<String, Collection<ItemModel>> modelsByType = new LinkedHashMap<String, Collection<ItemModel>>();
 		for (final Object model : models)
 		{
 			if (model instanceof ItemModel)
 			{
-				final ModelSaveStrategy modelSaveStrategy = modelSaveHandlers.get(((ItemModel) model).getItemtype());
-				if (modelSaveStrategy != null)
+				final String itemtype = ((ItemModel) model).getItemtype();
+				Collection<ItemModel> typeModels = modelsByType.get(itemtype);
+				if (typeModels == null)
 				{
-					if (modelSaveStrategy.beforeRemove(toSave, (ItemModel) model))
-					{
-						//TODO: do something to interrupt saving
-						//toSave.remove(model);
-					}
+					typeModels = new ArrayList<ItemModel>();
+					modelsByType.put(itemtype, typeModels);
 				}
-				else
+				typeModels.add((ItemModel) model);
+			}
+		}
+
+		for (final Map.Entry<String, Collection<ItemModel>> entry : modelsByType.entrySet())
+		{
+			final ModelSaveStrategy modelSaveStrategy = modelSaveHandlers.get(entry.getKey());
+			if (modelSaveStrategy != null)
+			{
+				final Collection<ItemModel> typeModels = entry.getValue();
+				final boolean removed = typeModels.size() == 1
+						? modelSaveStrategy.beforeRemove(toSave, typeModels.iterator().next())
+						: modelSaveStrategy.beforeRemoveAll(toSave, typeModels);
+				if (removed)
 				{
-					// LOG.debug("didn't find save strategy for '" + ((ItemModel) model).getItemtype() + "'");
+					//TODO: do something to interrupt saving
+					//toSave.removeAll(typeModels);
 				}
 			}
+			else
+			{
+				// LOG.debug("didn't find save strategy for '" + entry.getKey() + "'");
+			}
 		}
 	}
 
@@ -240,6 +314,73 @@ public class RediscartModelService extends DefaultModelService
 		}
 	}
 
+	/**
+	 * Collects the codes of the redis carts the models belong to, i.e. carts, their entries and their promotion results.
+	 * Only redis entries and cached promotion results are followed to their order, so saving database orders does not
+	 * load them.
+	 */
+	private Set<String> collectCartCodes(final Collection<? extends Object> models)
+	{
+		final Set<String> cartCodes = new HashSet<String>();
+		for (final Object model : models)
+		{
+			AbstractOrderModel order = null;
+			if (model instanceof AbstractOrderModel)
+			{
+				order = (AbstractOrderModel) model;
+			}
+			else if (model instanceof RedisCartEntryModel)
+			{
+				order = ((RedisCartEntryModel) model).getOrder();
+			}
+			else if (model instanceof CachedPromotionResultModel)
+			{
+				order = ((CachedPromotionResultModel) model).getOrder();
+			}
+			else if (model instanceof AbstractPromotionActionModel
+					&& ((AbstractPromotionActionModel) model).getPromotionResult() instanceof CachedPromotionResultModel)
+			{
+				order = ((AbstractPromotionActionModel) model).getPromotionResult().getOrder();
+			}
+
+			if (order instanceof RedisCartModel && order.getCode() != null)
+			{
+				cartCodes.add(order.getCode());
+			}
+		}
+		return cartCodes;
+	}
+
+	/**
+	 * @return the only cart code, or null if the models belong to several carts or none
+	 */
+	private String getEventCartCode(final Collection<String> cartCodes)
+	{
+		return cartCodes.size() == 1 ? cartCodes.iterator().next() : null;
+	}
+
+	/**
+	 * Counts the redis cart entries among the models, or the entries of the redis carts among them if no entry is saved
+	 * directly.
+	 */
+	private int countEntries(final Collection<? extends Object> models)
+	{
+		int entries = 0;
+		int orderEntries = 0;
+		for (final Object model : models)
+		{
+			if (model instanceof RedisCartEntryModel)
+			{
+				entries++;
+			}
+			else if (model instanceof RedisCartModel && ((RedisCartModel) model).getEntries() != null)
+			{
+				orderEntries += ((RedisCartModel) model).getEntries().size();
+			}
+		}
+		return entries > 0 ? entries : orderEntries;
+	}
+
 	/**
 	 * @return the modelSaveHandlers
 	 */
@@ -256,4 +397,21 @@ public class RediscartModelService extends DefaultModelService
 	{
 		this.modelSaveHandlers = modelSaveHandlers;
 	}
+
+	/**
+	 * @return the cartLockRegistry
+	 */
+	public CartLockRegistry getCartLockRegistry()
+	{
+		return cartLockRegistry;
+	}
+
+	/**
+	 * @param cartLockRegistry
+	 *           the cartLockRegistry to set
+	 */
+	public void setCartLockRegistry(final CartLockRegistry cartLockRegistry)
+	{
+		this.cartLockRegistry = cartLockRegistry;
+	}
 }
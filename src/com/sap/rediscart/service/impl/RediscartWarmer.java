@@ -0,0 +1,456 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.service.impl;
+
+import de.hybris.platform.core.model.ItemModel;
+import de.hybris.platform.servicelayer.i18n.CommonI18NService;
+import de.hybris.platform.servicelayer.model.ModelService;
+import de.hybris.platform.servicelayer.type.TypeService;
+import de.hybris.platform.servicelayer.user.UserService;
+
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import com.sap.rediscart.constants.RediscartConstants;
+import com.sap.rediscart.jalo.RediscartManager;
+import com.sap.rediscart.model.order.RedisCartEntryModel;
+import com.sap.rediscart.model.order.RedisCartModel;
+import com.sap.rediscart.order.strategy.impl.CustomizedCloneAbstractOrderStrategy;
+import com.sap.rediscart.store.CartStore;
+import com.sap.rediscart.util.RedisClusterPipelineExecutor;
+
+
+/**
+ * Warms a node up before it takes cart traffic, started by {@link RediscartManager#init()}:
+ * <ol>
+ * <li>the connection pool of every redis node, of the default cluster and of the other shards in
+ * shardPipelineExecutors, is filled up to minIdle connections,</li>
+ * <li>the lua scripts are loaded into the script cache of every master,</li>
+ * <li>the composed types of redis carts, their entries and the types they are cloned to in orders are resolved,</li>
+ * <li>the serialization descriptors of the codecClasses are built, so the first carts read are not slowed down by
+ * reflection,</li>
+ * <li>roundTrips synthetic carts of the anonymous user are saved, loaded and removed through the model service and the
+ * cart store, so the hot code paths are compiled before the first customer comes.</li>
+ * </ol>
+ * A failing step is logged and retried every retryMillis. The node is only reported ready once every step has
+ * succeeded, see {@link #isReady()} and {@link #getFailedSteps()}.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class RediscartWarmer
+{
+	private static final Logger LOG = LoggerFactory.getLogger(RediscartWarmer.class);
+
+	private final AtomicBoolean running = new AtomicBoolean();
+	private volatile boolean ready;
+	private volatile Set<String> failedSteps = Collections.emptySet();
+
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private List<RedisClusterPipelineExecutor> shardPipelineExecutors = Collections.emptyList();
+	private List<RedisScript<?>> scripts = Collections.emptyList();
+	private List<Class<?>> codecClasses = Collections.emptyList();
+	private CartStore cartStore;
+	private ModelService modelService;
+	private UserService userService;
+	private CommonI18NService commonI18NService;
+	private TypeService typeService;
+	private CustomizedCloneAbstractOrderStrategy customizedCloneAbstractOrderStrategy;
+	private boolean enabled = true;
+	private int minIdle;
+	private int roundTrips = 50;
+	private long retryMillis = 10000;
+
+	/**
+	 * Runs all steps, does nothing if they are being run already. The steps which failed are retried every retryMillis
+	 * until all of them have succeeded, the node is only reported ready then.
+	 */
+	public void warmUp()
+	{
+		if (!running.compareAndSet(false, true))
+		{
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		try
+		{
+			final Map<String, Runnable> steps = isEnabled() ? getSteps() : Collections.emptyMap();
+			Set<String> failed = run(steps.keySet(), steps);
+			while (!failed.isEmpty())
+			{
+				LOG.warn("Warming up the {} failed, the node is not reported ready, retrying in {} ms", failed,
+						Long.valueOf(getRetryMillis()));
+				Thread.sleep(getRetryMillis());
+				failed = run(failed, steps);
+			}
+			ready = true;
+			LOG.info("Rediscart warmed up in {} ms", Long.valueOf(System.currentTimeMillis() - start));
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			LOG.warn("Warming up rediscart has been interrupted, the node is not reported ready");
+		}
+		finally
+		{
+			running.set(false);
+		}
+	}
+
+	/**
+	 * @return whether every step of the warm-up has succeeded, health checks should not send carts to the node before
+	 */
+	public boolean isReady()
+	{
+		return ready;
+	}
+
+	/**
+	 * @return the steps which failed the last time they were run, to be retried
+	 */
+	public Set<String> getFailedSteps()
+	{
+		return failedSteps;
+	}
+
+	private Map<String, Runnable> getSteps()
+	{
+		final Map<String, Runnable> steps = new LinkedHashMap<>();
+		final List<RedisClusterPipelineExecutor> executors = new ArrayList<>();
+		executors.add(getRedisClusterPipelineExecutor());
+		executors.addAll(getShardPipelineExecutors());
+		for (int i = 0; i < executors.size(); i++)
+		{
+			final RedisClusterPipelineExecutor executor = executors.get(i);
+			final String cluster = i == 0 ? "" : " of shard cluster " + i;
+			steps.put("connection pools" + cluster, () -> LOG.info("{} idle redis connections{}",
+					Integer.valueOf(executor.fillPools(getMinIdle())), cluster));
+			steps.put("lua scripts" + cluster, () -> executor.loadScripts(getScripts()));
+		}
+		steps.put("composed types", this::resolveTypes);
+		steps.put("codec class tables", () -> getCodecClasses().forEach(ObjectStreamClass::lookup));
+		steps.put("cart round trips", this::roundTrip);
+		return steps;
+	}
+
+	private Set<String> run(final Collection<String> names, final Map<String, Runnable> steps)
+	{
+		final Set<String> failed = new LinkedHashSet<>();
+		for (final String step : names)
+		{
+			try
+			{
+				steps.get(step).run();
+			}
+			catch (final RuntimeException e)
+			{
+				LOG.warn("Warming up the " + step + " failed", e);
+				failed.add(step);
+			}
+		}
+		failedSteps = Collections.unmodifiableSet(failed);
+		return failed;
+	}
+
+	private void resolveTypes()
+	{
+		RediscartManager.getInstance().getRedisCartEntryType();
+		getTypeService().getComposedTypeForClass(RedisCartModel.class);
+		getTypeService().getComposedTypeForClass(RedisCartEntryModel.class);
+		for (final Class<? extends ItemModel> targetClass : getCustomizedCloneAbstractOrderStrategy().getTargetClasses())
+		{
+			getTypeService().getComposedTypeForClass(targetClass);
+		}
+	}
+
+	private void roundTrip()
+	{
+		getUserService().setCurrentUser(getUserService().getAdminUser());
+		for (int i = 0; i < getRoundTrips(); i++)
+		{
+			final RedisCartModel cart = getModelService().create(RedisCartModel.class);
+			cart.setCode(RediscartConstants.WARM_UP_CART_CODE_PREFIX + UUID.randomUUID());
+			cart.setUser(getUserService().getAnonymousUser());
+			cart.setCurrency(getCommonI18NService().getBaseCurrency());
+			cart.setDate(new Date());
+			cart.setNet(Boolean.FALSE);
+			getModelService().save(cart);
+			try
+			{
+				if (getCartStore().load(cart.getCode()) == null)
+				{
+					throw new IllegalStateException("Cart " + cart.getCode() + " not found right after saving it");
+				}
+			}
+			finally
+			{
+				getModelService().remove(cart);
+			}
+		}
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the shardPipelineExecutors
+	 */
+	public List<RedisClusterPipelineExecutor> getShardPipelineExecutors()
+	{
+		return shardPipelineExecutors;
+	}
+
+	/**
+	 * @param shardPipelineExecutors
+	 *           the shardPipelineExecutors to set
+	 */
+	public void setShardPipelineExecutors(final List<RedisClusterPipelineExecutor> shardPipelineExecutors)
+	{
+		this.shardPipelineExecutors = shardPipelineExecutors;
+	}
+
+	/**
+	 * @return the scripts
+	 */
+	public List<RedisScript<?>> getScripts()
+	{
+		return scripts;
+	}
+
+	/**
+	 * @param scripts
+	 *           the scripts to set
+	 */
+	public void setScripts(final List<RedisScript<?>> scripts)
+	{
+		this.scripts = scripts;
+	}
+
+	/**
+	 * @return the codecClasses
+	 */
+	public List<Class<?>> getCodecClasses()
+	{
+		return codecClasses;
+	}
+
+	/**
+	 * @param codecClasses
+	 *           the codecClasses to set
+	 */
+	public void setCodecClasses(final List<Class<?>> codecClasses)
+	{
+		this.codecClasses = codecClasses;
+	}
+
+	/**
+	 * @return the cartStore
+	 */
+	public CartStore getCartStore()
+	{
+		return cartStore;
+	}
+
+	/**
+	 * @param cartStore
+	 *           the cartStore to set
+	 */
+	public void setCartStore(final CartStore cartStore)
+	{
+		this.cartStore = cartStore;
+	}
+
+	/**
+	 * @return the modelService
+	 */
+	public ModelService getModelService()
+	{
+		return modelService;
+	}
+
+	/**
+	 * @param modelService
+	 *           the modelService to set
+	 */
+	public void setModelService(final ModelService modelService)
+	{
+		this.modelService = modelService;
+	}
+
+	/**
+	 * @return the userService
+	 */
+	public UserService getUserService()
+	{
+		return userService;
+	}
+
+	/**
+	 * @param userService
+	 *           the userService to set
+	 */
+	public void setUserService(final UserService userService)
+	{
+		this.userService = userService;
+	}
+
+	/**
+	 * @return the commonI18NService
+	 */
+	public CommonI18NService getCommonI18NService()
+	{
+		return commonI18NService;
+	}
+
+	/**
+	 * @param commonI18NService
+	 *           the commonI18NService to set
+	 */
+	public void setCommonI18NService(final CommonI18NService commonI18NService)
+	{
+		this.commonI18NService = commonI18NService;
+	}
+
+	/**
+	 * @return the typeService
+	 */
+	public TypeService getTypeService()
+	{
+		return typeService;
+	}
+
+	/**
+	 * @param typeService
+	 *           the typeService to set
+	 */
+	public void setTypeService(final TypeService typeService)
+	{
+		this.typeService = typeService;
+	}
+
+	/**
+	 * @return the customizedCloneAbstractOrderStrategy
+	 */
+	public CustomizedCloneAbstractOrderStrategy getCustomizedCloneAbstractOrderStrategy()
+	{
+		return customizedCloneAbstractOrderStrategy;
+	}
+
+	/**
+	 * @param customizedCloneAbstractOrderStrategy
+	 *           the customizedCloneAbstractOrderStrategy to set
+	 */
+	public void setCustomizedCloneAbstractOrderStrategy(
+			final CustomizedCloneAbstractOrderStrategy customizedCloneAbstractOrderStrategy)
+	{
+		this.customizedCloneAbstractOrderStrategy = customizedCloneAbstractOrderStrategy;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *           the enabled to set
+	 */
+	public void setEnabled(final boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the minIdle
+	 */
+	public int getMinIdle()
+	{
+		return minIdle;
+	}
+
+	/**
+	 * @param minIdle
+	 *           the minIdle to set
+	 */
+	public void setMinIdle(final int minIdle)
+	{
+		this.minIdle = minIdle;
+	}
+
+	/**
+	 * @return the roundTrips
+	 */
+	public int getRoundTrips()
+	{
+		return roundTrips;
+	}
+
+	/**
+	 * @param roundTrips
+	 *           the roundTrips to set
+	 */
+	public void setRoundTrips(final int roundTrips)
+	{
+		this.roundTrips = roundTrips;
+	}
+
+	/**
+	 * @return the retryMillis
+	 */
+	public long getRetryMillis()
+	{
+		return retryMillis;
+	}
+
+	/**
+	 * @param retryMillis
+	 *           the retryMillis to set
+	 */
+	public void setRetryMillis(final long retryMillis)
+	{
+		this.retryMillis = retryMillis;
+	}
+}
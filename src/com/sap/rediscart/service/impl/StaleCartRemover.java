@@ -0,0 +1,541 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.service.impl;
+
+import de.hybris.platform.basecommerce.model.site.BaseSiteModel;
+import de.hybris.platform.core.Constants;
+import de.hybris.platform.core.Registry;
+import de.hybris.platform.core.Tenant;
+import de.hybris.platform.core.model.order.AbstractOrderModel;
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.jalo.Item;
+import de.hybris.platform.jalo.JaloInvalidParameterException;
+import de.hybris.platform.jalo.JaloSession;
+import de.hybris.platform.jalo.security.JaloSecurityException;
+import de.hybris.platform.jalo.user.User;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+import com.sap.rediscart.util.Throttle;
+
+
+/**
+ * Removes stale carts the way the platform's cart removal jobs do, but without materializing them: carts not saved by
+ * the customer that have not been modified for cartAgeSeconds, or anonymousCartAgeSeconds if they are anonymous, and
+ * saved carts past their expiration time.
+ * <p/>
+ * The partitions of the cart store are walked in parallel by up to parallelism threads, each reads a batch of carts at
+ * a time without touching them, see {@link CartStore#peekBatch(java.util.Collection)}, and removes the stale ones of
+ * the batch with one pipelined {@link CartStore#removeUnchanged(java.util.Collection)}, so carts changed after they
+ * have been found stale are kept. All threads together read at most
+ * cartsPerSecond carts. The position of every partition is kept in redis after each batch, so a run stopped by its
+ * time limit, an abort or a restart is continued by the next one, possibly on another node. Once all partitions have
+ * been walked the next run starts over.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class StaleCartRemover
+{
+	private static final Logger LOG = LoggerFactory.getLogger(StaleCartRemover.class);
+
+	private static final String DONE = "done";
+	private static final String SCANNED = ".scanned";
+	private static final String REMOVED = ".removed";
+
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+	private CartStore cartStore;
+	private RedisTemplate<String, Object> redisTemplate;
+	private RedisMetrics redisMetrics;
+	private long cartAgeSeconds;
+	private long anonymousCartAgeSeconds;
+	private boolean removeExpiredSavedCarts = true;
+	private int parallelism = 4;
+	private int batchSize = 100;
+	private double cartsPerSecond = 1000;
+	private long progressIntervalSeconds = 60;
+	private String cursorKey = "rediscart:removal:cursor";
+
+	/**
+	 * @param maxMillis
+	 *           the time after which the run is stopped, the next run continues from there
+	 * @param aborted
+	 *           polled by the calling thread about once a second
+	 * @return true if all partitions have been walked, false if the run has been stopped before
+	 * @throws InterruptedException
+	 *            if the thread is interrupted while waiting for the partitions
+	 */
+	public boolean removeStaleCarts(final long maxMillis, final BooleanSupplier aborted) throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + maxMillis;
+		final Map<Object, Object> state = getRedisTemplate().opsForHash().entries(getCursorKey());
+		final Map<String, Progress> progressByPartition = new LinkedHashMap<>();
+		for (final String partition : getCartStore().getPartitions())
+		{
+			// partitions no longer in the topology are ignored, new ones start at the beginning
+			final Object position = state.get(partition);
+			progressByPartition.put(partition, new Progress(position == null ? CartCursor.START : position.toString(),
+					toLong(state.get(partition + SCANNED)), toLong(state.get(partition + REMOVED))));
+		}
+
+		final AtomicBoolean stopped = new AtomicBoolean();
+		final Throttle throttle = new Throttle(getCartsPerSecond());
+		final Tenant tenant = Registry.getCurrentTenantNoFallback();
+		final ExecutorService pool = newPool(Math.min(getParallelism(), progressByPartition.size()));
+		final List<Future<Boolean>> results = new ArrayList<>();
+		for (final Map.Entry<String, Progress> entry : progressByPartition.entrySet())
+		{
+			if (!DONE.equals(entry.getValue().position))
+			{
+				results.add(pool.submit(() -> walkPartition(entry.getKey(), entry.getValue(), throttle, stopped, tenant)));
+			}
+		}
+		pool.shutdown();
+		try
+		{
+			long nextReport = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(getProgressIntervalSeconds());
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+			{
+				if (aborted.getAsBoolean() || System.currentTimeMillis() > deadline)
+				{
+					stopped.set(true);
+				}
+				if (System.currentTimeMillis() >= nextReport)
+				{
+					logProgress(progressByPartition);
+					nextReport += TimeUnit.SECONDS.toMillis(getProgressIntervalSeconds());
+				}
+			}
+		}
+		catch (final InterruptedException e)
+		{
+			// every batch is recorded as it is done, the partitions simply stop
+			pool.shutdownNow();
+			throw e;
+		}
+
+		boolean complete = true;
+		for (final Future<Boolean> result : results)
+		{
+			try
+			{
+				complete &= result.get().booleanValue();
+			}
+			catch (final ExecutionException e)
+			{
+				throw new IllegalStateException("Removing stale carts failed", e.getCause());
+			}
+		}
+		logProgress(progressByPartition);
+		if (complete)
+		{
+			getRedisTemplate().delete(getCursorKey());
+			getRedisMetrics().recordRemoval(RedisMetrics.REMOVAL_PASSES, 1);
+			LOG.info("Removed stale carts from {} partitions", Integer.valueOf(progressByPartition.size()));
+		}
+		return complete;
+	}
+
+	/**
+	 * @return whether the cart would be removed by the platform's cart removal jobs
+	 */
+	public boolean isStale(final RedisCart cart, final long now)
+	{
+		if (getDate(cart, CartModel.SAVETIME) != null)
+		{
+			final Date expirationTime = getDate(cart, CartModel.EXPIRATIONTIME);
+			return isRemoveExpiredSavedCarts() && expirationTime != null && expirationTime.getTime() <= now;
+		}
+		final User user = cart.getUser();
+		final long maxAgeSeconds = user == null || Constants.USER.ANONYMOUS_CUSTOMER.equals(user.getUid())
+				? getAnonymousCartAgeSeconds() : getCartAgeSeconds();
+		final Date modificationTime = cart.getModificationTime();
+		return maxAgeSeconds > 0 && modificationTime != null
+				&& now - modificationTime.getTime() >= TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+	}
+
+	/**
+	 * @return true if the partition has been walked to its end, false if stopped before
+	 */
+	private boolean walkPartition(final String partition, final Progress progress, final Throttle throttle,
+			final AtomicBoolean stopped, final Tenant tenant) throws InterruptedException
+	{
+		if (tenant != null)
+		{
+			Registry.setCurrentTenant(tenant);
+		}
+		try
+		{
+			final CartCursor cursor = getCartStore().openPartitionCursor(partition, getBatchSize(), progress.position);
+			while (!stopped.get())
+			{
+				if (!cursor.hasNext())
+				{
+					record(partition, progress, DONE);
+					return true;
+				}
+				final List<CartHeader> batch = cursor.next();
+				throttle.acquire(batch.size());
+				removeStale(batch, progress);
+				record(partition, progress, cursor.getPosition());
+			}
+			return false;
+		}
+		finally
+		{
+			if (JaloSession.hasCurrentSession())
+			{
+				JaloSession.getCurrentSession().close();
+			}
+			if (tenant != null)
+			{
+				Registry.unsetCurrentTenant();
+			}
+		}
+	}
+
+	private void removeStale(final List<CartHeader> batch, final Progress progress)
+	{
+		final List<String> codes = new ArrayList<>(batch.size());
+		for (final CartHeader header : batch)
+		{
+			codes.add(header.getCode());
+		}
+		final Map<String, RedisCart> carts = getCartStore().peekBatch(codes);
+		final long now = System.currentTimeMillis();
+		final List<CartHeader> stale = new ArrayList<>();
+		for (final CartHeader header : batch)
+		{
+			final RedisCart cart = carts.get(header.getCode());
+			if (cart != null && isStale(cart, now))
+			{
+				// the cart is only removed at the version it has been found stale at, besides the indexes of its
+				// attributes its recorded indexes are removed, carts indexed before they were recorded have none
+				stale.add(new CartHeader(toCartIndex(header.getCode(), cart), cart.getRedisVersion(),
+						header.getTtlMillis()));
+			}
+		}
+		final int removed = stale.isEmpty() ? 0 : getCartStore().removeUnchanged(stale).size();
+
+		progress.scanned.addAndGet(batch.size());
+		progress.removed.addAndGet(removed);
+		getRedisMetrics().recordRemoval(RedisMetrics.REMOVAL_CARTS_SCANNED, batch.size());
+		getRedisMetrics().recordRemoval(RedisMetrics.REMOVAL_CARTS_REMOVED, removed);
+		// leased by somebody else, e.g. being checked out, or changed meanwhile
+		getRedisMetrics().recordRemoval(RedisMetrics.REMOVAL_CARTS_SKIPPED, stale.size() - removed);
+	}
+
+	private void record(final String partition, final Progress progress, final String position)
+	{
+		progress.position = position;
+		final Map<String, String> fields = new HashMap<>();
+		fields.put(partition, position);
+		fields.put(partition + SCANNED, String.valueOf(progress.scanned.get()));
+		fields.put(partition + REMOVED, String.valueOf(progress.removed.get()));
+		getRedisTemplate().opsForHash().putAll(getCursorKey(), fields);
+	}
+
+	private void logProgress(final Map<String, Progress> progressByPartition)
+	{
+		long scanned = 0;
+		long removed = 0;
+		int done = 0;
+		for (final Progress progress : progressByPartition.values())
+		{
+			scanned += progress.scanned.get();
+			removed += progress.removed.get();
+			done += DONE.equals(progress.position) ? 1 : 0;
+		}
+		LOG.info("Stale cart removal: {} of {} partitions done, {} carts scanned and {} removed in this pass",
+				Integer.valueOf(done), Integer.valueOf(progressByPartition.size()), Long.valueOf(scanned),
+				Long.valueOf(removed));
+	}
+
+	protected CartIndex toCartIndex(final String cartCode, final RedisCart cart)
+	{
+		String guid = null;
+		String siteId = null;
+		try
+		{
+			guid = (String) cart.getAttribute(AbstractOrderModel.GUID);
+			final Object site = cart.getAttribute(AbstractOrderModel.SITE);
+			siteId = site instanceof Item ? (String) ((Item) site).getAttribute(BaseSiteModel.UID) : null;
+		}
+		catch (final JaloInvalidParameterException | JaloSecurityException e)
+		{
+			LOG.debug("Could not read the guid or site of cart " + cartCode, e);
+		}
+		return new CartIndex(cartCode, cart.getUser() == null ? null : cart.getUser().getUid(), guid, siteId);
+	}
+
+	private Date getDate(final RedisCart cart, final String attribute)
+	{
+		try
+		{
+			return (Date) cart.getAttribute(attribute);
+		}
+		catch (final JaloSecurityException e)
+		{
+			LOG.warn("Cannot read " + attribute + " of cart " + cart.getCode(), e);
+			return null;
+		}
+	}
+
+	private static long toLong(final Object value)
+	{
+		return value == null ? 0L : Long.parseLong(value.toString());
+	}
+
+	private static ExecutorService newPool(final int threads)
+	{
+		final int poolNumber = POOL_NUMBER.incrementAndGet();
+		final AtomicInteger threadNumber = new AtomicInteger();
+		return Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+			final Thread thread = new Thread(runnable,
+					"rediscart-removal-" + poolNumber + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return the cartStore
+	 */
+	public CartStore getCartStore()
+	{
+		return cartStore;
+	}
+
+	/**
+	 * @param cartStore
+	 *           the cartStore to set
+	 */
+	public void setCartStore(final CartStore cartStore)
+	{
+		this.cartStore = cartStore;
+	}
+
+	/**
+	 * @return the redisTemplate
+	 */
+	public RedisTemplate<String, Object> getRedisTemplate()
+	{
+		return redisTemplate;
+	}
+
+	/**
+	 * @param redisTemplate
+	 *           the redisTemplate to set
+	 */
+	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	{
+		this.redisTemplate = redisTemplate;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+
+	/**
+	 * @return the cartAgeSeconds
+	 */
+	public long getCartAgeSeconds()
+	{
+		return cartAgeSeconds;
+	}
+
+	/**
+	 * @param cartAgeSeconds
+	 *           the cartAgeSeconds to set
+	 */
+	public void setCartAgeSeconds(final long cartAgeSeconds)
+	{
+		this.cartAgeSeconds = cartAgeSeconds;
+	}
+
+	/**
+	 * @return the anonymousCartAgeSeconds
+	 */
+	public long getAnonymousCartAgeSeconds()
+	{
+		return anonymousCartAgeSeconds;
+	}
+
+	/**
+	 * @param anonymousCartAgeSeconds
+	 *           the anonymousCartAgeSeconds to set
+	 */
+	public void setAnonymousCartAgeSeconds(final long anonymousCartAgeSeconds)
+	{
+		this.anonymousCartAgeSeconds = anonymousCartAgeSeconds;
+	}
+
+	/**
+	 * @return the removeExpiredSavedCarts
+	 */
+	public boolean isRemoveExpiredSavedCarts()
+	{
+		return removeExpiredSavedCarts;
+	}
+
+	/**
+	 * @param removeExpiredSavedCarts
+	 *           the removeExpiredSavedCarts to set
+	 */
+	public void setRemoveExpiredSavedCarts(final boolean removeExpiredSavedCarts)
+	{
+		this.removeExpiredSavedCarts = removeExpiredSavedCarts;
+	}
+
+	/**
+	 * @return the parallelism
+	 */
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism
+	 *           the parallelism to set
+	 */
+	public void setParallelism(final int parallelism)
+	{
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return the batchSize
+	 */
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *           the batchSize to set
+	 */
+	public void setBatchSize(final int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the cartsPerSecond
+	 */
+	public double getCartsPerSecond()
+	{
+		return cartsPerSecond;
+	}
+
+	/**
+	 * @param cartsPerSecond
+	 *           the cartsPerSecond to set
+	 */
+	public void setCartsPerSecond(final double cartsPerSecond)
+	{
+		this.cartsPerSecond = cartsPerSecond;
+	}
+
+	/**
+	 * @return the progressIntervalSeconds
+	 */
+	public long getProgressIntervalSeconds()
+	{
+		return progressIntervalSeconds;
+	}
+
+	/**
+	 * @param progressIntervalSeconds
+	 *           the progressIntervalSeconds to set
+	 */
+	public void setProgressIntervalSeconds(final long progressIntervalSeconds)
+	{
+		this.progressIntervalSeconds = progressIntervalSeconds;
+	}
+
+	/**
+	 * @return the cursorKey
+	 */
+	public String getCursorKey()
+	{
+		return cursorKey;
+	}
+
+	/**
+	 * @param cursorKey
+	 *           the cursorKey to set
+	 */
+	public void setCursorKey(final String cursorKey)
+	{
+		this.cursorKey = cursorKey;
+	}
+
+	/**
+	 * Where the walk of a partition is and what it has done in the current pass, written by its thread only.
+	 */
+	private static final class Progress
+	{
+		private volatile String position;
+		private final AtomicLong scanned;
+		private final AtomicLong removed;
+
+		private Progress(final String position, final long scanned, final long removed)
+		{
+			this.position = position;
+			this.scanned = new AtomicLong(scanned);
+			this.removed = new AtomicLong(removed);
+		}
+	}
+}
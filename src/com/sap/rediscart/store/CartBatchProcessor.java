@@ -0,0 +1,185 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store;
+
+import de.hybris.platform.core.Registry;
+import de.hybris.platform.core.Tenant;
+import de.hybris.platform.jalo.JaloSession;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Hands the batches of a {@link CartCursor} to a pool of threads. The cursor is only read by the calling thread, and
+ * no more batches are read than there are threads to process them, so memory stays bounded by the batch size times
+ * the concurrency however many carts there are.
+ * <p/>
+ * The position only moves past a batch once it and every batch before it have been processed, so continuing from
+ * {@link #getPosition()} after an abort, a failure or a restart never skips a cart, though it may repeat some. The
+ * tenant of the calling thread is activated on the processing threads, and the session they may have opened is closed
+ * after every batch.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartBatchProcessor
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CartBatchProcessor.class);
+
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+	private final int concurrency;
+	private final AtomicLong processed = new AtomicLong();
+	private final Map<Long, String> completedPositions = new HashMap<>();
+	private long lastCompletedBatch;
+	private volatile String position;
+
+	/**
+	 * @param concurrency
+	 *           the number of batches processed at the same time
+	 */
+	public CartBatchProcessor(final int concurrency)
+	{
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Processes the batches of the cursor until it is exhausted, the callback fails or the job is aborted, and waits
+	 * for the batches in flight.
+	 *
+	 * @param aborted
+	 *           polled before every batch
+	 * @return true if the cursor has been exhausted, false if the job has been aborted
+	 * @throws InterruptedException
+	 *            if the thread is interrupted while waiting for a free thread
+	 * @throws IllegalStateException
+	 *            with the first exception thrown by the callback as its cause
+	 */
+	public boolean process(final CartCursor cursor, final Consumer<List<CartHeader>> callback,
+			final BooleanSupplier aborted) throws InterruptedException
+	{
+		position = cursor.getPosition();
+		final Tenant tenant = Registry.getCurrentTenantNoFallback();
+		final int poolNumber = POOL_NUMBER.incrementAndGet();
+		final AtomicInteger threadNumber = new AtomicInteger();
+		final ExecutorService pool = Executors.newFixedThreadPool(concurrency, runnable -> {
+			final Thread thread = new Thread(runnable,
+					"rediscart-batch-" + poolNumber + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		final Semaphore freeThreads = new Semaphore(concurrency);
+		final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+		long batchNumber = 0;
+		boolean exhausted = false;
+		try
+		{
+			while (failure.get() == null && !aborted.getAsBoolean())
+			{
+				if (!cursor.hasNext())
+				{
+					exhausted = true;
+					break;
+				}
+				freeThreads.acquire();
+				final List<CartHeader> batch = cursor.next();
+				final long number = ++batchNumber;
+				final String batchPosition = cursor.getPosition();
+				pool.execute(() -> {
+					try
+					{
+						if (tenant != null)
+						{
+							Registry.setCurrentTenant(tenant);
+						}
+						callback.accept(batch);
+						processed.addAndGet(batch.size());
+						complete(number, batchPosition);
+					}
+					catch (final RuntimeException e)
+					{
+						failure.compareAndSet(null, e);
+					}
+					finally
+					{
+						// reading cart attributes opens a session, which would otherwise linger until it times out
+						if (JaloSession.hasCurrentSession())
+						{
+							JaloSession.getCurrentSession().close();
+						}
+						if (tenant != null)
+						{
+							Registry.unsetCurrentTenant();
+						}
+						freeThreads.release();
+					}
+				});
+			}
+		}
+		finally
+		{
+			// the batches in flight are finished in any case, so the position is as far as it can be
+			freeThreads.acquireUninterruptibly(concurrency);
+			pool.shutdown();
+		}
+		if (failure.get() != null)
+		{
+			throw new IllegalStateException("Processing a batch of carts failed, stopped at position " + position,
+					failure.get());
+		}
+		LOG.debug("Processed {} carts, position {}", Long.valueOf(processed.get()), position);
+		return exhausted;
+	}
+
+	/**
+	 * @return the position to continue from, covering every batch processed so far
+	 */
+	public String getPosition()
+	{
+		return position;
+	}
+
+	/**
+	 * @return the number of carts processed so far
+	 */
+	public long getProcessed()
+	{
+		return processed.get();
+	}
+
+	private synchronized void complete(final long batchNumber, final String batchPosition)
+	{
+		completedPositions.put(Long.valueOf(batchNumber), batchPosition);
+		String next;
+		while ((next = completedPositions.remove(Long.valueOf(lastCompletedBatch + 1))) != null)
+		{
+			lastCompletedBatch++;
+			position = next;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store;
+
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * Walks the carts matching some criteria batch by batch, so only one batch is held in memory at a time. A cart stored
+ * during the whole walk is returned at least once, carts stored or removed meanwhile may or may not be returned, and
+ * a cart may be returned more than once. Not thread safe.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public interface CartCursor extends Iterator<List<CartHeader>>
+{
+	/**
+	 * Position of a cursor at the first batch.
+	 */
+	String START = "0";
+
+	/**
+	 * The position after the last batch returned by {@link #next()}. A cursor opened at it with the same criteria
+	 * continues with the following batch, e.g. after a restart.
+	 *
+	 * @return the position, {@link #START} if nothing has been returned yet or the walk is complete
+	 */
+	String getPosition();
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store;
+
+/**
+ * What maintenance jobs need to know about a stored cart without reading the cart itself: the attributes it is
+ * indexed by, its version and how long it has left to live.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartHeader
+{
+	private final CartIndex index;
+	private final long version;
+	private final long ttlMillis;
+
+	public CartHeader(final CartIndex index, final long version, final long ttlMillis)
+	{
+		this.index = index;
+		this.version = version;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @return the code
+	 */
+	public String getCode()
+	{
+		return index.getCode();
+	}
+
+	/**
+	 * @return the attributes the cart is indexed by, blank where the cart is not indexed
+	 */
+	public CartIndex getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * @return the version, 0 if the cart has been saved without optimistic locking
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @return the milliseconds until the cart expires, -1 if it does not expire
+	 */
+	public long getTtlMillis()
+	{
+		return ttlMillis;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CartHeader[index=" + index + ", version=" + version + ", ttlMillis=" + ttlMillis + "]";
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store;
+
+/**
+ * The attributes carts are looked up by. Used to index a cart when it is saved, and as criteria of
+ * {@link CartStore#findCartCodes(CartIndex)}, where blank attributes do not restrict the result.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartIndex
+{
+	private final String code;
+	private final String userId;
+	private final String guid;
+	private final String siteId;
+
+	public CartIndex(final String code, final String userId, final String guid, final String siteId)
+	{
+		this.code = code;
+		this.userId = userId;
+		this.guid = guid;
+		this.siteId = siteId;
+	}
+
+	/**
+	 * @return the code
+	 */
+	public String getCode()
+	{
+		return code;
+	}
+
+	/**
+	 * @return the userId
+	 */
+	public String getUserId()
+	{
+		return userId;
+	}
+
+	/**
+	 * @return the guid
+	 */
+	public String getGuid()
+	{
+		return guid;
+	}
+
+	/**
+	 * @return the siteId
+	 */
+	public String getSiteId()
+	{
+		return siteId;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CartIndex[code=" + code + ", userId=" + userId + ", guid=" + guid + ", siteId=" + siteId + "]";
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store;
+
+import de.hybris.platform.promotions.jalo.PromotionResult;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sap.rediscart.exceptions.CartLockedException;
+import com.sap.rediscart.exceptions.CartVersionConflictException;
+import com.sap.rediscart.jalo.order.RedisCart;
+
+
+/**
+ * Storage of redis carts, their indexes and their promotion results. The DAOs and save strategies only talk to this
+ * interface, so the layout, codec or backend of the carts can be changed in one place.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public interface CartStore
+{
+	/**
+	 * @return the cart with its version set, or null if there is no cart for the code
+	 */
+	RedisCart load(String cartCode);
+
+	/**
+	 * @return the carts by code in the order of the codes, codes without a cart are left out
+	 */
+	Map<String, RedisCart> loadBatch(Collection<String> cartCodes);
+
+	/**
+	 * Loads the carts like {@link #loadBatch(Collection)}, but without touching them: their time to live is not
+	 * refreshed and codes without a cart are not cleaned up, so maintenance jobs do not keep stale carts alive.
+	 *
+	 * @return the carts by code in the order of the codes, codes without a cart are left out
+	 */
+	Map<String, RedisCart> peekBatch(Collection<String> cartCodes);
+
+	/**
+	 * Saves the cart if it has not been changed since it was loaded and increments its version.
+	 *
+	 * @throws CartVersionConflictException
+	 *            if the cart has been changed concurrently
+	 * @throws CartLockedException
+	 *            if the cart is leased by somebody else
+	 */
+	void save(String cartCode, RedisCart cart);
+
+	/**
+	 * Removes the carts together with their indexes, versions and promotion results. Carts leased by somebody else are
+	 * skipped.
+	 *
+	 * @return the codes of the removed carts
+	 */
+	Set<String> remove(Collection<CartIndex> carts);
+
+	/**
+	 * Removes the carts like {@link #remove(Collection)}, but only those still at the version of their header, so a
+	 * cart changed after it has been read is kept.
+	 *
+	 * @return the codes of the removed carts
+	 */
+	Set<String> removeUnchanged(Collection<CartHeader> carts);
+
+	/**
+	 * Adds the cart to the indexes of all non-blank attributes.
+	 */
+	void index(CartIndex cart);
+
+	/**
+	 * @return the codes of the carts matching all non-blank attributes of the criteria
+	 */
+	Set<String> findCartCodes(CartIndex criteria);
+
+	/**
+	 * Removes the cart from the indexes of all non-blank attributes, the cart itself is kept.
+	 */
+	void unindex(CartIndex cart);
+
+	/**
+	 * @return the number of carts matching all non-blank attributes of the criteria, without loading their codes
+	 */
+	long countCartCodes(CartIndex criteria);
+
+	/**
+	 * Opens a cursor over the carts matching all non-blank attributes of the criteria, or over all carts if every
+	 * attribute is blank. Only the headers of the carts are read, jobs load the carts they actually need with
+	 * {@link #loadBatch(Collection)}.
+	 *
+	 * @param batchSize
+	 *           the number of carts to read at a time, a hint the actual batches may differ from
+	 * @param position
+	 *           the position of a previous cursor with the same criteria to continue from, or {@link CartCursor#START}
+	 */
+	CartCursor openCursor(CartIndex criteria, int batchSize, String position);
+
+	/**
+	 * @return the partitions the carts are spread over, e.g. the masters of a cluster, in a stable order
+	 */
+	List<String> getPartitions();
+
+	/**
+	 * Opens a cursor over all carts of one of the {@link #getPartitions()}, so the partitions can be walked in parallel.
+	 *
+	 * @throws IllegalArgumentException
+	 *            if the partition is unknown, e.g. because the cluster topology has changed
+	 */
+	CartCursor openPartitionCursor(String partition, int batchSize, String position);
+
+	void savePromotionResult(String cartCode, String promotionResultPk, PromotionResult promotionResult);
+
+	void removePromotionResult(String cartCode, String promotionResultPk);
+
+	Collection<PromotionResult> loadPromotionResults(String cartCode);
+}
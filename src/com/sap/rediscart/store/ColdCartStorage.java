@@ -0,0 +1,44 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store;
+
+import java.util.Collection;
+import java.util.Map;
+
+
+/**
+ * Cheaper storage for saved carts nobody has touched for a while. Carts are kept as serialized for redis, so they can
+ * be put back without being deserialized and serialized again.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public interface ColdCartStorage
+{
+	/**
+	 * Stores the cart, replacing what has been stored for its code before.
+	 */
+	void write(String cartCode, byte[] payload);
+
+	/**
+	 * @return the stored carts by code, codes without a stored cart are left out
+	 */
+	Map<String, byte[]> readAll(Collection<String> cartCodes);
+
+	/**
+	 * Removes the stored carts, codes without a stored cart are ignored.
+	 */
+	void delete(Collection<String> cartCodes);
+}
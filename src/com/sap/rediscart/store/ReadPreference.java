@@ -0,0 +1,76 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store;
+
+import java.util.function.Supplier;
+
+
+/**
+ * Where the reads of the current thread may be served. Callers run a read-only operation with
+ * {@link #apply(ReadPreference, Supplier)}, stores which support replicas take the preference of the thread with
+ * {@link #current()}. Replicas lag behind their master, so only operations which tolerate a slightly older state
+ * should prefer them.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public enum ReadPreference
+{
+	/**
+	 * Every read goes to the master serving the key.
+	 */
+	MASTER,
+
+	/**
+	 * Reads go to a replica of the master serving the key, or to the master if it has no replica.
+	 */
+	REPLICA_PREFERRED;
+
+	private static final ThreadLocal<ReadPreference> CURRENT = new ThreadLocal<>();
+
+	/**
+	 * @return the preference of the current thread, {@link #MASTER} outside of
+	 *         {@link #apply(ReadPreference, Supplier)}
+	 */
+	public static ReadPreference current()
+	{
+		final ReadPreference preference = CURRENT.get();
+		return preference == null ? MASTER : preference;
+	}
+
+	/**
+	 * Runs the reads with the preference, the previous preference of the thread is restored afterwards.
+	 */
+	public static <T> T apply(final ReadPreference preference, final Supplier<T> reads)
+	{
+		final ReadPreference previous = CURRENT.get();
+		CURRENT.set(preference);
+		try
+		{
+			return reads.get();
+		}
+		finally
+		{
+			if (previous == null)
+			{
+				CURRENT.remove();
+			}
+			else
+			{
+				CURRENT.set(previous);
+			}
+		}
+	}
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Append-only journal of cart writes in memory-mapped segment files of a local directory. An append copies the record
+ * into the mapping, no system call is involved, and the record survives a crash of the JVM, with syncOnAppend also
+ * one of the machine. Every record carries a CRC, a record torn by a crash ends its segment when it is reopened.
+ * <p/>
+ * Records are read back in the order they have been appended and acknowledged one by one once applied. The offset of
+ * the first record not acknowledged is kept in the header of its segment, so a restart continues from there, and
+ * segments whose records have all been acknowledged are deleted.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartJournal
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CartJournal.class);
+
+	public static final byte SAVE = 1;
+	public static final byte INDEX = 2;
+	public static final byte REMOVE = 3;
+
+	private static final int MAGIC = 0x52434a31;
+	private static final int SEGMENT_HEADER_BYTES = 8;
+	private static final int RECORD_HEADER_BYTES = 8;
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".log";
+
+	private final Deque<Segment> segments = new ArrayDeque<>();
+	private long nextSequence = 1;
+	private int pendingRecords;
+
+	private String directory;
+	private int segmentBytes = 64 * 1024 * 1024;
+	private long maxBytes = 1024L * 1024 * 1024;
+	private boolean syncOnAppend = false;
+
+	/**
+	 * Maps the segments left in the directory, their records not acknowledged yet are read first.
+	 */
+	public synchronized void open() throws IOException
+	{
+		final File dir = new File(getDirectory());
+		if (!dir.isDirectory() && !dir.mkdirs())
+		{
+			throw new IOException("Cannot create the cart journal directory " + dir);
+		}
+		final File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		Arrays.sort(files, Comparator.comparingLong(CartJournal::toNumber));
+		for (final File file : files)
+		{
+			final Segment segment = Segment.open(file, toNumber(file));
+			segments.addLast(segment);
+			for (int offset = SEGMENT_HEADER_BYTES; offset < segment.writeOffset;)
+			{
+				final Record record = segment.read(offset);
+				nextSequence = Math.max(nextSequence, record.sequence + 1);
+				if (offset >= segment.readOffset)
+				{
+					pendingRecords++;
+				}
+				offset = record.nextOffset;
+			}
+		}
+		deleteReplayedSegments();
+		if (pendingRecords > 0)
+		{
+			LOG.warn("Cart journal {} holds {} cart writes to replay", dir, Integer.valueOf(pendingRecords));
+		}
+	}
+
+	public synchronized void close()
+	{
+		// the mappings are released by the garbage collector, everything written is in the files already
+		segments.clear();
+	}
+
+	/**
+	 * @return the sequence number of the record, growing with every append
+	 * @throws IOException
+	 *            if the journal has grown to maxBytes or a segment cannot be created
+	 */
+	public synchronized long append(final byte type, final String cartCode, final byte[] payload) throws IOException
+	{
+		final byte[] code = cartCode.getBytes(StandardCharsets.UTF_8);
+		final int length = 8 + 1 + 2 + code.length + payload.length;
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.buffer.capacity() - segment.writeOffset < RECORD_HEADER_BYTES + length)
+		{
+			segment = roll(RECORD_HEADER_BYTES + length);
+		}
+		final long sequence = nextSequence++;
+		final ByteBuffer body = ByteBuffer.allocate(length);
+		body.putLong(sequence).put(type).putShort((short) code.length).put(code).put(payload);
+		final CRC32 crc = new CRC32();
+		crc.update(body.array());
+		segment.write(body.array(), (int) crc.getValue());
+		pendingRecords++;
+		if (isSyncOnAppend())
+		{
+			segment.buffer.force();
+		}
+		return sequence;
+	}
+
+	/**
+	 * @return up to max records not acknowledged yet, oldest first
+	 */
+	public synchronized List<Record> read(final int max)
+	{
+		final List<Record> records = new ArrayList<>();
+		for (final Segment segment : segments)
+		{
+			for (int offset = segment.readOffset; records.size() < max && offset < segment.writeOffset;)
+			{
+				final Record record = segment.read(offset);
+				records.add(record);
+				offset = record.nextOffset;
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Marks the record and all records before it as applied, they are not read again.
+	 */
+	public synchronized void acknowledge(final Record record)
+	{
+		final Segment segment = record.segment;
+		if (!segments.contains(segment) || record.nextOffset <= segment.readOffset)
+		{
+			return;
+		}
+		segment.setReadOffset(record.nextOffset);
+		pendingRecords--;
+		deleteReplayedSegments();
+	}
+
+	/**
+	 * @return whether there are no records to be applied
+	 */
+	public synchronized boolean isEmpty()
+	{
+		return pendingRecords == 0;
+	}
+
+	/**
+	 * @return the number of records to be applied
+	 */
+	public synchronized int size()
+	{
+		return pendingRecords;
+	}
+
+	private Segment roll(final int recordBytes) throws IOException
+	{
+		final int size = Math.max(getSegmentBytes(), SEGMENT_HEADER_BYTES + recordBytes);
+		long totalBytes = size;
+		for (final Segment segment : segments)
+		{
+			totalBytes += segment.buffer.capacity();
+		}
+		if (totalBytes > getMaxBytes())
+		{
+			throw new IOException("The cart journal is full, " + pendingRecords + " cart writes wait to be replayed");
+		}
+		final long number = segments.isEmpty() ? 1 : segments.peekLast().number + 1;
+		final Segment segment = Segment.create(new File(getDirectory(), PREFIX + number + SUFFIX), number, size);
+		segments.addLast(segment);
+		deleteReplayedSegments();
+		return segment;
+	}
+
+	/**
+	 * Deletes the oldest segments as long as all their records have been applied, the segment appended to is kept.
+	 */
+	private void deleteReplayedSegments()
+	{
+		while (segments.size() > 1 && segments.peekFirst().isReplayed())
+		{
+			final Segment segment = segments.removeFirst();
+			if (!segment.file.delete())
+			{
+				LOG.warn("Cannot delete the replayed cart journal segment {}", segment.file);
+			}
+		}
+	}
+
+	private static long toNumber(final File file)
+	{
+		final String name = file.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * @return the directory
+	 */
+	public String getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * @param directory
+	 *           the directory to set
+	 */
+	public void setDirectory(final String directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * @return the segmentBytes
+	 */
+	public int getSegmentBytes()
+	{
+		return segmentBytes;
+	}
+
+	/**
+	 * @param segmentBytes
+	 *           the segmentBytes to set
+	 */
+	public void setSegmentBytes(final int segmentBytes)
+	{
+		this.segmentBytes = segmentBytes;
+	}
+
+	/**
+	 * @return the maxBytes
+	 */
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxBytes
+	 *           the maxBytes to set
+	 */
+	public void setMaxBytes(final long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the syncOnAppend
+	 */
+	public boolean isSyncOnAppend()
+	{
+		return syncOnAppend;
+	}
+
+	/**
+	 * @param syncOnAppend
+	 *           the syncOnAppend to set
+	 */
+	public void setSyncOnAppend(final boolean syncOnAppend)
+	{
+		this.syncOnAppend = syncOnAppend;
+	}
+
+	/**
+	 * A cart write as appended to the journal.
+	 */
+	public static final class Record
+	{
+		private final long sequence;
+		private final byte type;
+		private final String cartCode;
+		private final byte[] payload;
+		private final Segment segment;
+		private final int nextOffset;
+
+		private Record(final long sequence, final byte type, final String cartCode, final byte[] payload,
+				final Segment segment, final int nextOffset)
+		{
+			this.sequence = sequence;
+			this.type = type;
+			this.cartCode = cartCode;
+			this.payload = payload;
+			this.segment = segment;
+			this.nextOffset = nextOffset;
+		}
+
+		/**
+		 * @return the sequence
+		 */
+		public long getSequence()
+		{
+			return sequence;
+		}
+
+		/**
+		 * @return the type, one of {@link CartJournal#SAVE}, {@link CartJournal#INDEX} and {@link CartJournal#REMOVE}
+		 */
+		public byte getType()
+		{
+			return type;
+		}
+
+		/**
+		 * @return the cartCode
+		 */
+		public String getCartCode()
+		{
+			return cartCode;
+		}
+
+		/**
+		 * @return the payload
+		 */
+		public byte[] getPayload()
+		{
+			return payload;
+		}
+	}
+
+	/**
+	 * One mapped file: the magic number and the offset of the first record not acknowledged, followed by the records,
+	 * each its length, its CRC and the sequence, type, code and payload.
+	 */
+	private static final class Segment
+	{
+		private final File file;
+		private final long number;
+		private final MappedByteBuffer buffer;
+		private int readOffset;
+		private int writeOffset;
+
+		private Segment(final File file, final long number, final MappedByteBuffer buffer)
+		{
+			this.file = file;
+			this.number = number;
+			this.buffer = buffer;
+		}
+
+		private static Segment create(final File file, final long number, final int size) throws IOException
+		{
+			final Segment segment = new Segment(file, number, map(file, size));
+			segment.buffer.putInt(0, MAGIC);
+			segment.setReadOffset(SEGMENT_HEADER_BYTES);
+			segment.writeOffset = SEGMENT_HEADER_BYTES;
+			return segment;
+		}
+
+		private static Segment open(final File file, final long number) throws IOException
+		{
+			final Segment segment = new Segment(file, number, map(file, file.length()));
+			if (segment.buffer.capacity() < SEGMENT_HEADER_BYTES || segment.buffer.getInt(0) != MAGIC)
+			{
+				throw new IOException(file + " is not a cart journal segment");
+			}
+			int offset = SEGMENT_HEADER_BYTES;
+			while (segment.isValidRecord(offset))
+			{
+				offset += RECORD_HEADER_BYTES + segment.buffer.getInt(offset);
+			}
+			segment.writeOffset = offset;
+			segment.readOffset = Math.min(Math.max(segment.buffer.getInt(4), SEGMENT_HEADER_BYTES), offset);
+			return segment;
+		}
+
+		private static MappedByteBuffer map(final File file, final long size) throws IOException
+		{
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+			{
+				raf.setLength(size);
+				return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+
+		private boolean isValidRecord(final int offset)
+		{
+			if (offset + RECORD_HEADER_BYTES > buffer.capacity())
+			{
+				return false;
+			}
+			final int length = buffer.getInt(offset);
+			if (length <= 0 || offset + RECORD_HEADER_BYTES + length > buffer.capacity())
+			{
+				return false;
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(body(offset, length));
+			return (int) crc.getValue() == buffer.getInt(offset + 4);
+		}
+
+		private void write(final byte[] body, final int crc)
+		{
+			final ByteBuffer target = buffer.duplicate();
+			target.position(writeOffset + RECORD_HEADER_BYTES);
+			target.put(body);
+			buffer.putInt(writeOffset + 4, crc);
+			// the length goes last, a record torn before it is not there at all
+			buffer.putInt(writeOffset, body.length);
+			writeOffset += RECORD_HEADER_BYTES + body.length;
+		}
+
+		private Record read(final int offset)
+		{
+			final int length = buffer.getInt(offset);
+			final ByteBuffer body = ByteBuffer.wrap(body(offset, length));
+			final long sequence = body.getLong();
+			final byte type = body.get();
+			final byte[] code = new byte[body.getShort()];
+			body.get(code);
+			final byte[] payload = new byte[body.remaining()];
+			body.get(payload);
+			return new Record(sequence, type, new String(code, StandardCharsets.UTF_8), payload, this,
+					offset + RECORD_HEADER_BYTES + length);
+		}
+
+		private byte[] body(final int offset, final int length)
+		{
+			final ByteBuffer source = buffer.duplicate();
+			source.position(offset + RECORD_HEADER_BYTES);
+			final byte[] body = new byte[length];
+			source.get(body);
+			return body;
+		}
+
+		private void setReadOffset(final int offset)
+		{
+			readOffset = offset;
+			buffer.putInt(4, offset);
+		}
+
+		private boolean isReplayed()
+		{
+			return readOffset >= writeOffset;
+		}
+	}
+}
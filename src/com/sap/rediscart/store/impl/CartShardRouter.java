@@ -0,0 +1,473 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import com.sap.rediscart.store.CartIndex;
+
+
+/**
+ * Decides which of the shards of a {@link ShardedCartStore}, each an independent redis cluster, holds a cart. The
+ * first shard is the default one.
+ * <p/>
+ * In mode "hash" a cart lives on the shard its code is mapped to by a consistent hash ring with virtualNodes points
+ * per shard, so adding a shard moves only about its share of the carts. Index sets of users and sites then span all
+ * shards and are queried on all of them.
+ * <p/>
+ * In mode "site" all carts of a base site live on one shard, so the index sets of a site are on one cluster as well.
+ * A site is assigned by the directory hash directoryKey on the default shard, then by siteAssignments, e.g.
+ * "electronics:eu,apparel:us", else it stays on the default shard. The directory is read every refreshMillis. While a
+ * site is being moved its directory value is "source&gt;target": carts are written to the target and read from both.
+ * Carts are looked up by code without knowing their site, so the shard a cart has been found on last is remembered
+ * for at most maxRememberedCarts carts.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartShardRouter
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CartShardRouter.class);
+
+	public static final String MODE_SITE = "site";
+	public static final String MODE_HASH = "hash";
+
+	private static final String MOVING = ">";
+
+	private final Map<String, String> rememberedShards = Collections.synchronizedMap(new LinkedHashMap<String, String>(
+			16, 0.75F, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, String> eldest)
+		{
+			return size() > getMaxRememberedCarts();
+		}
+	});
+	private final ReentrantLock directoryLock = new ReentrantLock();
+	private volatile Map<String, String> directory = Collections.emptyMap();
+	private volatile long directoryRefreshedAt;
+	private NavigableMap<Long, String> ring = Collections.emptyNavigableMap();
+	private Map<String, String> assignments = Collections.emptyMap();
+
+	private List<String> shards = Collections.emptyList();
+	private String mode = MODE_SITE;
+	private String siteAssignments;
+	private int virtualNodes = 128;
+	private int maxRememberedCarts = 10000;
+	private long refreshMillis = 10000;
+	private String directoryKey = "rediscart:shards:sites";
+	private RedisTemplate<String, Object> redisTemplate;
+
+	public void init()
+	{
+		if (getShards().isEmpty())
+		{
+			throw new IllegalStateException("At least one shard is required");
+		}
+		if (!MODE_SITE.equals(getMode()) && !MODE_HASH.equals(getMode()))
+		{
+			throw new IllegalStateException("Unknown shard mode " + getMode() + ", use " + MODE_SITE + " or " + MODE_HASH);
+		}
+		final NavigableMap<Long, String> points = new TreeMap<>();
+		for (final String shard : getShards())
+		{
+			for (int i = 0; i < getVirtualNodes(); i++)
+			{
+				points.put(Long.valueOf(hash(shard + "#" + i)), shard);
+			}
+		}
+		ring = points;
+
+		final Map<String, String> parsed = new HashMap<>();
+		for (final String assignment : StringUtils.split(StringUtils.defaultString(getSiteAssignments()), ','))
+		{
+			final String siteId = StringUtils.substringBefore(assignment, ":").trim();
+			final String shard = StringUtils.substringAfter(assignment, ":").trim();
+			checkShard(shard);
+			parsed.put(siteId, shard);
+		}
+		assignments = parsed;
+	}
+
+	/**
+	 * @return whether carts are placed by their base site
+	 */
+	public boolean isRoutedBySite()
+	{
+		return MODE_SITE.equals(getMode());
+	}
+
+	/**
+	 * @return the shard a cart is saved and indexed on
+	 */
+	public String getWriteShard(final String cartCode, final String siteId)
+	{
+		if (!isRoutedBySite())
+		{
+			return getRingShard(cartCode);
+		}
+		if (StringUtils.isNotBlank(siteId))
+		{
+			return getSiteShard(siteId);
+		}
+		final String remembered = rememberedShards.get(cartCode);
+		return remembered == null ? getShards().get(0) : remembered;
+	}
+
+	/**
+	 * @return the shards to look for a cart on, most likely first
+	 */
+	public List<String> getReadShards(final String cartCode)
+	{
+		if (!isRoutedBySite())
+		{
+			return Collections.singletonList(getRingShard(cartCode));
+		}
+		final Set<String> result = new LinkedHashSet<>(getShards().size());
+		final String remembered = rememberedShards.get(cartCode);
+		if (remembered != null)
+		{
+			result.add(remembered);
+		}
+		result.addAll(getShards());
+		return new ArrayList<>(result);
+	}
+
+	/**
+	 * @return the shards the indexes matching the criteria may be on
+	 */
+	public List<String> getIndexShards(final CartIndex criteria)
+	{
+		if (isRoutedBySite() && StringUtils.isNotBlank(criteria.getSiteId()))
+		{
+			final String target = getSiteShard(criteria.getSiteId());
+			final String source = getMovingSource(criteria.getSiteId());
+			return source == null ? Collections.singletonList(target) : new ArrayList<>(Arrays.asList(target, source));
+		}
+		if (StringUtils.isNotBlank(criteria.getCode()))
+		{
+			return getReadShards(criteria.getCode());
+		}
+		return getShards();
+	}
+
+	/**
+	 * @return the shard the site is moved away from, null if it is not being moved
+	 */
+	public String getMovingSource(final String siteId)
+	{
+		if (!isRoutedBySite() || StringUtils.isBlank(siteId))
+		{
+			return null;
+		}
+		final String value = getDirectory().get(siteId);
+		return value != null && value.contains(MOVING) ? StringUtils.substringBefore(value, MOVING) : null;
+	}
+
+	/**
+	 * @return the shard the carts of the site are written to
+	 */
+	public String getSiteShard(final String siteId)
+	{
+		final String value = getDirectory().get(siteId);
+		if (value != null)
+		{
+			return value.contains(MOVING) ? StringUtils.substringAfter(value, MOVING) : value;
+		}
+		final String assigned = assignments.get(siteId);
+		return assigned == null ? getShards().get(0) : assigned;
+	}
+
+	public void remember(final String cartCode, final String shard)
+	{
+		if (isRoutedBySite())
+		{
+			rememberedShards.put(cartCode, shard);
+		}
+	}
+
+	public void forget(final String cartCode)
+	{
+		rememberedShards.remove(cartCode);
+	}
+
+	/**
+	 * Starts writing the carts of the site to the target shard, reading them from both shards. Every node picks this up
+	 * within refreshMillis.
+	 *
+	 * @return the shard the site is moved away from
+	 */
+	public String startMove(final String siteId, final String targetShard)
+	{
+		if (!isRoutedBySite())
+		{
+			throw new IllegalStateException("Carts are placed by the hash of their code, sites cannot be moved");
+		}
+		checkShard(targetShard);
+		refreshDirectory();
+		final String movingSource = getMovingSource(siteId);
+		if (movingSource != null && !targetShard.equals(getSiteShard(siteId)))
+		{
+			throw new IllegalStateException("Site " + siteId + " is being moved to shard " + getSiteShard(siteId)
+					+ ", finish that move first");
+		}
+		final String source = movingSource == null ? getSiteShard(siteId) : movingSource;
+		if (source.equals(targetShard))
+		{
+			throw new IllegalArgumentException("Site " + siteId + " is on shard " + targetShard + " already");
+		}
+		getRedisTemplate().opsForHash().put(getDirectoryKey(), siteId, source + MOVING + targetShard);
+		refreshDirectory();
+		LOG.info("Moving site {} from shard {} to shard {}", siteId, source, targetShard);
+		return source;
+	}
+
+	/**
+	 * Stops reading the carts of the site from the shard they have been moved away from.
+	 */
+	public void finishMove(final String siteId, final String targetShard)
+	{
+		checkShard(targetShard);
+		getRedisTemplate().opsForHash().put(getDirectoryKey(), siteId, targetShard);
+		refreshDirectory();
+		LOG.info("Site {} moved to shard {}", siteId, targetShard);
+	}
+
+	/**
+	 * @return the directory as last read, the value of a site being moved is "source&gt;target"
+	 */
+	public Map<String, String> getDirectory()
+	{
+		if (isRoutedBySite() && System.currentTimeMillis() - directoryRefreshedAt > getRefreshMillis()
+				&& directoryLock.tryLock())
+		{
+			try
+			{
+				refreshDirectory();
+			}
+			finally
+			{
+				directoryLock.unlock();
+			}
+		}
+		return directory;
+	}
+
+	private void refreshDirectory()
+	{
+		try
+		{
+			final Map<String, String> read = new HashMap<>();
+			getRedisTemplate().opsForHash().entries(getDirectoryKey())
+					.forEach((siteId, value) -> read.put(siteId.toString(), value.toString()));
+			directory = read;
+		}
+		catch (final RuntimeException e)
+		{
+			// keep routing by the directory read before
+			LOG.warn("Could not read the shard directory " + getDirectoryKey(), e);
+		}
+		directoryRefreshedAt = System.currentTimeMillis();
+	}
+
+	private String getRingShard(final String cartCode)
+	{
+		final Map.Entry<Long, String> point = ring.ceilingEntry(Long.valueOf(hash(StringUtils.defaultString(cartCode))));
+		return point == null ? ring.firstEntry().getValue() : point.getValue();
+	}
+
+	private void checkShard(final String shard)
+	{
+		if (!getShards().contains(shard))
+		{
+			throw new IllegalArgumentException("Unknown shard " + shard + ", the shards are " + getShards());
+		}
+	}
+
+	private static long hash(final String value)
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++)
+			{
+				hash = hash << 8 | digest[i] & 0xFF;
+			}
+			return hash;
+		}
+		catch (final NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the shards
+	 */
+	public List<String> getShards()
+	{
+		return shards;
+	}
+
+	/**
+	 * @param shards
+	 *           the shards to set
+	 */
+	public void setShards(final List<String> shards)
+	{
+		this.shards = shards;
+	}
+
+	/**
+	 * @return the mode
+	 */
+	public String getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * @param mode
+	 *           the mode to set
+	 */
+	public void setMode(final String mode)
+	{
+		this.mode = mode;
+	}
+
+	/**
+	 * @return the siteAssignments
+	 */
+	public String getSiteAssignments()
+	{
+		return siteAssignments;
+	}
+
+	/**
+	 * @param siteAssignments
+	 *           the siteAssignments to set
+	 */
+	public void setSiteAssignments(final String siteAssignments)
+	{
+		this.siteAssignments = siteAssignments;
+	}
+
+	/**
+	 * @return the virtualNodes
+	 */
+	public int getVirtualNodes()
+	{
+		return virtualNodes;
+	}
+
+	/**
+	 * @param virtualNodes
+	 *           the virtualNodes to set
+	 */
+	public void setVirtualNodes(final int virtualNodes)
+	{
+		this.virtualNodes = virtualNodes;
+	}
+
+	/**
+	 * @return the maxRememberedCarts
+	 */
+	public int getMaxRememberedCarts()
+	{
+		return maxRememberedCarts;
+	}
+
+	/**
+	 * @param maxRememberedCarts
+	 *           the maxRememberedCarts to set
+	 */
+	public void setMaxRememberedCarts(final int maxRememberedCarts)
+	{
+		this.maxRememberedCarts = maxRememberedCarts;
+	}
+
+	/**
+	 * @return the refreshMillis
+	 */
+	public long getRefreshMillis()
+	{
+		return refreshMillis;
+	}
+
+	/**
+	 * @param refreshMillis
+	 *           the refreshMillis to set
+	 */
+	public void setRefreshMillis(final long refreshMillis)
+	{
+		this.refreshMillis = refreshMillis;
+	}
+
+	/**
+	 * @return the directoryKey
+	 */
+	public String getDirectoryKey()
+	{
+		return directoryKey;
+	}
+
+	/**
+	 * @param directoryKey
+	 *           the directoryKey to set
+	 */
+	public void setDirectoryKey(final String directoryKey)
+	{
+		this.directoryKey = directoryKey;
+	}
+
+	/**
+	 * @return the redisTemplate
+	 */
+	public RedisTemplate<String, Object> getRedisTemplate()
+	{
+		return redisTemplate;
+	}
+
+	/**
+	 * @param redisTemplate
+	 *           the redisTemplate to set
+	 */
+	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	{
+		this.redisTemplate = redisTemplate;
+	}
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import de.hybris.platform.promotions.jalo.PromotionResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.exceptions.CartStoreUnavailableException;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+import com.sap.rediscart.util.NearCartCache;
+import com.sap.rediscart.util.RedisCircuitBreaker;
+import com.sap.rediscart.util.RedisKeyGenerator;
+
+
+/**
+ * Decorates another {@link CartStore} with the {@link RedisCircuitBreaker} of the nodes its keys live on. Every call
+ * records its latency, or that it found redis unavailable, with the breakers of the nodes it touches. A call spanning
+ * several nodes is recorded with all of them.
+ * <p/>
+ * While the breaker of a node is open, or when a read finds the node unavailable, reads are degraded instead of
+ * failing: carts come from the {@link NearCartCache}, or are not found if it does not hold them, index lookups find
+ * nothing and carts have no promotion results. Writes to such a node throw a {@link CartStoreUnavailableException}
+ * without calling it, the {@link JournalingCartStore} above journals them. A cart served from the near cache keeps the
+ * version it has been cached at, so its journaled save is only replayed if redis still holds that version and cannot
+ * overwrite newer state. Cursors and partitions are left to the delegate, they serve maintenance jobs which can fail
+ * and resume.
+ * <p/>
+ * The breaker maps keys to the nodes of a single cluster, so the delegate must not be a {@link ShardedCartStore} while
+ * the breaker is enabled: failures on one shard would open the breakers of unrelated nodes of another.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CircuitBreakingCartStore implements CartStore
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CircuitBreakingCartStore.class);
+
+	private CartStore delegate;
+	private RedisCircuitBreaker redisCircuitBreaker;
+	private RedisKeyGenerator redisKeyGenerator;
+	private NearCartCache nearCartCache;
+	private RedisMetrics redisMetrics;
+
+	public void init()
+	{
+		if (getRedisCircuitBreaker().isEnabled() && getDelegate() instanceof ShardedCartStore)
+		{
+			throw new IllegalStateException("The circuit breaker only knows the nodes of one redis cluster and cannot "
+					+ "guard the shardedCartStore, set rediscart.breaker.enabled=false");
+		}
+	}
+
+	@Override
+	public RedisCart load(final String cartCode)
+	{
+		if (StringUtils.isBlank(cartCode))
+		{
+			return getDelegate().load(cartCode);
+		}
+		final RedisCart cart;
+		try
+		{
+			cart = call(Collections.singleton(getCartNode(cartCode)), () -> getDelegate().load(cartCode));
+		}
+		catch (final RuntimeException e)
+		{
+			return fallBackOrRethrow(e, () -> loadDegraded(cartCode));
+		}
+		remember(cartCode, cart);
+		return cart;
+	}
+
+	/**
+	 * Only the carts on nodes which can be called are loaded, the others are degraded. A trial call of a half open
+	 * breaker is made with the carts of its node in the batch.
+	 */
+	@Override
+	public Map<String, RedisCart> loadBatch(final Collection<String> cartCodes)
+	{
+		final Map<String, Boolean> allowedNodes = new HashMap<>();
+		final Set<String> nodes = new HashSet<>();
+		final Set<String> toLoad = new LinkedHashSet<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isNotBlank(cartCode))
+			{
+				final String node = getCartNode(cartCode);
+				if (allowedNodes.computeIfAbsent(node, n -> Boolean.valueOf(getRedisCircuitBreaker().allowRequest(n)))
+						.booleanValue())
+				{
+					nodes.add(node);
+					toLoad.add(cartCode);
+				}
+			}
+		}
+		if (allowedNodes.containsValue(Boolean.FALSE))
+		{
+			getRedisMetrics().recordResilience(RedisMetrics.RESILIENCE_REJECTED, 1);
+		}
+
+		Map<String, RedisCart> loaded = Collections.emptyMap();
+		if (!toLoad.isEmpty())
+		{
+			try
+			{
+				loaded = measure(nodes, () -> getDelegate().loadBatch(toLoad));
+			}
+			catch (final RuntimeException e)
+			{
+				// all carts of the batch are degraded
+				fallBackOrRethrow(e, () -> null);
+				toLoad.clear();
+			}
+		}
+
+		final Map<String, RedisCart> carts = new LinkedHashMap<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isBlank(cartCode))
+			{
+				continue;
+			}
+			final RedisCart cart;
+			if (toLoad.contains(cartCode))
+			{
+				cart = loaded.get(cartCode);
+				remember(cartCode, cart);
+			}
+			else
+			{
+				cart = loadDegraded(cartCode);
+			}
+			if (cart != null)
+			{
+				carts.put(cartCode, cart);
+			}
+		}
+		return carts;
+	}
+
+	@Override
+	public Map<String, RedisCart> peekBatch(final Collection<String> cartCodes)
+	{
+		return getDelegate().peekBatch(cartCodes);
+	}
+
+	@Override
+	public void save(final String cartCode, final RedisCart cart)
+	{
+		call(Collections.singleton(getCartNode(cartCode)), () -> {
+			getDelegate().save(cartCode, cart);
+			return null;
+		});
+		getNearCartCache().put(cartCode, cart);
+	}
+
+	@Override
+	public Set<String> remove(final Collection<CartIndex> carts)
+	{
+		final Set<String> nodes = new HashSet<>();
+		for (final CartIndex cart : carts)
+		{
+			if (StringUtils.isNotBlank(cart.getCode()))
+			{
+				nodes.add(getCartNode(cart.getCode()));
+			}
+		}
+		final Set<String> removedCodes = call(nodes, () -> getDelegate().remove(carts));
+		for (final CartIndex cart : carts)
+		{
+			getNearCartCache().remove(cart.getCode());
+		}
+		return removedCodes;
+	}
+
+	@Override
+	public Set<String> removeUnchanged(final Collection<CartHeader> carts)
+	{
+		final Set<String> nodes = new HashSet<>();
+		for (final CartHeader cart : carts)
+		{
+			if (StringUtils.isNotBlank(cart.getCode()))
+			{
+				nodes.add(getCartNode(cart.getCode()));
+			}
+		}
+		final Set<String> removedCodes = call(nodes, () -> getDelegate().removeUnchanged(carts));
+		removedCodes.forEach(getNearCartCache()::remove);
+		return removedCodes;
+	}
+
+	@Override
+	public void index(final CartIndex cart)
+	{
+		call(getIndexNodes(cart), () -> {
+			getDelegate().index(cart);
+			return null;
+		});
+	}
+
+	@Override
+	public Set<String> findCartCodes(final CartIndex criteria)
+	{
+		try
+		{
+			return call(getIndexNodes(criteria), () -> getDelegate().findCartCodes(criteria));
+		}
+		catch (final RuntimeException e)
+		{
+			return fallBackOrRethrow(e, () -> {
+				getRedisMetrics().recordResilience(RedisMetrics.RESILIENCE_EMPTY_READS, 1);
+				return new LinkedHashSet<>();
+			});
+		}
+	}
+
+	@Override
+	public void unindex(final CartIndex cart)
+	{
+		call(getIndexNodes(cart), () -> {
+			getDelegate().unindex(cart);
+			return null;
+		});
+	}
+
+	@Override
+	public long countCartCodes(final CartIndex criteria)
+	{
+		try
+		{
+			return call(getIndexNodes(criteria), () -> Long.valueOf(getDelegate().countCartCodes(criteria))).longValue();
+		}
+		catch (final RuntimeException e)
+		{
+			return fallBackOrRethrow(e, () -> {
+				getRedisMetrics().recordResilience(RedisMetrics.RESILIENCE_EMPTY_READS, 1);
+				return Long.valueOf(0L);
+			}).longValue();
+		}
+	}
+
+	@Override
+	public CartCursor openCursor(final CartIndex criteria, final int batchSize, final String position)
+	{
+		return getDelegate().openCursor(criteria, batchSize, position);
+	}
+
+	@Override
+	public List<String> getPartitions()
+	{
+		return getDelegate().getPartitions();
+	}
+
+	@Override
+	public CartCursor openPartitionCursor(final String partition, final int batchSize, final String position)
+	{
+		return getDelegate().openPartitionCursor(partition, batchSize, position);
+	}
+
+	@Override
+	public void savePromotionResult(final String cartCode, final String promotionResultPk, final PromotionResult promotionResult)
+	{
+		call(Collections.singleton(getCartNode(cartCode)), () -> {
+			getDelegate().savePromotionResult(cartCode, promotionResultPk, promotionResult);
+			return null;
+		});
+	}
+
+	@Override
+	public void removePromotionResult(final String cartCode, final String promotionResultPk)
+	{
+		call(Collections.singleton(getCartNode(cartCode)), () -> {
+			getDelegate().removePromotionResult(cartCode, promotionResultPk);
+			return null;
+		});
+	}
+
+	@Override
+	public Collection<PromotionResult> loadPromotionResults(final String cartCode)
+	{
+		try
+		{
+			return call(Collections.singleton(getCartNode(cartCode)), () -> getDelegate().loadPromotionResults(cartCode));
+		}
+		catch (final RuntimeException e)
+		{
+			return fallBackOrRethrow(e, () -> {
+				getRedisMetrics().recordResilience(RedisMetrics.RESILIENCE_EMPTY_READS, 1);
+				return new ArrayList<>();
+			});
+		}
+	}
+
+	/**
+	 * Calls the delegate if the breakers of all nodes allow it, throws a {@link CartStoreUnavailableException}
+	 * otherwise.
+	 */
+	private <T> T call(final Set<String> nodes, final Supplier<T> supplier)
+	{
+		for (final String node : nodes)
+		{
+			if (!getRedisCircuitBreaker().allowRequest(node))
+			{
+				getRedisMetrics().recordResilience(RedisMetrics.RESILIENCE_REJECTED, 1);
+				throw new CartStoreUnavailableException(node);
+			}
+		}
+		return measure(nodes, supplier);
+	}
+
+	private <T> T measure(final Set<String> nodes, final Supplier<T> supplier)
+	{
+		final long start = System.nanoTime();
+		try
+		{
+			final T result = supplier.get();
+			final long nanos = System.nanoTime() - start;
+			nodes.forEach(node -> getRedisCircuitBreaker().recordSuccess(node, nanos));
+			return result;
+		}
+		catch (final RuntimeException e)
+		{
+			final long nanos = System.nanoTime() - start;
+			if (RedisCircuitBreaker.isUnavailable(e))
+			{
+				nodes.forEach(getRedisCircuitBreaker()::recordFailure);
+			}
+			else
+			{
+				// redis has answered, e.g. with a version conflict
+				nodes.forEach(node -> getRedisCircuitBreaker().recordSuccess(node, nanos));
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the fallback if the exception tells that redis is unavailable, rethrows it otherwise
+	 */
+	private <T> T fallBackOrRethrow(final RuntimeException exception, final Supplier<T> fallback)
+	{
+		if (!RedisCircuitBreaker.isUnavailable(exception))
+		{
+			throw exception;
+		}
+		if (!(exception instanceof CartStoreUnavailableException))
+		{
+			LOG.warn("Redis is unavailable, serving a degraded read: {}", exception.getMessage());
+		}
+		return fallback.get();
+	}
+
+	private RedisCart loadDegraded(final String cartCode)
+	{
+		final RedisCart cart = getNearCartCache().get(cartCode);
+		getRedisMetrics().recordResilience(
+				cart != null ? RedisMetrics.RESILIENCE_NEAR_CACHE_READS : RedisMetrics.RESILIENCE_EMPTY_READS, 1);
+		return cart;
+	}
+
+	private void remember(final String cartCode, final RedisCart cart)
+	{
+		if (cart != null)
+		{
+			getNearCartCache().remember(cartCode, cart);
+		}
+		else
+		{
+			getNearCartCache().remove(cartCode);
+		}
+	}
+
+	private String getCartNode(final String cartCode)
+	{
+		return getRedisCircuitBreaker().getNode(getRedisKeyGenerator().generateCartKey(cartCode));
+	}
+
+	private Set<String> getIndexNodes(final CartIndex cart)
+	{
+		final Set<String> nodes = new HashSet<>();
+		if (StringUtils.isNotBlank(cart.getCode()))
+		{
+			nodes.add(getRedisCircuitBreaker().getNode(getRedisKeyGenerator().generateCodeKey(cart.getCode())));
+		}
+		if (StringUtils.isNotBlank(cart.getUserId()))
+		{
+			nodes.add(getRedisCircuitBreaker().getNode(getRedisKeyGenerator().generateUserIdKey(cart.getUserId())));
+		}
+		if (StringUtils.isNotBlank(cart.getGuid()))
+		{
+			nodes.add(getRedisCircuitBreaker().getNode(getRedisKeyGenerator().generateGuidKey(cart.getGuid())));
+		}
+		if (StringUtils.isNotBlank(cart.getSiteId()))
+		{
+			nodes.add(getRedisCircuitBreaker().getNode(getRedisKeyGenerator().generateSiteIdKey(cart.getSiteId())));
+		}
+		return nodes;
+	}
+
+	/**
+	 * @return the delegate
+	 */
+	public CartStore getDelegate()
+	{
+		return delegate;
+	}
+
+	/**
+	 * @param delegate
+	 *           the delegate to set
+	 */
+	public void setDelegate(final CartStore delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @return the redisCircuitBreaker
+	 */
+	public RedisCircuitBreaker getRedisCircuitBreaker()
+	{
+		return redisCircuitBreaker;
+	}
+
+	/**
+	 * @param redisCircuitBreaker
+	 *           the redisCircuitBreaker to set
+	 */
+	public void setRedisCircuitBreaker(final RedisCircuitBreaker redisCircuitBreaker)
+	{
+		this.redisCircuitBreaker = redisCircuitBreaker;
+	}
+
+	/**
+	 * @return the redisKeyGenerator
+	 */
+	public RedisKeyGenerator getRedisKeyGenerator()
+	{
+		return redisKeyGenerator;
+	}
+
+	/**
+	 * @param redisKeyGenerator
+	 *           the redisKeyGenerator to set
+	 */
+	public void setRedisKeyGenerator(final RedisKeyGenerator redisKeyGenerator)
+	{
+		this.redisKeyGenerator = redisKeyGenerator;
+	}
+
+	/**
+	 * @return the nearCartCache
+	 */
+	public NearCartCache getNearCartCache()
+	{
+		return nearCartCache;
+	}
+
+	/**
+	 * @param nearCartCache
+	 *           the nearCartCache to set
+	 */
+	public void setNearCartCache(final NearCartCache nearCartCache)
+	{
+		this.nearCartCache = nearCartCache;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import de.hybris.platform.promotions.jalo.PromotionResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.sap.rediscart.exceptions.CartVersionConflictException;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+
+
+/**
+ * Keeps carts in concurrent maps of this JVM, for benchmarks and local tests without a redis cluster. Saves are
+ * compare-and-set on the stored version, so the optimistic locking behaves as with redis, but nothing is serialized:
+ * loading returns the saved instance. Leases are not supported, nothing is ever leased by somebody else.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class InMemoryCartStore implements CartStore
+{
+	private static final String PARTITION = "memory";
+
+	private final ConcurrentMap<String, VersionedCart> carts = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Set<String>> indexes = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Set<String>> recordedIndexes = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, ConcurrentMap<String, PromotionResult>> promotionResults = new ConcurrentHashMap<>();
+
+	@Override
+	public RedisCart load(final String cartCode)
+	{
+		if (StringUtils.isBlank(cartCode))
+		{
+			return null;
+		}
+		final VersionedCart versioned = carts.get(cartCode);
+		if (versioned == null)
+		{
+			return null;
+		}
+		versioned.cart.setRedisVersion(versioned.version);
+		return versioned.cart;
+	}
+
+	@Override
+	public Map<String, RedisCart> loadBatch(final Collection<String> cartCodes)
+	{
+		final Map<String, RedisCart> result = new LinkedHashMap<>();
+		for (final String cartCode : cartCodes)
+		{
+			final RedisCart cart = load(cartCode);
+			if (cart != null)
+			{
+				result.put(cartCode, cart);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Carts do not expire here, so this is the same as loading them.
+	 */
+	@Override
+	public Map<String, RedisCart> peekBatch(final Collection<String> cartCodes)
+	{
+		return loadBatch(cartCodes);
+	}
+
+	@Override
+	public void save(final String cartCode, final RedisCart cart)
+	{
+		final long expectedVersion = cart.getRedisVersion();
+		final VersionedCart updated = new VersionedCart(cart, expectedVersion + 1);
+		final boolean saved;
+		if (expectedVersion == 0)
+		{
+			saved = carts.putIfAbsent(cartCode, updated) == null;
+		}
+		else
+		{
+			final VersionedCart current = carts.get(cartCode);
+			saved = current != null && current.version == expectedVersion && carts.replace(cartCode, current, updated);
+		}
+		if (!saved)
+		{
+			throw new CartVersionConflictException(cartCode, expectedVersion);
+		}
+		cart.setRedisVersion(updated.version);
+	}
+
+	@Override
+	public Set<String> remove(final Collection<CartIndex> toRemove)
+	{
+		final Set<String> removedCodes = new LinkedHashSet<>();
+		for (final CartIndex cart : toRemove)
+		{
+			final String code = cart.getCode();
+			if (StringUtils.isBlank(code))
+			{
+				continue;
+			}
+			carts.remove(code);
+			removeDependents(cart);
+			removedCodes.add(code);
+		}
+		return removedCodes;
+	}
+
+	@Override
+	public Set<String> removeUnchanged(final Collection<CartHeader> toRemove)
+	{
+		final Set<String> removedCodes = new LinkedHashSet<>();
+		for (final CartHeader header : toRemove)
+		{
+			final String code = header.getCode();
+			final VersionedCart current = StringUtils.isBlank(code) ? null : carts.get(code);
+			if (current != null && current.version == header.getVersion() && carts.remove(code, current))
+			{
+				removeDependents(header.getIndex());
+				removedCodes.add(code);
+			}
+		}
+		return removedCodes;
+	}
+
+	private void removeDependents(final CartIndex cart)
+	{
+		final String code = cart.getCode();
+		promotionResults.remove(code);
+		final Set<String> indexKeys = new LinkedHashSet<>(getIndexKeys(cart));
+		final Set<String> recorded = recordedIndexes.remove(code);
+		if (recorded != null)
+		{
+			indexKeys.addAll(recorded);
+		}
+		for (final String indexKey : indexKeys)
+		{
+			final Set<String> codes = indexes.get(indexKey);
+			if (codes != null)
+			{
+				codes.remove(code);
+			}
+		}
+	}
+
+	@Override
+	public void index(final CartIndex cart)
+	{
+		for (final String indexKey : getIndexKeys(cart))
+		{
+			indexes.computeIfAbsent(indexKey, k -> ConcurrentHashMap.newKeySet()).add(cart.getCode());
+			recordedIndexes.computeIfAbsent(cart.getCode(), k -> ConcurrentHashMap.newKeySet()).add(indexKey);
+		}
+	}
+
+	@Override
+	public Set<String> findCartCodes(final CartIndex criteria)
+	{
+		Set<String> result = null;
+		for (final String indexKey : getIndexKeys(criteria))
+		{
+			final Set<String> codes = indexes.get(indexKey);
+			if (codes == null)
+			{
+				return new LinkedHashSet<>();
+			}
+			if (result == null)
+			{
+				result = new LinkedHashSet<>(codes);
+			}
+			else
+			{
+				result.retainAll(codes);
+			}
+		}
+		return result == null ? new LinkedHashSet<>() : result;
+	}
+
+	@Override
+	public void unindex(final CartIndex cart)
+	{
+		for (final String indexKey : getIndexKeys(cart))
+		{
+			final Set<String> codes = indexes.get(indexKey);
+			if (codes != null)
+			{
+				codes.remove(cart.getCode());
+			}
+			final Set<String> recorded = recordedIndexes.get(cart.getCode());
+			if (recorded != null)
+			{
+				recorded.remove(indexKey);
+			}
+		}
+	}
+
+	@Override
+	public long countCartCodes(final CartIndex criteria)
+	{
+		return findCartCodes(criteria).size();
+	}
+
+	/**
+	 * The matching codes are copied and sorted when the cursor is opened, its position is the number of codes handed
+	 * out so far.
+	 */
+	@Override
+	public CartCursor openCursor(final CartIndex criteria, final int batchSize, final String position)
+	{
+		final List<String> codes = new ArrayList<>(getIndexKeys(criteria).isEmpty() ? carts.keySet()
+				: findCartCodes(criteria));
+		Collections.sort(codes);
+		final int start = Integer.parseInt(StringUtils.defaultIfBlank(position, CartCursor.START));
+		return new CartCursor()
+		{
+			private int offset = start;
+
+			@Override
+			public boolean hasNext()
+			{
+				return offset < codes.size();
+			}
+
+			@Override
+			public List<CartHeader> next()
+			{
+				if (!hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				final List<CartHeader> batch = new ArrayList<>();
+				final int end = Math.min(codes.size(), offset + Math.max(1, batchSize));
+				for (final String code : codes.subList(offset, end))
+				{
+					final VersionedCart versioned = carts.get(code);
+					if (versioned != null)
+					{
+						batch.add(new CartHeader(toCartIndex(code), versioned.version, -1L));
+					}
+				}
+				offset = end;
+				return batch;
+			}
+
+			@Override
+			public String getPosition()
+			{
+				return offset < codes.size() ? String.valueOf(offset) : START;
+			}
+		};
+	}
+
+	@Override
+	public void savePromotionResult(final String cartCode, final String promotionResultPk, final PromotionResult promotionResult)
+	{
+		promotionResults.computeIfAbsent(cartCode, k -> new ConcurrentHashMap<>()).put(promotionResultPk, promotionResult);
+	}
+
+	@Override
+	public void removePromotionResult(final String cartCode, final String promotionResultPk)
+	{
+		final Map<String, PromotionResult> results = promotionResults.get(cartCode);
+		if (results != null)
+		{
+			results.remove(promotionResultPk);
+		}
+	}
+
+	@Override
+	public Collection<PromotionResult> loadPromotionResults(final String cartCode)
+	{
+		final Map<String, PromotionResult> results = promotionResults.get(cartCode);
+		return results == null ? new ArrayList<>() : new ArrayList<>(results.values());
+	}
+
+	@Override
+	public List<String> getPartitions()
+	{
+		return Collections.singletonList(PARTITION);
+	}
+
+	@Override
+	public CartCursor openPartitionCursor(final String partition, final int batchSize, final String position)
+	{
+		if (!PARTITION.equals(partition))
+		{
+			throw new IllegalArgumentException("No partition " + partition + " in memory");
+		}
+		return openCursor(new CartIndex(null, null, null, null), batchSize, position);
+	}
+
+	private CartIndex toCartIndex(final String code)
+	{
+		String userId = null;
+		String guid = null;
+		String siteId = null;
+		for (final String indexKey : recordedIndexes.getOrDefault(code, Collections.emptySet()))
+		{
+			if (indexKey.startsWith("userId:"))
+			{
+				userId = indexKey.substring("userId:".length());
+			}
+			else if (indexKey.startsWith("guid:"))
+			{
+				guid = indexKey.substring("guid:".length());
+			}
+			else if (indexKey.startsWith("siteId:"))
+			{
+				siteId = indexKey.substring("siteId:".length());
+			}
+		}
+		return new CartIndex(code, userId, guid, siteId);
+	}
+
+	private List<String> getIndexKeys(final CartIndex cart)
+	{
+		final List<String> indexKeys = new ArrayList<>(4);
+		if (StringUtils.isNotBlank(cart.getCode()))
+		{
+			indexKeys.add("code:" + cart.getCode());
+		}
+		if (StringUtils.isNotBlank(cart.getUserId()))
+		{
+			indexKeys.add("userId:" + cart.getUserId());
+		}
+		if (StringUtils.isNotBlank(cart.getGuid()))
+		{
+			indexKeys.add("guid:" + cart.getGuid());
+		}
+		if (StringUtils.isNotBlank(cart.getSiteId()))
+		{
+			indexKeys.add("siteId:" + cart.getSiteId());
+		}
+		return indexKeys;
+	}
+
+	/**
+	 * Immutable pair of a cart and its version, replaced as a whole on every save.
+	 */
+	private static final class VersionedCart
+	{
+		private final RedisCart cart;
+		private final long version;
+
+		private VersionedCart(final RedisCart cart, final long version)
+		{
+			this.cart = cart;
+			this.version = version;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import de.hybris.platform.promotions.jalo.PromotionResult;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sap.rediscart.constants.RediscartConstants;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.metrics.HotCartDetector;
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.metrics.ThreadRedisUsage;
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+
+
+/**
+ * Decorates another {@link CartStore} and records latency and errors per operation in the {@link RedisMetrics}, so
+ * different stores can be compared under the same load. Cart reads and writes are also passed to the
+ * {@link HotCartDetector} with their payload bytes. The synthetic carts of the warm-up are passed through unmeasured,
+ * they are no customer traffic.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class InstrumentedCartStore implements CartStore
+{
+	private CartStore delegate;
+	private RedisMetrics redisMetrics;
+	private HotCartDetector hotCartDetector;
+
+	@Override
+	public RedisCart load(final String cartCode)
+	{
+		if (isWarmUpCart(cartCode))
+		{
+			return getDelegate().load(cartCode);
+		}
+		final long bytesBefore = ThreadRedisUsage.getBytes();
+		final RedisCart cart = getRedisMetrics().measure(RedisMetrics.CART_GET, () -> getDelegate().load(cartCode));
+		if (cart != null && getHotCartDetector() != null)
+		{
+			getHotCartDetector().recordRead(cartCode, ThreadRedisUsage.getBytes() - bytesBefore, cart.getEntries().size());
+		}
+		return cart;
+	}
+
+	@Override
+	public Map<String, RedisCart> loadBatch(final Collection<String> cartCodes)
+	{
+		final Map<String, RedisCart> carts = getRedisMetrics().measure(RedisMetrics.CART_GET_BATCH,
+				() -> getDelegate().loadBatch(cartCodes));
+		if (getHotCartDetector() != null)
+		{
+			// one MGET for all carts, the bytes of a single cart are not known
+			carts.forEach((cartCode, cart) -> getHotCartDetector().recordRead(cartCode, 0L, cart.getEntries().size()));
+		}
+		return carts;
+	}
+
+	@Override
+	public Map<String, RedisCart> peekBatch(final Collection<String> cartCodes)
+	{
+		// not passed to the hot cart detector, peeking is no traffic of the cart
+		return getRedisMetrics().measure(RedisMetrics.CART_GET_BATCH, () -> getDelegate().peekBatch(cartCodes));
+	}
+
+	@Override
+	public void save(final String cartCode, final RedisCart cart)
+	{
+		if (isWarmUpCart(cartCode))
+		{
+			getDelegate().save(cartCode, cart);
+			return;
+		}
+		final int entryCount = cart.getEntries().size();
+		if (getHotCartDetector() != null)
+		{
+			getHotCartDetector().checkGrowth(cartCode, entryCount);
+		}
+		final long bytesBefore = ThreadRedisUsage.getBytes();
+		getRedisMetrics().measure(RedisMetrics.CART_SET, () -> {
+			getDelegate().save(cartCode, cart);
+			return null;
+		});
+		if (getHotCartDetector() != null)
+		{
+			getHotCartDetector().recordWrite(cartCode, ThreadRedisUsage.getBytes() - bytesBefore, entryCount);
+		}
+	}
+
+	@Override
+	public Set<String> remove(final Collection<CartIndex> carts)
+	{
+		if (!carts.isEmpty() && carts.stream().allMatch(cart -> isWarmUpCart(cart.getCode())))
+		{
+			return getDelegate().remove(carts);
+		}
+		return getRedisMetrics().measure(RedisMetrics.CART_REMOVE, () -> getDelegate().remove(carts));
+	}
+
+	@Override
+	public Set<String> removeUnchanged(final Collection<CartHeader> carts)
+	{
+		return getRedisMetrics().measure(RedisMetrics.CART_REMOVE, () -> getDelegate().removeUnchanged(carts));
+	}
+
+	@Override
+	public void index(final CartIndex cart)
+	{
+		getRedisMetrics().measure(RedisMetrics.INDEX_WRITE, () -> {
+			getDelegate().index(cart);
+			return null;
+		});
+	}
+
+	@Override
+	public Set<String> findCartCodes(final CartIndex criteria)
+	{
+		return getRedisMetrics().measure(RedisMetrics.INDEX_READ, () -> getDelegate().findCartCodes(criteria));
+	}
+
+	@Override
+	public void unindex(final CartIndex cart)
+	{
+		getRedisMetrics().measure(RedisMetrics.INDEX_WRITE, () -> {
+			getDelegate().unindex(cart);
+			return null;
+		});
+	}
+
+	@Override
+	public long countCartCodes(final CartIndex criteria)
+	{
+		return getRedisMetrics().measure(RedisMetrics.INDEX_READ, () -> Long.valueOf(getDelegate().countCartCodes(criteria)))
+				.longValue();
+	}
+
+	/**
+	 * Opening a cursor and every page it reads are measured as scans.
+	 */
+	@Override
+	public CartCursor openCursor(final CartIndex criteria, final int batchSize, final String position)
+	{
+		return instrument(getRedisMetrics().measure(RedisMetrics.INDEX_SCAN,
+				() -> getDelegate().openCursor(criteria, batchSize, position)));
+	}
+
+	@Override
+	public List<String> getPartitions()
+	{
+		return getDelegate().getPartitions();
+	}
+
+	@Override
+	public CartCursor openPartitionCursor(final String partition, final int batchSize, final String position)
+	{
+		return instrument(getRedisMetrics().measure(RedisMetrics.INDEX_SCAN,
+				() -> getDelegate().openPartitionCursor(partition, batchSize, position)));
+	}
+
+	@Override
+	public void savePromotionResult(final String cartCode, final String promotionResultPk, final PromotionResult promotionResult)
+	{
+		getRedisMetrics().measure(RedisMetrics.PROMOTION_RESULT_WRITE, () -> {
+			getDelegate().savePromotionResult(cartCode, promotionResultPk, promotionResult);
+			return null;
+		});
+	}
+
+	@Override
+	public void removePromotionResult(final String cartCode, final String promotionResultPk)
+	{
+		getRedisMetrics().measure(RedisMetrics.PROMOTION_RESULT_REMOVE, () -> {
+			getDelegate().removePromotionResult(cartCode, promotionResultPk);
+			return null;
+		});
+	}
+
+	@Override
+	public Collection<PromotionResult> loadPromotionResults(final String cartCode)
+	{
+		return getRedisMetrics().measure(RedisMetrics.PROMOTION_RESULT_READ,
+				() -> getDelegate().loadPromotionResults(cartCode));
+	}
+
+	private CartCursor instrument(final CartCursor cursor)
+	{
+		return new CartCursor()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return getRedisMetrics().measure(RedisMetrics.INDEX_SCAN, () -> Boolean.valueOf(cursor.hasNext()))
+						.booleanValue();
+			}
+
+			@Override
+			public List<CartHeader> next()
+			{
+				return getRedisMetrics().measure(RedisMetrics.INDEX_SCAN, cursor::next);
+			}
+
+			@Override
+			public String getPosition()
+			{
+				return cursor.getPosition();
+			}
+		};
+	}
+
+	private boolean isWarmUpCart(final String cartCode)
+	{
+		return cartCode != null && cartCode.startsWith(RediscartConstants.WARM_UP_CART_CODE_PREFIX);
+	}
+
+	/**
+	 * @return the delegate
+	 */
+	public CartStore getDelegate()
+	{
+		return delegate;
+	}
+
+	/**
+	 * @param delegate
+	 *           the delegate to set
+	 */
+	public void setDelegate(final CartStore delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+
+	/**
+	 * @return the hotCartDetector
+	 */
+	public HotCartDetector getHotCartDetector()
+	{
+		return hotCartDetector;
+	}
+
+	/**
+	 * @param hotCartDetector
+	 *           the hotCartDetector to set
+	 */
+	public void setHotCartDetector(final HotCartDetector hotCartDetector)
+	{
+		this.hotCartDetector = hotCartDetector;
+	}
+}
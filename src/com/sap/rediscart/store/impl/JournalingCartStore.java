@@ -0,0 +1,653 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import de.hybris.platform.core.Registry;
+import de.hybris.platform.core.Tenant;
+import de.hybris.platform.jalo.JaloSession;
+import de.hybris.platform.promotions.jalo.PromotionResult;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.exceptions.CartLockedException;
+import com.sap.rediscart.exceptions.CartStoreUnavailableException;
+import com.sap.rediscart.exceptions.CartVersionConflictException;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+import com.sap.rediscart.util.RedisCircuitBreaker;
+import com.sap.rediscart.util.RedisClusterPipelineExecutor;
+
+
+/**
+ * Decorates another {@link CartStore} with a fallback for redis being unavailable. Cart saves, index writes and
+ * removals which find redis unreachable, or are rejected by the open circuit breaker of the
+ * {@link CircuitBreakingCartStore} below, are appended to the local {@link CartJournal} instead of being lost. A
+ * replayer thread applies the journal to the delegate in order once redis answers again. Until then this node loads
+ * the journaled state of a cart, and later writes of the same cart are journaled as well, so they are not overtaken by
+ * older ones.
+ * <p/>
+ * A journaled save keeps the version the cart has been loaded with, which is serialized with the cart, and counts as a
+ * save of the next version, so later saves of the cart are journaled on top of it. It is replayed with the same
+ * compare-and-set as any other save: if the cart has been changed on another node meanwhile, the journaled save is
+ * dropped and counted as a failed replay instead of overwriting that change. The journal is local to the node, carts
+ * written to it during an outage only reach the other nodes once it has been replayed.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class JournalingCartStore implements CartStore
+{
+	private static final Logger LOG = LoggerFactory.getLogger(JournalingCartStore.class);
+
+	private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+	private volatile boolean running;
+	private Thread replayer;
+
+	private CartStore delegate;
+	private CartJournal cartJournal;
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private RedisMetrics redisMetrics;
+	private boolean enabled = true;
+	private long replayIntervalMillis = 1000;
+	private int replayBatchSize = 100;
+
+	public void init() throws IOException
+	{
+		if (!isEnabled())
+		{
+			return;
+		}
+		getCartJournal().open();
+		for (final CartJournal.Record record : getCartJournal().read(Integer.MAX_VALUE))
+		{
+			track(record.getType(), record.getCartCode(), record.getSequence(), record.getPayload());
+		}
+		final Tenant tenant = Registry.getCurrentTenantNoFallback();
+		running = true;
+		replayer = new Thread(() -> replayContinuously(tenant), "rediscart-journal-replayer");
+		replayer.setDaemon(true);
+		replayer.start();
+	}
+
+	public void destroy()
+	{
+		running = false;
+		if (replayer != null)
+		{
+			replayer.interrupt();
+		}
+		if (isEnabled())
+		{
+			getCartJournal().close();
+		}
+	}
+
+	/**
+	 * The journaled state is returned for carts with writes waiting to be replayed.
+	 */
+	@Override
+	public RedisCart load(final String cartCode)
+	{
+		final Pending journaled = cartCode == null ? null : pending.get(cartCode);
+		if (journaled != null)
+		{
+			return toCart(journaled);
+		}
+		return getDelegate().load(cartCode);
+	}
+
+	@Override
+	public Map<String, RedisCart> loadBatch(final Collection<String> cartCodes)
+	{
+		if (pending.isEmpty())
+		{
+			return getDelegate().loadBatch(cartCodes);
+		}
+		final List<String> stored = new ArrayList<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (cartCode == null || !pending.containsKey(cartCode))
+			{
+				stored.add(cartCode);
+			}
+		}
+		final Map<String, RedisCart> loaded = stored.isEmpty() ? Collections.emptyMap() : getDelegate().loadBatch(stored);
+		final Map<String, RedisCart> carts = new LinkedHashMap<>();
+		for (final String cartCode : cartCodes)
+		{
+			final Pending journaled = cartCode == null ? null : pending.get(cartCode);
+			final RedisCart cart = journaled != null ? toCart(journaled) : loaded.get(cartCode);
+			if (cart != null)
+			{
+				carts.put(cartCode, cart);
+			}
+		}
+		return carts;
+	}
+
+	@Override
+	public Map<String, RedisCart> peekBatch(final Collection<String> cartCodes)
+	{
+		return getDelegate().peekBatch(cartCodes);
+	}
+
+	@Override
+	public void save(final String cartCode, final RedisCart cart)
+	{
+		if (!isEnabled())
+		{
+			getDelegate().save(cartCode, cart);
+			return;
+		}
+		if (!pending.containsKey(cartCode))
+		{
+			try
+			{
+				getDelegate().save(cartCode, cart);
+				return;
+			}
+			catch (final RuntimeException e)
+			{
+				fallBackOrRethrow(e, cartCode);
+			}
+		}
+		journal(CartJournal.SAVE, cartCode, getRedisClusterPipelineExecutor().serializeValue(cart));
+		cart.setRedisVersion(cart.getRedisVersion() + 1);
+	}
+
+	@Override
+	public Set<String> remove(final Collection<CartIndex> carts)
+	{
+		if (!isEnabled())
+		{
+			return getDelegate().remove(carts);
+		}
+		final Set<String> removedCodes = new LinkedHashSet<>();
+		final List<CartIndex> toJournal = new ArrayList<>();
+		final List<CartIndex> toRemove = new ArrayList<>();
+		for (final CartIndex cart : carts)
+		{
+			(pending.containsKey(cart.getCode()) ? toJournal : toRemove).add(cart);
+		}
+		if (!toRemove.isEmpty())
+		{
+			try
+			{
+				removedCodes.addAll(getDelegate().remove(toRemove));
+				toRemove.clear();
+			}
+			catch (final RuntimeException e)
+			{
+				fallBackOrRethrow(e, toRemove.size() + " carts");
+			}
+		}
+		toJournal.addAll(toRemove);
+		for (final CartIndex cart : toJournal)
+		{
+			journal(CartJournal.REMOVE, cart.getCode(), encode(cart));
+			removedCodes.add(cart.getCode());
+		}
+		return removedCodes;
+	}
+
+	/**
+	 * Carts with journaled writes have changed since their headers were read and are kept. The removals are not
+	 * journaled while redis is unavailable, the carts are simply kept until the next removal run.
+	 */
+	@Override
+	public Set<String> removeUnchanged(final Collection<CartHeader> carts)
+	{
+		if (!isEnabled())
+		{
+			return getDelegate().removeUnchanged(carts);
+		}
+		final List<CartHeader> toRemove = new ArrayList<>();
+		for (final CartHeader cart : carts)
+		{
+			if (!pending.containsKey(cart.getCode()))
+			{
+				toRemove.add(cart);
+			}
+		}
+		try
+		{
+			return toRemove.isEmpty() ? new LinkedHashSet<>() : getDelegate().removeUnchanged(toRemove);
+		}
+		catch (final RuntimeException e)
+		{
+			if (!RedisCircuitBreaker.isUnavailable(e))
+			{
+				throw e;
+			}
+			LOG.debug("Redis is unavailable, {} unchanged carts are kept", Integer.valueOf(toRemove.size()));
+			return new LinkedHashSet<>();
+		}
+	}
+
+	@Override
+	public void index(final CartIndex cart)
+	{
+		if (!isEnabled())
+		{
+			getDelegate().index(cart);
+			return;
+		}
+		if (!pending.containsKey(cart.getCode()))
+		{
+			try
+			{
+				getDelegate().index(cart);
+				return;
+			}
+			catch (final RuntimeException e)
+			{
+				fallBackOrRethrow(e, cart.getCode());
+			}
+		}
+		journal(CartJournal.INDEX, cart.getCode(), encode(cart));
+	}
+
+	@Override
+	public Set<String> findCartCodes(final CartIndex criteria)
+	{
+		return getDelegate().findCartCodes(criteria);
+	}
+
+	@Override
+	public void unindex(final CartIndex cart)
+	{
+		getDelegate().unindex(cart);
+	}
+
+	@Override
+	public long countCartCodes(final CartIndex criteria)
+	{
+		return getDelegate().countCartCodes(criteria);
+	}
+
+	@Override
+	public CartCursor openCursor(final CartIndex criteria, final int batchSize, final String position)
+	{
+		return getDelegate().openCursor(criteria, batchSize, position);
+	}
+
+	@Override
+	public List<String> getPartitions()
+	{
+		return getDelegate().getPartitions();
+	}
+
+	@Override
+	public CartCursor openPartitionCursor(final String partition, final int batchSize, final String position)
+	{
+		return getDelegate().openPartitionCursor(partition, batchSize, position);
+	}
+
+	@Override
+	public void savePromotionResult(final String cartCode, final String promotionResultPk, final PromotionResult promotionResult)
+	{
+		getDelegate().savePromotionResult(cartCode, promotionResultPk, promotionResult);
+	}
+
+	@Override
+	public void removePromotionResult(final String cartCode, final String promotionResultPk)
+	{
+		getDelegate().removePromotionResult(cartCode, promotionResultPk);
+	}
+
+	@Override
+	public Collection<PromotionResult> loadPromotionResults(final String cartCode)
+	{
+		return getDelegate().loadPromotionResults(cartCode);
+	}
+
+	/**
+	 * Applies the journal to the delegate in order, until it is empty or redis fails again. A record which cannot be
+	 * applied for another reason than redis being unavailable, e.g. a save conflicting with a change made on another
+	 * node, is logged and skipped, it would block the journal for good otherwise.
+	 */
+	protected void replay()
+	{
+		while (!getCartJournal().isEmpty())
+		{
+			for (final CartJournal.Record record : getCartJournal().read(getReplayBatchSize()))
+			{
+				try
+				{
+					apply(record);
+					getRedisMetrics().recordResilience(RedisMetrics.RESILIENCE_REPLAYED, 1);
+				}
+				catch (final CartLockedException e)
+				{
+					// being checked out, tried again in the next round
+					LOG.debug("Cart {} is leased, its journaled writes wait", record.getCartCode());
+					return;
+				}
+				catch (final CartVersionConflictException e)
+				{
+					LOG.warn("Journaled save {} of cart {} conflicts with a change made meanwhile, it is dropped",
+							Long.valueOf(record.getSequence()), record.getCartCode());
+					getRedisMetrics().recordResilience(RedisMetrics.RESILIENCE_REPLAY_FAILED, 1);
+				}
+				catch (final RuntimeException e)
+				{
+					if (RedisCircuitBreaker.isUnavailable(e))
+					{
+						LOG.debug("Redis is still unavailable, {} journaled cart writes wait",
+								Integer.valueOf(getCartJournal().size()));
+						return;
+					}
+					LOG.error("Cannot replay the journaled write of cart " + record.getCartCode() + ", it is skipped", e);
+					getRedisMetrics().recordResilience(RedisMetrics.RESILIENCE_REPLAY_FAILED, 1);
+				}
+				getCartJournal().acknowledge(record);
+				pending.computeIfPresent(record.getCartCode(),
+						(code, journaled) -> journaled.sequence <= record.getSequence() ? null : journaled);
+			}
+			if (getCartJournal().isEmpty())
+			{
+				LOG.info("Cart journal replayed");
+			}
+		}
+	}
+
+	private void apply(final CartJournal.Record record)
+	{
+		switch (record.getType())
+		{
+			case CartJournal.SAVE:
+				// saved at the version it has been journaled with, a conflict is not retried
+				getDelegate().save(record.getCartCode(),
+						(RedisCart) getRedisClusterPipelineExecutor().deserializeValue(record.getPayload()));
+				break;
+			case CartJournal.INDEX:
+				getDelegate().index(decode(record.getCartCode(), record.getPayload()));
+				break;
+			case CartJournal.REMOVE:
+				getDelegate().remove(Collections.singletonList(decode(record.getCartCode(), record.getPayload())));
+				break;
+			default:
+				throw new IllegalStateException(
+						"Unknown type " + record.getType() + " of journal record " + record.getSequence());
+		}
+	}
+
+	private void replayContinuously(final Tenant tenant)
+	{
+		if (tenant != null)
+		{
+			Registry.setCurrentTenant(tenant);
+		}
+		try
+		{
+			while (running)
+			{
+				try
+				{
+					Thread.sleep(getReplayIntervalMillis());
+					replay();
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+				catch (final RuntimeException e)
+				{
+					LOG.warn("Replaying the cart journal failed", e);
+				}
+				finally
+				{
+					if (JaloSession.hasCurrentSession())
+					{
+						JaloSession.getCurrentSession().close();
+					}
+				}
+			}
+		}
+		finally
+		{
+			if (tenant != null)
+			{
+				Registry.unsetCurrentTenant();
+			}
+		}
+	}
+
+	/**
+	 * Rethrows the exception unless it tells that redis is unavailable, in which case the write is to be journaled.
+	 */
+	private void fallBackOrRethrow(final RuntimeException exception, final String what)
+	{
+		if (!RedisCircuitBreaker.isUnavailable(exception))
+		{
+			// redis has answered, e.g. with a version conflict
+			throw exception;
+		}
+		if (exception instanceof CartStoreUnavailableException)
+		{
+			LOG.debug("Circuit breaker is open, journaling the write of {}", what);
+		}
+		else
+		{
+			LOG.warn("Redis is unavailable, journaling the write of {}: {}", what, exception.getMessage());
+		}
+	}
+
+	private void journal(final byte type, final String cartCode, final byte[] payload)
+	{
+		final long sequence;
+		try
+		{
+			sequence = getCartJournal().append(type, cartCode, payload);
+		}
+		catch (final IOException e)
+		{
+			throw new IllegalStateException("Cannot journal the write of cart " + cartCode + ", it is lost", e);
+		}
+		track(type, cartCode, sequence, payload);
+		getRedisMetrics().recordResilience(RedisMetrics.RESILIENCE_JOURNALED, 1);
+	}
+
+	private void track(final byte type, final String cartCode, final long sequence, final byte[] payload)
+	{
+		if (type != CartJournal.INDEX)
+		{
+			pending.merge(cartCode, new Pending(sequence, type == CartJournal.SAVE ? payload : null),
+					(older, newer) -> newer.sequence > older.sequence ? newer : older);
+		}
+	}
+
+	/**
+	 * @return the journaled cart at the version its journaled save has given it
+	 */
+	private RedisCart toCart(final Pending journaled)
+	{
+		if (journaled.payload == null)
+		{
+			return null;
+		}
+		final RedisCart cart = (RedisCart) getRedisClusterPipelineExecutor().deserializeValue(journaled.payload);
+		cart.setRedisVersion(cart.getRedisVersion() + 1);
+		return cart;
+	}
+
+	private static byte[] encode(final CartIndex cart)
+	{
+		return StringUtils.join(new String[]
+		{ StringUtils.defaultString(cart.getUserId()), StringUtils.defaultString(cart.getGuid()),
+				StringUtils.defaultString(cart.getSiteId()) }, '\n').getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static CartIndex decode(final String cartCode, final byte[] payload)
+	{
+		final String[] values = new String(payload, StandardCharsets.UTF_8).split("\n", -1);
+		return new CartIndex(cartCode, StringUtils.trimToNull(values[0]), StringUtils.trimToNull(values[1]),
+				StringUtils.trimToNull(values[2]));
+	}
+
+	/**
+	 * @return the delegate
+	 */
+	public CartStore getDelegate()
+	{
+		return delegate;
+	}
+
+	/**
+	 * @param delegate
+	 *           the delegate to set
+	 */
+	public void setDelegate(final CartStore delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @return the cartJournal
+	 */
+	public CartJournal getCartJournal()
+	{
+		return cartJournal;
+	}
+
+	/**
+	 * @param cartJournal
+	 *           the cartJournal to set
+	 */
+	public void setCartJournal(final CartJournal cartJournal)
+	{
+		this.cartJournal = cartJournal;
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *           the enabled to set
+	 */
+	public void setEnabled(final boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the replayIntervalMillis
+	 */
+	public long getReplayIntervalMillis()
+	{
+		return replayIntervalMillis;
+	}
+
+	/**
+	 * @param replayIntervalMillis
+	 *           the replayIntervalMillis to set
+	 */
+	public void setReplayIntervalMillis(final long replayIntervalMillis)
+	{
+		this.replayIntervalMillis = replayIntervalMillis;
+	}
+
+	/**
+	 * @return the replayBatchSize
+	 */
+	public int getReplayBatchSize()
+	{
+		return replayBatchSize;
+	}
+
+	/**
+	 * @param replayBatchSize
+	 *           the replayBatchSize to set
+	 */
+	public void setReplayBatchSize(final int replayBatchSize)
+	{
+		this.replayBatchSize = replayBatchSize;
+	}
+
+	/**
+	 * The latest journaled write of a cart, its serialized state or null if it has been removed.
+	 */
+	private static final class Pending
+	{
+		private final long sequence;
+		private final byte[] payload;
+
+		private Pending(final long sequence, final byte[] payload)
+		{
+			this.sequence = sequence;
+			this.payload = payload;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import de.hybris.platform.servicelayer.model.ModelService;
+import de.hybris.platform.servicelayer.search.FlexibleSearchQuery;
+import de.hybris.platform.servicelayer.search.FlexibleSearchService;
+
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sap.rediscart.model.RedisColdCartModel;
+import com.sap.rediscart.store.ColdCartStorage;
+
+
+/**
+ * Keeps cold carts as {@link RedisColdCartModel} items in the database, where every node can promote them back to
+ * redis. The payload is stored Base64 encoded in a long string column. Models are detached once read, so a job
+ * offloading many carts does not pile them up in the session.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class ModelColdCartStorage implements ColdCartStorage
+{
+	private static final String FIND_COLD_CARTS = "SELECT {" + RedisColdCartModel.PK + "} FROM {"
+			+ RedisColdCartModel._TYPECODE + "} WHERE {" + RedisColdCartModel.CODE + "} IN (?codes)";
+
+	private ModelService modelService;
+	private FlexibleSearchService flexibleSearchService;
+
+	@Override
+	public void write(final String cartCode, final byte[] payload)
+	{
+		final List<RedisColdCartModel> existing = find(Collections.singleton(cartCode));
+		final RedisColdCartModel coldCart = existing.isEmpty() ? getModelService().create(RedisColdCartModel.class)
+				: existing.get(0);
+		coldCart.setCode(cartCode);
+		coldCart.setPayload(Base64.getEncoder().encodeToString(payload));
+		coldCart.setOffloadTime(new Date());
+		getModelService().save(coldCart);
+		getModelService().detach(coldCart);
+	}
+
+	@Override
+	public Map<String, byte[]> readAll(final Collection<String> cartCodes)
+	{
+		final Map<String, byte[]> payloads = new HashMap<>();
+		for (final RedisColdCartModel coldCart : find(cartCodes))
+		{
+			payloads.put(coldCart.getCode(), Base64.getDecoder().decode(coldCart.getPayload()));
+			getModelService().detach(coldCart);
+		}
+		return payloads;
+	}
+
+	@Override
+	public void delete(final Collection<String> cartCodes)
+	{
+		final List<RedisColdCartModel> coldCarts = find(cartCodes);
+		if (!coldCarts.isEmpty())
+		{
+			getModelService().removeAll(coldCarts);
+		}
+	}
+
+	private List<RedisColdCartModel> find(final Collection<String> cartCodes)
+	{
+		if (cartCodes.isEmpty())
+		{
+			return Collections.emptyList();
+		}
+		final FlexibleSearchQuery query = new FlexibleSearchQuery(FIND_COLD_CARTS);
+		query.addQueryParameter("codes", cartCodes);
+		return getFlexibleSearchService().<RedisColdCartModel> search(query).getResult();
+	}
+
+	/**
+	 * @return the modelService
+	 */
+	public ModelService getModelService()
+	{
+		return modelService;
+	}
+
+	/**
+	 * @param modelService
+	 *           the modelService to set
+	 */
+	public void setModelService(final ModelService modelService)
+	{
+		this.modelService = modelService;
+	}
+
+	/**
+	 * @return the flexibleSearchService
+	 */
+	public FlexibleSearchService getFlexibleSearchService()
+	{
+		return flexibleSearchService;
+	}
+
+	/**
+	 * @param flexibleSearchService
+	 *           the flexibleSearchService to set
+	 */
+	public void setFlexibleSearchService(final FlexibleSearchService flexibleSearchService)
+	{
+		this.flexibleSearchService = flexibleSearchService;
+	}
+}
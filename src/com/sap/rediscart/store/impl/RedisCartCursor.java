@@ -0,0 +1,152 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.data.redis.connection.RedisClusterNode;
+
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+
+import redis.clients.jedis.ScanResult;
+
+
+/**
+ * Cursor of the {@link RedisCartStore}. With criteria it walks the first of their index sets with SSCAN, its position
+ * is the SSCAN cursor. Without criteria it walks the cart keys of the given masters one after the other with SCAN, its
+ * position is the index of the master and the SCAN cursor on it, separated by a colon. Each page of codes
+ * costs one SSCAN or SCAN and one pipelined round trip per master for the headers.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+class RedisCartCursor implements CartCursor
+{
+	private final RedisCartStore store;
+	private final List<String> indexKeys;
+	private final int batchSize;
+	private final List<RedisClusterNode> masters;
+	private int nodeIndex;
+	private String scanCursor;
+	private String position;
+	private String nextPosition;
+	private List<CartHeader> nextBatch;
+	private boolean complete;
+
+	RedisCartCursor(final RedisCartStore store, final List<String> indexKeys, final List<RedisClusterNode> masters,
+			final int batchSize, final String position)
+	{
+		this.store = store;
+		this.indexKeys = indexKeys;
+		this.masters = masters;
+		this.batchSize = Math.max(1, batchSize);
+		this.position = StringUtils.defaultIfBlank(position, START);
+		if (indexKeys.isEmpty())
+		{
+			final int separator = this.position.indexOf(':');
+			nodeIndex = separator < 0 ? 0 : Integer.parseInt(this.position.substring(0, separator));
+			scanCursor = separator < 0 ? START : this.position.substring(separator + 1);
+			complete = nodeIndex >= masters.size();
+		}
+		else
+		{
+			scanCursor = this.position;
+		}
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		while (nextBatch == null && !complete)
+		{
+			fetchPage();
+		}
+		return nextBatch != null;
+	}
+
+	@Override
+	public List<CartHeader> next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+		final List<CartHeader> batch = nextBatch;
+		nextBatch = null;
+		position = nextPosition;
+		return batch;
+	}
+
+	@Override
+	public String getPosition()
+	{
+		return position;
+	}
+
+	private void fetchPage()
+	{
+		final List<String> codes = new ArrayList<>();
+		if (indexKeys.isEmpty())
+		{
+			final ScanResult<String> page = store.getRedisClusterPipelineExecutor().scan(masters.get(nodeIndex),
+					scanCursor, "cart:*", batchSize, store.getScanReadPreference());
+			for (final String key : page.getResult())
+			{
+				final String code = store.getRedisKeyGenerator().parseCartCode(key);
+				if (code != null)
+				{
+					codes.add(code);
+				}
+			}
+			scanCursor = page.getStringCursor();
+			if (START.equals(scanCursor))
+			{
+				nodeIndex++;
+			}
+			complete = nodeIndex >= masters.size();
+			nextPosition = complete ? START : nodeIndex + ":" + scanCursor;
+		}
+		else
+		{
+			final ScanResult<Object> page = store.getRedisClusterPipelineExecutor().sscan(indexKeys.get(0), scanCursor,
+					batchSize, store.getScanReadPreference());
+			for (final Object member : page.getResult())
+			{
+				codes.add(member.toString());
+			}
+			scanCursor = page.getStringCursor();
+			complete = START.equals(scanCursor);
+			nextPosition = scanCursor;
+		}
+
+		// the first index set is the one being walked
+		final List<String> matchingCodes = indexKeys.size() > 1
+				? store.retainMembers(codes, indexKeys.subList(1, indexKeys.size())) : codes;
+		final List<CartHeader> batch = new ArrayList<>(store.loadHeaders(matchingCodes).values());
+		if (batch.isEmpty())
+		{
+			// nothing to hand out, the page counts as done
+			position = nextPosition;
+		}
+		else
+		{
+			nextBatch = batch;
+		}
+	}
+}
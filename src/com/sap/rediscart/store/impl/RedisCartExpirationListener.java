@@ -0,0 +1,429 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.RedisClusterNode;
+
+import com.sap.rediscart.util.RedisClusterPipelineExecutor;
+import com.sap.rediscart.util.RedisKeyGenerator;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
+
+/**
+ * Listens to the expired keyspace events of every master of the cluster and cleans up after the expired carts with
+ * {@link RedisCartStore#removeExpired(java.util.Collection)}, so their codes do not stay in the index sets. Each master
+ * only publishes the events of its own keys, so one connection per master is subscribed, new masters are picked up
+ * every topologyRefreshMillis.
+ * <p/>
+ * Keyspace events are not delivered while a connection is down and every subscribed JVM receives all of them, so enable
+ * this on one or a few nodes only, e.g. the backoffice, and rely on the sweep of {@link RedisCartStore#loadBatch} for
+ * the events that have been missed.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class RedisCartExpirationListener
+{
+	private static final Logger LOG = LoggerFactory.getLogger(RedisCartExpirationListener.class);
+
+	private static final String NOTIFY_KEYSPACE_EVENTS = "notify-keyspace-events";
+	private static final String EXPIRED_EVENTS = "__keyevent@*__:expired";
+
+	private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+	private BlockingQueue<String> expiredCodes;
+	private volatile boolean running;
+	private Thread supervisor;
+	private Thread cleaner;
+
+	private RedisCartStore redisCartStore;
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private RedisKeyGenerator redisKeyGenerator;
+	private boolean enabled = false;
+	private boolean configureNotifications = true;
+	private int queueCapacity = 100000;
+	private int batchSize = 100;
+	private long topologyRefreshMillis = 60000;
+
+	public void init()
+	{
+		if (!isEnabled())
+		{
+			return;
+		}
+		expiredCodes = new LinkedBlockingQueue<>(getQueueCapacity());
+		running = true;
+		supervisor = startThread("rediscart-expiration-supervisor", this::superviseSubscribers);
+		cleaner = startThread("rediscart-expiration-cleaner", this::cleanUpExpiredCarts);
+		LOG.info("Listening to expired carts");
+	}
+
+	public void destroy()
+	{
+		running = false;
+		if (supervisor != null)
+		{
+			supervisor.interrupt();
+		}
+		if (cleaner != null)
+		{
+			cleaner.interrupt();
+		}
+		for (final Subscriber subscriber : subscribers.values())
+		{
+			subscriber.stop();
+		}
+		subscribers.clear();
+	}
+
+	/**
+	 * Subscribes to every master without a live subscription, until the listener is destroyed.
+	 */
+	private void superviseSubscribers()
+	{
+		while (running)
+		{
+			try
+			{
+				for (final RedisClusterNode node : getRedisClusterPipelineExecutor().getMasterNodes())
+				{
+					final String address = node.getHost() + ":" + node.getPort();
+					final Subscriber subscriber = subscribers.get(address);
+					if (subscriber == null || !subscriber.isAlive())
+					{
+						final Subscriber started = new Subscriber(node.getHost(), node.getPort().intValue());
+						subscribers.put(address, started);
+						started.start();
+					}
+				}
+			}
+			catch (final RuntimeException e)
+			{
+				LOG.warn("Cannot read the masters of the redis cluster", e);
+			}
+
+			try
+			{
+				Thread.sleep(getTopologyRefreshMillis());
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Cleans up after the expired carts in batches, so a burst of expirations does not hold up the subscribers.
+	 */
+	private void cleanUpExpiredCarts()
+	{
+		while (running)
+		{
+			try
+			{
+				final String cartCode = expiredCodes.poll(1, TimeUnit.SECONDS);
+				if (cartCode == null)
+				{
+					continue;
+				}
+				final List<String> batch = new ArrayList<>(getBatchSize());
+				batch.add(cartCode);
+				expiredCodes.drainTo(batch, getBatchSize() - 1);
+				getRedisCartStore().removeExpired(batch);
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (final RuntimeException e)
+			{
+				LOG.warn("Cleaning up expired carts failed, they are swept when loaded", e);
+			}
+		}
+	}
+
+	/**
+	 * Adds the expired events to the notifications of the node, keeping the events already enabled there. Managed redis
+	 * services often do not allow CONFIG, there the events have to be enabled in the configuration of the service.
+	 */
+	private void configureNotifications(final Jedis jedis)
+	{
+		final List<String> config;
+		try
+		{
+			config = jedis.configGet(NOTIFY_KEYSPACE_EVENTS);
+		}
+		catch (final JedisDataException e)
+		{
+			LOG.warn("Cannot read {}, make sure it contains Ex: {}", NOTIFY_KEYSPACE_EVENTS, e.getMessage());
+			return;
+		}
+		final String current = config.size() > 1 ? config.get(1) : "";
+		String flags = current;
+		if (!flags.contains("E"))
+		{
+			flags += "E";
+		}
+		if (!flags.contains("x") && !flags.contains("A"))
+		{
+			flags += "x";
+		}
+		if (!flags.equals(current))
+		{
+			jedis.configSet(NOTIFY_KEYSPACE_EVENTS, flags);
+			LOG.info("Set {} of {}:{} to {}", NOTIFY_KEYSPACE_EVENTS, jedis.getClient().getHost(),
+					Integer.valueOf(jedis.getClient().getPort()), flags);
+		}
+	}
+
+	private static Thread startThread(final String name, final Runnable runnable)
+	{
+		final Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Subscription to the expired events of one master, on a connection of its own as SUBSCRIBE blocks it.
+	 */
+	private final class Subscriber extends JedisPubSub
+	{
+		private final String host;
+		private final int port;
+		private Thread thread;
+		private volatile Jedis jedis;
+
+		private Subscriber(final String host, final int port)
+		{
+			this.host = host;
+			this.port = port;
+		}
+
+		private void start()
+		{
+			thread = startThread("rediscart-expiration-" + host + ":" + port, this::subscribe);
+		}
+
+		private boolean isAlive()
+		{
+			return thread != null && thread.isAlive();
+		}
+
+		private void subscribe()
+		{
+			// no socket timeout, the connection is idle between events
+			try (Jedis connection = new Jedis(host, port, 0))
+			{
+				jedis = connection;
+				if (isConfigureNotifications())
+				{
+					configureNotifications(connection);
+				}
+				connection.psubscribe(this, EXPIRED_EVENTS);
+			}
+			catch (final JedisException e)
+			{
+				if (running)
+				{
+					LOG.warn("Lost the expired events of " + host + ":" + port + ", subscribing again within "
+							+ getTopologyRefreshMillis() + " ms", e);
+				}
+			}
+		}
+
+		@Override
+		public void onPMessage(final String pattern, final String channel, final String message)
+		{
+			final String cartCode = getRedisKeyGenerator().parseCartCode(message);
+			if (cartCode != null && !expiredCodes.offer(cartCode))
+			{
+				LOG.debug("Too many expired carts queued, cart {} is swept when loaded", cartCode);
+			}
+		}
+
+		private void stop()
+		{
+			try
+			{
+				if (isSubscribed())
+				{
+					punsubscribe();
+				}
+			}
+			catch (final JedisException e)
+			{
+				LOG.debug("Unsubscribing from {}:{} failed", host, Integer.valueOf(port), e);
+			}
+			final Jedis connection = jedis;
+			if (connection != null)
+			{
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the redisCartStore
+	 */
+	public RedisCartStore getRedisCartStore()
+	{
+		return redisCartStore;
+	}
+
+	/**
+	 * @param redisCartStore
+	 *           the redisCartStore to set
+	 */
+	public void setRedisCartStore(final RedisCartStore redisCartStore)
+	{
+		this.redisCartStore = redisCartStore;
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the redisKeyGenerator
+	 */
+	public RedisKeyGenerator getRedisKeyGenerator()
+	{
+		return redisKeyGenerator;
+	}
+
+	/**
+	 * @param redisKeyGenerator
+	 *           the redisKeyGenerator to set
+	 */
+	public void setRedisKeyGenerator(final RedisKeyGenerator redisKeyGenerator)
+	{
+		this.redisKeyGenerator = redisKeyGenerator;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *           the enabled to set
+	 */
+	public void setEnabled(final boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the configureNotifications
+	 */
+	public boolean isConfigureNotifications()
+	{
+		return configureNotifications;
+	}
+
+	/**
+	 * @param configureNotifications
+	 *           the configureNotifications to set
+	 */
+	public void setConfigureNotifications(final boolean configureNotifications)
+	{
+		this.configureNotifications = configureNotifications;
+	}
+
+	/**
+	 * @return the queueCapacity
+	 */
+	public int getQueueCapacity()
+	{
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity
+	 *           the queueCapacity to set
+	 */
+	public void setQueueCapacity(final int queueCapacity)
+	{
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @return the batchSize
+	 */
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *           the batchSize to set
+	 */
+	public void setBatchSize(final int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the topologyRefreshMillis
+	 */
+	public long getTopologyRefreshMillis()
+	{
+		return topologyRefreshMillis;
+	}
+
+	/**
+	 * @param topologyRefreshMillis
+	 *           the topologyRefreshMillis to set
+	 */
+	public void setTopologyRefreshMillis(final long topologyRefreshMillis)
+	{
+		this.topologyRefreshMillis = topologyRefreshMillis;
+	}
+}
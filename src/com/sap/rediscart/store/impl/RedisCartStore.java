@@ -0,0 +1,1104 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import de.hybris.platform.promotions.jalo.PromotionResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.RedisClusterNode;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+import com.sap.rediscart.store.ReadPreference;
+import com.sap.rediscart.util.AsyncRedisCartOperations;
+import com.sap.rediscart.util.CartTtlPolicy;
+import com.sap.rediscart.util.ColdCartTier;
+import com.sap.rediscart.util.RedisCartLeaseLock;
+import com.sap.rediscart.util.RedisCartOperations;
+import com.sap.rediscart.util.RedisClusterPipelineExecutor;
+import com.sap.rediscart.util.RedisKeyGenerator;
+
+
+/**
+ * Stores carts in a redis cluster. A cart lives under <code>cart:&lt;code&gt;</code> next to its version, lock and
+ * dependents keys, and is indexed by sets of cart codes per code, user, guid and site.
+ * <p/>
+ * Carts expire as configured by the {@link CartTtlPolicy}, reading a cart refreshes its time to live. The index sets
+ * and dependent keys of an expired cart are left behind until {@link #removeExpired(Collection)} is called for it,
+ * either by the {@link RedisCartExpirationListener} or by a batch load running into the dangling codes.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class RedisCartStore implements CartStore
+{
+	private static final Logger LOG = LoggerFactory.getLogger(RedisCartStore.class);
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private RedisTemplate<String, Object> redisTemplate;
+	private RedisKeyGenerator redisKeyGenerator;
+	private RedisCartOperations redisCartOperations;
+	private AsyncRedisCartOperations asyncRedisCartOperations;
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private RedisCartLeaseLock redisCartLeaseLock;
+	private CartTtlPolicy cartTtlPolicy;
+	private boolean refreshTtlOnRead = true;
+	private boolean sweepOnRead = true;
+	private ReadPreference scanReadPreference = ReadPreference.MASTER;
+
+	@Override
+	public RedisCart load(final String cartCode)
+	{
+		final RedisCart cart = getRedisCartOperations().get(cartCode);
+		if (cart != null)
+		{
+			refreshTtl(Collections.singletonMap(cartCode, cart));
+		}
+		return cart;
+	}
+
+	/**
+	 * Under {@link ReadPreference#REPLICA_PREFERRED} the carts are read from replicas, codes not found there are not
+	 * cleaned up since the replica may simply not have the cart yet.
+	 */
+	@Override
+	public Map<String, RedisCart> loadBatch(final Collection<String> cartCodes)
+	{
+		if (CollectionUtils.isEmpty(cartCodes))
+		{
+			return new LinkedHashMap<>();
+		}
+		final Map<String, RedisCart> carts;
+		final ReadPreference preference = ReadPreference.current();
+		if (preference != ReadPreference.MASTER)
+		{
+			carts = getRedisCartOperations().getAll(cartCodes, true, preference);
+			refreshTtl(carts);
+			return carts;
+		}
+		if (getAsyncRedisCartOperations() != null && getAsyncRedisCartOperations().isEnabled())
+		{
+			carts = promoteColdCarts(cartCodes, getAsyncRedisCartOperations().getAll(cartCodes).join());
+		}
+		else
+		{
+			carts = getRedisCartOperations().getAll(cartCodes);
+		}
+		refreshTtl(carts);
+		sweepMissing(cartCodes, carts.keySet());
+		return carts;
+	}
+
+	/**
+	 * Offloaded carts are left out, peeking does not promote them.
+	 */
+	@Override
+	public Map<String, RedisCart> peekBatch(final Collection<String> cartCodes)
+	{
+		return CollectionUtils.isEmpty(cartCodes) ? new LinkedHashMap<>()
+				: getRedisCartOperations().getAll(cartCodes, false);
+	}
+
+	@Override
+	public void save(final String cartCode, final RedisCart cart)
+	{
+		getRedisCartOperations().set(cartCode, cart);
+	}
+
+	@Override
+	public void index(final CartIndex cart)
+	{
+		final String code = cart.getCode();
+		final List<String> indexKeys = getIndexKeys(cart);
+		for (final String indexKey : indexKeys)
+		{
+			getRedisTemplate().opsForSet().add(indexKey, code);
+		}
+		if (StringUtils.isNotBlank(code) && !indexKeys.isEmpty())
+		{
+			getRedisTemplate().opsForSet().add(getRedisKeyGenerator().generateIndexesKey(code), indexKeys.toArray());
+		}
+	}
+
+	/**
+	 * Under {@link ReadPreference#REPLICA_PREFERRED} the index sets are read from replicas with pipelined SMEMBERS and
+	 * intersected here.
+	 */
+	@Override
+	public Set<String> findCartCodes(final CartIndex criteria)
+	{
+		final List<String> indexKeys = getIndexKeys(criteria);
+		final Set<String> cartCodes = new LinkedHashSet<>();
+		if (indexKeys.isEmpty())
+		{
+			return cartCodes;
+		}
+		final ReadPreference preference = ReadPreference.current();
+		if (preference != ReadPreference.MASTER)
+		{
+			final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+			final Map<String, Object> replies = executor.executePipelinedPerKey(indexKeys,
+					(pipeline, key) -> pipeline.smembers(executor.serializeKey(key)), preference);
+			cartCodes.addAll(toMembers(indexKeys.get(0), replies.get(indexKeys.get(0))));
+			for (final String indexKey : indexKeys.subList(1, indexKeys.size()))
+			{
+				cartCodes.retainAll(toMembers(indexKey, replies.get(indexKey)));
+			}
+			return cartCodes;
+		}
+		final Set<Object> members = getRedisTemplate().opsForSet().intersect(indexKeys.get(0),
+				indexKeys.subList(1, indexKeys.size()));
+		if (members != null)
+		{
+			for (final Object member : members)
+			{
+				cartCodes.add(member.toString());
+			}
+		}
+		return cartCodes;
+	}
+
+	@Override
+	public void unindex(final CartIndex cart)
+	{
+		final String code = cart.getCode();
+		final List<String> indexKeys = getIndexKeys(cart);
+		for (final String indexKey : indexKeys)
+		{
+			getRedisTemplate().opsForSet().remove(indexKey, code);
+		}
+		if (StringUtils.isNotBlank(code) && !indexKeys.isEmpty())
+		{
+			getRedisTemplate().opsForSet().remove(getRedisKeyGenerator().generateIndexesKey(code), indexKeys.toArray());
+		}
+	}
+
+	/**
+	 * A single index is counted with SCARD, the intersection of several has to be read.
+	 */
+	@Override
+	public long countCartCodes(final CartIndex criteria)
+	{
+		final List<String> indexKeys = getIndexKeys(criteria);
+		if (indexKeys.isEmpty())
+		{
+			return 0L;
+		}
+		if (indexKeys.size() == 1)
+		{
+			final Long size;
+			final ReadPreference preference = ReadPreference.current();
+			if (preference != ReadPreference.MASTER)
+			{
+				final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+				final Object reply = executor.executePipelinedPerKey(indexKeys,
+						(pipeline, key) -> pipeline.scard(executor.serializeKey(key)), preference).get(indexKeys.get(0));
+				size = reply instanceof Long ? (Long) reply : getRedisTemplate().opsForSet().size(indexKeys.get(0));
+			}
+			else
+			{
+				size = getRedisTemplate().opsForSet().size(indexKeys.get(0));
+			}
+			return size == null ? 0L : size.longValue();
+		}
+		return findCartCodes(criteria).size();
+	}
+
+	/**
+	 * Walks the first index set of the criteria with SSCAN, or the cart keys of every master with SCAN if the criteria
+	 * are blank. Codes found in the first index set are checked against the others with pipelined SISMEMBER. The pages
+	 * are scanned on the nodes the scanReadPreference selects, the headers are always read from the masters.
+	 */
+	@Override
+	public CartCursor openCursor(final CartIndex criteria, final int batchSize, final String position)
+	{
+		final List<String> indexKeys = getIndexKeys(criteria);
+		final List<RedisClusterNode> masters = indexKeys.isEmpty() ? getSortedMasters()
+				: Collections.<RedisClusterNode> emptyList();
+		return new RedisCartCursor(this, indexKeys, masters, batchSize, position);
+	}
+
+	/**
+	 * The partitions are the masters of the cluster by address.
+	 */
+	@Override
+	public List<String> getPartitions()
+	{
+		final List<String> partitions = new ArrayList<>();
+		for (final RedisClusterNode master : getSortedMasters())
+		{
+			partitions.add(toAddress(master));
+		}
+		return partitions;
+	}
+
+	/**
+	 * Walks the cart keys of the master with SCAN.
+	 */
+	@Override
+	public CartCursor openPartitionCursor(final String partition, final int batchSize, final String position)
+	{
+		for (final RedisClusterNode master : getSortedMasters())
+		{
+			if (toAddress(master).equals(partition))
+			{
+				return new RedisCartCursor(this, Collections.<String> emptyList(), Collections.singletonList(master),
+						batchSize, position);
+			}
+		}
+		throw new IllegalArgumentException("No master " + partition + " in the cluster");
+	}
+
+	/**
+	 * Reads the headers of the carts instead of the carts: the recorded indexes, the version and the time to live of
+	 * each cart, pipelined per master. Nothing has to be deserialized but the version.
+	 *
+	 * @return the headers by code in the order of the codes, codes without a cart are left out
+	 */
+	public Map<String, CartHeader> loadHeaders(final Collection<String> cartCodes)
+	{
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final Set<String> cartKeys = new HashSet<>();
+		final Set<String> versionKeys = new HashSet<>();
+		final Set<String> keys = new LinkedHashSet<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isNotBlank(cartCode))
+			{
+				final String cartKey = getRedisKeyGenerator().generateCartKey(cartCode);
+				final String versionKey = getRedisKeyGenerator().generateVersionKey(cartCode);
+				cartKeys.add(cartKey);
+				versionKeys.add(versionKey);
+				keys.add(cartKey);
+				keys.add(versionKey);
+				keys.add(getRedisKeyGenerator().generateIndexesKey(cartCode));
+			}
+		}
+		final Map<String, Object> replies = executor.executePipelinedPerKey(keys, (pipeline, key) -> {
+			if (cartKeys.contains(key))
+			{
+				pipeline.pttl(executor.serializeKey(key));
+			}
+			else if (versionKeys.contains(key))
+			{
+				pipeline.get(executor.serializeKey(key));
+			}
+			else
+			{
+				pipeline.smembers(executor.serializeKey(key));
+			}
+		});
+
+		final Map<String, CartHeader> headers = new LinkedHashMap<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isBlank(cartCode) || headers.containsKey(cartCode))
+			{
+				continue;
+			}
+			final String cartKey = getRedisKeyGenerator().generateCartKey(cartCode);
+			final long ttlMillis = toTtlMillis(cartKey, replies.get(cartKey));
+			if (ttlMillis == -2L)
+			{
+				continue;
+			}
+			final String versionKey = getRedisKeyGenerator().generateVersionKey(cartCode);
+			final String indexesKey = getRedisKeyGenerator().generateIndexesKey(cartCode);
+			final CartIndex index = getRedisKeyGenerator().parseCartIndex(cartCode,
+					toMembers(indexesKey, replies.get(indexesKey)));
+			headers.put(cartCode, new CartHeader(index, toVersion(versionKey, replies.get(versionKey)), ttlMillis));
+		}
+		sweepMissing(cartCodes, headers.keySet());
+		return headers;
+	}
+
+	/**
+	 * Checks the codes against the index sets with SISMEMBER, pipelined per master.
+	 *
+	 * @return the codes that are members of all index sets, in the order of the codes
+	 */
+	public List<String> retainMembers(final List<String> cartCodes, final Collection<String> indexKeys)
+	{
+		if (cartCodes.isEmpty() || indexKeys.isEmpty())
+		{
+			return cartCodes;
+		}
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		// the replies of all masters come back in the order the commands have been issued in
+		final List<String> issued = new ArrayList<>();
+		final List<Object> replies = executor.executePipelined(indexKeys, (pipeline, nodeKeys) -> {
+			for (final String indexKey : nodeKeys)
+			{
+				for (final String cartCode : cartCodes)
+				{
+					pipeline.sismember(executor.serializeKey(indexKey), executor.serializeValue(cartCode));
+					issued.add(cartCode);
+				}
+			}
+		});
+
+		final Map<String, Integer> memberships = new HashMap<>();
+		for (int i = 0; i < issued.size() && i < replies.size(); i++)
+		{
+			// a failed command counts as no, the cart is rather skipped than processed by mistake
+			if (Boolean.TRUE.equals(replies.get(i)))
+			{
+				final Integer count = memberships.get(issued.get(i));
+				memberships.put(issued.get(i), Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+			}
+		}
+		final List<String> members = new ArrayList<>();
+		for (final String cartCode : cartCodes)
+		{
+			final Integer count = memberships.get(cartCode);
+			if (count != null && count.intValue() == indexKeys.size())
+			{
+				members.add(cartCode);
+			}
+		}
+		return members;
+	}
+
+	/**
+	 * Removes the carts together with their index entries and dependent keys. The leases of the carts are acquired and
+	 * their dependent keys are read in one pipelined pass, everything is removed in a second one, so the number of round
+	 * trips depends on the number of cluster masters rather than on the number of carts. Carts leased by somebody else,
+	 * e.g. because they are being checked out, are skipped. Besides the indexes given by the attributes of the carts,
+	 * the codes are removed from every index recorded for them when they were indexed.
+	 */
+	@Override
+	public Set<String> remove(final Collection<CartIndex> carts)
+	{
+		return remove(carts, null);
+	}
+
+	/**
+	 * Leasing a cart is made conditional on its version key still holding the version of the header, once leased the
+	 * cart cannot be saved until it is removed.
+	 */
+	@Override
+	public Set<String> removeUnchanged(final Collection<CartHeader> carts)
+	{
+		if (CollectionUtils.isEmpty(carts))
+		{
+			return new LinkedHashSet<>();
+		}
+		final List<CartIndex> indexes = new ArrayList<>(carts.size());
+		final Map<String, Long> expectedVersions = new HashMap<>();
+		for (final CartHeader cart : carts)
+		{
+			indexes.add(cart.getIndex());
+			expectedVersions.put(cart.getCode(), Long.valueOf(cart.getVersion()));
+		}
+		return remove(indexes, expectedVersions);
+	}
+
+	/**
+	 * @param expectedVersions
+	 *           the versions the carts are only removed at by code, null to remove them at any version
+	 */
+	private Set<String> remove(final Collection<CartIndex> carts, final Map<String, Long> expectedVersions)
+	{
+		final Set<String> removedCodes = new LinkedHashSet<>();
+		if (CollectionUtils.isEmpty(carts))
+		{
+			return removedCodes;
+		}
+
+		final Map<String, Set<String>> indexMembers = new LinkedHashMap<>();
+		final Set<String> keysToDelete = new LinkedHashSet<>(
+				leaseCartsAndReadDependentKeys(carts, expectedVersions, removedCodes, indexMembers));
+		for (final CartIndex cart : carts)
+		{
+			final String code = cart.getCode();
+			if (!removedCodes.contains(code))
+			{
+				continue;
+			}
+			keysToDelete.add(getRedisKeyGenerator().generateCartKey(code));
+			keysToDelete.add(getRedisKeyGenerator().generateDependentsKey(code));
+			keysToDelete.add(getRedisKeyGenerator().generateVersionKey(code));
+			keysToDelete.add(getRedisKeyGenerator().generateLockKey(code));
+			keysToDelete.add(getRedisKeyGenerator().generateFencingTokenKey(code));
+			keysToDelete.add(getRedisKeyGenerator().generateIndexesKey(code));
+			for (final String indexKey : getIndexKeys(cart))
+			{
+				indexMembers.computeIfAbsent(indexKey, k -> new LinkedHashSet<>()).add(code);
+			}
+		}
+
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final Set<String> routingKeys = new LinkedHashSet<>(keysToDelete);
+		routingKeys.addAll(indexMembers.keySet());
+		final List<Object> replies = executor.executePipelined(routingKeys, (pipeline, nodeKeys) -> {
+			final List<String> nodeDeletes = new ArrayList<>();
+			for (final String key : nodeKeys)
+			{
+				final Set<String> members = indexMembers.get(key);
+				if (members != null)
+				{
+					final byte[][] rawMembers = new byte[members.size()][];
+					int i = 0;
+					for (final String member : members)
+					{
+						rawMembers[i++] = executor.serializeValue(member);
+					}
+					pipeline.srem(executor.serializeKey(key), rawMembers);
+				}
+				if (keysToDelete.contains(key))
+				{
+					nodeDeletes.add(key);
+				}
+			}
+			// DEL must not span hash slots
+			for (final List<String> slotKeys : executor.groupBySlot(nodeDeletes).values())
+			{
+				final byte[][] rawKeys = new byte[slotKeys.size()][];
+				for (int i = 0; i < slotKeys.size(); i++)
+				{
+					rawKeys[i] = executor.serializeKey(slotKeys.get(i));
+				}
+				pipeline.del(rawKeys);
+			}
+		});
+
+		for (final Object reply : replies)
+		{
+			if (reply instanceof Exception)
+			{
+				// most likely a slot moved while pipelining, the commands are idempotent so simply redo them
+				LOG.warn("Pipelined cart removal failed, falling back to single commands", (Exception) reply);
+				getRedisTemplate().delete(keysToDelete);
+				for (final Map.Entry<String, Set<String>> entry : indexMembers.entrySet())
+				{
+					getRedisTemplate().opsForSet().remove(entry.getKey(), entry.getValue().toArray());
+				}
+				break;
+			}
+		}
+
+		// the lock keys are gone together with the carts
+		for (final String code : removedCodes)
+		{
+			getRedisCartLeaseLock().forget(code);
+			getRedisCartOperations().recordRemoval(code);
+		}
+		if (getRedisCartOperations().getColdCartTier() != null)
+		{
+			getRedisCartOperations().getColdCartTier().forget(removedCodes);
+		}
+		LOG.debug("Carts deleted from redis: {}, keys deleted: {}", Integer.valueOf(removedCodes.size()),
+				Integer.valueOf(keysToDelete.size()));
+		return removedCodes;
+	}
+
+	/**
+	 * Removes what an expired cart has left behind: its codes in the index sets, its dependent keys and its version,
+	 * lock, fence and indexes keys. Codes whose cart exists are skipped, as are carts leased by somebody else. Checking
+	 * that the cart is gone and leasing it is one script call, so a cart saved again meanwhile is not removed: its save
+	 * either comes first and the cart is skipped, or it is rejected until the removal has dropped the lease.
+	 *
+	 * @return the codes of the expired carts that have been cleaned up
+	 */
+	public Set<String> removeExpired(final Collection<String> cartCodes)
+	{
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final Map<String, String> codeByCartKey = new LinkedHashMap<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isNotBlank(cartCode))
+			{
+				codeByCartKey.put(getRedisKeyGenerator().generateCartKey(cartCode), cartCode);
+			}
+		}
+		final RedisCartLeaseLock leaseLock = getRedisCartLeaseLock();
+		final String owner = leaseLock.newOwner();
+		final Map<String, Object> replies = executor.executePipelinedPerKey(codeByCartKey.keySet(),
+				(pipeline, key) -> leaseLock.tryAcquireExpired(pipeline, codeByCartKey.get(key), owner));
+
+		final List<CartIndex> expired = new ArrayList<>();
+		for (final Map.Entry<String, String> entry : codeByCartKey.entrySet())
+		{
+			// a failed command, an existing cart or a lease held by somebody else keeps the cart
+			if (leaseLock.toLease(entry.getValue(), owner, replies.get(entry.getKey())) != null)
+			{
+				expired.add(new CartIndex(entry.getValue(), null, null, null));
+			}
+		}
+		if (expired.isEmpty())
+		{
+			return new LinkedHashSet<>();
+		}
+		try
+		{
+			final Set<String> removedCodes = remove(expired);
+			LOG.debug("Expired carts cleaned up: {}", removedCodes);
+			return removedCodes;
+		}
+		finally
+		{
+			// removed carts have dropped their lease together with the lock key
+			for (final CartIndex cart : expired)
+			{
+				leaseLock.releaseHeld(cart.getCode());
+			}
+		}
+	}
+
+	@Override
+	public void savePromotionResult(final String cartCode, final String promotionResultPk, final PromotionResult promotionResult)
+	{
+		final String prKey = getRedisKeyGenerator().generatePromotionResultKey(cartCode, promotionResultPk);
+		getRedisTemplate().opsForValue().set(prKey, promotionResult);
+		getRedisTemplate().opsForSet().add(getRedisKeyGenerator().generateDependentsKey(cartCode), prKey);
+	}
+
+	@Override
+	public void removePromotionResult(final String cartCode, final String promotionResultPk)
+	{
+		final String prKey = getRedisKeyGenerator().generatePromotionResultKey(cartCode, promotionResultPk);
+		getRedisTemplate().delete(prKey);
+		getRedisTemplate().opsForSet().remove(getRedisKeyGenerator().generateDependentsKey(cartCode), prKey);
+	}
+
+	/**
+	 * Reads the promotion result keys from the dependents set of the cart. Carts saved before the dependents set existed
+	 * get one from the {@link com.sap.rediscart.service.impl.PromotionResultDependentsMigration}.
+	 */
+	@Override
+	public Collection<PromotionResult> loadPromotionResults(final String cartCode)
+	{
+		final String cartKey = getRedisKeyGenerator().generateCartKey(cartCode);
+		final List<String> prKeys = new ArrayList<>();
+		final Set<Object> dependents = getRedisTemplate().opsForSet().members(getRedisKeyGenerator().generateDependentsKey(cartCode));
+		if (CollectionUtils.isNotEmpty(dependents))
+		{
+			for (final Object dependent : dependents)
+			{
+				if (dependent.toString().startsWith(cartKey + ":promotionResult:"))
+				{
+					prKeys.add(dependent.toString());
+				}
+			}
+		}
+
+		final List<PromotionResult> promotionResults = new ArrayList<>();
+		if (prKeys.isEmpty())
+		{
+			return promotionResults;
+		}
+		final List<Object> values = getRedisTemplate().opsForValue().multiGet(prKeys);
+		if (values != null)
+		{
+			for (final Object value : values)
+			{
+				if (value instanceof PromotionResult)
+				{
+					promotionResults.add((PromotionResult) value);
+				}
+			}
+		}
+		return promotionResults;
+	}
+
+	/**
+	 * Acquires the leases of the carts not yet leased by the current thread and reads the dependent keys and recorded
+	 * indexes of all carts in one pipelined pass. With expected versions, carts at another version are not leased.
+	 *
+	 * @return the dependent keys of the carts whose lease is held, their codes are added to leasedCodes and by recorded
+	 *         index key to indexMembers
+	 */
+	private Set<String> leaseCartsAndReadDependentKeys(final Collection<CartIndex> carts,
+			final Map<String, Long> expectedVersions, final Set<String> leasedCodes,
+			final Map<String, Set<String>> indexMembers)
+	{
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final RedisCartLeaseLock leaseLock = getRedisCartLeaseLock();
+		final String owner = leaseLock.newOwner();
+
+		final Map<String, String> codeByLockKey = new HashMap<>();
+		final Map<String, String> codeByDependentsKey = new HashMap<>();
+		final Map<String, String> codeByIndexesKey = new HashMap<>();
+		for (final CartIndex cart : carts)
+		{
+			final String code = cart.getCode();
+			if (StringUtils.isBlank(code))
+			{
+				continue;
+			}
+			codeByDependentsKey.put(getRedisKeyGenerator().generateDependentsKey(code), code);
+			codeByIndexesKey.put(getRedisKeyGenerator().generateIndexesKey(code), code);
+			if (leaseLock.getHeldLease(code) == null)
+			{
+				codeByLockKey.put(getRedisKeyGenerator().generateLockKey(code), code);
+			}
+			else
+			{
+				leasedCodes.add(code);
+			}
+		}
+
+		final Set<String> keys = new LinkedHashSet<>(codeByDependentsKey.keySet());
+		keys.addAll(codeByIndexesKey.keySet());
+		keys.addAll(codeByLockKey.keySet());
+		final Map<String, Object> replies = executor.executePipelinedPerKey(keys, (pipeline, key) -> {
+			final String lockedCode = codeByLockKey.get(key);
+			if (lockedCode != null && expectedVersions != null)
+			{
+				final long version = expectedVersions.get(lockedCode).longValue();
+				leaseLock.tryAcquireUnchanged(pipeline, lockedCode, owner,
+						version == 0 ? EMPTY : executor.serializeValue(Long.valueOf(version)));
+			}
+			else if (lockedCode != null)
+			{
+				leaseLock.tryAcquire(pipeline, lockedCode, owner);
+			}
+			else
+			{
+				pipeline.smembers(executor.serializeKey(key));
+			}
+		});
+
+		for (final Map.Entry<String, String> entry : codeByLockKey.entrySet())
+		{
+			if (leaseLock.toLease(entry.getValue(), owner, replies.get(entry.getKey())) != null)
+			{
+				leasedCodes.add(entry.getValue());
+			}
+			else
+			{
+				LOG.info("Cart {} is leased by somebody else or has changed and is not removed", entry.getValue());
+			}
+		}
+
+		final Set<String> dependentKeys = new LinkedHashSet<>();
+		for (final Map.Entry<String, String> entry : codeByDependentsKey.entrySet())
+		{
+			if (leasedCodes.contains(entry.getValue()))
+			{
+				dependentKeys.addAll(toMembers(entry.getKey(), replies.get(entry.getKey())));
+			}
+		}
+		for (final Map.Entry<String, String> entry : codeByIndexesKey.entrySet())
+		{
+			if (leasedCodes.contains(entry.getValue()))
+			{
+				for (final String indexKey : toMembers(entry.getKey(), replies.get(entry.getKey())))
+				{
+					indexMembers.computeIfAbsent(indexKey, k -> new LinkedHashSet<>()).add(entry.getValue());
+				}
+			}
+		}
+		return dependentKeys;
+	}
+
+	/**
+	 * @return the members of a set from its pipelined SMEMBERS reply, read again if the pipelined command failed
+	 */
+	private Set<String> toMembers(final String setKey, final Object reply)
+	{
+		final Set<String> members = new LinkedHashSet<>();
+		if (reply instanceof Set)
+		{
+			for (final Object member : (Set) reply)
+			{
+				members.add(String.valueOf(getRedisClusterPipelineExecutor().deserializeValue((byte[]) member)));
+			}
+		}
+		else if (reply instanceof Exception)
+		{
+			LOG.warn("Pipelined read of " + setKey + " failed, falling back to a single command", (Exception) reply);
+			for (final Object member : getRedisTemplate().opsForSet().members(setKey))
+			{
+				members.add(member.toString());
+			}
+		}
+		return members;
+	}
+
+	private List<RedisClusterNode> getSortedMasters()
+	{
+		final List<RedisClusterNode> masters = new ArrayList<>(getRedisClusterPipelineExecutor().getMasterNodes());
+		Collections.sort(masters, Comparator.comparing(RedisCartStore::toAddress));
+		return masters;
+	}
+
+	private static String toAddress(final RedisClusterNode node)
+	{
+		return node.getHost() + ":" + node.getPort();
+	}
+
+	/**
+	 * @return the time to live from a pipelined PTTL reply, -2 if there is no cart
+	 */
+	private long toTtlMillis(final String cartKey, final Object reply)
+	{
+		if (reply instanceof Long)
+		{
+			return ((Long) reply).longValue();
+		}
+		LOG.warn("Pipelined read of the time to live of " + cartKey + " failed, falling back to a single command",
+				reply instanceof Exception ? (Exception) reply : null);
+		final Long ttlMillis = getRedisTemplate().getExpire(cartKey, TimeUnit.MILLISECONDS);
+		return ttlMillis == null ? -2L : ttlMillis.longValue();
+	}
+
+	/**
+	 * @return the version from a pipelined GET reply, 0 if the cart has no version
+	 */
+	private long toVersion(final String versionKey, final Object reply)
+	{
+		final Object version;
+		if (reply instanceof Exception)
+		{
+			LOG.warn("Pipelined read of " + versionKey + " failed, falling back to a single command", (Exception) reply);
+			version = getRedisTemplate().opsForValue().get(versionKey);
+		}
+		else
+		{
+			version = reply instanceof byte[] ? getRedisClusterPipelineExecutor().deserializeValue((byte[]) reply) : null;
+		}
+		return version instanceof Long ? ((Long) version).longValue() : 0L;
+	}
+
+	/**
+	 * The asynchronous reads leave offloaded carts out, the codes not found are read again through the blocking
+	 * operations, which promote them. Only done while offloading is enabled, to spare the second read of carts that
+	 * simply do not exist.
+	 *
+	 * @return the carts found by either read in the order of the codes
+	 */
+	private Map<String, RedisCart> promoteColdCarts(final Collection<String> cartCodes,
+			final Map<String, RedisCart> carts)
+	{
+		final ColdCartTier coldCartTier = getRedisCartOperations().getColdCartTier();
+		if (coldCartTier == null || !coldCartTier.isEnabled() || carts.size() >= cartCodes.size())
+		{
+			return carts;
+		}
+		final List<String> missingCodes = new ArrayList<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (!carts.containsKey(cartCode))
+			{
+				missingCodes.add(cartCode);
+			}
+		}
+		final Map<String, RedisCart> promoted = getRedisCartOperations().getAll(missingCodes);
+		if (promoted.isEmpty())
+		{
+			return carts;
+		}
+		final Map<String, RedisCart> merged = new LinkedHashMap<>();
+		for (final String cartCode : cartCodes)
+		{
+			final RedisCart cart = carts.containsKey(cartCode) ? carts.get(cartCode) : promoted.get(cartCode);
+			if (cart != null)
+			{
+				merged.put(cartCode, cart);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Cleans up after the codes not found, they usually come from an index, so their carts have most likely expired.
+	 */
+	private void sweepMissing(final Collection<String> cartCodes, final Set<String> foundCodes)
+	{
+		if (!isSweepOnRead() || getCartTtlPolicy() == null || !getCartTtlPolicy().isEnabled())
+		{
+			return;
+		}
+		final Set<String> missingCodes = new LinkedHashSet<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isNotBlank(cartCode) && !foundCodes.contains(cartCode))
+			{
+				missingCodes.add(cartCode);
+			}
+		}
+		if (!missingCodes.isEmpty())
+		{
+			removeExpired(missingCodes);
+		}
+	}
+
+	/**
+	 * Sets the time to live of the carts again, pipelined per master. Carts whose time to live this node has set less
+	 * than half of it ago are left alone, see {@link CartTtlPolicy#isRefreshDue(String, long)}.
+	 */
+	private void refreshTtl(final Map<String, RedisCart> carts)
+	{
+		if (!isRefreshTtlOnRead() || getCartTtlPolicy() == null || !getCartTtlPolicy().isEnabled() || carts.isEmpty())
+		{
+			return;
+		}
+		final Map<String, Long> ttlByKey = new LinkedHashMap<>();
+		for (final Map.Entry<String, RedisCart> entry : carts.entrySet())
+		{
+			final long ttlSeconds = getCartTtlPolicy().getTtlSeconds(entry.getValue());
+			if (ttlSeconds > 0 && getCartTtlPolicy().isRefreshDue(entry.getKey(), ttlSeconds))
+			{
+				ttlByKey.put(getRedisKeyGenerator().generateCartKey(entry.getKey()), Long.valueOf(ttlSeconds));
+				ttlByKey.put(getRedisKeyGenerator().generateVersionKey(entry.getKey()), Long.valueOf(ttlSeconds));
+			}
+		}
+		if (ttlByKey.isEmpty())
+		{
+			return;
+		}
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final List<Object> replies = executor.executePipelined(ttlByKey.keySet(), (pipeline, keys) -> {
+			for (final String key : keys)
+			{
+				final long ttlSeconds = Math.min(Integer.MAX_VALUE, ttlByKey.get(key).longValue());
+				pipeline.expire(executor.serializeKey(key), (int) ttlSeconds);
+			}
+		});
+		for (final Object reply : replies)
+		{
+			if (reply instanceof Exception)
+			{
+				// the next read or write sets it again
+				LOG.debug("Refreshing the time to live of carts failed", (Exception) reply);
+				return;
+			}
+		}
+		for (final String cartCode : carts.keySet())
+		{
+			if (ttlByKey.containsKey(getRedisKeyGenerator().generateCartKey(cartCode)))
+			{
+				getCartTtlPolicy().refreshed(cartCode);
+			}
+		}
+	}
+
+	/**
+	 * @return the keys of the index sets the cart is found by, for the attributes set on the index
+	 */
+	public List<String> getIndexKeys(final CartIndex cart)
+	{
+		final List<String> indexKeys = new ArrayList<>(4);
+		if (StringUtils.isNotBlank(cart.getCode()))
+		{
+			indexKeys.add(getRedisKeyGenerator().generateCodeKey(cart.getCode()));
+		}
+		if (StringUtils.isNotBlank(cart.getUserId()))
+		{
+			indexKeys.add(getRedisKeyGenerator().generateUserIdKey(cart.getUserId()));
+		}
+		if (StringUtils.isNotBlank(cart.getGuid()))
+		{
+			indexKeys.add(getRedisKeyGenerator().generateGuidKey(cart.getGuid()));
+		}
+		if (StringUtils.isNotBlank(cart.getSiteId()))
+		{
+			indexKeys.add(getRedisKeyGenerator().generateSiteIdKey(cart.getSiteId()));
+		}
+		return indexKeys;
+	}
+
+	/**
+	 * @return the cartTtlPolicy
+	 */
+	public CartTtlPolicy getCartTtlPolicy()
+	{
+		return cartTtlPolicy;
+	}
+
+	/**
+	 * @param cartTtlPolicy
+	 *           the cartTtlPolicy to set
+	 */
+	public void setCartTtlPolicy(final CartTtlPolicy cartTtlPolicy)
+	{
+		this.cartTtlPolicy = cartTtlPolicy;
+	}
+
+	/**
+	 * @return the refreshTtlOnRead
+	 */
+	public boolean isRefreshTtlOnRead()
+	{
+		return refreshTtlOnRead;
+	}
+
+	/**
+	 * @param refreshTtlOnRead
+	 *           the refreshTtlOnRead to set
+	 */
+	public void setRefreshTtlOnRead(final boolean refreshTtlOnRead)
+	{
+		this.refreshTtlOnRead = refreshTtlOnRead;
+	}
+
+	/**
+	 * @return the sweepOnRead
+	 */
+	public boolean isSweepOnRead()
+	{
+		return sweepOnRead;
+	}
+
+	/**
+	 * @param sweepOnRead
+	 *           the sweepOnRead to set
+	 */
+	public void setSweepOnRead(final boolean sweepOnRead)
+	{
+		this.sweepOnRead = sweepOnRead;
+	}
+
+	/**
+	 * @return the redisTemplate
+	 */
+	public RedisTemplate<String, Object> getRedisTemplate()
+	{
+		return redisTemplate;
+	}
+
+	/**
+	 * @param redisTemplate
+	 *           the redisTemplate to set
+	 */
+	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	{
+		this.redisTemplate = redisTemplate;
+	}
+
+	/**
+	 * @return the redisKeyGenerator
+	 */
+	public RedisKeyGenerator getRedisKeyGenerator()
+	{
+		return redisKeyGenerator;
+	}
+
+	/**
+	 * @param redisKeyGenerator
+	 *           the redisKeyGenerator to set
+	 */
+	public void setRedisKeyGenerator(final RedisKeyGenerator redisKeyGenerator)
+	{
+		this.redisKeyGenerator = redisKeyGenerator;
+	}
+
+	/**
+	 * @return the redisCartOperations
+	 */
+	public RedisCartOperations getRedisCartOperations()
+	{
+		return redisCartOperations;
+	}
+
+	/**
+	 * @param redisCartOperations
+	 *           the redisCartOperations to set
+	 */
+	public void setRedisCartOperations(final RedisCartOperations redisCartOperations)
+	{
+		this.redisCartOperations = redisCartOperations;
+	}
+
+	/**
+	 * @return the asyncRedisCartOperations
+	 */
+	public AsyncRedisCartOperations getAsyncRedisCartOperations()
+	{
+		return asyncRedisCartOperations;
+	}
+
+	/**
+	 * @param asyncRedisCartOperations
+	 *           the asyncRedisCartOperations to set
+	 */
+	public void setAsyncRedisCartOperations(final AsyncRedisCartOperations asyncRedisCartOperations)
+	{
+		this.asyncRedisCartOperations = asyncRedisCartOperations;
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the redisCartLeaseLock
+	 */
+	public RedisCartLeaseLock getRedisCartLeaseLock()
+	{
+		return redisCartLeaseLock;
+	}
+
+	/**
+	 * @param redisCartLeaseLock
+	 *           the redisCartLeaseLock to set
+	 */
+	public void setRedisCartLeaseLock(final RedisCartLeaseLock redisCartLeaseLock)
+	{
+		this.redisCartLeaseLock = redisCartLeaseLock;
+	}
+
+	/**
+	 * @return the scanReadPreference
+	 */
+	public ReadPreference getScanReadPreference()
+	{
+		return scanReadPreference;
+	}
+
+	/**
+	 * @param scanReadPreference
+	 *           the scanReadPreference to set
+	 */
+	public void setScanReadPreference(final ReadPreference scanReadPreference)
+	{
+		this.scanReadPreference = scanReadPreference;
+	}
+}
@@ -0,0 +1,538 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import de.hybris.platform.basecommerce.model.site.BaseSiteModel;
+import de.hybris.platform.core.model.order.AbstractOrderModel;
+import de.hybris.platform.jalo.Item;
+import de.hybris.platform.jalo.JaloInvalidParameterException;
+import de.hybris.platform.jalo.security.JaloSecurityException;
+import de.hybris.platform.promotions.jalo.PromotionResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.exceptions.CartVersionConflictException;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.store.CartCursor;
+import com.sap.rediscart.store.CartHeader;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
+
+
+/**
+ * Spreads the carts over several independent stores, usually one {@link RedisCartStore} per redis cluster, as decided
+ * by the {@link CartShardRouter}. A cart, its version, lease, promotion results and index entries are all kept on the
+ * same shard. Lookups by user or guid are asked of every shard the criteria may match and their results are merged.
+ * <p/>
+ * While a site is being moved, see {@link com.sap.rediscart.service.impl.CartShardRebalancer}, a cart of it which is
+ * saved is first moved to the target shard. A cart loaded from the source before it was moved fails its next save with
+ * a {@link CartVersionConflictException}, as if it had been changed concurrently.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class ShardedCartStore implements CartStore
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ShardedCartStore.class);
+
+	private static final char SEPARATOR = '/';
+
+	private Map<String, CartStore> shards;
+	private CartShardRouter cartShardRouter;
+
+	@Override
+	public RedisCart load(final String cartCode)
+	{
+		if (StringUtils.isBlank(cartCode))
+		{
+			return null;
+		}
+		for (final String shard : getCartShardRouter().getReadShards(cartCode))
+		{
+			final RedisCart cart = getShard(shard).load(cartCode);
+			if (cart != null)
+			{
+				getCartShardRouter().remember(cartCode, shard);
+				return cart;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Map<String, RedisCart> loadBatch(final Collection<String> cartCodes)
+	{
+		return loadFromShards(cartCodes, CartStore::loadBatch);
+	}
+
+	@Override
+	public Map<String, RedisCart> peekBatch(final Collection<String> cartCodes)
+	{
+		return loadFromShards(cartCodes, CartStore::peekBatch);
+	}
+
+	@Override
+	public void save(final String cartCode, final RedisCart cart)
+	{
+		final String siteId = getCartShardRouter().isRoutedBySite() ? getSiteId(cart) : null;
+		final String target = getCartShardRouter().getWriteShard(cartCode, siteId);
+		final String source = getCartShardRouter().getMovingSource(siteId);
+		if (source != null && !source.equals(target))
+		{
+			final Migration migration = move(toCartIndex(cartCode, cart, siteId), source, target);
+			if (migration != null && !migration.moved)
+			{
+				// leased on the source, the save fails or succeeds there and the cart is moved later
+				getShard(source).save(cartCode, cart);
+				getCartShardRouter().remember(cartCode, source);
+				return;
+			}
+			if (migration != null)
+			{
+				if (migration.sourceVersion != cart.getRedisVersion() || migration.targetVersion < 0)
+				{
+					throw new CartVersionConflictException(cartCode, cart.getRedisVersion());
+				}
+				cart.setRedisVersion(migration.targetVersion);
+			}
+		}
+		getShard(target).save(cartCode, cart);
+		getCartShardRouter().remember(cartCode, target);
+	}
+
+	@Override
+	public Set<String> remove(final Collection<CartIndex> carts)
+	{
+		final Map<String, List<CartIndex>> byShard = new LinkedHashMap<>();
+		for (final CartIndex cart : carts)
+		{
+			for (final String shard : getCartShardRouter().getIndexShards(cart))
+			{
+				byShard.computeIfAbsent(shard, k -> new ArrayList<>()).add(cart);
+			}
+		}
+		final Set<String> removedCodes = new LinkedHashSet<>();
+		byShard.forEach((shard, toRemove) -> removedCodes.addAll(getShard(shard).remove(toRemove)));
+		removedCodes.forEach(getCartShardRouter()::forget);
+		return removedCodes;
+	}
+
+	/**
+	 * The version of a header is the one of the shard the cart has been read from, the other shards hold no cart at it.
+	 */
+	@Override
+	public Set<String> removeUnchanged(final Collection<CartHeader> carts)
+	{
+		final Map<String, List<CartHeader>> byShard = new LinkedHashMap<>();
+		for (final CartHeader cart : carts)
+		{
+			for (final String shard : getCartShardRouter().getIndexShards(cart.getIndex()))
+			{
+				byShard.computeIfAbsent(shard, k -> new ArrayList<>()).add(cart);
+			}
+		}
+		final Set<String> removedCodes = new LinkedHashSet<>();
+		byShard.forEach((shard, toRemove) -> removedCodes.addAll(getShard(shard).removeUnchanged(toRemove)));
+		removedCodes.forEach(getCartShardRouter()::forget);
+		return removedCodes;
+	}
+
+	@Override
+	public void index(final CartIndex cart)
+	{
+		getShard(getCartShardRouter().getWriteShard(cart.getCode(), cart.getSiteId())).index(cart);
+	}
+
+	@Override
+	public Set<String> findCartCodes(final CartIndex criteria)
+	{
+		final Set<String> result = new LinkedHashSet<>();
+		for (final String shard : getCartShardRouter().getIndexShards(criteria))
+		{
+			result.addAll(getShard(shard).findCartCodes(criteria));
+		}
+		return result;
+	}
+
+	@Override
+	public void unindex(final CartIndex cart)
+	{
+		for (final String shard : getCartShardRouter().getIndexShards(cart))
+		{
+			getShard(shard).unindex(cart);
+		}
+	}
+
+	/**
+	 * A cart of a site being moved may be counted on both shards.
+	 */
+	@Override
+	public long countCartCodes(final CartIndex criteria)
+	{
+		long count = 0;
+		for (final String shard : getCartShardRouter().getIndexShards(criteria))
+		{
+			count += getShard(shard).countCartCodes(criteria);
+		}
+		return count;
+	}
+
+	/**
+	 * Walks the shards the criteria may match one after the other, the position is the index of the shard and the
+	 * position within it, e.g. "1:4711".
+	 */
+	@Override
+	public CartCursor openCursor(final CartIndex criteria, final int batchSize, final String position)
+	{
+		final List<String> shardsToWalk = getCartShardRouter().getIndexShards(criteria);
+		int start = 0;
+		String innerPosition = CartCursor.START;
+		if (StringUtils.isNotBlank(position) && !CartCursor.START.equals(position))
+		{
+			start = Integer.parseInt(StringUtils.substringBefore(position, ":"));
+			innerPosition = StringUtils.substringAfter(position, ":");
+		}
+		return new ShardCursor(shardsToWalk.size(), start, innerPosition, (shardIndex, from) -> getShard(
+				shardsToWalk.get(shardIndex.intValue())).openCursor(criteria, batchSize, from));
+	}
+
+	/**
+	 * @return the partitions of all shards, prefixed with the shard and a slash
+	 */
+	@Override
+	public List<String> getPartitions()
+	{
+		final List<String> partitions = new ArrayList<>();
+		for (final String shard : getShards().keySet())
+		{
+			for (final String partition : getShard(shard).getPartitions())
+			{
+				partitions.add(shard + SEPARATOR + partition);
+			}
+		}
+		return partitions;
+	}
+
+	@Override
+	public CartCursor openPartitionCursor(final String partition, final int batchSize, final String position)
+	{
+		final int separator = partition.indexOf(SEPARATOR);
+		if (separator < 0 || !getShards().containsKey(partition.substring(0, separator)))
+		{
+			throw new IllegalArgumentException("No shard of partition " + partition);
+		}
+		return getShard(partition.substring(0, separator)).openPartitionCursor(partition.substring(separator + 1),
+				batchSize, position);
+	}
+
+	@Override
+	public void savePromotionResult(final String cartCode, final String promotionResultPk, final PromotionResult promotionResult)
+	{
+		getShard(locate(cartCode)).savePromotionResult(cartCode, promotionResultPk, promotionResult);
+	}
+
+	@Override
+	public void removePromotionResult(final String cartCode, final String promotionResultPk)
+	{
+		getShard(locate(cartCode)).removePromotionResult(cartCode, promotionResultPk);
+	}
+
+	@Override
+	public Collection<PromotionResult> loadPromotionResults(final String cartCode)
+	{
+		return getShard(locate(cartCode)).loadPromotionResults(cartCode);
+	}
+
+	/**
+	 * Copies the cart with its index entries and promotion results from one shard to another and removes it from the
+	 * source. A cart already on the target is only removed from the source, a cart leased on the source is left there.
+	 *
+	 * @return whether the cart is on the target only now
+	 */
+	public boolean migrate(final CartIndex cart, final String fromShard, final String toShard)
+	{
+		final Migration migration = move(cart, fromShard, toShard);
+		return migration == null || migration.moved;
+	}
+
+	private Migration move(final CartIndex index, final String fromShard, final String toShard)
+	{
+		final String cartCode = index.getCode();
+		final CartStore from = getShard(fromShard);
+		final CartStore to = getShard(toShard);
+		final RedisCart cart = from.load(cartCode);
+		if (cart == null)
+		{
+			return null;
+		}
+		final long sourceVersion = cart.getRedisVersion();
+		long targetVersion = -1L;
+		final boolean copied = to.peekBatch(Collections.singleton(cartCode)).isEmpty();
+		if (copied)
+		{
+			final Collection<PromotionResult> promotionResults = from.loadPromotionResults(cartCode);
+			cart.setRedisVersion(0L);
+			to.save(cartCode, cart);
+			targetVersion = cart.getRedisVersion();
+			to.index(index);
+			for (final PromotionResult promotionResult : promotionResults)
+			{
+				to.savePromotionResult(cartCode, promotionResult.getPK().toString(), promotionResult);
+			}
+		}
+		if (!from.remove(Collections.singleton(index)).contains(cartCode))
+		{
+			LOG.debug("Cart {} is leased on shard {}, not moved", cartCode, fromShard);
+			if (copied)
+			{
+				to.remove(Collections.singleton(index));
+			}
+			return new Migration(false, sourceVersion, -1L);
+		}
+		getCartShardRouter().remember(cartCode, toShard);
+		return new Migration(true, sourceVersion, targetVersion);
+	}
+
+	/**
+	 * Loads the carts in rounds, each asks every shard for the carts it is the next candidate for, so with the shard of
+	 * every cart known it is one round.
+	 */
+	private Map<String, RedisCart> loadFromShards(final Collection<String> cartCodes,
+			final BiFunction<CartStore, Collection<String>, Map<String, RedisCart>> reader)
+	{
+		final Map<String, RedisCart> result = new LinkedHashMap<>();
+		final Map<String, List<String>> candidates = new LinkedHashMap<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isNotBlank(cartCode))
+			{
+				candidates.put(cartCode, getCartShardRouter().getReadShards(cartCode));
+			}
+		}
+		for (int round = 0; !candidates.isEmpty(); round++)
+		{
+			final Map<String, List<String>> byShard = new LinkedHashMap<>();
+			for (final Map.Entry<String, List<String>> entry : candidates.entrySet())
+			{
+				if (round < entry.getValue().size())
+				{
+					byShard.computeIfAbsent(entry.getValue().get(round), k -> new ArrayList<>()).add(entry.getKey());
+				}
+			}
+			if (byShard.isEmpty())
+			{
+				break;
+			}
+			for (final Map.Entry<String, List<String>> entry : byShard.entrySet())
+			{
+				reader.apply(getShard(entry.getKey()), entry.getValue()).forEach((cartCode, cart) -> {
+					result.put(cartCode, cart);
+					candidates.remove(cartCode);
+					getCartShardRouter().remember(cartCode, entry.getKey());
+				});
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the shard holding the cart, the first candidate if it is on none
+	 */
+	private String locate(final String cartCode)
+	{
+		final List<String> candidates = getCartShardRouter().getReadShards(cartCode);
+		if (candidates.size() > 1)
+		{
+			for (final String shard : candidates)
+			{
+				if (!getShard(shard).peekBatch(Collections.singleton(cartCode)).isEmpty())
+				{
+					getCartShardRouter().remember(cartCode, shard);
+					return shard;
+				}
+			}
+		}
+		return candidates.get(0);
+	}
+
+	private CartStore getShard(final String shard)
+	{
+		final CartStore store = getShards().get(shard);
+		if (store == null)
+		{
+			throw new IllegalStateException("No cart store configured for shard " + shard);
+		}
+		return store;
+	}
+
+	/**
+	 * @return the uid of the base site of the cart, null if it has none
+	 */
+	protected String getSiteId(final RedisCart cart)
+	{
+		try
+		{
+			final Object site = cart.getAttribute(AbstractOrderModel.SITE);
+			return site instanceof Item ? (String) ((Item) site).getAttribute(BaseSiteModel.UID) : null;
+		}
+		catch (final JaloInvalidParameterException | JaloSecurityException e)
+		{
+			LOG.debug("Could not read the site of cart " + cart.getCode(), e);
+			return null;
+		}
+	}
+
+	protected CartIndex toCartIndex(final String cartCode, final RedisCart cart, final String siteId)
+	{
+		String guid = null;
+		try
+		{
+			guid = (String) cart.getAttribute(AbstractOrderModel.GUID);
+		}
+		catch (final JaloInvalidParameterException | JaloSecurityException e)
+		{
+			LOG.debug("Could not read the guid of cart " + cartCode, e);
+		}
+		return new CartIndex(cartCode, cart.getUser() == null ? null : cart.getUser().getUid(), guid, siteId);
+	}
+
+	/**
+	 * Outcome of moving a cart, the versions it had on the source and has got on the target, -1 if not copied.
+	 */
+	private static final class Migration
+	{
+		private final boolean moved;
+		private final long sourceVersion;
+		private final long targetVersion;
+
+		private Migration(final boolean moved, final long sourceVersion, final long targetVersion)
+		{
+			this.moved = moved;
+			this.sourceVersion = sourceVersion;
+			this.targetVersion = targetVersion;
+		}
+	}
+
+	/**
+	 * Chains the cursors of several shards.
+	 */
+	private static final class ShardCursor implements CartCursor
+	{
+		private final int shardCount;
+		private final BiFunction<Integer, String, CartCursor> opener;
+		private int shardIndex;
+		private CartCursor current;
+		private boolean returned;
+
+		private ShardCursor(final int shardCount, final int start, final String position,
+				final BiFunction<Integer, String, CartCursor> opener)
+		{
+			this.shardCount = shardCount;
+			this.opener = opener;
+			this.shardIndex = start;
+			this.current = start < shardCount ? opener.apply(Integer.valueOf(start), position) : null;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (current != null && !current.hasNext())
+			{
+				shardIndex++;
+				returned = false;
+				current = shardIndex < shardCount ? opener.apply(Integer.valueOf(shardIndex), START) : null;
+			}
+			return current != null;
+		}
+
+		@Override
+		public List<CartHeader> next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			returned = true;
+			return current.next();
+		}
+
+		@Override
+		public String getPosition()
+		{
+			if (current == null)
+			{
+				return START;
+			}
+			final String position = current.getPosition();
+			if (!START.equals(position))
+			{
+				return shardIndex + ":" + position;
+			}
+			// the position of a cursor is START both before its first and after its last batch
+			if (!returned)
+			{
+				return shardIndex == 0 ? START : shardIndex + ":" + START;
+			}
+			return shardIndex + 1 < shardCount ? (shardIndex + 1) + ":" + START : START;
+		}
+	}
+
+	/**
+	 * @return the shards
+	 */
+	public Map<String, CartStore> getShards()
+	{
+		return shards;
+	}
+
+	/**
+	 * @param shards
+	 *           the shards to set
+	 */
+	public void setShards(final Map<String, CartStore> shards)
+	{
+		this.shards = shards;
+	}
+
+	/**
+	 * @return the cartShardRouter
+	 */
+	public CartShardRouter getCartShardRouter()
+	{
+		return cartShardRouter;
+	}
+
+	/**
+	 * @param cartShardRouter
+	 *           the cartShardRouter to set
+	 */
+	public void setCartShardRouter(final CartShardRouter cartShardRouter)
+	{
+		this.cartShardRouter = cartShardRouter;
+	}
+}
@@ -32,4 +32,10 @@ public interface ModelSaveStrategy
 	public boolean beforeRemove(final Collection<? extends Object> toSave, ItemModel model);
 
 	public boolean afterRemove(ItemModel model);
+
+	/**
+	 * Called once for all models of the strategy's type removed together, instead of calling
+	 * {@link #beforeRemove(Collection, ItemModel)} for each of them.
+	 */
+	public boolean beforeRemoveAll(final Collection<? extends Object> toSave, Collection<ItemModel> models);
 }
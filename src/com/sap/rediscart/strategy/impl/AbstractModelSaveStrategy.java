@@ -16,16 +16,21 @@
 package com.sap.rediscart.strategy.impl;
 
 import de.hybris.platform.core.model.ItemModel;
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.servicelayer.exceptions.ModelSavingException;
 import de.hybris.platform.servicelayer.model.ModelService;
 
 import java.util.Collection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.SetOperations;
-import org.springframework.data.redis.core.ValueOperations;
 
+import com.sap.rediscart.constants.RediscartConstants;
+import com.sap.rediscart.exceptions.CartStoreUnavailableException;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.model.order.RedisCartModel;
+import com.sap.rediscart.store.CartIndex;
+import com.sap.rediscart.store.CartStore;
 import com.sap.rediscart.strategy.ModelSaveStrategy;
 import com.sap.rediscart.util.RedisKeyGenerator;
 
@@ -37,13 +42,10 @@ public abstract class AbstractModelSaveStrategy implements ModelSaveStrategy
 {
 	private static final Logger LOG = LoggerFactory.getLogger(AbstractModelSaveStrategy.class);
 
-	private ValueOperations<String, Object> valueOps;
-	private SetOperations<String, Object> setOps;
-
-	private RedisTemplate<String, Object> redisTemplate;
 	private ModelService modelService;
 
 	private RedisKeyGenerator redisKeyGenerator;
+	private CartStore cartStore;
 
 	@Override
 	public boolean beforeSave(final Collection<? extends Object> toSave, final ItemModel model)
@@ -66,6 +68,11 @@ public abstract class AbstractModelSaveStrategy implements ModelSaveStrategy
 		{
 			return doAfterSave(model);
 		}
+		catch (final ModelSavingException | CartStoreUnavailableException e)
+		{
+			// version conflicts and leased carts, the caller has to reload the cart and apply its change again
+			throw e;
+		}
 		catch (final Exception e)
 		{
 			LOG.error("error occurs", e);
@@ -80,6 +87,10 @@ public abstract class AbstractModelSaveStrategy implements ModelSaveStrategy
 		{
 			return doBeforeRemove(toSave, model);
 		}
+		catch (final ModelSavingException | CartStoreUnavailableException e)
+		{
+			throw e;
+		}
 		catch (final Exception e)
 		{
 			LOG.error("error occurs", e);
@@ -101,49 +112,73 @@ public abstract class AbstractModelSaveStrategy implements ModelSaveStrategy
 		}
 	}
 
-	protected abstract boolean doBeforeSave(final Collection<? extends Object> toSave, ItemModel model);
-
-	protected abstract boolean doAfterSave(ItemModel model);
-
-	protected abstract boolean doBeforeRemove(final Collection<? extends Object> toSave, ItemModel model);
-
-	protected abstract boolean doAfterRemove(ItemModel model);
+	@Override
+	public boolean beforeRemoveAll(final Collection<? extends Object> toSave, final Collection<ItemModel> models)
+	{
+		try
+		{
+			return doBeforeRemoveAll(toSave, models);
+		}
+		catch (final ModelSavingException | CartStoreUnavailableException e)
+		{
+			// leased carts and redis being unavailable, the batch must not be removed
+			throw e;
+		}
+		catch (final Exception e)
+		{
+			LOG.error("error occurs", e);
+			return false;
+		}
+	}
 
 	/**
-	 * @return the valueOps
+	 * Removes the models one by one, override it if the type can be removed in a batch.
 	 */
-	public ValueOperations<String, Object> getValueOps()
+	protected boolean doBeforeRemoveAll(final Collection<? extends Object> toSave, final Collection<ItemModel> models)
 	{
-		return valueOps;
+		boolean result = true;
+		for (final ItemModel model : models)
+		{
+			result &= beforeRemove(toSave, model);
+		}
+		return result;
 	}
 
 	/**
-	 * @return the setOps
+	 * Writes the cart to redis, failing if it has been changed since it was loaded.
 	 */
-	public SetOperations<String, Object> getSetOps()
+	protected void saveCart(final CartModel cart)
 	{
-		return setOps;
+		final RedisCart redisCart = getModelService().getSource(cart);
+		getCartStore().save(cart.getCode(), redisCart);
 	}
 
 	/**
-	 * @return the redisTemplate
+	 * Adds a redis cart to the indexes it is looked up by, the synthetic carts of the warm-up are never looked up.
 	 */
-	public RedisTemplate<String, Object> getRedisTemplate()
+	protected void indexCart(final CartModel cart)
 	{
-		return redisTemplate;
+		if (cart instanceof RedisCartModel && cart.getCode() != null
+				&& !cart.getCode().startsWith(RediscartConstants.WARM_UP_CART_CODE_PREFIX))
+		{
+			getCartStore().index(toCartIndex(cart));
+		}
 	}
 
-	/**
-	 * @param redisTemplate
-	 *           the redisTemplate to set
-	 */
-	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	protected CartIndex toCartIndex(final CartModel cart)
 	{
-		this.redisTemplate = redisTemplate;
-		this.setOps = this.redisTemplate.opsForSet();
-		this.valueOps = this.redisTemplate.opsForValue();
+		return new CartIndex(cart.getCode(), cart.getUser() == null ? null : cart.getUser().getUid(), cart.getGuid(),
+				cart.getSite() == null ? null : cart.getSite().getUid());
 	}
 
+	protected abstract boolean doBeforeSave(final Collection<? extends Object> toSave, ItemModel model);
+
+	protected abstract boolean doAfterSave(ItemModel model);
+
+	protected abstract boolean doBeforeRemove(final Collection<? extends Object> toSave, ItemModel model);
+
+	protected abstract boolean doAfterRemove(ItemModel model);
+
 	/**
 	 * @return the modelService
 	 */
@@ -177,4 +212,21 @@ public abstract class AbstractModelSaveStrategy implements ModelSaveStrategy
 	{
 		this.redisKeyGenerator = redisKeyGenerator;
 	}
+
+	/**
+	 * @return the cartStore
+	 */
+	public CartStore getCartStore()
+	{
+		return cartStore;
+	}
+
+	/**
+	 * @param cartStore
+	 *           the cartStore to set
+	 */
+	public void setCartStore(final CartStore cartStore)
+	{
+		this.cartStore = cartStore;
+	}
 }
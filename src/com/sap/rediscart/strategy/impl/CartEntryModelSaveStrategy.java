@@ -21,13 +21,9 @@ import de.hybris.platform.core.model.order.CartModel;
 
 import java.util.Collection;
 
-import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sap.rediscart.jalo.order.RedisCart;
-import com.sap.rediscart.model.order.RedisCartModel;
-
 
 /**
  * @author Henter Liu (henterji@163.com)
@@ -41,39 +37,11 @@ public class CartEntryModelSaveStrategy extends AbstractModelSaveStrategy
 	{
 		final CartEntryModel cartEntry = (CartEntryModel) model;
 		final CartModel cart = cartEntry.getOrder();
-		final RedisCart redisCart = getModelService().getSource(cart);
 		final String cartKey = getRedisKeyGenerator().generateCartKey(cart);
-		getValueOps().set(cartKey, redisCart);
+		saveCart(cart);
 		LOG.debug("Cart saved to redis: " + cartKey);
 
-		if (cart instanceof RedisCartModel)
-		{
-			final RedisCartModel redisCartModel = (RedisCartModel) cart;
-			final String code = redisCartModel.getCode();
-			if (StringUtils.isNotBlank(code))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateCodeKey(code), code);
-				getSetOps().add(getRedisKeyGenerator().generateCodeKey(code), code);
-			}
-			final String userId = redisCartModel.getUser().getUid();
-			if (StringUtils.isNotBlank(userId))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateUserIdKey(userId), code);
-				getSetOps().add(getRedisKeyGenerator().generateUserIdKey(userId), code);
-			}
-			final String guid = redisCartModel.getGuid();
-			if (StringUtils.isNotBlank(guid))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateGuidKey(guid), code);
-				getSetOps().add(getRedisKeyGenerator().generateGuidKey(guid), code);
-			}
-			final String siteId = redisCartModel.getSite().getUid();
-			if (StringUtils.isNotBlank(siteId))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateSiteIdKey(siteId), code);
-				getSetOps().add(getRedisKeyGenerator().generateSiteIdKey(siteId), code);
-			}
-		}
+		indexCart(cart);
 
 		return true;
 	}
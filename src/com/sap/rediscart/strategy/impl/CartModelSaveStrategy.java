@@ -18,7 +18,10 @@ package com.sap.rediscart.strategy.impl;
 import de.hybris.platform.core.model.ItemModel;
 import de.hybris.platform.core.model.order.CartModel;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.collections.CollectionUtils;
@@ -26,8 +29,7 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sap.rediscart.jalo.order.RedisCart;
-import com.sap.rediscart.model.order.RedisCartModel;
+import com.sap.rediscart.store.CartIndex;
 
 
 /**
@@ -41,39 +43,11 @@ public class CartModelSaveStrategy extends AbstractModelSaveStrategy
 	protected boolean doAfterSave(final ItemModel model)
 	{
 		final CartModel cart = (CartModel) model;
-		final RedisCart redisCart = getModelService().getSource(cart);
 		final String cartKey = getRedisKeyGenerator().generateCartKey(cart);
-		getValueOps().set(cartKey, redisCart);
+		saveCart(cart);
 		LOG.debug("Cart saved to redis: " + cartKey);
 
-		if (cart instanceof RedisCartModel)
-		{
-			final RedisCartModel redisCartModel = (RedisCartModel) cart;
-			final String code = redisCartModel.getCode();
-			if (StringUtils.isNotBlank(code))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateCodeKey(code), code);
-				getSetOps().add(getRedisKeyGenerator().generateCodeKey(code), code);
-			}
-			final String userId = redisCartModel.getUser().getUid();
-			if (StringUtils.isNotBlank(userId))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateUserIdKey(userId), code);
-				getSetOps().add(getRedisKeyGenerator().generateUserIdKey(userId), code);
-			}
-			final String guid = redisCartModel.getGuid();
-			if (StringUtils.isNotBlank(guid))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateGuidKey(guid), code);
-				getSetOps().add(getRedisKeyGenerator().generateGuidKey(guid), code);
-			}
-			final String siteId = redisCartModel.getSite().getUid();
-			if (StringUtils.isNotBlank(siteId))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateSiteIdKey(siteId), code);
-				getSetOps().add(getRedisKeyGenerator().generateSiteIdKey(siteId), code);
-			}
-		}
+		indexCart(cart);
 
 		return true;
 	}
@@ -88,58 +62,43 @@ public class CartModelSaveStrategy extends AbstractModelSaveStrategy
 	@Override
 	protected boolean doBeforeRemove(final Collection<? extends Object> toSave, final ItemModel model)
 	{
-		final CartModel cart = (CartModel) model;
-
-		final String cartKey = getRedisKeyGenerator().generateCartKey(cart);
-		getRedisTemplate().delete(cartKey);
-		LOG.debug("Cart deleted from redis: " + cartKey);
+		removeCarts(Collections.singletonList((CartModel) model));
+		return true;
+	}
 
-		if (cart instanceof RedisCartModel)
+	@Override
+	protected boolean doBeforeRemoveAll(final Collection<? extends Object> toSave, final Collection<ItemModel> models)
+	{
+		final List<CartModel> carts = new ArrayList<>(models.size());
+		for (final ItemModel model : models)
 		{
-			final RedisCartModel redisCartModel = (RedisCartModel) cart;
-			final String code = redisCartModel.getCode();
-			if (StringUtils.isNotBlank(code))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateCodeKey(code), code);
-			}
-			final String userId = redisCartModel.getUser().getUid();
-			if (StringUtils.isNotBlank(userId))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateUserIdKey(userId), code);
-			}
-			final String guid = redisCartModel.getGuid();
-			if (StringUtils.isNotBlank(guid))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateGuidKey(guid), code);
-			}
-			final String siteId = redisCartModel.getSite().getUid();
-			if (StringUtils.isNotBlank(siteId))
-			{
-				getSetOps().remove(getRedisKeyGenerator().generateSiteIdKey(siteId), code);
-			}
+			carts.add((CartModel) model);
+		}
+		removeCarts(carts);
+		return true;
+	}
 
-			final String prPattern = getRedisKeyGenerator().generateCartKey(code);
-			final Set prKeys = getRedisTemplate().keys(prPattern + ":promotionResult:*");
-			if (CollectionUtils.isNotEmpty(prKeys))
-			{
-				for (final Object prKey : prKeys)
-				{
-					getRedisTemplate().delete(prKey.toString());
-				}
-			}
+	/**
+	 * Removes the carts together with their indexes and promotion results in one batch. Carts leased by somebody else,
+	 * e.g. because they are being checked out, are skipped.
+	 */
+	public void removeCarts(final Collection<CartModel> carts)
+	{
+		if (CollectionUtils.isEmpty(carts))
+		{
+			return;
+		}
 
-			final String vrPattern = getRedisKeyGenerator().generateCartKey(code);
-			final Set vrKeys = getRedisTemplate().keys(vrPattern + ":voucherResult:*");
-			if (CollectionUtils.isNotEmpty(vrKeys))
+		final List<CartIndex> toRemove = new ArrayList<>(carts.size());
+		for (final CartModel cart : carts)
+		{
+			if (StringUtils.isNotBlank(cart.getCode()))
 			{
-				for (final Object vrKey : vrKeys)
-				{
-					getRedisTemplate().delete(vrKey.toString());
-				}
+				toRemove.add(toCartIndex(cart));
 			}
 		}
-
-		return true;
+		final Set<String> removedCodes = getCartStore().remove(toRemove);
+		LOG.debug("Carts deleted from redis: " + removedCodes.size() + " of " + carts.size());
 	}
 
 	@Override
@@ -46,7 +46,7 @@ public class PromotionResultSaveStrategy extends AbstractModelSaveStrategy
 		final PromotionResult pr = getModelService().getSource(prModel);
 		final CartModel cart = (CartModel) prModel.getOrder();
 		final String prKey = getRedisKeyGenerator().generatePromotionResultKey(cart, prModel);
-		getRedisTemplate().opsForValue().set(prKey, pr);
+		getCartStore().savePromotionResult(cart.getCode(), prModel.getPk().toString(), pr);
 		LOG.debug("CachedPromotionResult saved to redis: " + prKey);
 		return true;
 	}
@@ -57,7 +57,7 @@ public class PromotionResultSaveStrategy extends AbstractModelSaveStrategy
 		final CachedPromotionResultModel prModel = (CachedPromotionResultModel) model;
 		final String cartCode = prModel.getOrder().getCode();
 		final String prKey = getRedisKeyGenerator().generatePromotionResultKey(cartCode, prModel.getPk().toString());
-		getRedisTemplate().delete(prKey);
+		getCartStore().removePromotionResult(cartCode, prModel.getPk().toString());
 		LOG.debug("CachedPromotionResult removed from redis: " + prKey);
 		return true;
 	}
@@ -0,0 +1,478 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import de.hybris.platform.core.Registry;
+import de.hybris.platform.core.Tenant;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
+import org.springframework.data.redis.connection.RedisNode;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import com.lambdaworks.redis.RedisURI;
+import com.lambdaworks.redis.ScriptOutputType;
+import com.lambdaworks.redis.SetArgs;
+import com.lambdaworks.redis.cluster.RedisClusterClient;
+import com.lambdaworks.redis.cluster.api.StatefulRedisClusterConnection;
+import com.lambdaworks.redis.cluster.api.async.RedisAdvancedClusterAsyncCommands;
+import com.lambdaworks.redis.codec.ByteArrayCodec;
+import com.sap.rediscart.exceptions.CartLockedException;
+import com.sap.rediscart.exceptions.CartVersionConflictException;
+import com.sap.rediscart.jalo.order.RedisCart;
+
+import redis.clients.util.SafeEncoder;
+
+
+/**
+ * Non-blocking counterpart of {@link RedisCartOperations} on a single multiplexed Lettuce cluster connection. Commands
+ * are issued as futures, so a thread can fan out over many carts without holding a pooled connection while waiting.
+ * Keys and values are encoded with the serializers of the redis template, so both access paths read and write the same
+ * data.
+ * <p/>
+ * Carts are decoded in the current tenant of the calling thread, even if the reply completes on an I/O thread.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class AsyncRedisCartOperations
+{
+	private static final Logger LOG = LoggerFactory.getLogger(AsyncRedisCartOperations.class);
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private RedisClusterConfiguration redisClusterConfiguration;
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private RedisKeyGenerator redisKeyGenerator;
+	private RedisScript<Long> compareAndSetCartScript;
+	private RedisCartLeaseLock redisCartLeaseLock;
+	private CartTtlPolicy cartTtlPolicy;
+	private boolean enabled = false;
+	private boolean optimisticLockingEnabled = true;
+
+	private RedisClusterClient client;
+	private StatefulRedisClusterConnection<byte[], byte[]> connection;
+
+	public void init()
+	{
+		if (!isEnabled())
+		{
+			return;
+		}
+		final List<RedisURI> uris = new ArrayList<>();
+		for (final RedisNode node : getRedisClusterConfiguration().getClusterNodes())
+		{
+			uris.add(RedisURI.create(node.getHost(), node.getPort().intValue()));
+		}
+		client = RedisClusterClient.create(uris);
+		connection = client.connect(ByteArrayCodec.INSTANCE);
+		LOG.info("Asynchronous redis access connected to {} seed nodes", Integer.valueOf(uris.size()));
+	}
+
+	public void destroy()
+	{
+		if (connection != null)
+		{
+			connection.close();
+		}
+		if (client != null)
+		{
+			client.shutdown();
+		}
+	}
+
+	/**
+	 * Loads the cart and its version with one MGET, see {@link RedisCartOperations#get(String)}. Carts offloaded by the
+	 * {@link ColdCartTier} are not promoted here, promoting blocks on the cold storage.
+	 *
+	 * @return the cart or null if there is no cart for the code or it has been offloaded
+	 */
+	public CompletableFuture<RedisCart> get(final String cartCode)
+	{
+		if (StringUtils.isBlank(cartCode))
+		{
+			return CompletableFuture.completedFuture(null);
+		}
+		final Tenant tenant = Registry.getCurrentTenantNoFallback();
+		final byte[] cartKey = getRedisClusterPipelineExecutor().serializeKey(getRedisKeyGenerator().generateCartKey(cartCode));
+		if (!isOptimisticLockingEnabled())
+		{
+			return commands().get(cartKey).toCompletableFuture()
+					.thenApply(value -> inTenant(tenant, () -> toCart(getRedisClusterPipelineExecutor().deserializeValue(value))));
+		}
+
+		final byte[] versionKey = getRedisClusterPipelineExecutor()
+				.serializeKey(getRedisKeyGenerator().generateVersionKey(cartCode));
+		return commands().mget(cartKey, versionKey).toCompletableFuture().thenApply(values -> inTenant(tenant, () -> {
+			final RedisCart cart = values == null ? null
+					: toCart(getRedisClusterPipelineExecutor().deserializeValue(values.get(0)));
+			if (cart != null)
+			{
+				final Object version = getRedisClusterPipelineExecutor().deserializeValue(values.get(1));
+				cart.setRedisVersion(version instanceof Long ? ((Long) version).longValue() : 0L);
+			}
+			return cart;
+		}));
+	}
+
+	/**
+	 * Loads all carts concurrently.
+	 *
+	 * @return the carts by code in the order of the codes, codes without a cart and offloaded carts are left out
+	 */
+	public CompletableFuture<Map<String, RedisCart>> getAll(final Collection<String> cartCodes)
+	{
+		final Map<String, CompletableFuture<RedisCart>> futures = new LinkedHashMap<>();
+		for (final String cartCode : cartCodes)
+		{
+			futures.put(cartCode, get(cartCode));
+		}
+		return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[futures.size()])).thenApply(v -> {
+			final Map<String, RedisCart> carts = new LinkedHashMap<>();
+			for (final Map.Entry<String, CompletableFuture<RedisCart>> entry : futures.entrySet())
+			{
+				final RedisCart cart = entry.getValue().join();
+				if (cart != null)
+				{
+					carts.put(entry.getKey(), cart);
+				}
+			}
+			return carts;
+		});
+	}
+
+	/**
+	 * Saves the cart with the same compare-and-set semantics as {@link RedisCartOperations#set(String, RedisCart)}, the
+	 * future fails with a {@link CartVersionConflictException} or {@link CartLockedException}.
+	 */
+	public CompletableFuture<Void> set(final String cartCode, final RedisCart cart)
+	{
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final byte[] cartKey = executor.serializeKey(getRedisKeyGenerator().generateCartKey(cartCode));
+		final long ttlSeconds = getCartTtlPolicy() == null ? 0L : getCartTtlPolicy().getTtlSeconds(cart);
+		if (!isOptimisticLockingEnabled())
+		{
+			final SetArgs setArgs = ttlSeconds > 0 ? SetArgs.Builder.ex(ttlSeconds) : new SetArgs();
+			return commands().set(cartKey, executor.serializeValue(cart), setArgs).toCompletableFuture()
+					.thenApply(reply -> refreshed(cartCode, ttlSeconds));
+		}
+
+		final long expectedVersion = cart.getRedisVersion();
+		final long newVersion = expectedVersion + 1;
+		// the held lease is thread bound, so it has to be looked up before going asynchronous
+		final CartLease lease = getRedisCartLeaseLock().getHeldLease(cartCode);
+		final byte[][] keys = new byte[][]
+		{ cartKey, //
+				executor.serializeKey(getRedisKeyGenerator().generateVersionKey(cartCode)), //
+				executor.serializeKey(getRedisKeyGenerator().generateLockKey(cartCode)) };
+		final byte[][] args = new byte[][]
+		{ expectedVersion == 0 ? EMPTY : executor.serializeValue(Long.valueOf(expectedVersion)), //
+				executor.serializeValue(cart), //
+				executor.serializeValue(Long.valueOf(newVersion)), //
+				lease == null ? EMPTY : SafeEncoder.encode(lease.getValue()), //
+				SafeEncoder.encode(String.valueOf(ttlSeconds)) };
+
+		return eval(getCompareAndSetCartScript(), keys, args).thenApply(result -> {
+			final long status = result instanceof Long ? ((Long) result).longValue() : 0L;
+			if (status == -1L)
+			{
+				throw new CartLockedException(cartCode);
+			}
+			if (status != 1L)
+			{
+				throw new CartVersionConflictException(cartCode, expectedVersion);
+			}
+			cart.setRedisVersion(newVersion);
+			return refreshed(cartCode, ttlSeconds);
+		});
+	}
+
+	private Void refreshed(final String cartCode, final long ttlSeconds)
+	{
+		if (ttlSeconds > 0)
+		{
+			getCartTtlPolicy().refreshed(cartCode);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the cart codes in the index set
+	 */
+	public CompletableFuture<Set<String>> members(final String indexKey)
+	{
+		return commands().smembers(getRedisClusterPipelineExecutor().serializeKey(indexKey)).toCompletableFuture()
+				.thenApply(this::toCodes);
+	}
+
+	/**
+	 * Intersects the index sets on the client, the sets usually live in different hash slots.
+	 *
+	 * @return the cart codes contained in all index sets
+	 */
+	public CompletableFuture<Set<String>> intersect(final Collection<String> indexKeys)
+	{
+		final List<CompletableFuture<Set<String>>> futures = new ArrayList<>();
+		for (final String indexKey : indexKeys)
+		{
+			futures.add(members(indexKey));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenApply(v -> {
+			Set<String> result = null;
+			for (final CompletableFuture<Set<String>> future : futures)
+			{
+				if (result == null)
+				{
+					result = new HashSet<>(future.join());
+				}
+				else
+				{
+					result.retainAll(future.join());
+				}
+			}
+			return result == null ? new HashSet<>() : result;
+		});
+	}
+
+	public CompletableFuture<Long> addIndexMember(final String indexKey, final String cartCode)
+	{
+		return commands().sadd(getRedisClusterPipelineExecutor().serializeKey(indexKey),
+				getRedisClusterPipelineExecutor().serializeValue(cartCode)).toCompletableFuture();
+	}
+
+	public CompletableFuture<Long> removeIndexMember(final String indexKey, final String cartCode)
+	{
+		return commands().srem(getRedisClusterPipelineExecutor().serializeKey(indexKey),
+				getRedisClusterPipelineExecutor().serializeValue(cartCode)).toCompletableFuture();
+	}
+
+	private CompletableFuture<Object> eval(final RedisScript<?> script, final byte[][] keys, final byte[][] args)
+	{
+		final CompletableFuture<Object> bySha = commands()
+				.<Object> evalsha(script.getSha1(), ScriptOutputType.INTEGER, keys, args).toCompletableFuture();
+		return bySha.handle((result, e) -> {
+			if (e == null)
+			{
+				return CompletableFuture.completedFuture(result);
+			}
+			final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			if (cause.getMessage() == null || !cause.getMessage().startsWith("NOSCRIPT"))
+			{
+				final CompletableFuture<Object> failed = new CompletableFuture<>();
+				failed.completeExceptionally(cause);
+				return failed;
+			}
+			return commands().<Object> eval(script.getScriptAsString(), ScriptOutputType.INTEGER, keys, args)
+					.toCompletableFuture();
+		}).thenCompose(future -> future);
+	}
+
+	private RedisCart toCart(final Object value)
+	{
+		return value instanceof RedisCart ? (RedisCart) value : null;
+	}
+
+	private Set<String> toCodes(final Set<byte[]> members)
+	{
+		final Set<String> codes = new HashSet<>();
+		if (members != null)
+		{
+			for (final byte[] member : members)
+			{
+				final Object code = getRedisClusterPipelineExecutor().deserializeValue(member);
+				if (code != null)
+				{
+					codes.add(code.toString());
+				}
+			}
+		}
+		return codes;
+	}
+
+	private <T> T inTenant(final Tenant tenant, final Supplier<T> supplier)
+	{
+		if (tenant == null || Registry.hasCurrentTenant())
+		{
+			return supplier.get();
+		}
+		Registry.setCurrentTenant(tenant);
+		try
+		{
+			return supplier.get();
+		}
+		finally
+		{
+			Registry.unsetCurrentTenant();
+		}
+	}
+
+	private RedisAdvancedClusterAsyncCommands<byte[], byte[]> commands()
+	{
+		if (connection == null)
+		{
+			throw new IllegalStateException("Asynchronous redis access is disabled, set redis.async.enabled=true");
+		}
+		return connection.async();
+	}
+
+	/**
+	 * @return the redisClusterConfiguration
+	 */
+	public RedisClusterConfiguration getRedisClusterConfiguration()
+	{
+		return redisClusterConfiguration;
+	}
+
+	/**
+	 * @param redisClusterConfiguration
+	 *           the redisClusterConfiguration to set
+	 */
+	public void setRedisClusterConfiguration(final RedisClusterConfiguration redisClusterConfiguration)
+	{
+		this.redisClusterConfiguration = redisClusterConfiguration;
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the redisKeyGenerator
+	 */
+	public RedisKeyGenerator getRedisKeyGenerator()
+	{
+		return redisKeyGenerator;
+	}
+
+	/**
+	 * @param redisKeyGenerator
+	 *           the redisKeyGenerator to set
+	 */
+	public void setRedisKeyGenerator(final RedisKeyGenerator redisKeyGenerator)
+	{
+		this.redisKeyGenerator = redisKeyGenerator;
+	}
+
+	/**
+	 * @return the compareAndSetCartScript
+	 */
+	public RedisScript<Long> getCompareAndSetCartScript()
+	{
+		return compareAndSetCartScript;
+	}
+
+	/**
+	 * @param compareAndSetCartScript
+	 *           the compareAndSetCartScript to set
+	 */
+	public void setCompareAndSetCartScript(final RedisScript<Long> compareAndSetCartScript)
+	{
+		this.compareAndSetCartScript = compareAndSetCartScript;
+	}
+
+	/**
+	 * @return the redisCartLeaseLock
+	 */
+	public RedisCartLeaseLock getRedisCartLeaseLock()
+	{
+		return redisCartLeaseLock;
+	}
+
+	/**
+	 * @param redisCartLeaseLock
+	 *           the redisCartLeaseLock to set
+	 */
+	public void setRedisCartLeaseLock(final RedisCartLeaseLock redisCartLeaseLock)
+	{
+		this.redisCartLeaseLock = redisCartLeaseLock;
+	}
+
+	/**
+	 * @return the cartTtlPolicy
+	 */
+	public CartTtlPolicy getCartTtlPolicy()
+	{
+		return cartTtlPolicy;
+	}
+
+	/**
+	 * @param cartTtlPolicy
+	 *           the cartTtlPolicy to set
+	 */
+	public void setCartTtlPolicy(final CartTtlPolicy cartTtlPolicy)
+	{
+		this.cartTtlPolicy = cartTtlPolicy;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *           the enabled to set
+	 */
+	public void setEnabled(final boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the optimisticLockingEnabled
+	 */
+	public boolean isOptimisticLockingEnabled()
+	{
+		return optimisticLockingEnabled;
+	}
+
+	/**
+	 * @param optimisticLockingEnabled
+	 *           the optimisticLockingEnabled to set
+	 */
+	public void setOptimisticLockingEnabled(final boolean optimisticLockingEnabled)
+	{
+		this.optimisticLockingEnabled = optimisticLockingEnabled;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+/**
+ * A lease on a cart acquired through {@link RedisCartLeaseLock}. The fencing token grows with every acquisition of the
+ * same cart, so a holder whose lease has expired can be told apart from the current one.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartLease
+{
+	private final String cartCode;
+	private final String owner;
+	private final long fencingToken;
+	private final long expiresAt;
+
+	public CartLease(final String cartCode, final String owner, final long fencingToken, final long expiresAt)
+	{
+		this.cartCode = cartCode;
+		this.owner = owner;
+		this.fencingToken = fencingToken;
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * @return the value stored under the lock key while this lease is held
+	 */
+	public String getValue()
+	{
+		return owner + ":" + fencingToken;
+	}
+
+	public boolean isExpired()
+	{
+		return System.currentTimeMillis() >= expiresAt;
+	}
+
+	/**
+	 * @return the cartCode
+	 */
+	public String getCartCode()
+	{
+		return cartCode;
+	}
+
+	/**
+	 * @return the owner
+	 */
+	public String getOwner()
+	{
+		return owner;
+	}
+
+	/**
+	 * @return the fencingToken
+	 */
+	public long getFencingToken()
+	{
+		return fencingToken;
+	}
+
+	/**
+	 * @return the expiresAt
+	 */
+	public long getExpiresAt()
+	{
+		return expiresAt;
+	}
+}
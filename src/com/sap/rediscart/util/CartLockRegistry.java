@@ -0,0 +1,307 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.exceptions.CartLockBusyException;
+
+
+/**
+ * Serializes operations on the same cart within this node. Cart codes are mapped onto a fixed number of reentrant locks,
+ * so operations on the same cart wait for each other while different carts almost never share a lock. Several carts
+ * are always locked in stripe order, so two threads locking overlapping carts cannot deadlock. A nested call needing a
+ * lower stripe than its outer calls hold breaks that order, it waits for the stripe at most nestedLockTimeoutMillis
+ * and then fails with a {@link CartLockBusyException}, which only happens if the threads really wait for each other.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartLockRegistry
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CartLockRegistry.class);
+
+	private final ReentrantLock[] stripes;
+	private final int mask;
+	private final ThreadLocal<int[]> highestHeldStripe = ThreadLocal.withInitial(() -> new int[] { -1 });
+
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder contendedAcquisitions = new LongAdder();
+	private final LongAdder totalWaitNanos = new LongAdder();
+	private final LongAdder totalHoldNanos = new LongAdder();
+	private final AtomicLong maxHoldNanos = new AtomicLong();
+
+	private long slowHoldThresholdMillis = 500;
+	private long nestedLockTimeoutMillis = 2000;
+
+	/**
+	 * @param stripeCount
+	 *           the number of locks, rounded up to the next power of two
+	 */
+	public CartLockRegistry(final int stripeCount)
+	{
+		int size = 1;
+		while (size < stripeCount)
+		{
+			size <<= 1;
+		}
+		this.stripes = new ReentrantLock[size];
+		for (int i = 0; i < size; i++)
+		{
+			this.stripes[i] = new ReentrantLock();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Runs the operation while holding the lock of the cart, a blank code runs it without locking.
+	 */
+	public <T> T withLock(final String cartCode, final Supplier<T> operation)
+	{
+		return withLocks(StringUtils.isBlank(cartCode) ? Collections.<String> emptyList() : Collections.singleton(cartCode),
+				operation);
+	}
+
+	/**
+	 * Runs the operation while holding the locks of all carts.
+	 */
+	public <T> T withLocks(final Collection<String> cartCodes, final Supplier<T> operation)
+	{
+		if (cartCodes == null || cartCodes.isEmpty())
+		{
+			return operation.get();
+		}
+
+		final TreeSet<Integer> stripeIndexes = new TreeSet<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isNotBlank(cartCode))
+			{
+				stripeIndexes.add(Integer.valueOf(stripeIndex(cartCode)));
+			}
+		}
+		if (stripeIndexes.isEmpty())
+		{
+			return operation.get();
+		}
+
+		final int[] highestHeld = highestHeldStripe.get();
+		final int outerHighest = highestHeld[0];
+		lockAll(stripeIndexes, outerHighest, cartCodes);
+		highestHeld[0] = Math.max(outerHighest, stripeIndexes.last().intValue());
+		final long lockedAt = System.nanoTime();
+		try
+		{
+			return operation.get();
+		}
+		finally
+		{
+			unlockAll(stripeIndexes.descendingSet());
+			highestHeld[0] = outerHighest;
+			if (outerHighest < 0)
+			{
+				highestHeldStripe.remove();
+				recordHold(System.nanoTime() - lockedAt, cartCodes);
+			}
+		}
+	}
+
+	/**
+	 * Locks the stripes in ascending order. Stripes below the highest one already held by an outer call would break that
+	 * order, they are waited for with a timeout, so a deadlock with a thread locking the same stripes in order ends with
+	 * the nested call failing.
+	 */
+	private void lockAll(final TreeSet<Integer> stripeIndexes, final int outerHighest,
+			final Collection<String> cartCodes)
+	{
+		final Deque<Integer> locked = new ArrayDeque<>(stripeIndexes.size());
+		try
+		{
+			for (final Integer index : stripeIndexes)
+			{
+				final ReentrantLock stripe = stripes[index.intValue()];
+				if (index.intValue() < outerHighest && !stripe.isHeldByCurrentThread())
+				{
+					lockOutOfOrder(stripe, cartCodes);
+				}
+				else
+				{
+					lock(stripe);
+				}
+				locked.push(index);
+			}
+		}
+		catch (final RuntimeException e)
+		{
+			unlockAll(locked);
+			throw e;
+		}
+	}
+
+	private void unlockAll(final Iterable<Integer> stripeIndexes)
+	{
+		for (final Integer index : stripeIndexes)
+		{
+			stripes[index.intValue()].unlock();
+		}
+	}
+
+	private void lock(final ReentrantLock lock)
+	{
+		if (lock.isHeldByCurrentThread())
+		{
+			lock.lock();
+			return;
+		}
+		acquisitions.increment();
+		if (!lock.tryLock())
+		{
+			contendedAcquisitions.increment();
+			final long start = System.nanoTime();
+			lock.lock();
+			totalWaitNanos.add(System.nanoTime() - start);
+		}
+	}
+
+	private void lockOutOfOrder(final ReentrantLock lock, final Collection<String> cartCodes)
+	{
+		acquisitions.increment();
+		if (lock.tryLock())
+		{
+			return;
+		}
+		contendedAcquisitions.increment();
+		final long start = System.nanoTime();
+		boolean locked;
+		try
+		{
+			locked = lock.tryLock(getNestedLockTimeoutMillis(), TimeUnit.MILLISECONDS);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			locked = false;
+		}
+		totalWaitNanos.add(System.nanoTime() - start);
+		if (!locked)
+		{
+			throw new CartLockBusyException(cartCodes, getNestedLockTimeoutMillis());
+		}
+	}
+
+	private void recordHold(final long holdNanos, final Collection<String> cartCodes)
+	{
+		totalHoldNanos.add(holdNanos);
+		long max = maxHoldNanos.get();
+		while (holdNanos > max && !maxHoldNanos.compareAndSet(max, holdNanos))
+		{
+			max = maxHoldNanos.get();
+		}
+		if (holdNanos / 1000000L >= slowHoldThresholdMillis)
+		{
+			LOG.warn("Cart lock for {} held for {} ms", cartCodes, Long.valueOf(holdNanos / 1000000L));
+		}
+	}
+
+	private int stripeIndex(final String cartCode)
+	{
+		// spread the hash, codes are often sequential numbers
+		final int h = cartCode.hashCode();
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	public int getStripeCount()
+	{
+		return stripes.length;
+	}
+
+	/**
+	 * @return the number of outermost lock acquisitions
+	 */
+	public long getAcquisitions()
+	{
+		return acquisitions.sum();
+	}
+
+	/**
+	 * @return the number of acquisitions which had to wait for another thread
+	 */
+	public long getContendedAcquisitions()
+	{
+		return contendedAcquisitions.sum();
+	}
+
+	public long getTotalWaitNanos()
+	{
+		return totalWaitNanos.sum();
+	}
+
+	public long getTotalHoldNanos()
+	{
+		return totalHoldNanos.sum();
+	}
+
+	public long getMaxHoldNanos()
+	{
+		return maxHoldNanos.get();
+	}
+
+	/**
+	 * @return the slowHoldThresholdMillis
+	 */
+	public long getSlowHoldThresholdMillis()
+	{
+		return slowHoldThresholdMillis;
+	}
+
+	/**
+	 * @param slowHoldThresholdMillis
+	 *           locks held at least that long are logged
+	 */
+	public void setSlowHoldThresholdMillis(final long slowHoldThresholdMillis)
+	{
+		this.slowHoldThresholdMillis = slowHoldThresholdMillis;
+	}
+
+	/**
+	 * @return the nestedLockTimeoutMillis
+	 */
+	public long getNestedLockTimeoutMillis()
+	{
+		return nestedLockTimeoutMillis;
+	}
+
+	/**
+	 * @param nestedLockTimeoutMillis
+	 *           the nestedLockTimeoutMillis to set
+	 */
+	public void setNestedLockTimeoutMillis(final long nestedLockTimeoutMillis)
+	{
+		this.nestedLockTimeoutMillis = nestedLockTimeoutMillis;
+	}
+}
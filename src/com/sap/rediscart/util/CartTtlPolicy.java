@@ -0,0 +1,186 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import de.hybris.platform.core.Constants;
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.jalo.security.JaloSecurityException;
+import de.hybris.platform.jalo.user.User;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sap.rediscart.jalo.order.RedisCart;
+
+
+/**
+ * How long a cart is kept in redis after it has last been read or written, by type of cart: saved carts, carts of
+ * registered customers and anonymous carts. A time to live of 0 keeps the carts of that type forever, they are only
+ * removed by the cart removal jobs.
+ * <p/>
+ * Reads only set the time to live again once half of it has passed since this node last set it, the carts read most
+ * often would otherwise cost an EXPIRE per read. The last settings are remembered for a bounded number of carts.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CartTtlPolicy
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CartTtlPolicy.class);
+
+	private long anonymousTtlSeconds;
+	private long registeredTtlSeconds;
+	private long savedTtlSeconds;
+	private int maxRememberedCarts = 100000;
+
+	private final Map<String, Long> refreshedAt = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the seconds the cart is kept after its last access, 0 if it does not expire
+	 */
+	public long getTtlSeconds(final RedisCart cart)
+	{
+		if (!isEnabled() || cart == null)
+		{
+			return 0L;
+		}
+		if (isSaved(cart))
+		{
+			return getSavedTtlSeconds();
+		}
+		final User user = cart.getUser();
+		if (user == null || Constants.USER.ANONYMOUS_CUSTOMER.equals(user.getUid()))
+		{
+			return getAnonymousTtlSeconds();
+		}
+		return getRegisteredTtlSeconds();
+	}
+
+	/**
+	 * @return whether carts of any type expire
+	 */
+	public boolean isEnabled()
+	{
+		return getAnonymousTtlSeconds() > 0 || getRegisteredTtlSeconds() > 0 || getSavedTtlSeconds() > 0;
+	}
+
+	/**
+	 * @return whether the time to live of the cart has to be set again on a read, true unless this node has set it less
+	 *         than half of it ago
+	 */
+	public boolean isRefreshDue(final String cartCode, final long ttlSeconds)
+	{
+		final Long at = refreshedAt.get(cartCode);
+		return at == null || System.currentTimeMillis() - at.longValue() >= TimeUnit.SECONDS.toMillis(ttlSeconds) / 2;
+	}
+
+	/**
+	 * Remembers that the time to live of the cart has just been set, by a save or a read.
+	 */
+	public void refreshed(final String cartCode)
+	{
+		if (refreshedAt.size() >= getMaxRememberedCarts())
+		{
+			// forgetting only costs one more EXPIRE per cart read afterwards
+			refreshedAt.clear();
+		}
+		refreshedAt.put(cartCode, Long.valueOf(System.currentTimeMillis()));
+	}
+
+	protected boolean isSaved(final RedisCart cart)
+	{
+		try
+		{
+			return cart.getAttribute(CartModel.SAVETIME) != null;
+		}
+		catch (final JaloSecurityException e)
+		{
+			LOG.debug("Cannot read the save time of cart {}", cart.getCode(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return the anonymousTtlSeconds
+	 */
+	public long getAnonymousTtlSeconds()
+	{
+		return anonymousTtlSeconds;
+	}
+
+	/**
+	 * @param anonymousTtlSeconds
+	 *           the anonymousTtlSeconds to set
+	 */
+	public void setAnonymousTtlSeconds(final long anonymousTtlSeconds)
+	{
+		this.anonymousTtlSeconds = anonymousTtlSeconds;
+	}
+
+	/**
+	 * @return the registeredTtlSeconds
+	 */
+	public long getRegisteredTtlSeconds()
+	{
+		return registeredTtlSeconds;
+	}
+
+	/**
+	 * @param registeredTtlSeconds
+	 *           the registeredTtlSeconds to set
+	 */
+	public void setRegisteredTtlSeconds(final long registeredTtlSeconds)
+	{
+		this.registeredTtlSeconds = registeredTtlSeconds;
+	}
+
+	/**
+	 * @return the savedTtlSeconds
+	 */
+	public long getSavedTtlSeconds()
+	{
+		return savedTtlSeconds;
+	}
+
+	/**
+	 * @param savedTtlSeconds
+	 *           the savedTtlSeconds to set
+	 */
+	public void setSavedTtlSeconds(final long savedTtlSeconds)
+	{
+		this.savedTtlSeconds = savedTtlSeconds;
+	}
+
+	/**
+	 * @return the maxRememberedCarts
+	 */
+	public int getMaxRememberedCarts()
+	{
+		return maxRememberedCarts;
+	}
+
+	/**
+	 * @param maxRememberedCarts
+	 *           the maxRememberedCarts to set
+	 */
+	public void setMaxRememberedCarts(final int maxRememberedCarts)
+	{
+		this.maxRememberedCarts = maxRememberedCarts;
+	}
+}
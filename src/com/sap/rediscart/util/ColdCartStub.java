@@ -0,0 +1,73 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import java.io.Serializable;
+import java.util.Date;
+
+
+/**
+ * Stored under the key of a saved cart in place of the cart once it has been offloaded by the {@link ColdCartTier}. The
+ * key keeps its time to live and the cart stays in its indexes, so the cart is still found and scanned as before, it is
+ * only promoted back when it is read.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class ColdCartStub implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final String code;
+	private final Date offloadTime;
+	private final Date expirationTime;
+
+	public ColdCartStub(final String code, final Date offloadTime, final Date expirationTime)
+	{
+		this.code = code;
+		this.offloadTime = offloadTime;
+		this.expirationTime = expirationTime;
+	}
+
+	/**
+	 * @return the code
+	 */
+	public String getCode()
+	{
+		return code;
+	}
+
+	/**
+	 * @return the offloadTime
+	 */
+	public Date getOffloadTime()
+	{
+		return offloadTime;
+	}
+
+	/**
+	 * @return the expiration time of the saved cart, null if it does not expire
+	 */
+	public Date getExpirationTime()
+	{
+		return expirationTime;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ColdCartStub[code=" + code + ", offloadTime=" + offloadTime + ", expirationTime=" + expirationTime + "]";
+	}
+}
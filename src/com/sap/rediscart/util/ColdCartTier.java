@@ -0,0 +1,374 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.jalo.security.JaloSecurityException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.store.ColdCartStorage;
+
+
+/**
+ * Moves saved carts nobody has modified for a while from redis to the {@link ColdCartStorage} and back. An offloaded
+ * cart leaves a {@link ColdCartStub} under its key, which keeps the time to live, the version and the index entries of
+ * the cart, so it is still found by its code, user and site. Reading the cart through {@link RedisCartOperations}
+ * promotes it back to redis. Both moves are compare-and-set scripts on the raw value, a cart saved or promoted
+ * concurrently is never overwritten by an older copy.
+ * <p>
+ * Carts are considered untouched by their modification time, not by the idle time of their key, which the maintenance
+ * jobs reset whenever they read a cart.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class ColdCartTier
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ColdCartTier.class);
+
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private RedisKeyGenerator redisKeyGenerator;
+	private ColdCartStorage coldCartStorage;
+	private RedisScript<Long> offloadColdCartScript;
+	private RedisScript<Long> promoteColdCartScript;
+	private RedisMetrics redisMetrics;
+	private long coldAfterSeconds;
+
+	/**
+	 * @return whether saved carts are offloaded at all
+	 */
+	public boolean isEnabled()
+	{
+		return getColdAfterSeconds() > 0;
+	}
+
+	/**
+	 * Puts the offloaded carts back in place of their stubs. A stub which has been replaced meanwhile, by a save or by a
+	 * concurrent promotion, is read again instead.
+	 *
+	 * @return the carts by code in the order of the codes, codes without a cart in either tier are left out
+	 */
+	public Map<String, RedisCart> promote(final Collection<String> cartCodes)
+	{
+		final Map<String, RedisCart> carts = new LinkedHashMap<>();
+		final Map<String, byte[]> stubs = readRaw(cartCodes);
+		if (stubs.isEmpty())
+		{
+			return carts;
+		}
+		final Map<String, byte[]> payloads = getColdCartStorage().readAll(stubs.keySet());
+		final List<String> promoted = new ArrayList<>();
+		for (final Map.Entry<String, byte[]> entry : stubs.entrySet())
+		{
+			final String cartCode = entry.getKey();
+			final Object value = getRedisClusterPipelineExecutor().deserializeValue(entry.getValue());
+			if (value instanceof RedisCart)
+			{
+				carts.put(cartCode, (RedisCart) value);
+				continue;
+			}
+			final byte[] payload = payloads.get(cartCode);
+			if (!(value instanceof ColdCartStub) || payload == null)
+			{
+				LOG.warn("Cart {} has been offloaded, but there is no cold copy of it", cartCode);
+				continue;
+			}
+			if (promote(cartCode, entry.getValue(), payload))
+			{
+				promoted.add(cartCode);
+				carts.put(cartCode, (RedisCart) getRedisClusterPipelineExecutor().deserializeValue(payload));
+			}
+			else
+			{
+				final Object current = getRedisClusterPipelineExecutor().getRedisTemplate().opsForValue()
+						.get(getRedisKeyGenerator().generateCartKey(cartCode));
+				if (current instanceof RedisCart)
+				{
+					carts.put(cartCode, (RedisCart) current);
+				}
+			}
+		}
+		if (!promoted.isEmpty())
+		{
+			getColdCartStorage().delete(promoted);
+			getRedisMetrics().recordTiering(RedisMetrics.TIERING_PROMOTED, promoted.size());
+			LOG.debug("Promoted cold carts {}", promoted);
+		}
+		return carts;
+	}
+
+	/**
+	 * Offloads the saved carts among the codes which have not been modified for coldAfterSeconds. Carts leased or
+	 * changed while being offloaded stay in redis. Codes of offloaded carts whose expiration time has passed are added
+	 * to expiredCodes, they are for the caller to remove.
+	 *
+	 * @return the number of carts offloaded
+	 */
+	public int offload(final Collection<String> cartCodes, final long now, final Collection<String> expiredCodes)
+	{
+		int offloaded = 0;
+		for (final Map.Entry<String, byte[]> entry : readRaw(cartCodes).entrySet())
+		{
+			final Object value = getRedisClusterPipelineExecutor().deserializeValue(entry.getValue());
+			if (value instanceof ColdCartStub)
+			{
+				final Date expirationTime = ((ColdCartStub) value).getExpirationTime();
+				if (expirationTime != null && expirationTime.getTime() <= now)
+				{
+					expiredCodes.add(entry.getKey());
+				}
+			}
+			else if (value instanceof RedisCart && isCold((RedisCart) value, now)
+					&& offload(entry.getKey(), (RedisCart) value, entry.getValue(), now))
+			{
+				offloaded++;
+			}
+		}
+		if (offloaded > 0)
+		{
+			getRedisMetrics().recordTiering(RedisMetrics.TIERING_OFFLOADED, offloaded);
+		}
+		return offloaded;
+	}
+
+	/**
+	 * Removes the cold copies of removed carts.
+	 */
+	public void forget(final Collection<String> cartCodes)
+	{
+		if (isEnabled() && !cartCodes.isEmpty())
+		{
+			getColdCartStorage().delete(cartCodes);
+		}
+	}
+
+	/**
+	 * @return whether the cart is saved and has not been modified for coldAfterSeconds
+	 */
+	public boolean isCold(final RedisCart cart, final long now)
+	{
+		final Date modificationTime = cart.getModificationTime();
+		return isEnabled() && getDate(cart, CartModel.SAVETIME) != null && modificationTime != null
+				&& now - modificationTime.getTime() >= TimeUnit.SECONDS.toMillis(getColdAfterSeconds());
+	}
+
+	private boolean promote(final String cartCode, final byte[] stub, final byte[] payload)
+	{
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final Object result = executor.eval(getPromoteColdCartScript(), 1, //
+				executor.serializeKey(getRedisKeyGenerator().generateCartKey(cartCode)), //
+				stub, //
+				payload);
+		return result instanceof Long && ((Long) result).longValue() == 1L;
+	}
+
+	private boolean offload(final String cartCode, final RedisCart cart, final byte[] payload, final long now)
+	{
+		getColdCartStorage().write(cartCode, payload);
+
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final ColdCartStub stub = new ColdCartStub(cartCode, new Date(now), getDate(cart, CartModel.EXPIRATIONTIME));
+		final Object result = executor.eval(getOffloadColdCartScript(), 2, //
+				executor.serializeKey(getRedisKeyGenerator().generateCartKey(cartCode)), //
+				executor.serializeKey(getRedisKeyGenerator().generateLockKey(cartCode)), //
+				payload, //
+				executor.serializeValue(stub));
+
+		final long status = result instanceof Long ? ((Long) result).longValue() : 0L;
+		if (status == 1L)
+		{
+			return true;
+		}
+		LOG.debug(status == -1L ? "Cart {} is leased, not offloaded" : "Cart {} has changed, not offloaded", cartCode);
+		getColdCartStorage().delete(Collections.singleton(cartCode));
+		return false;
+	}
+
+	/**
+	 * @return the raw values of the cart keys by code, codes without a value are left out
+	 */
+	private Map<String, byte[]> readRaw(final Collection<String> cartCodes)
+	{
+		final Map<String, String> codeByCartKey = new LinkedHashMap<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isNotBlank(cartCode))
+			{
+				codeByCartKey.put(getRedisKeyGenerator().generateCartKey(cartCode), cartCode);
+			}
+		}
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final Map<String, Object> replies = executor.executePipelinedPerKey(codeByCartKey.keySet(),
+				(pipeline, key) -> pipeline.get(executor.serializeKey(key)));
+
+		final Map<String, byte[]> values = new LinkedHashMap<>();
+		for (final Map.Entry<String, String> entry : codeByCartKey.entrySet())
+		{
+			final Object reply = replies.get(entry.getKey());
+			if (reply instanceof byte[])
+			{
+				values.put(entry.getValue(), (byte[]) reply);
+			}
+		}
+		return values;
+	}
+
+	private Date getDate(final RedisCart cart, final String attribute)
+	{
+		try
+		{
+			return (Date) cart.getAttribute(attribute);
+		}
+		catch (final JaloSecurityException e)
+		{
+			LOG.warn("Cannot read " + attribute + " of cart " + cart.getCode(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the redisKeyGenerator
+	 */
+	public RedisKeyGenerator getRedisKeyGenerator()
+	{
+		return redisKeyGenerator;
+	}
+
+	/**
+	 * @param redisKeyGenerator
+	 *           the redisKeyGenerator to set
+	 */
+	public void setRedisKeyGenerator(final RedisKeyGenerator redisKeyGenerator)
+	{
+		this.redisKeyGenerator = redisKeyGenerator;
+	}
+
+	/**
+	 * @return the coldCartStorage
+	 */
+	public ColdCartStorage getColdCartStorage()
+	{
+		return coldCartStorage;
+	}
+
+	/**
+	 * @param coldCartStorage
+	 *           the coldCartStorage to set
+	 */
+	public void setColdCartStorage(final ColdCartStorage coldCartStorage)
+	{
+		this.coldCartStorage = coldCartStorage;
+	}
+
+	/**
+	 * @return the offloadColdCartScript
+	 */
+	public RedisScript<Long> getOffloadColdCartScript()
+	{
+		return offloadColdCartScript;
+	}
+
+	/**
+	 * @param offloadColdCartScript
+	 *           the offloadColdCartScript to set
+	 */
+	public void setOffloadColdCartScript(final RedisScript<Long> offloadColdCartScript)
+	{
+		this.offloadColdCartScript = offloadColdCartScript;
+	}
+
+	/**
+	 * @return the promoteColdCartScript
+	 */
+	public RedisScript<Long> getPromoteColdCartScript()
+	{
+		return promoteColdCartScript;
+	}
+
+	/**
+	 * @param promoteColdCartScript
+	 *           the promoteColdCartScript to set
+	 */
+	public void setPromoteColdCartScript(final RedisScript<Long> promoteColdCartScript)
+	{
+		this.promoteColdCartScript = promoteColdCartScript;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+
+	/**
+	 * @return the coldAfterSeconds
+	 */
+	public long getColdAfterSeconds()
+	{
+		return coldAfterSeconds;
+	}
+
+	/**
+	 * @param coldAfterSeconds
+	 *           the coldAfterSeconds to set
+	 */
+	public void setColdAfterSeconds(final long coldAfterSeconds)
+	{
+		this.coldAfterSeconds = coldAfterSeconds;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import java.util.Arrays;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import com.sap.rediscart.metrics.RedisMetrics;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+
+
+/**
+ * Compresses the values of the delegate serializer with LZ4 once they reach the threshold. Compressed values start with
+ * the header byte {@link #LZ4}, followed by the uncompressed length as 4 byte int and the LZ4 block. Smaller values, and
+ * values LZ4 cannot make smaller, are written as the delegate produced them, so carts written before compression was
+ * enabled stay readable and small values such as cart versions compare equal in the compare-and-set script.
+ * <p/>
+ * The delegate must not produce values starting with the header byte, which holds for the JDK serialization (0xAC) and
+ * for JSON. The pure Java LZ4 implementation is used, it needs no native library on the nodes.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class CompressingRedisSerializer implements RedisSerializer<Object>
+{
+	public static final byte LZ4 = 0x01;
+
+	private static final int HEADER_LENGTH = 5;
+	/** LZ4 cannot expand a byte of a block to more than 255 bytes, a larger uncompressed length is corrupt. */
+	private static final long MAX_COMPRESSION_RATIO = 255;
+	private static final LZ4Factory LZ4_FACTORY = LZ4Factory.safeInstance();
+
+	private RedisSerializer<Object> delegate;
+	private RedisMetrics redisMetrics;
+	private boolean enabled = true;
+	private int threshold = 2048;
+
+	@Override
+	public byte[] serialize(final Object value) throws SerializationException
+	{
+		final byte[] raw = getDelegate().serialize(value);
+		if (raw == null || !isEnabled() || raw.length < getThreshold())
+		{
+			return raw;
+		}
+
+		final long start = System.nanoTime();
+		final LZ4Compressor compressor = LZ4_FACTORY.fastCompressor();
+		final int maxLength = compressor.maxCompressedLength(raw.length);
+		final byte[] compressed = new byte[HEADER_LENGTH + maxLength];
+		compressed[0] = LZ4;
+		writeInt(compressed, 1, raw.length);
+		final int length = HEADER_LENGTH + compressor.compress(raw, 0, raw.length, compressed, HEADER_LENGTH, maxLength);
+		final boolean smaller = length < raw.length;
+		if (getRedisMetrics() != null)
+		{
+			getRedisMetrics().recordCodec(RedisMetrics.CODEC_COMPRESS, System.nanoTime() - start, raw.length,
+					smaller ? length : raw.length);
+		}
+		return smaller ? Arrays.copyOf(compressed, length) : raw;
+	}
+
+	@Override
+	public Object deserialize(final byte[] bytes) throws SerializationException
+	{
+		if (bytes == null || bytes.length == 0 || bytes[0] != LZ4)
+		{
+			return getDelegate().deserialize(bytes);
+		}
+		if (bytes.length < HEADER_LENGTH)
+		{
+			throw new SerializationException("Truncated LZ4 value of " + bytes.length + " bytes");
+		}
+
+		final long start = System.nanoTime();
+		final int rawLength = readInt(bytes, 1);
+		if (rawLength < 0 || rawLength > (bytes.length - HEADER_LENGTH) * MAX_COMPRESSION_RATIO)
+		{
+			throw new SerializationException(
+					"Invalid uncompressed length " + rawLength + " of LZ4 value of " + bytes.length + " bytes");
+		}
+		final byte[] raw = new byte[rawLength];
+		try
+		{
+			LZ4_FACTORY.fastDecompressor().decompress(bytes, HEADER_LENGTH, raw, 0, rawLength);
+		}
+		catch (final LZ4Exception | ArrayIndexOutOfBoundsException e)
+		{
+			// the safe decompressor reports a truncated block by running out of the source array
+			throw new SerializationException("Cannot decompress LZ4 value of " + bytes.length + " bytes", e);
+		}
+		if (getRedisMetrics() != null)
+		{
+			getRedisMetrics().recordCodec(RedisMetrics.CODEC_DECOMPRESS, System.nanoTime() - start, rawLength, bytes.length);
+		}
+		return getDelegate().deserialize(raw);
+	}
+
+	private static void writeInt(final byte[] bytes, final int offset, final int value)
+	{
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	private static int readInt(final byte[] bytes, final int offset)
+	{
+		return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8
+				| bytes[offset + 3] & 0xFF;
+	}
+
+	/**
+	 * @return the delegate
+	 */
+	public RedisSerializer<Object> getDelegate()
+	{
+		return delegate;
+	}
+
+	/**
+	 * @param delegate
+	 *           the delegate to set
+	 */
+	public void setDelegate(final RedisSerializer<Object> delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *           the enabled to set
+	 */
+	public void setEnabled(final boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the threshold
+	 */
+	public int getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * @param threshold
+	 *           the threshold to set
+	 */
+	public void setThreshold(final int threshold)
+	{
+		this.threshold = threshold;
+	}
+}
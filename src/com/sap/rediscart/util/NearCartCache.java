@@ -0,0 +1,213 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import com.sap.rediscart.jalo.order.RedisCart;
+
+
+/**
+ * The carts this node has loaded or saved last, kept serialized so every read gets its own copy, together at most
+ * maxBytes. They are served while redis is unavailable, possibly older than what redis holds, a save of such a cart
+ * is only applied if redis still holds the version it was served at, see
+ * {@link com.sap.rediscart.store.impl.JournalingCartStore}.
+ * <p/>
+ * A saved cart is always copied, a loaded one only if it differs from the cached copy: by its version, or by its
+ * modification time if optimistic locking is disabled and every version is 0. Reading the same cart over and over
+ * costs a lookup.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class NearCartCache
+{
+	// access order, the eldest entry is the least recently used one
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+	private long bytes;
+
+	private RedisSerializer<Object> serializer = new JdkSerializationRedisSerializer();
+	private long maxBytes = 64L * 1024 * 1024;
+
+	/**
+	 * Copies the cart which has just been saved.
+	 */
+	public void put(final String cartCode, final RedisCart cart)
+	{
+		if (getMaxBytes() > 0)
+		{
+			cache(cartCode, cart);
+		}
+	}
+
+	/**
+	 * Copies the cart which has just been loaded, unless the cached copy is the same.
+	 */
+	public void remember(final String cartCode, final RedisCart cart)
+	{
+		if (getMaxBytes() <= 0)
+		{
+			return;
+		}
+		final Entry cached;
+		synchronized (entries)
+		{
+			cached = entries.get(cartCode);
+		}
+		if (cached == null || cached.version != cart.getRedisVersion()
+				|| cached.version == 0 && cached.modifiedAt != getModifiedAt(cart))
+		{
+			cache(cartCode, cart);
+		}
+	}
+
+	/**
+	 * @return a copy of the cached cart, null if it is not cached
+	 */
+	public RedisCart get(final String cartCode)
+	{
+		final Entry cached;
+		synchronized (entries)
+		{
+			cached = entries.get(cartCode);
+		}
+		if (cached == null)
+		{
+			return null;
+		}
+		final RedisCart cart = (RedisCart) getSerializer().deserialize(cached.payload);
+		cart.setRedisVersion(cached.version);
+		return cart;
+	}
+
+	public void remove(final String cartCode)
+	{
+		synchronized (entries)
+		{
+			forget(entries.remove(cartCode));
+		}
+	}
+
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return the bytes of all cached copies
+	 */
+	public long getBytes()
+	{
+		synchronized (entries)
+		{
+			return bytes;
+		}
+	}
+
+	private void cache(final String cartCode, final RedisCart cart)
+	{
+		// serialized outside of the lock, readers of other carts do not wait for it
+		final Entry entry = new Entry(cart.getRedisVersion(), getModifiedAt(cart), getSerializer().serialize(cart));
+		synchronized (entries)
+		{
+			forget(entries.remove(cartCode));
+			if (entry.payload.length > getMaxBytes())
+			{
+				return;
+			}
+			entries.put(cartCode, entry);
+			bytes += entry.payload.length;
+			for (final Iterator<Entry> eldest = entries.values().iterator(); bytes > getMaxBytes() && eldest.hasNext();)
+			{
+				forget(eldest.next());
+				eldest.remove();
+			}
+		}
+	}
+
+	private void forget(final Entry entry)
+	{
+		if (entry != null)
+		{
+			bytes -= entry.payload.length;
+		}
+	}
+
+	private static long getModifiedAt(final RedisCart cart)
+	{
+		final Date modificationTime = cart.provideModificationTime();
+		return modificationTime == null ? -1L : modificationTime.getTime();
+	}
+
+	/**
+	 * @return the serializer
+	 */
+	public RedisSerializer<Object> getSerializer()
+	{
+		return serializer;
+	}
+
+	/**
+	 * @param serializer
+	 *           the serializer to set
+	 */
+	public void setSerializer(final RedisSerializer<Object> serializer)
+	{
+		this.serializer = serializer;
+	}
+
+	/**
+	 * @return the maxBytes
+	 */
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxBytes
+	 *           the maxBytes to set
+	 */
+	public void setMaxBytes(final long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Serialized cart with the version and modification time it was cached at.
+	 */
+	private static final class Entry
+	{
+		private final long version;
+		private final long modifiedAt;
+		private final byte[] payload;
+
+		private Entry(final long version, final long modifiedAt, final byte[] payload)
+		{
+			this.version = version;
+			this.modifiedAt = modifiedAt;
+			this.payload = payload;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import com.sap.rediscart.metrics.RedisMetrics;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+
+/**
+ * Non-blocking lease lock on a cart, used to keep checkout and cart removal from overlapping with changes made to the
+ * same cart on other nodes. The lock and fencing token keys use the cart key as hash tag, so acquiring a lease is a
+ * single script call on the cart's master. Leases expire on their own and are dropped together with the cart.
+ * <p/>
+ * Leases acquired by the current thread are remembered, so the different steps of a checkout share one lease and cart
+ * saves made by the holder are not rejected. The operation that acquired a lease releases it when it ends, unless the
+ * cart has been removed with it.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class RedisCartLeaseLock
+{
+	private static final Logger LOG = LoggerFactory.getLogger(RedisCartLeaseLock.class);
+
+	private final ThreadLocal<Map<String, CartLease>> heldLeases = ThreadLocal.withInitial(HashMap::new);
+
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private RedisKeyGenerator redisKeyGenerator;
+	private RedisScript<Long> acquireCartLeaseScript;
+	private RedisScript<Long> releaseCartLeaseScript;
+	private RedisScript<Long> acquireExpiredCartLeaseScript;
+	private RedisScript<Long> acquireUnchangedCartLeaseScript;
+	private RedisMetrics redisMetrics;
+	private long leaseMillis = 30000;
+
+	/**
+	 * Acquires the lease of the cart without waiting.
+	 *
+	 * @return the lease, the one already held by the current thread, or null if another owner holds it
+	 */
+	public CartLease tryAcquire(final String cartCode)
+	{
+		if (StringUtils.isBlank(cartCode))
+		{
+			return null;
+		}
+		final CartLease held = getHeldLease(cartCode);
+		if (held != null)
+		{
+			return held;
+		}
+
+		final String owner = newOwner();
+		final Object reply = getRedisMetrics().measure(RedisMetrics.LEASE_ACQUIRE,
+				() -> getRedisClusterPipelineExecutor().eval(getAcquireCartLeaseScript(), 2, //
+						SafeEncoder.encode(getRedisKeyGenerator().generateLockKey(cartCode)), //
+						SafeEncoder.encode(getRedisKeyGenerator().generateFencingTokenKey(cartCode)), //
+						SafeEncoder.encode(owner), //
+						SafeEncoder.encode(String.valueOf(getLeaseMillis()))));
+		return toLease(cartCode, owner, reply);
+	}
+
+	/**
+	 * Queues the acquisition of a lease in a pipeline, the reply has to be passed to
+	 * {@link #toLease(String, String, Object)} together with the owner used here.
+	 */
+	public void tryAcquire(final Pipeline pipeline, final String cartCode, final String owner)
+	{
+		pipeline.eval(getAcquireCartLeaseScript().getScriptAsString(), 2, getRedisKeyGenerator().generateLockKey(cartCode),
+				getRedisKeyGenerator().generateFencingTokenKey(cartCode), owner, String.valueOf(getLeaseMillis()));
+	}
+
+	/**
+	 * Queues the acquisition of the lease of a cart that does not exist, e.g. to remove what it has left behind after it
+	 * has expired. The reply is 0 if the cart exists, it is turned into a lease like the one of
+	 * {@link #tryAcquire(Pipeline, String, String)}.
+	 */
+	public void tryAcquireExpired(final Pipeline pipeline, final String cartCode, final String owner)
+	{
+		pipeline.eval(getAcquireExpiredCartLeaseScript().getScriptAsString(), 3,
+				getRedisKeyGenerator().generateCartKey(cartCode), getRedisKeyGenerator().generateLockKey(cartCode),
+				getRedisKeyGenerator().generateFencingTokenKey(cartCode), owner, String.valueOf(getLeaseMillis()));
+	}
+
+	/**
+	 * Queues the acquisition of the lease of a cart only if it is still at the expected version, e.g. to remove it
+	 * because of what that version held. The reply is 0 if the cart has changed, it is turned into a lease like the one
+	 * of {@link #tryAcquire(Pipeline, String, String)}.
+	 *
+	 * @param expectedVersion
+	 *           the serialized version, empty if the cart has never been saved
+	 */
+	public void tryAcquireUnchanged(final Pipeline pipeline, final String cartCode, final String owner,
+			final byte[] expectedVersion)
+	{
+		pipeline.eval(SafeEncoder.encode(getAcquireUnchangedCartLeaseScript().getScriptAsString()), 3,
+				SafeEncoder.encode(getRedisKeyGenerator().generateVersionKey(cartCode)),
+				SafeEncoder.encode(getRedisKeyGenerator().generateLockKey(cartCode)),
+				SafeEncoder.encode(getRedisKeyGenerator().generateFencingTokenKey(cartCode)), SafeEncoder.encode(owner),
+				SafeEncoder.encode(String.valueOf(getLeaseMillis())), expectedVersion);
+	}
+
+	/**
+	 * Turns the reply of the acquire script into a lease held by the current thread.
+	 *
+	 * @return the lease or null if it is held by somebody else
+	 */
+	public CartLease toLease(final String cartCode, final String owner, final Object reply)
+	{
+		if (!(reply instanceof Long) || ((Long) reply).longValue() <= 0)
+		{
+			LOG.debug("Lease of cart {} is held by somebody else", cartCode);
+			return null;
+		}
+		final CartLease lease = new CartLease(cartCode, owner, ((Long) reply).longValue(),
+				System.currentTimeMillis() + getLeaseMillis());
+		heldLeases.get().put(cartCode, lease);
+		return lease;
+	}
+
+	/**
+	 * Releases the lease if it is still held by its owner.
+	 */
+	public void release(final CartLease lease)
+	{
+		if (lease == null)
+		{
+			return;
+		}
+		forget(lease.getCartCode());
+		final Object reply = getRedisMetrics().measure(RedisMetrics.LEASE_RELEASE,
+				() -> getRedisClusterPipelineExecutor().eval(getReleaseCartLeaseScript(), 1,
+						SafeEncoder.encode(getRedisKeyGenerator().generateLockKey(lease.getCartCode())),
+						SafeEncoder.encode(lease.getValue())));
+		if (!(reply instanceof Long) || ((Long) reply).longValue() != 1L)
+		{
+			LOG.warn("Lease {} of cart {} had already expired", Long.valueOf(lease.getFencingToken()), lease.getCartCode());
+		}
+	}
+
+	/**
+	 * Releases the lease of the cart held by the current thread, if there is one. Operations taking a lease call it when
+	 * they are done, so a failed checkout does not keep the cart locked until the lease expires.
+	 */
+	public void releaseHeld(final String cartCode)
+	{
+		release(getHeldLease(cartCode));
+	}
+
+	/**
+	 * @return the unexpired lease of the cart held by the current thread, or null
+	 */
+	public CartLease getHeldLease(final String cartCode)
+	{
+		final CartLease lease = heldLeases.get().get(cartCode);
+		if (lease == null || lease.isExpired())
+		{
+			forget(cartCode);
+			return null;
+		}
+		return lease;
+	}
+
+	/**
+	 * Forgets the lease of the current thread without touching redis, e.g. because the lock key has been removed along
+	 * with the cart.
+	 */
+	public void forget(final String cartCode)
+	{
+		final Map<String, CartLease> leases = heldLeases.get();
+		leases.remove(cartCode);
+		if (leases.isEmpty())
+		{
+			heldLeases.remove();
+		}
+	}
+
+	public String newOwner()
+	{
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the redisKeyGenerator
+	 */
+	public RedisKeyGenerator getRedisKeyGenerator()
+	{
+		return redisKeyGenerator;
+	}
+
+	/**
+	 * @param redisKeyGenerator
+	 *           the redisKeyGenerator to set
+	 */
+	public void setRedisKeyGenerator(final RedisKeyGenerator redisKeyGenerator)
+	{
+		this.redisKeyGenerator = redisKeyGenerator;
+	}
+
+	/**
+	 * @return the acquireCartLeaseScript
+	 */
+	public RedisScript<Long> getAcquireCartLeaseScript()
+	{
+		return acquireCartLeaseScript;
+	}
+
+	/**
+	 * @param acquireCartLeaseScript
+	 *           the acquireCartLeaseScript to set
+	 */
+	public void setAcquireCartLeaseScript(final RedisScript<Long> acquireCartLeaseScript)
+	{
+		this.acquireCartLeaseScript = acquireCartLeaseScript;
+	}
+
+	/**
+	 * @return the releaseCartLeaseScript
+	 */
+	public RedisScript<Long> getReleaseCartLeaseScript()
+	{
+		return releaseCartLeaseScript;
+	}
+
+	/**
+	 * @param releaseCartLeaseScript
+	 *           the releaseCartLeaseScript to set
+	 */
+	public void setReleaseCartLeaseScript(final RedisScript<Long> releaseCartLeaseScript)
+	{
+		this.releaseCartLeaseScript = releaseCartLeaseScript;
+	}
+
+	/**
+	 * @return the acquireExpiredCartLeaseScript
+	 */
+	public RedisScript<Long> getAcquireExpiredCartLeaseScript()
+	{
+		return acquireExpiredCartLeaseScript;
+	}
+
+	/**
+	 * @param acquireExpiredCartLeaseScript
+	 *           the acquireExpiredCartLeaseScript to set
+	 */
+	public void setAcquireExpiredCartLeaseScript(final RedisScript<Long> acquireExpiredCartLeaseScript)
+	{
+		this.acquireExpiredCartLeaseScript = acquireExpiredCartLeaseScript;
+	}
+
+	/**
+	 * @return the acquireUnchangedCartLeaseScript
+	 */
+	public RedisScript<Long> getAcquireUnchangedCartLeaseScript()
+	{
+		return acquireUnchangedCartLeaseScript;
+	}
+
+	/**
+	 * @param acquireUnchangedCartLeaseScript
+	 *           the acquireUnchangedCartLeaseScript to set
+	 */
+	public void setAcquireUnchangedCartLeaseScript(final RedisScript<Long> acquireUnchangedCartLeaseScript)
+	{
+		this.acquireUnchangedCartLeaseScript = acquireUnchangedCartLeaseScript;
+	}
+
+	/**
+	 * @return the leaseMillis
+	 */
+	public long getLeaseMillis()
+	{
+		return leaseMillis;
+	}
+
+	/**
+	 * @param leaseMillis
+	 *           the leaseMillis to set
+	 */
+	public void setLeaseMillis(final long leaseMillis)
+	{
+		this.leaseMillis = leaseMillis;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import com.sap.rediscart.exceptions.CartLockedException;
+import com.sap.rediscart.exceptions.CartVersionConflictException;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.store.ReadPreference;
+
+import redis.clients.util.SafeEncoder;
+
+
+/**
+ * Reads and writes carts together with their version. A cart is only written if the version in redis is still the one
+ * it was loaded with, otherwise a {@link CartVersionConflictException} is thrown. Carts leased by another owner through
+ * {@link RedisCartLeaseLock} are not written either. Every write sets the time to live of the cart given by the
+ * {@link CartTtlPolicy}. Saved carts offloaded by the {@link ColdCartTier} are promoted back to redis when they are
+ * read.
+ * <p/>
+ * The versions of the carts written and removed last by this node are remembered, up to maxRecentWrites, so carts read
+ * from replicas can be checked against them: this node reads its own writes, the writes of other nodes may be missing
+ * for as long as the replicas lag behind.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class RedisCartOperations
+{
+	private static final Logger LOG = LoggerFactory.getLogger(RedisCartOperations.class);
+
+	private static final byte[] EMPTY = new byte[0];
+	private static final Long REMOVED = Long.valueOf(-1L);
+
+	private final Map<String, Long> recentWrites = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75F,
+			true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest)
+		{
+			return size() > getMaxRecentWrites();
+		}
+	});
+
+	private RedisTemplate<String, Object> redisTemplate;
+	private RedisKeyGenerator redisKeyGenerator;
+	private RedisScript<Long> compareAndSetCartScript;
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private RedisCartLeaseLock redisCartLeaseLock;
+	private CartTtlPolicy cartTtlPolicy;
+	private ColdCartTier coldCartTier;
+	private boolean optimisticLockingEnabled = true;
+	private int maxRecentWrites = 10000;
+
+	/**
+	 * Loads the cart and its version with one MGET, both keys share the same hash slot.
+	 *
+	 * @return the cart or null if there is no cart for the code
+	 */
+	public RedisCart get(final String cartCode)
+	{
+		if (StringUtils.isBlank(cartCode))
+		{
+			return null;
+		}
+		final String cartKey = getRedisKeyGenerator().generateCartKey(cartCode);
+		if (!isOptimisticLockingEnabled())
+		{
+			return toCart(cartCode, getRedisTemplate().opsForValue().get(cartKey));
+		}
+
+		final String versionKey = getRedisKeyGenerator().generateVersionKey(cartCode);
+		final List<Object> values = getRedisTemplate().opsForValue().multiGet(Arrays.asList(cartKey, versionKey));
+		final RedisCart cart = values == null ? null : toCart(cartCode, values.get(0));
+		if (cart != null)
+		{
+			final Object version = values.get(1);
+			cart.setRedisVersion(version instanceof Long ? ((Long) version).longValue() : 0L);
+		}
+		return cart;
+	}
+
+	/**
+	 * Loads the carts and their versions with one MGET, the template splits it by hash slot.
+	 *
+	 * @return the carts by code in the order of the codes, codes without a cart are left out
+	 */
+	public Map<String, RedisCart> getAll(final Collection<String> cartCodes)
+	{
+		return getAll(cartCodes, true);
+	}
+
+	/**
+	 * Loads the carts and their versions with one MGET, the template splits it by hash slot. Maintenance jobs pass
+	 * promoteColdCarts false, so walking over the carts does not promote every offloaded one.
+	 *
+	 * @return the carts by code in the order of the codes, codes without a cart and, unless promoted, offloaded carts
+	 *         are left out
+	 */
+	public Map<String, RedisCart> getAll(final Collection<String> cartCodes, final boolean promoteColdCarts)
+	{
+		final List<String> codes = new ArrayList<>();
+		final List<String> keys = new ArrayList<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isNotBlank(cartCode))
+			{
+				codes.add(cartCode);
+				keys.add(getRedisKeyGenerator().generateCartKey(cartCode));
+			}
+		}
+		if (codes.isEmpty())
+		{
+			return new LinkedHashMap<>();
+		}
+		if (isOptimisticLockingEnabled())
+		{
+			for (final String cartCode : codes)
+			{
+				keys.add(getRedisKeyGenerator().generateVersionKey(cartCode));
+			}
+		}
+		return toCarts(codes, getRedisTemplate().opsForValue().multiGet(keys), promoteColdCarts);
+	}
+
+	/**
+	 * Loads the carts and their versions from the nodes the preference selects. A cart this node has written or
+	 * removed recently is loaded from its master again if the replica does not have that write yet, without optimistic
+	 * locking as soon as this node has written it.
+	 *
+	 * @return the carts by code in the order of the codes, codes without a cart and, unless promoted, offloaded carts
+	 *         are left out
+	 */
+	public Map<String, RedisCart> getAll(final Collection<String> cartCodes, final boolean promoteColdCarts,
+			final ReadPreference preference)
+	{
+		if (preference == ReadPreference.MASTER)
+		{
+			return getAll(cartCodes, promoteColdCarts);
+		}
+		final List<String> codes = new ArrayList<>();
+		final List<String> keys = new ArrayList<>();
+		for (final String cartCode : cartCodes)
+		{
+			if (StringUtils.isNotBlank(cartCode))
+			{
+				codes.add(cartCode);
+				keys.add(getRedisKeyGenerator().generateCartKey(cartCode));
+			}
+		}
+		if (isOptimisticLockingEnabled())
+		{
+			for (final String cartCode : codes)
+			{
+				keys.add(getRedisKeyGenerator().generateVersionKey(cartCode));
+			}
+		}
+
+		final RedisClusterPipelineExecutor executor = getRedisClusterPipelineExecutor();
+		final Map<String, Object> replies = executor.executePipelinedPerKey(keys,
+				(pipeline, key) -> pipeline.get(executor.serializeKey(key)), preference);
+		final List<Object> values = new ArrayList<>(keys.size());
+		for (final String key : keys)
+		{
+			final Object reply = replies.get(key);
+			values.add(reply instanceof byte[] ? executor.deserializeValue((byte[]) reply) : reply);
+		}
+
+		final List<String> staleCodes = new ArrayList<>();
+		for (int i = 0; i < codes.size(); i++)
+		{
+			final Object version = isOptimisticLockingEnabled() ? values.get(codes.size() + i) : null;
+			if (isStale(codes.get(i), values.get(i), version))
+			{
+				staleCodes.add(codes.get(i));
+				values.set(i, null);
+			}
+		}
+		final Map<String, RedisCart> carts = toCarts(codes, values, promoteColdCarts);
+		if (staleCodes.isEmpty())
+		{
+			return carts;
+		}
+		final Map<String, RedisCart> fresh = getAll(staleCodes, promoteColdCarts);
+		final Map<String, RedisCart> merged = new LinkedHashMap<>();
+		for (final String cartCode : codes)
+		{
+			final RedisCart cart = fresh.containsKey(cartCode) ? fresh.get(cartCode) : carts.get(cartCode);
+			if (cart != null)
+			{
+				merged.put(cartCode, cart);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Remembers that the cart has been removed, so replicas still holding it are not believed.
+	 */
+	public void recordRemoval(final String cartCode)
+	{
+		recentWrites.put(cartCode, REMOVED);
+	}
+
+	/**
+	 * @return whether the value read from a replica is older than what this node has written, a failed read counts as
+	 *         stale as well
+	 */
+	private boolean isStale(final String cartCode, final Object value, final Object version)
+	{
+		if (value instanceof Exception || version instanceof Exception)
+		{
+			return true;
+		}
+		final Long written = recentWrites.get(cartCode);
+		if (written == null)
+		{
+			return false;
+		}
+		if (REMOVED.equals(written))
+		{
+			return value != null;
+		}
+		return !isOptimisticLockingEnabled() || value == null
+				|| (version instanceof Long ? ((Long) version).longValue() : 0L) < written.longValue();
+	}
+
+	/**
+	 * @param values
+	 *           the carts in the order of the codes, followed by their versions with optimistic locking
+	 */
+	private Map<String, RedisCart> toCarts(final List<String> codes, final List<Object> values,
+			final boolean promoteColdCarts)
+	{
+		final Map<String, RedisCart> carts = new LinkedHashMap<>();
+		final List<String> coldCodes = new ArrayList<>();
+		final Map<String, Object> versions = new HashMap<>();
+		for (int i = 0; values != null && i < codes.size(); i++)
+		{
+			final Object value = values.get(i);
+			if (isOptimisticLockingEnabled())
+			{
+				versions.put(codes.get(i), values.get(codes.size() + i));
+			}
+			if (value instanceof ColdCartStub)
+			{
+				coldCodes.add(codes.get(i));
+			}
+			// placeholder keeps the order of the codes for promoted carts
+			carts.put(codes.get(i), value instanceof RedisCart ? (RedisCart) value : null);
+		}
+		if (promoteColdCarts && !coldCodes.isEmpty() && getColdCartTier() != null)
+		{
+			carts.putAll(getColdCartTier().promote(coldCodes));
+		}
+		carts.values().removeIf(cart -> cart == null);
+		if (isOptimisticLockingEnabled())
+		{
+			for (final Map.Entry<String, RedisCart> entry : carts.entrySet())
+			{
+				final Object version = versions.get(entry.getKey());
+				entry.getValue().setRedisVersion(version instanceof Long ? ((Long) version).longValue() : 0L);
+			}
+		}
+		return carts;
+	}
+
+	/**
+	 * Saves the cart if nobody else has saved it since it was loaded and increments its version.
+	 *
+	 * @throws CartVersionConflictException
+	 *            if the cart has been changed concurrently
+	 * @throws CartLockedException
+	 *            if another owner holds the lease of the cart
+	 */
+	public void set(final String cartCode, final RedisCart cart)
+	{
+		final String cartKey = getRedisKeyGenerator().generateCartKey(cartCode);
+		final long ttlSeconds = getCartTtlPolicy() == null ? 0L : getCartTtlPolicy().getTtlSeconds(cart);
+		if (!isOptimisticLockingEnabled())
+		{
+			if (ttlSeconds > 0)
+			{
+				getRedisTemplate().opsForValue().set(cartKey, cart, ttlSeconds, TimeUnit.SECONDS);
+				getCartTtlPolicy().refreshed(cartCode);
+			}
+			else
+			{
+				getRedisTemplate().opsForValue().set(cartKey, cart);
+			}
+			recentWrites.put(cartCode, Long.valueOf(0L));
+			return;
+		}
+
+		final long expectedVersion = cart.getRedisVersion();
+		final long newVersion = expectedVersion + 1;
+		final RedisSerializer<String> keySerializer = (RedisSerializer<String>) getRedisTemplate().getKeySerializer();
+		final RedisSerializer<Object> valueSerializer = (RedisSerializer<Object>) getRedisTemplate().getValueSerializer();
+		final CartLease lease = getRedisCartLeaseLock().getHeldLease(cartCode);
+
+		final Object result = getRedisClusterPipelineExecutor().eval(getCompareAndSetCartScript(), 3, //
+				keySerializer.serialize(cartKey), //
+				keySerializer.serialize(getRedisKeyGenerator().generateVersionKey(cartCode)), //
+				keySerializer.serialize(getRedisKeyGenerator().generateLockKey(cartCode)), //
+				expectedVersion == 0 ? EMPTY : valueSerializer.serialize(Long.valueOf(expectedVersion)), //
+				valueSerializer.serialize(cart), //
+				valueSerializer.serialize(Long.valueOf(newVersion)), //
+				lease == null ? EMPTY : SafeEncoder.encode(lease.getValue()), //
+				SafeEncoder.encode(String.valueOf(ttlSeconds)));
+
+		final long status = result instanceof Long ? ((Long) result).longValue() : 0L;
+		if (status == -1L)
+		{
+			LOG.debug("Cart {} is leased by somebody else", cartCode);
+			throw new CartLockedException(cartCode);
+		}
+		if (status != 1L)
+		{
+			LOG.debug("Version conflict on cart {}, expected version {}", cartCode, Long.valueOf(expectedVersion));
+			throw new CartVersionConflictException(cartCode, expectedVersion);
+		}
+		cart.setRedisVersion(newVersion);
+		recentWrites.put(cartCode, Long.valueOf(newVersion));
+		if (ttlSeconds > 0)
+		{
+			getCartTtlPolicy().refreshed(cartCode);
+		}
+	}
+
+	private RedisCart toCart(final String cartCode, final Object value)
+	{
+		if (value instanceof ColdCartStub)
+		{
+			return getColdCartTier() == null ? null
+					: getColdCartTier().promote(Collections.singleton(cartCode)).get(cartCode);
+		}
+		return (RedisCart) value;
+	}
+
+	/**
+	 * @return the redisTemplate
+	 */
+	public RedisTemplate<String, Object> getRedisTemplate()
+	{
+		return redisTemplate;
+	}
+
+	/**
+	 * @param redisTemplate
+	 *           the redisTemplate to set
+	 */
+	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	{
+		this.redisTemplate = redisTemplate;
+	}
+
+	/**
+	 * @return the redisKeyGenerator
+	 */
+	public RedisKeyGenerator getRedisKeyGenerator()
+	{
+		return redisKeyGenerator;
+	}
+
+	/**
+	 * @param redisKeyGenerator
+	 *           the redisKeyGenerator to set
+	 */
+	public void setRedisKeyGenerator(final RedisKeyGenerator redisKeyGenerator)
+	{
+		this.redisKeyGenerator = redisKeyGenerator;
+	}
+
+	/**
+	 * @return the compareAndSetCartScript
+	 */
+	public RedisScript<Long> getCompareAndSetCartScript()
+	{
+		return compareAndSetCartScript;
+	}
+
+	/**
+	 * @param compareAndSetCartScript
+	 *           the compareAndSetCartScript to set
+	 */
+	public void setCompareAndSetCartScript(final RedisScript<Long> compareAndSetCartScript)
+	{
+		this.compareAndSetCartScript = compareAndSetCartScript;
+	}
+
+	/**
+	 * @return the cartTtlPolicy
+	 */
+	public CartTtlPolicy getCartTtlPolicy()
+	{
+		return cartTtlPolicy;
+	}
+
+	/**
+	 * @param cartTtlPolicy
+	 *           the cartTtlPolicy to set
+	 */
+	public void setCartTtlPolicy(final CartTtlPolicy cartTtlPolicy)
+	{
+		this.cartTtlPolicy = cartTtlPolicy;
+	}
+
+	/**
+	 * @return the optimisticLockingEnabled
+	 */
+	public boolean isOptimisticLockingEnabled()
+	{
+		return optimisticLockingEnabled;
+	}
+
+	/**
+	 * @param optimisticLockingEnabled
+	 *           the optimisticLockingEnabled to set
+	 */
+	public void setOptimisticLockingEnabled(final boolean optimisticLockingEnabled)
+	{
+		this.optimisticLockingEnabled = optimisticLockingEnabled;
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the redisCartLeaseLock
+	 */
+	public RedisCartLeaseLock getRedisCartLeaseLock()
+	{
+		return redisCartLeaseLock;
+	}
+
+	/**
+	 * @param redisCartLeaseLock
+	 *           the redisCartLeaseLock to set
+	 */
+	public void setRedisCartLeaseLock(final RedisCartLeaseLock redisCartLeaseLock)
+	{
+		this.redisCartLeaseLock = redisCartLeaseLock;
+	}
+
+	/**
+	 * @return the coldCartTier
+	 */
+	public ColdCartTier getColdCartTier()
+	{
+		return coldCartTier;
+	}
+
+	/**
+	 * @param coldCartTier
+	 *           the coldCartTier to set
+	 */
+	public void setColdCartTier(final ColdCartTier coldCartTier)
+	{
+		this.coldCartTier = coldCartTier;
+	}
+
+	/**
+	 * @return the maxRecentWrites
+	 */
+	public int getMaxRecentWrites()
+	{
+		return maxRecentWrites;
+	}
+
+	/**
+	 * @param maxRecentWrites
+	 *           the maxRecentWrites to set
+	 */
+	public void setMaxRecentWrites(final int maxRecentWrites)
+	{
+		this.maxRecentWrites = maxRecentWrites;
+	}
+}
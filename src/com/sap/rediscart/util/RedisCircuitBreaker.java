@@ -0,0 +1,505 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.connection.RedisClusterNode;
+
+import com.sap.rediscart.metrics.RedisMetrics;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.JedisClusterCRC16;
+
+
+/**
+ * Circuit breakers per master node of the cluster, so one sick node does not make every cart call wait for a
+ * connection. The outcomes of the last windowSize calls to a node are kept. Once at least minimumCalls have been
+ * recorded and the share of failed calls reaches failureRateThreshold, or the share of calls slower than
+ * slowCallMillis reaches slowCallRateThreshold, the breaker of the node opens: its callers are told to take their
+ * fallback right away. After openMillis a single trial call is let through, its success closes the breaker again and
+ * its failure keeps it open for another openMillis.
+ * <p/>
+ * Keys are mapped to nodes by their hash slot, with the slot ranges of the masters refreshed every
+ * topologyRefreshMillis. Until they are known all keys share one breaker.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class RedisCircuitBreaker
+{
+	private static final Logger LOG = LoggerFactory.getLogger(RedisCircuitBreaker.class);
+
+	public enum State
+	{
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final String CLUSTER = "cluster";
+	private static final byte SUCCEEDED = 0;
+	private static final byte FAILED = 1;
+	private static final byte SLOW = 2;
+
+	private final ConcurrentMap<String, NodeBreaker> breakers = new ConcurrentHashMap<>();
+	private final ReentrantLock topologyLock = new ReentrantLock();
+	private volatile List<RedisClusterNode> masters = Collections.emptyList();
+	private volatile long topologyRefreshedAt;
+
+	private RedisClusterPipelineExecutor redisClusterPipelineExecutor;
+	private RedisMetrics redisMetrics;
+	private boolean enabled = true;
+	private int windowSize = 50;
+	private int minimumCalls = 20;
+	private double failureRateThreshold = 0.5D;
+	private long slowCallMillis = 200;
+	private double slowCallRateThreshold = 0.8D;
+	private long openMillis = 5000;
+	private long topologyRefreshMillis = 60000;
+
+	/**
+	 * @return the master node serving the key, as host:port
+	 */
+	public String getNode(final String key)
+	{
+		refreshTopologyIfDue();
+		final int slot = JedisClusterCRC16.getSlot(key);
+		for (final RedisClusterNode master : masters)
+		{
+			if (master.getSlotRange().contains(slot))
+			{
+				return master.getHost() + ":" + master.getPort();
+			}
+		}
+		return CLUSTER;
+	}
+
+	/**
+	 * @return whether the node should be called, false if the caller has to take its fallback
+	 */
+	public boolean allowRequest(final String node)
+	{
+		return !isEnabled() || getBreaker(node).allowRequest();
+	}
+
+	/**
+	 * Records a call the node has answered, also when it answered with an error.
+	 */
+	public void recordSuccess(final String node, final long nanos)
+	{
+		if (isEnabled())
+		{
+			getBreaker(node).record(nanos >= TimeUnit.MILLISECONDS.toNanos(getSlowCallMillis()) ? SLOW : SUCCEEDED);
+		}
+	}
+
+	/**
+	 * Records a call which found the node unavailable.
+	 */
+	public void recordFailure(final String node)
+	{
+		if (isEnabled())
+		{
+			getBreaker(node).record(FAILED);
+		}
+	}
+
+	/**
+	 * @return the state of the breaker of the node
+	 */
+	public State getState(final String node)
+	{
+		final NodeBreaker breaker = breakers.get(node);
+		return breaker == null ? State.CLOSED : breaker.getState();
+	}
+
+	/**
+	 * @return the state of the breakers by node, for diagnostics
+	 */
+	public Map<String, State> getStates()
+	{
+		final Map<String, State> states = new TreeMap<>();
+		breakers.forEach((node, breaker) -> states.put(node, breaker.getState()));
+		return states;
+	}
+
+	/**
+	 * @return whether the exception or one of its causes tells that redis could not be reached or did not answer in
+	 *         time, as opposed to redis answering with an error
+	 */
+	public static boolean isUnavailable(final Throwable exception)
+	{
+		for (Throwable cause = exception; cause != null; cause = cause.getCause())
+		{
+			if (cause instanceof DataAccessResourceFailureException || cause instanceof QueryTimeoutException
+					|| cause instanceof JedisConnectionException)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private NodeBreaker getBreaker(final String node)
+	{
+		final NodeBreaker breaker = breakers.get(node);
+		return breaker != null ? breaker : breakers.computeIfAbsent(node, NodeBreaker::new);
+	}
+
+	/**
+	 * Only one caller refreshes, the others go on with the slot ranges they have. A failed refresh is not retried
+	 * before topologyRefreshMillis either, the cluster is likely what is failing.
+	 */
+	private void refreshTopologyIfDue()
+	{
+		if (System.currentTimeMillis() - topologyRefreshedAt < getTopologyRefreshMillis() || !topologyLock.tryLock())
+		{
+			return;
+		}
+		try
+		{
+			topologyRefreshedAt = System.currentTimeMillis();
+			masters = getRedisClusterPipelineExecutor().getMasterNodes();
+		}
+		catch (final RuntimeException e)
+		{
+			LOG.warn("Cannot refresh the slot ranges of the redis masters, keeping the known ones: {}", e.getMessage());
+		}
+		finally
+		{
+			topologyLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the redisClusterPipelineExecutor
+	 */
+	public RedisClusterPipelineExecutor getRedisClusterPipelineExecutor()
+	{
+		return redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @param redisClusterPipelineExecutor
+	 *           the redisClusterPipelineExecutor to set
+	 */
+	public void setRedisClusterPipelineExecutor(final RedisClusterPipelineExecutor redisClusterPipelineExecutor)
+	{
+		this.redisClusterPipelineExecutor = redisClusterPipelineExecutor;
+	}
+
+	/**
+	 * @return the redisMetrics
+	 */
+	public RedisMetrics getRedisMetrics()
+	{
+		return redisMetrics;
+	}
+
+	/**
+	 * @param redisMetrics
+	 *           the redisMetrics to set
+	 */
+	public void setRedisMetrics(final RedisMetrics redisMetrics)
+	{
+		this.redisMetrics = redisMetrics;
+	}
+
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param enabled
+	 *           the enabled to set
+	 */
+	public void setEnabled(final boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the windowSize
+	 */
+	public int getWindowSize()
+	{
+		return windowSize;
+	}
+
+	/**
+	 * @param windowSize
+	 *           the windowSize to set
+	 */
+	public void setWindowSize(final int windowSize)
+	{
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * @return the minimumCalls
+	 */
+	public int getMinimumCalls()
+	{
+		return minimumCalls;
+	}
+
+	/**
+	 * @param minimumCalls
+	 *           the minimumCalls to set
+	 */
+	public void setMinimumCalls(final int minimumCalls)
+	{
+		this.minimumCalls = minimumCalls;
+	}
+
+	/**
+	 * @return the failureRateThreshold
+	 */
+	public double getFailureRateThreshold()
+	{
+		return failureRateThreshold;
+	}
+
+	/**
+	 * @param failureRateThreshold
+	 *           the failureRateThreshold to set
+	 */
+	public void setFailureRateThreshold(final double failureRateThreshold)
+	{
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	/**
+	 * @return the slowCallMillis
+	 */
+	public long getSlowCallMillis()
+	{
+		return slowCallMillis;
+	}
+
+	/**
+	 * @param slowCallMillis
+	 *           the slowCallMillis to set
+	 */
+	public void setSlowCallMillis(final long slowCallMillis)
+	{
+		this.slowCallMillis = slowCallMillis;
+	}
+
+	/**
+	 * @return the slowCallRateThreshold
+	 */
+	public double getSlowCallRateThreshold()
+	{
+		return slowCallRateThreshold;
+	}
+
+	/**
+	 * @param slowCallRateThreshold
+	 *           the slowCallRateThreshold to set
+	 */
+	public void setSlowCallRateThreshold(final double slowCallRateThreshold)
+	{
+		this.slowCallRateThreshold = slowCallRateThreshold;
+	}
+
+	/**
+	 * @return the openMillis
+	 */
+	public long getOpenMillis()
+	{
+		return openMillis;
+	}
+
+	/**
+	 * @param openMillis
+	 *           the openMillis to set
+	 */
+	public void setOpenMillis(final long openMillis)
+	{
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return the topologyRefreshMillis
+	 */
+	public long getTopologyRefreshMillis()
+	{
+		return topologyRefreshMillis;
+	}
+
+	/**
+	 * @param topologyRefreshMillis
+	 *           the topologyRefreshMillis to set
+	 */
+	public void setTopologyRefreshMillis(final long topologyRefreshMillis)
+	{
+		this.topologyRefreshMillis = topologyRefreshMillis;
+	}
+
+	/**
+	 * Breaker of a single node, its outcome window is a ring buffer.
+	 */
+	private final class NodeBreaker
+	{
+		private final String node;
+		private final byte[] outcomes;
+		private int count;
+		private int next;
+		private int failures;
+		private int slowCalls;
+		private State state = State.CLOSED;
+		private long openedAt;
+		private long trialStartedAt;
+
+		private NodeBreaker(final String node)
+		{
+			this.node = node;
+			this.outcomes = new byte[Math.max(1, getWindowSize())];
+		}
+
+		private synchronized State getState()
+		{
+			return state;
+		}
+
+		/**
+		 * A trial which has not been recorded within openMillis is given up, so a lost outcome cannot keep the breaker
+		 * half open.
+		 */
+		private synchronized boolean allowRequest()
+		{
+			final long now = System.currentTimeMillis();
+			switch (state)
+			{
+				case CLOSED:
+					return true;
+				case OPEN:
+					if (now - openedAt < getOpenMillis())
+					{
+						return false;
+					}
+					state = State.HALF_OPEN;
+					trialStartedAt = now;
+					return true;
+				default:
+					if (now - trialStartedAt < getOpenMillis())
+					{
+						return false;
+					}
+					trialStartedAt = now;
+					return true;
+			}
+		}
+
+		private synchronized void record(final byte outcome)
+		{
+			if (state == State.HALF_OPEN)
+			{
+				if (outcome == FAILED)
+				{
+					open();
+				}
+				else
+				{
+					close();
+				}
+				return;
+			}
+			if (state == State.OPEN)
+			{
+				// late outcome of a call let through before the breaker opened
+				return;
+			}
+			if (count == outcomes.length)
+			{
+				forget(outcomes[next]);
+			}
+			else
+			{
+				count++;
+			}
+			outcomes[next] = outcome;
+			next = (next + 1) % outcomes.length;
+			if (outcome == FAILED)
+			{
+				failures++;
+			}
+			else if (outcome == SLOW)
+			{
+				slowCalls++;
+			}
+			if (count >= getMinimumCalls()
+					&& (failures >= getFailureRateThreshold() * count || slowCalls >= getSlowCallRateThreshold() * count))
+			{
+				LOG.warn("Redis node {} is unavailable or slow ({} of {} calls failed, {} slow), circuit breaker opened",
+						node, Integer.valueOf(failures), Integer.valueOf(count), Integer.valueOf(slowCalls));
+				open();
+			}
+		}
+
+		private void forget(final byte outcome)
+		{
+			if (outcome == FAILED)
+			{
+				failures--;
+			}
+			else if (outcome == SLOW)
+			{
+				slowCalls--;
+			}
+		}
+
+		private void open()
+		{
+			if (state != State.OPEN)
+			{
+				getRedisMetrics().recordResilience(RedisMetrics.RESILIENCE_BREAKER_OPENED, 1);
+			}
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			reset();
+		}
+
+		private void close()
+		{
+			LOG.info("Redis node {} is available again, circuit breaker closed", node);
+			state = State.CLOSED;
+			reset();
+		}
+
+		private void reset()
+		{
+			count = 0;
+			next = 0;
+			failures = 0;
+			slowCalls = 0;
+		}
+	}
+}
@@ -0,0 +1,620 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+import org.springframework.data.redis.connection.ClusterTopology;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisClusterNode;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import com.sap.rediscart.store.ReadPreference;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.SafeEncoder;
+
+
+/**
+ * Spring Data Redis does not support pipelining on a cluster connection, so this executor routes keys to the master
+ * serving their hash slot and runs one native Jedis pipeline per master. A batch of N keys therefore costs one round
+ * trip per master instead of N round trips. Read-only commands can be routed to a replica of the master with
+ * {@link ReadPreference#REPLICA_PREFERRED}, a replica which is not connected or is failing is not used.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class RedisClusterPipelineExecutor
+{
+	private static final Logger LOG = LoggerFactory.getLogger(RedisClusterPipelineExecutor.class);
+
+	private final ReentrantLock topologyLock = new ReentrantLock();
+	private volatile ClusterTopology topology;
+	private volatile long topologyRefreshedAt;
+
+	private RedisTemplate<String, Object> redisTemplate;
+	private long topologyRefreshMillis = 5000;
+
+	/**
+	 * Callback issuing commands for the keys owned by one master.
+	 */
+	public interface PipelineCallback
+	{
+		void doInPipeline(Pipeline pipeline, List<String> keys);
+	}
+
+	/**
+	 * Callback issuing exactly one command for a single key.
+	 */
+	public interface KeyPipelineCallback
+	{
+		void doInPipeline(Pipeline pipeline, String key);
+	}
+
+	/**
+	 * Groups the keys by the master node serving them and runs the callback once per master inside a pipeline.
+	 *
+	 * @return the raw pipeline replies of all masters, failed commands are returned as exceptions
+	 */
+	public List<Object> executePipelined(final Collection<String> keys, final PipelineCallback callback)
+	{
+		return executePipelined(keys, callback, ReadPreference.MASTER);
+	}
+
+	/**
+	 * Groups the keys by the node the preference selects and runs the callback once per node inside a pipeline. The
+	 * callback must only issue reads unless the preference is {@link ReadPreference#MASTER}.
+	 *
+	 * @return the raw pipeline replies of all nodes, failed commands are returned as exceptions
+	 */
+	public List<Object> executePipelined(final Collection<String> keys, final PipelineCallback callback,
+			final ReadPreference preference)
+	{
+		final List<Object> results = new ArrayList<>();
+		if (keys == null || keys.isEmpty())
+		{
+			return results;
+		}
+
+		final RedisClusterConnection connection = getRedisTemplate().getConnectionFactory().getClusterConnection();
+		try
+		{
+			final JedisCluster jedisCluster = (JedisCluster) connection.getNativeConnection();
+			final Map<RedisClusterNode, List<String>> keysByNode = groupByNode(connection, keys, preference);
+			for (final Map.Entry<RedisClusterNode, List<String>> entry : keysByNode.entrySet())
+			{
+				results.addAll(executeOnNode(jedisCluster, entry.getKey(), entry.getValue(), callback));
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Issues one command per key, pipelined per master.
+	 *
+	 * @return the reply of every key, failed commands are returned as exceptions
+	 */
+	public Map<String, Object> executePipelinedPerKey(final Collection<String> keys, final KeyPipelineCallback callback)
+	{
+		return executePipelinedPerKey(keys, callback, ReadPreference.MASTER);
+	}
+
+	/**
+	 * Issues one command per key, pipelined per node the preference selects. The callback must only issue reads unless
+	 * the preference is {@link ReadPreference#MASTER}.
+	 *
+	 * @return the reply of every key, failed commands are returned as exceptions
+	 */
+	public Map<String, Object> executePipelinedPerKey(final Collection<String> keys, final KeyPipelineCallback callback,
+			final ReadPreference preference)
+	{
+		final Map<String, Object> results = new HashMap<>();
+		if (keys == null || keys.isEmpty())
+		{
+			return results;
+		}
+
+		final RedisClusterConnection connection = getRedisTemplate().getConnectionFactory().getClusterConnection();
+		try
+		{
+			final JedisCluster jedisCluster = (JedisCluster) connection.getNativeConnection();
+			final Map<RedisClusterNode, List<String>> keysByNode = groupByNode(connection, keys, preference);
+			for (final Map.Entry<RedisClusterNode, List<String>> entry : keysByNode.entrySet())
+			{
+				final List<String> nodeKeys = entry.getValue();
+				final List<Object> replies = executeOnNode(jedisCluster, entry.getKey(), nodeKeys, (pipeline, ks) -> {
+					for (final String key : ks)
+					{
+						callback.doInPipeline(pipeline, key);
+					}
+				});
+				for (int i = 0; i < nodeKeys.size(); i++)
+				{
+					results.put(nodeKeys.get(i), i < replies.size() ? replies.get(i) : null);
+				}
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Runs the script on the master serving the first key. Spring Data Redis does not support scripting on a cluster
+	 * connection, so the script is run on the native connection, by sha first and by source if it is not cached yet.
+	 */
+	public Object eval(final RedisScript<?> script, final int keyCount, final byte[]... keysAndArgs)
+	{
+		return getRedisTemplate().execute(new RedisCallback<Object>()
+		{
+			@Override
+			public Object doInRedis(final RedisConnection connection)
+			{
+				final JedisCluster cluster = (JedisCluster) connection.getNativeConnection();
+				try
+				{
+					return cluster.evalsha(SafeEncoder.encode(script.getSha1()), keyCount, keysAndArgs);
+				}
+				catch (final JedisDataException e)
+				{
+					if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT"))
+					{
+						throw e;
+					}
+					return cluster.eval(SafeEncoder.encode(script.getScriptAsString()), keyCount, keysAndArgs);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Groups the keys by hash slot, so multi-key commands such as DEL never span slots.
+	 */
+	public Map<Integer, List<String>> groupBySlot(final Collection<String> keys)
+	{
+		final Map<Integer, List<String>> keysBySlot = new LinkedHashMap<>();
+		for (final String key : keys)
+		{
+			keysBySlot.computeIfAbsent(Integer.valueOf(ClusterSlotHashUtil.calculateSlot(key)), k -> new ArrayList<>()).add(key);
+		}
+		return keysBySlot;
+	}
+
+	/**
+	 * Scans one page of the keys of a master matching the pattern, so the keyspace is never walked in one command.
+	 *
+	 * @return the keys and the cursor of the next page, "0" once the keyspace of the master has been walked
+	 */
+	public ScanResult<String> scan(final RedisClusterNode node, final String cursor, final String pattern,
+			final int count)
+	{
+		return scan(node, cursor, pattern, count, ReadPreference.MASTER);
+	}
+
+	/**
+	 * Scans one page of the keys of a master, or of the replica of the master the preference selects. The pages of a
+	 * walk are served by the same replica as long as it is healthy, the cursor of one node may skip or repeat keys on
+	 * another.
+	 *
+	 * @return the keys and the cursor of the next page, "0" once the keyspace of the master has been walked
+	 */
+	public ScanResult<String> scan(final RedisClusterNode master, final String cursor, final String pattern,
+			final int count, final ReadPreference preference)
+	{
+		final RedisClusterConnection connection = getRedisTemplate().getConnectionFactory().getClusterConnection();
+		try
+		{
+			final RedisClusterNode node = preference == ReadPreference.MASTER ? master
+					: selectNode(getTopology(connection), master, preference, false);
+			try (Jedis jedis = getPool((JedisCluster) connection.getNativeConnection(), node).getResource())
+			{
+				enableReads(jedis, node);
+				return jedis.scan(cursor, new ScanParams().match(pattern).count(count));
+			}
+			catch (final JedisRedirectionException e)
+			{
+				invalidateTopology(e);
+				throw e;
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	/**
+	 * Scans one page of the members of a set.
+	 *
+	 * @return the deserialized members and the cursor of the next page, "0" once the set has been walked
+	 */
+	public ScanResult<Object> sscan(final String key, final String cursor, final int count)
+	{
+		return sscan(key, cursor, count, ReadPreference.MASTER);
+	}
+
+	/**
+	 * Scans one page of the members of a set on the node the preference selects.
+	 *
+	 * @return the deserialized members and the cursor of the next page, "0" once the set has been walked
+	 */
+	public ScanResult<Object> sscan(final String key, final String cursor, final int count,
+			final ReadPreference preference)
+	{
+		if (preference != ReadPreference.MASTER)
+		{
+			final RedisClusterConnection connection = getRedisTemplate().getConnectionFactory().getClusterConnection();
+			try
+			{
+				final ClusterTopology topology = getTopology(connection);
+				final RedisClusterNode node = selectNode(topology, topology.getKeyServingMasterNode(serializeKey(key)),
+						preference, false);
+				try (Jedis jedis = getPool((JedisCluster) connection.getNativeConnection(), node).getResource())
+				{
+					enableReads(jedis, node);
+					return toMembers(
+							jedis.sscan(serializeKey(key), SafeEncoder.encode(cursor), new ScanParams().count(count)));
+				}
+				catch (final JedisRedirectionException e)
+				{
+					invalidateTopology(e);
+					throw e;
+				}
+			}
+			finally
+			{
+				connection.close();
+			}
+		}
+		return getRedisTemplate().execute(new RedisCallback<ScanResult<Object>>()
+		{
+			@Override
+			public ScanResult<Object> doInRedis(final RedisConnection connection)
+			{
+				final JedisCluster cluster = (JedisCluster) connection.getNativeConnection();
+				return toMembers(
+						cluster.sscan(serializeKey(key), SafeEncoder.encode(cursor), new ScanParams().count(count)));
+			}
+		});
+	}
+
+	/**
+	 * @return the master nodes of the cluster as currently known by the connection
+	 */
+	public List<RedisClusterNode> getMasterNodes()
+	{
+		final List<RedisClusterNode> masters = new ArrayList<>();
+		final RedisClusterConnection connection = getRedisTemplate().getConnectionFactory().getClusterConnection();
+		try
+		{
+			for (final RedisClusterNode node : getTopology(connection).getNodes())
+			{
+				if (node.isMaster())
+				{
+					masters.add(node);
+				}
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+		return masters;
+	}
+
+	/**
+	 * Borrows connections from the pool of every node of the cluster, replicas included, until the pool holds minIdle
+	 * idle ones, so the first requests after a start do not wait for connects.
+	 *
+	 * @return the number of idle connections of all nodes afterwards
+	 */
+	public int fillPools(final int minIdle)
+	{
+		return getRedisTemplate().execute(new RedisCallback<Integer>()
+		{
+			@Override
+			public Integer doInRedis(final RedisConnection connection)
+			{
+				final JedisCluster cluster = (JedisCluster) connection.getNativeConnection();
+				int idle = 0;
+				for (final Map.Entry<String, JedisPool> pool : cluster.getClusterNodes().entrySet())
+				{
+					final List<Jedis> borrowed = new ArrayList<>();
+					try
+					{
+						for (int i = pool.getValue().getNumIdle(); i < minIdle; i++)
+						{
+							final Jedis jedis = pool.getValue().getResource();
+							borrowed.add(jedis);
+							jedis.ping();
+						}
+					}
+					catch (final JedisException e)
+					{
+						LOG.warn("Could not open {} connections to {}: {}", Integer.valueOf(minIdle), pool.getKey(),
+								e.getMessage());
+					}
+					finally
+					{
+						borrowed.forEach(Jedis::close);
+					}
+					idle += pool.getValue().getNumIdle();
+				}
+				return Integer.valueOf(idle);
+			}
+		}).intValue();
+	}
+
+	/**
+	 * Loads the scripts into the script cache of every master, so {@link #eval(RedisScript, int, byte[]...)} finds
+	 * them by sha from the first call on.
+	 */
+	public void loadScripts(final Collection<RedisScript<?>> scripts)
+	{
+		final List<RedisClusterNode> masters = getMasterNodes();
+		getRedisTemplate().execute(new RedisCallback<Object>()
+		{
+			@Override
+			public Object doInRedis(final RedisConnection connection)
+			{
+				final JedisCluster cluster = (JedisCluster) connection.getNativeConnection();
+				for (final RedisClusterNode master : masters)
+				{
+					try (Jedis jedis = getPool(cluster, master).getResource())
+					{
+						for (final RedisScript<?> script : scripts)
+						{
+							jedis.scriptLoad(script.getScriptAsString());
+						}
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	public byte[] serializeKey(final String key)
+	{
+		return ((RedisSerializer<String>) getRedisTemplate().getKeySerializer()).serialize(key);
+	}
+
+	public byte[] serializeValue(final Object value)
+	{
+		return ((RedisSerializer<Object>) getRedisTemplate().getValueSerializer()).serialize(value);
+	}
+
+	public Object deserializeValue(final byte[] value)
+	{
+		return getRedisTemplate().getValueSerializer().deserialize(value);
+	}
+
+	private Map<RedisClusterNode, List<String>> groupByNode(final RedisClusterConnection connection,
+			final Collection<String> keys, final ReadPreference preference)
+	{
+		// resolve the topology once per batch, not once per key
+		final ClusterTopology topology = getTopology(connection);
+		final Map<RedisClusterNode, RedisClusterNode> selected = new HashMap<>();
+
+		final Map<RedisClusterNode, List<String>> keysByNode = new LinkedHashMap<>();
+		for (final String key : new LinkedHashSet<>(keys))
+		{
+			final RedisClusterNode node = selected.computeIfAbsent(topology.getKeyServingMasterNode(serializeKey(key)),
+					master -> selectNode(topology, master, preference, true));
+			keysByNode.computeIfAbsent(node, k -> new ArrayList<>()).add(key);
+		}
+		return keysByNode;
+	}
+
+	/**
+	 * @return the topology read at most topologyRefreshMillis ago, or earlier if a node has redirected a command since.
+	 *         Only one thread reads it again, the others keep using the previous one meanwhile.
+	 */
+	private ClusterTopology getTopology(final RedisClusterConnection connection)
+	{
+		final ClusterTopology current = topology;
+		if (current != null && System.currentTimeMillis() - topologyRefreshedAt < getTopologyRefreshMillis())
+		{
+			return current;
+		}
+		if (current == null)
+		{
+			topologyLock.lock();
+		}
+		else if (!topologyLock.tryLock())
+		{
+			return current;
+		}
+		try
+		{
+			if (topology == null || topology == current)
+			{
+				final Set<RedisClusterNode> nodes = new LinkedHashSet<>();
+				for (final RedisClusterNode node : connection.clusterGetNodes())
+				{
+					nodes.add(node);
+				}
+				topology = new ClusterTopology(nodes);
+				topologyRefreshedAt = System.currentTimeMillis();
+			}
+			return topology;
+		}
+		finally
+		{
+			topologyLock.unlock();
+		}
+	}
+
+	/**
+	 * Makes the next batch read the topology again, the slots have moved.
+	 */
+	private void invalidateTopology(final JedisRedirectionException redirection)
+	{
+		LOG.debug("Cluster topology changed: {}", redirection.getMessage());
+		topologyRefreshedAt = 0L;
+	}
+
+	/**
+	 * @return the master itself, or a healthy replica of it if the preference allows: a random one to spread the
+	 *         load, otherwise always the same one
+	 */
+	private RedisClusterNode selectNode(final ClusterTopology topology, final RedisClusterNode master,
+			final ReadPreference preference, final boolean spread)
+	{
+		if (preference == ReadPreference.MASTER)
+		{
+			return master;
+		}
+		final List<RedisClusterNode> replicas = new ArrayList<>();
+		for (final RedisClusterNode node : topology.getNodes())
+		{
+			if (node.isSlave() && master.getId().equals(node.getMasterId())
+					&& node.getLinkState() == RedisClusterNode.LinkState.CONNECTED
+					&& !node.getFlags().contains(RedisClusterNode.Flag.FAIL)
+					&& !node.getFlags().contains(RedisClusterNode.Flag.PFAIL))
+			{
+				replicas.add(node);
+			}
+		}
+		if (replicas.isEmpty())
+		{
+			return master;
+		}
+		if (spread)
+		{
+			return replicas.get(ThreadLocalRandom.current().nextInt(replicas.size()));
+		}
+		return Collections.min(replicas, (first, second) -> first.getId().compareTo(second.getId()));
+	}
+
+	/**
+	 * A replica redirects every command to its master unless the connection has been switched to READONLY. The mode
+	 * sticks to the pooled connection, which only ever serves the replica.
+	 */
+	private void enableReads(final Jedis jedis, final RedisClusterNode node)
+	{
+		if (node.isSlave())
+		{
+			jedis.readonly();
+		}
+	}
+
+	private ScanResult<Object> toMembers(final ScanResult<byte[]> page)
+	{
+		final List<Object> members = new ArrayList<>(page.getResult().size());
+		for (final byte[] member : page.getResult())
+		{
+			members.add(deserializeValue(member));
+		}
+		return new ScanResult<>(page.getStringCursor(), members);
+	}
+
+	private List<Object> executeOnNode(final JedisCluster jedisCluster, final RedisClusterNode node, final List<String> keys,
+			final PipelineCallback callback)
+	{
+		try (Jedis jedis = getPool(jedisCluster, node).getResource())
+		{
+			enableReads(jedis, node);
+			final Pipeline pipeline = jedis.pipelined();
+			callback.doInPipeline(pipeline, keys);
+			final List<Object> replies = pipeline.syncAndReturnAll();
+			for (final Object reply : replies)
+			{
+				if (reply instanceof JedisRedirectionException)
+				{
+					// the commands of moved slots fail this time, the next batch is routed by the new topology
+					invalidateTopology((JedisRedirectionException) reply);
+					break;
+				}
+			}
+			LOG.debug("Pipelined {} keys on {}:{}", Integer.valueOf(keys.size()), node.getHost(), Integer.valueOf(node.getPort()));
+			return replies;
+		}
+	}
+
+	private JedisPool getPool(final JedisCluster jedisCluster, final RedisClusterNode node)
+	{
+		final JedisPool pool = jedisCluster.getClusterNodes().get(node.getHost() + ":" + node.getPort());
+		if (pool == null)
+		{
+			throw new IllegalStateException("No connection pool for cluster node " + node.getHost() + ":" + node.getPort());
+		}
+		return pool;
+	}
+
+	/**
+	 * @return the redisTemplate
+	 */
+	public RedisTemplate<String, Object> getRedisTemplate()
+	{
+		return redisTemplate;
+	}
+
+	/**
+	 * @param redisTemplate
+	 *           the redisTemplate to set
+	 */
+	public void setRedisTemplate(final RedisTemplate<String, Object> redisTemplate)
+	{
+		this.redisTemplate = redisTemplate;
+	}
+
+	/**
+	 * @return the topologyRefreshMillis
+	 */
+	public long getTopologyRefreshMillis()
+	{
+		return topologyRefreshMillis;
+	}
+
+	/**
+	 * @param topologyRefreshMillis
+	 *           the topologyRefreshMillis to set
+	 */
+	public void setTopologyRefreshMillis(final long topologyRefreshMillis)
+	{
+		this.topologyRefreshMillis = topologyRefreshMillis;
+	}
+}
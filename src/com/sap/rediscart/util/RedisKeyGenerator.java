@@ -18,8 +18,12 @@ package com.sap.rediscart.util;
 import de.hybris.platform.core.model.order.CartModel;
 import de.hybris.platform.promotions.model.PromotionResultModel;
 
+import java.util.Collection;
+
 import org.apache.commons.lang3.StringUtils;
 
+import com.sap.rediscart.store.CartIndex;
+
 
 /**
  * @author Henter Liu (henterji@163.com)
@@ -64,6 +68,134 @@ public class RedisKeyGenerator
 		return generatePromotionResultKey(cart.getCode(), promotionResult.getPk().toString());
 	}
 
+	/**
+	 * Key of the set holding every key that belongs to the cart, e.g. its promotion results, so the cart can be removed
+	 * without scanning the keyspace.
+	 */
+	public String generateDependentsKey(final String cartId)
+	{
+		final String cartKey = generateCartKey(cartId);
+		if (cartKey == null)
+		{
+			return null;
+		}
+		return cartKey + ":dependents";
+	}
+
+	/**
+	 * Key of the cart version. The cart key is used as hash tag, so both keys live in the same hash slot and can be
+	 * updated by one script.
+	 */
+	public String generateVersionKey(final String cartId)
+	{
+		final String cartKey = generateCartKey(cartId);
+		if (cartKey == null)
+		{
+			return null;
+		}
+		return "{" + cartKey + "}:version";
+	}
+
+	/**
+	 * Key of the cart lease lock, in the same hash slot as the cart key.
+	 */
+	public String generateLockKey(final String cartId)
+	{
+		final String cartKey = generateCartKey(cartId);
+		if (cartKey == null)
+		{
+			return null;
+		}
+		return "{" + cartKey + "}:lock";
+	}
+
+	/**
+	 * Key of the counter handing out fencing tokens for the cart lease lock, in the same hash slot as the cart key.
+	 */
+	public String generateFencingTokenKey(final String cartId)
+	{
+		final String cartKey = generateCartKey(cartId);
+		if (cartKey == null)
+		{
+			return null;
+		}
+		return "{" + cartKey + "}:fence";
+	}
+
+	/**
+	 * Key of the set of index keys the cart code has been added to, in the same hash slot as the cart key. It outlives
+	 * the cart, so the code can still be removed from its indexes once the cart has expired.
+	 */
+	public String generateIndexesKey(final String cartId)
+	{
+		final String cartKey = generateCartKey(cartId);
+		if (cartKey == null)
+		{
+			return null;
+		}
+		return "{" + cartKey + "}:indexes";
+	}
+
+	/**
+	 * @return the cart code of a key generated by {@link #generateCartKey(String)}, null for any other key
+	 */
+	public String parseCartCode(final String key)
+	{
+		if (key == null || !key.startsWith("cart:"))
+		{
+			return null;
+		}
+		final String cartId = key.substring("cart:".length());
+		// index, dependents and promotion result keys have further segments
+		return StringUtils.isBlank(cartId) || cartId.contains(":") ? null : cartId;
+	}
+
+	/**
+	 * @return the cart code of a key generated by {@link #generatePromotionResultKey(String, String)}, null for any
+	 *         other key
+	 */
+	public String parsePromotionResultCartCode(final String key)
+	{
+		final int end = key == null ? -1 : key.indexOf(":promotionResult:");
+		return end < 0 ? null : parseCartCode(key.substring(0, end));
+	}
+
+	/**
+	 * @return whether the key is one of the index sets generated by the methods below
+	 */
+	public boolean isIndexKey(final String key)
+	{
+		return key != null && (key.startsWith("cart:code:") || key.startsWith("cart:userId:")
+				|| key.startsWith("cart:guid:") || key.startsWith("cart:siteId:"));
+	}
+
+	/**
+	 * Rebuilds the attributes of a cart from the index keys recorded for it, see {@link #generateIndexesKey(String)}.
+	 * Attributes without a recorded index are left null.
+	 */
+	public CartIndex parseCartIndex(final String cartCode, final Collection<String> indexKeys)
+	{
+		String userId = null;
+		String guid = null;
+		String siteId = null;
+		for (final String indexKey : indexKeys)
+		{
+			if (indexKey.startsWith("cart:userId:"))
+			{
+				userId = indexKey.substring("cart:userId:".length());
+			}
+			else if (indexKey.startsWith("cart:guid:"))
+			{
+				guid = indexKey.substring("cart:guid:".length());
+			}
+			else if (indexKey.startsWith("cart:siteId:"))
+			{
+				siteId = indexKey.substring("cart:siteId:".length());
+			}
+		}
+		return new CartIndex(cartCode, userId, guid, siteId);
+	}
+
 	public String generateCodeKey(final String code)
 	{
 		if (StringUtils.isNoneBlank(code))
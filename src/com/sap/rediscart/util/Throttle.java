@@ -0,0 +1,66 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Spaces out work to at most permitsPerSecond, shared by all threads using it. Permits not used in the past are not
+ * saved up, so a pause is never followed by a burst.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+public class Throttle
+{
+	private final double nanosPerPermit;
+	private long nextFreeNanos = System.nanoTime();
+
+	/**
+	 * @param permitsPerSecond
+	 *           the permits handed out per second, 0 or less for no limit
+	 */
+	public Throttle(final double permitsPerSecond)
+	{
+		this.nanosPerPermit = permitsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / permitsPerSecond : 0D;
+	}
+
+	/**
+	 * Waits until the permits may be used.
+	 *
+	 * @throws InterruptedException
+	 *            if the thread is interrupted while waiting
+	 */
+	public void acquire(final int permits) throws InterruptedException
+	{
+		if (nanosPerPermit == 0D || permits <= 0)
+		{
+			return;
+		}
+		final long waitNanos;
+		synchronized (this)
+		{
+			final long now = System.nanoTime();
+			final long start = Math.max(now, nextFreeNanos);
+			nextFreeNanos = start + (long) (permits * nanosPerPermit);
+			waitNanos = start - now;
+		}
+		if (waitNanos > 0)
+		{
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+}
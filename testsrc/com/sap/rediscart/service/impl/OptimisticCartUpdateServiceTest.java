@@ -0,0 +1,157 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.service.impl;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.hybris.bootstrap.annotations.UnitTest;
+import de.hybris.platform.core.model.order.CartModel;
+import de.hybris.platform.order.CartService;
+import de.hybris.platform.servicelayer.model.ModelService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sap.rediscart.exceptions.CartVersionConflictException;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.store.CartStore;
+
+
+/**
+ * Tests the retry of {@link OptimisticCartUpdateService} on version conflicts.
+ */
+@UnitTest
+public class OptimisticCartUpdateServiceTest
+{
+	private static final String CART_CODE = "00001000";
+
+	private final OptimisticCartUpdateService service = new OptimisticCartUpdateService();
+	private final ModelService modelService = mock(ModelService.class);
+	private final CartStore cartStore = mock(CartStore.class);
+	private final CartService cartService = mock(CartService.class);
+	private final CartModel cart = mock(CartModel.class);
+	private final CartModel reloaded = mock(CartModel.class);
+	private final RedisCart source = mock(RedisCart.class, CALLS_REAL_METHODS);
+	private final List<CartModel> updated = new ArrayList<>();
+
+	@Before
+	public void setUp()
+	{
+		service.setModelService(modelService);
+		service.setCartStore(cartStore);
+		service.setCartService(cartService);
+		service.setMaxAttempts(3);
+		service.setRetryBackoffMillis(0);
+
+		when(cart.getCode()).thenReturn(CART_CODE);
+		when(reloaded.getCode()).thenReturn(CART_CODE);
+		final RedisCart redisCart = mock(RedisCart.class);
+		when(cartStore.load(CART_CODE)).thenReturn(redisCart);
+		when(modelService.get(redisCart)).thenReturn(reloaded);
+		when(modelService.getSource(cart)).thenReturn(source);
+	}
+
+	@Test
+	public void testUpdateWithoutConflict()
+	{
+		final String result = service.update(cart, c -> {
+			updated.add(c);
+			return "done";
+		});
+
+		assertThat(result).isEqualTo("done");
+		assertThat(updated).containsExactly(cart);
+		verify(cartStore, never()).load(CART_CODE);
+	}
+
+	@Test
+	public void testRetryOnReloadedCart()
+	{
+		when(Boolean.valueOf(cartService.hasSessionCart())).thenReturn(Boolean.TRUE);
+		when(cartService.getSessionCart()).thenReturn(cart);
+
+		final String result = service.update(cart, c -> {
+			updated.add(c);
+			if (updated.size() == 1)
+			{
+				throw new CartVersionConflictException(CART_CODE, 1L);
+			}
+			return "done";
+		});
+
+		assertThat(result).isEqualTo("done");
+		assertThat(updated).containsExactly(cart, reloaded);
+		verify(modelService).detach(cart);
+		verify(cartService).setSessionCart(reloaded);
+	}
+
+	@Test
+	public void testGiveUpAfterMaxAttempts()
+	{
+		try
+		{
+			service.update(cart, c -> {
+				updated.add(c);
+				throw new CartVersionConflictException(CART_CODE, 1L);
+			});
+			fail("conflict expected");
+		}
+		catch (final CartVersionConflictException e)
+		{
+			assertThat(updated).hasSize(3);
+		}
+	}
+
+	@Test
+	public void testNoRetryAfterPartialSave()
+	{
+		source.setRedisVersion(4L);
+		try
+		{
+			service.update(cart, c -> {
+				updated.add(c);
+				// the entry has been saved, saving the recalculated cart conflicts
+				source.setRedisVersion(5L);
+				throw new CartVersionConflictException(CART_CODE, 5L);
+			});
+			fail("conflict expected");
+		}
+		catch (final CartVersionConflictException e)
+		{
+			assertThat(updated).containsExactly(cart);
+			verify(cartStore, never()).load(CART_CODE);
+		}
+	}
+
+	@Test(expected = CartVersionConflictException.class)
+	public void testConflictOnRemovedCart()
+	{
+		when(cartStore.load(CART_CODE)).thenReturn(null);
+
+		service.update(cart, c -> {
+			throw new CartVersionConflictException(CART_CODE, 1L);
+		});
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.store.impl;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import de.hybris.bootstrap.annotations.UnitTest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sap.rediscart.exceptions.CartStoreUnavailableException;
+import com.sap.rediscart.jalo.order.RedisCart;
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.util.RedisClusterPipelineExecutor;
+
+
+/**
+ * Tests how {@link JournalingCartStore} replays journaled saves, in order and without overwriting changes made
+ * meanwhile.
+ */
+@UnitTest
+public class JournalingCartStoreTest
+{
+	private static final String CART_CODE = "00001000";
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final AtomicBoolean unavailable = new AtomicBoolean();
+	private final InMemoryCartStore redis = new InMemoryCartStore()
+	{
+		@Override
+		public void save(final String cartCode, final RedisCart cart)
+		{
+			if (unavailable.get())
+			{
+				throw new CartStoreUnavailableException("redis-1:6379");
+			}
+			super.save(cartCode, cart);
+		}
+	};
+	private final CartJournal journal = new CartJournal();
+	private final RedisMetrics redisMetrics = new RedisMetrics();
+	private final JournalingCartStore store = new JournalingCartStore();
+
+	@Before
+	public void setUp() throws IOException
+	{
+		// the serialized form of a cart is its version
+		final RedisClusterPipelineExecutor executor = mock(RedisClusterPipelineExecutor.class);
+		when(executor.serializeValue(any())).thenAnswer(
+				invocation -> ByteBuffer.allocate(8).putLong(((RedisCart) invocation.getArguments()[0]).getRedisVersion())
+						.array());
+		when(executor.deserializeValue(any(byte[].class)))
+				.thenAnswer(invocation -> newCart(ByteBuffer.wrap((byte[]) invocation.getArguments()[0]).getLong()));
+
+		journal.setDirectory(folder.getRoot().getPath());
+		journal.setSegmentBytes(64 * 1024);
+		journal.open();
+		redisMetrics.setJmxEnabled(false);
+		store.setDelegate(redis);
+		store.setCartJournal(journal);
+		store.setRedisClusterPipelineExecutor(executor);
+		store.setRedisMetrics(redisMetrics);
+	}
+
+	@After
+	public void tearDown()
+	{
+		journal.close();
+	}
+
+	@Test
+	public void testJournaledSavesAreReplayedInOrder()
+	{
+		final RedisCart cart = newCart(0L);
+		store.save(CART_CODE, cart);
+		unavailable.set(true);
+
+		store.save(CART_CODE, cart);
+		assertThat(cart.getRedisVersion()).isEqualTo(2L);
+		final RedisCart journaled = store.load(CART_CODE);
+		assertThat(journaled.getRedisVersion()).isEqualTo(2L);
+		store.save(CART_CODE, journaled);
+
+		unavailable.set(false);
+		store.replay();
+
+		assertThat(journal.isEmpty()).isTrue();
+		assertThat(redis.load(CART_CODE).getRedisVersion()).isEqualTo(3L);
+		assertThat(store.load(CART_CODE).getRedisVersion()).isEqualTo(3L);
+		assertThat(redisMetrics.getResilience(RedisMetrics.RESILIENCE_REPLAYED).getCount()).isEqualTo(2L);
+		assertThat(redisMetrics.getResilience(RedisMetrics.RESILIENCE_REPLAY_FAILED).getCount()).isEqualTo(0L);
+	}
+
+	@Test
+	public void testJournaledSaveOfNewCartIsReplayed()
+	{
+		unavailable.set(true);
+		store.save(CART_CODE, newCart(0L));
+
+		unavailable.set(false);
+		store.replay();
+
+		assertThat(redis.load(CART_CODE).getRedisVersion()).isEqualTo(1L);
+		assertThat(redisMetrics.getResilience(RedisMetrics.RESILIENCE_REPLAYED).getCount()).isEqualTo(1L);
+	}
+
+	@Test
+	public void testConflictingJournaledSaveDoesNotOverwrite()
+	{
+		final RedisCart cart = newCart(0L);
+		store.save(CART_CODE, cart);
+		unavailable.set(true);
+		store.save(CART_CODE, cart);
+
+		// saved on another node meanwhile
+		unavailable.set(false);
+		final RedisCart changed = newCart(1L);
+		redis.save(CART_CODE, changed);
+		store.replay();
+
+		assertThat(journal.isEmpty()).isTrue();
+		assertThat(redis.load(CART_CODE)).isSameAs(changed);
+		assertThat(changed.getRedisVersion()).isEqualTo(2L);
+		assertThat(store.load(CART_CODE)).isSameAs(changed);
+		assertThat(redisMetrics.getResilience(RedisMetrics.RESILIENCE_REPLAYED).getCount()).isEqualTo(0L);
+		assertThat(redisMetrics.getResilience(RedisMetrics.RESILIENCE_REPLAY_FAILED).getCount()).isEqualTo(1L);
+	}
+
+	private static RedisCart newCart(final long version)
+	{
+		final RedisCart cart = mock(RedisCart.class, CALLS_REAL_METHODS);
+		cart.setRedisVersion(version);
+		return cart;
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import de.hybris.bootstrap.annotations.UnitTest;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.sap.rediscart.exceptions.CartLockBusyException;
+
+
+/**
+ * Tests the lock striping of {@link CartLockRegistry}.
+ */
+@UnitTest
+public class CartLockRegistryTest
+{
+	private final CartLockRegistry registry = new CartLockRegistry(2);
+
+	@Test
+	public void testStripeCountIsPowerOfTwo()
+	{
+		assertThat(new CartLockRegistry(5).getStripeCount()).isEqualTo(8);
+	}
+
+	@Test
+	public void testBlankCodesRunWithoutLocking()
+	{
+		assertThat(registry.withLocks(Arrays.asList("", " ", null), () -> "done")).isEqualTo("done");
+		assertThat(registry.getAcquisitions()).isEqualTo(0L);
+	}
+
+	@Test
+	public void testNestedLocksOfSameCartAreReentrant()
+	{
+		final String code = codeForStripe(1);
+
+		final String result = registry.withLock(code, () -> registry.withLock(code, () -> "done"));
+
+		assertThat(result).isEqualTo("done");
+		assertThat(registry.getAcquisitions()).isEqualTo(1L);
+	}
+
+	@Test
+	public void testNestedLocksOfHigherStripe()
+	{
+		final String result = registry.withLock(codeForStripe(0),
+				() -> registry.withLock(codeForStripe(1), () -> "done"));
+
+		assertThat(result).isEqualTo("done");
+	}
+
+	@Test
+	public void testNestedLockOfFreeLowerStripe()
+	{
+		final String result = registry.withLock(codeForStripe(1),
+				() -> registry.withLock(codeForStripe(0), () -> "done"));
+
+		assertThat(result).isEqualTo("done");
+	}
+
+	@Test
+	public void testNestedLockOfBusyLowerStripeWaits() throws InterruptedException
+	{
+		final CountDownLatch locked = new CountDownLatch(1);
+		final Thread holder = new Thread(() -> registry.withLock(codeForStripe(0), () -> {
+			locked.countDown();
+			sleep(100);
+			return null;
+		}));
+		holder.start();
+		assertThat(locked.await(5, TimeUnit.SECONDS)).isTrue();
+
+		final String result = registry.withLock(codeForStripe(1),
+				() -> registry.withLock(codeForStripe(0), () -> "done"));
+
+		holder.join(5000);
+		assertThat(result).isEqualTo("done");
+		assertThat(registry.getContendedAcquisitions()).isEqualTo(1L);
+	}
+
+	@Test
+	public void testNestedLockOfBusyLowerStripeTimesOut() throws InterruptedException
+	{
+		registry.setNestedLockTimeoutMillis(50);
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread holder = new Thread(() -> registry.withLock(codeForStripe(0), () -> {
+			locked.countDown();
+			await(release);
+			return null;
+		}));
+		holder.start();
+		assertThat(locked.await(5, TimeUnit.SECONDS)).isTrue();
+		try
+		{
+			registry.withLock(codeForStripe(1), () -> registry.withLock(codeForStripe(0), () -> "done"));
+			fail("nested lock of a busy lower stripe must time out");
+		}
+		catch (final CartLockBusyException e)
+		{
+			assertThat(e.getCartCodes()).containsOnly(codeForStripe(0));
+		}
+		finally
+		{
+			release.countDown();
+			holder.join(5000);
+		}
+
+		// the failed call has not left any stripe locked
+		assertThat(registry.withLocks(Arrays.asList(codeForStripe(0), codeForStripe(1)), () -> "done")).isEqualTo("done");
+	}
+
+	@Test
+	public void testSameCartIsSerialized() throws InterruptedException
+	{
+		final String code = codeForStripe(0);
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread holder = new Thread(() -> registry.withLock(code, () -> {
+			locked.countDown();
+			await(release);
+			return null;
+		}));
+		holder.start();
+		assertThat(locked.await(5, TimeUnit.SECONDS)).isTrue();
+
+		final Thread waiter = new Thread(() -> registry.withLock(code, () -> null));
+		waiter.start();
+		waiter.join(200);
+		assertThat(waiter.isAlive()).isTrue();
+
+		release.countDown();
+		waiter.join(5000);
+		holder.join(5000);
+		assertThat(waiter.isAlive()).isFalse();
+		assertThat(registry.getContendedAcquisitions()).isEqualTo(1L);
+	}
+
+	private String codeForStripe(final int stripe)
+	{
+		for (int i = 0;; i++)
+		{
+			final String code = String.valueOf(10000 + i);
+			final int h = code.hashCode();
+			if (((h ^ (h >>> 16)) & (registry.getStripeCount() - 1)) == stripe)
+			{
+				return code;
+			}
+		}
+	}
+
+	private static void sleep(final long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void await(final CountDownLatch latch)
+	{
+		try
+		{
+			latch.await(5, TimeUnit.SECONDS);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import de.hybris.bootstrap.annotations.UnitTest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+
+/**
+ * Tests the header and round trip of the values written by {@link CompressingRedisSerializer}.
+ */
+@UnitTest
+public class CompressingRedisSerializerTest
+{
+	private final JdkSerializationRedisSerializer jdkSerializer = new JdkSerializationRedisSerializer();
+	private final CompressingRedisSerializer serializer = new CompressingRedisSerializer();
+
+	@Before
+	public void setUp()
+	{
+		serializer.setDelegate(jdkSerializer);
+		serializer.setThreshold(256);
+	}
+
+	@Test
+	public void testSmallValueIsNotCompressed()
+	{
+		final byte[] bytes = serializer.serialize(Long.valueOf(42L));
+
+		assertThat(bytes).isEqualTo(jdkSerializer.serialize(Long.valueOf(42L)));
+		assertThat(serializer.deserialize(bytes)).isEqualTo(Long.valueOf(42L));
+	}
+
+	@Test
+	public void testLargeValueRoundTrip()
+	{
+		final String value = StringUtils.repeat("cart entry ", 1000);
+		final byte[] raw = jdkSerializer.serialize(value);
+
+		final byte[] bytes = serializer.serialize(value);
+
+		assertThat(bytes[0]).isEqualTo(CompressingRedisSerializer.LZ4);
+		assertThat(bytes.length).isLessThan(raw.length);
+		final int rawLength = (bytes[1] & 0xFF) << 24 | (bytes[2] & 0xFF) << 16 | (bytes[3] & 0xFF) << 8
+				| bytes[4] & 0xFF;
+		assertThat(rawLength).isEqualTo(raw.length);
+		assertThat(serializer.deserialize(bytes)).isEqualTo(value);
+	}
+
+	@Test
+	public void testIncompressibleValueIsWrittenAsIs()
+	{
+		final byte[] value = new byte[4096];
+		new Random(7L).nextBytes(value);
+
+		final byte[] bytes = serializer.serialize(value);
+
+		assertThat(bytes).isEqualTo(jdkSerializer.serialize(value));
+		assertThat((byte[]) serializer.deserialize(bytes)).isEqualTo(value);
+	}
+
+	@Test
+	public void testValueWrittenWithoutCompressionStaysReadable()
+	{
+		final String value = StringUtils.repeat("cart entry ", 1000);
+		serializer.setEnabled(false);
+		final byte[] bytes = serializer.serialize(value);
+		serializer.setEnabled(true);
+
+		assertThat(bytes).isEqualTo(jdkSerializer.serialize(value));
+		assertThat(serializer.deserialize(bytes)).isEqualTo(value);
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testTruncatedHeaderIsRejected()
+	{
+		serializer.deserialize(new byte[]
+		{ CompressingRedisSerializer.LZ4, 0, 0 });
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testTruncatedBlockIsRejected()
+	{
+		final byte[] bytes = serializer.serialize(StringUtils.repeat("cart entry ", 1000));
+
+		serializer.deserialize(Arrays.copyOf(bytes, bytes.length / 2));
+	}
+
+	@Test(expected = SerializationException.class)
+	public void testImpossibleUncompressedLengthIsRejected()
+	{
+		// a foreign value claiming almost 2 GB, which must not be allocated
+		serializer.deserialize(new byte[]
+		{ CompressingRedisSerializer.LZ4, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x10, 0x61 });
+	}
+}
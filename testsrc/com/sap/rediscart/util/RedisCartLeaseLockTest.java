@@ -0,0 +1,126 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.hybris.bootstrap.annotations.UnitTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import com.sap.rediscart.metrics.RedisMetrics;
+
+
+/**
+ * Tests acquiring and releasing cart leases with {@link RedisCartLeaseLock}.
+ */
+@UnitTest
+public class RedisCartLeaseLockTest
+{
+	private static final String CART_CODE = "00001000";
+
+	private final RedisCartLeaseLock leaseLock = new RedisCartLeaseLock();
+	private final RedisClusterPipelineExecutor executor = mock(RedisClusterPipelineExecutor.class);
+	@SuppressWarnings("unchecked")
+	private final RedisScript<Long> acquireScript = mock(RedisScript.class);
+	@SuppressWarnings("unchecked")
+	private final RedisScript<Long> releaseScript = mock(RedisScript.class);
+
+	@Before
+	public void setUp()
+	{
+		final RedisMetrics redisMetrics = new RedisMetrics();
+		redisMetrics.setJmxEnabled(false);
+		leaseLock.setRedisClusterPipelineExecutor(executor);
+		leaseLock.setRedisKeyGenerator(new RedisKeyGenerator());
+		leaseLock.setRedisMetrics(redisMetrics);
+		leaseLock.setAcquireCartLeaseScript(acquireScript);
+		leaseLock.setReleaseCartLeaseScript(releaseScript);
+		leaseLock.setLeaseMillis(30000);
+	}
+
+	@After
+	public void tearDown()
+	{
+		leaseLock.forget(CART_CODE);
+	}
+
+	@Test
+	public void testAcquireIsReentrant()
+	{
+		when(executor.eval(same(acquireScript), eq(2), anyVararg())).thenReturn(Long.valueOf(7L));
+
+		final CartLease lease = leaseLock.tryAcquire(CART_CODE);
+
+		assertThat(lease).isNotNull();
+		assertThat(lease.getFencingToken()).isEqualTo(7L);
+		assertThat(lease.getValue()).isEqualTo(lease.getOwner() + ":7");
+		assertThat(leaseLock.tryAcquire(CART_CODE)).isSameAs(lease);
+		assertThat(leaseLock.getHeldLease(CART_CODE)).isSameAs(lease);
+		verify(executor, times(1)).eval(same(acquireScript), eq(2), anyVararg());
+	}
+
+	@Test
+	public void testAcquireLeasedBySomebodyElse()
+	{
+		when(executor.eval(same(acquireScript), eq(2), anyVararg())).thenReturn(Long.valueOf(0L));
+
+		assertThat(leaseLock.tryAcquire(CART_CODE)).isNull();
+		assertThat(leaseLock.getHeldLease(CART_CODE)).isNull();
+	}
+
+	@Test
+	public void testReleaseHeld()
+	{
+		when(executor.eval(same(acquireScript), eq(2), anyVararg())).thenReturn(Long.valueOf(7L));
+		when(executor.eval(same(releaseScript), eq(1), anyVararg())).thenReturn(Long.valueOf(1L));
+		leaseLock.tryAcquire(CART_CODE);
+
+		leaseLock.releaseHeld(CART_CODE);
+
+		assertThat(leaseLock.getHeldLease(CART_CODE)).isNull();
+		verify(executor).eval(same(releaseScript), eq(1), anyVararg());
+	}
+
+	@Test
+	public void testReleaseHeldWithoutLease()
+	{
+		leaseLock.releaseHeld(CART_CODE);
+
+		verify(executor, never()).eval(same(releaseScript), eq(1), anyVararg());
+	}
+
+	@Test
+	public void testExpiredLeaseIsNotHeld()
+	{
+		when(executor.eval(same(acquireScript), eq(2), anyVararg())).thenReturn(Long.valueOf(7L));
+		leaseLock.setLeaseMillis(0);
+		leaseLock.tryAcquire(CART_CODE);
+
+		assertThat(leaseLock.getHeldLease(CART_CODE)).isNull();
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.util;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import de.hybris.bootstrap.annotations.UnitTest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sap.rediscart.metrics.RedisMetrics;
+import com.sap.rediscart.util.RedisCircuitBreaker.State;
+
+
+/**
+ * Tests the state transitions of the breakers of {@link RedisCircuitBreaker}.
+ */
+@UnitTest
+public class RedisCircuitBreakerTest
+{
+	private static final String NODE = "redis-1:6379";
+	private static final String OTHER_NODE = "redis-2:6379";
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(300);
+
+	private final RedisCircuitBreaker breaker = new RedisCircuitBreaker();
+	private final RedisMetrics redisMetrics = new RedisMetrics();
+
+	@Before
+	public void setUp()
+	{
+		redisMetrics.setJmxEnabled(false);
+		breaker.setRedisMetrics(redisMetrics);
+		breaker.setWindowSize(10);
+		breaker.setMinimumCalls(4);
+		breaker.setFailureRateThreshold(0.5D);
+		breaker.setSlowCallMillis(200);
+		breaker.setSlowCallRateThreshold(0.75D);
+		breaker.setOpenMillis(TimeUnit.HOURS.toMillis(1));
+	}
+
+	@Test
+	public void testStaysClosedBelowMinimumCalls()
+	{
+		breaker.recordFailure(NODE);
+		breaker.recordFailure(NODE);
+		breaker.recordFailure(NODE);
+
+		assertThat(breaker.getState(NODE)).isEqualTo(State.CLOSED);
+		assertThat(breaker.allowRequest(NODE)).isTrue();
+	}
+
+	@Test
+	public void testOpensOnFailureRate()
+	{
+		breaker.recordSuccess(NODE, FAST);
+		breaker.recordSuccess(NODE, FAST);
+		breaker.recordFailure(NODE);
+		assertThat(breaker.getState(NODE)).isEqualTo(State.CLOSED);
+
+		breaker.recordFailure(NODE);
+
+		assertThat(breaker.getState(NODE)).isEqualTo(State.OPEN);
+		assertThat(breaker.allowRequest(NODE)).isFalse();
+		assertThat(breaker.getState(OTHER_NODE)).isEqualTo(State.CLOSED);
+		assertThat(breaker.allowRequest(OTHER_NODE)).isTrue();
+		assertThat(redisMetrics.getResilience(RedisMetrics.RESILIENCE_BREAKER_OPENED).getCount()).isEqualTo(1L);
+	}
+
+	@Test
+	public void testOpensOnSlowCallRate()
+	{
+		breaker.recordSuccess(NODE, FAST);
+		breaker.recordSuccess(NODE, SLOW);
+		breaker.recordSuccess(NODE, SLOW);
+		breaker.recordSuccess(NODE, SLOW);
+
+		assertThat(breaker.getState(NODE)).isEqualTo(State.OPEN);
+	}
+
+	@Test
+	public void testSuccessfulTrialCloses()
+	{
+		open();
+		breaker.setOpenMillis(0);
+
+		assertThat(breaker.allowRequest(NODE)).isTrue();
+		assertThat(breaker.getState(NODE)).isEqualTo(State.HALF_OPEN);
+		breaker.recordSuccess(NODE, FAST);
+
+		assertThat(breaker.getState(NODE)).isEqualTo(State.CLOSED);
+		assertThat(breaker.allowRequest(NODE)).isTrue();
+	}
+
+	@Test
+	public void testFailedTrialOpensAgain()
+	{
+		open();
+		breaker.setOpenMillis(0);
+		assertThat(breaker.allowRequest(NODE)).isTrue();
+		breaker.setOpenMillis(TimeUnit.HOURS.toMillis(1));
+
+		breaker.recordFailure(NODE);
+
+		assertThat(breaker.getState(NODE)).isEqualTo(State.OPEN);
+		assertThat(breaker.allowRequest(NODE)).isFalse();
+	}
+
+	@Test
+	public void testOnlyOneTrialWhileHalfOpen()
+	{
+		open();
+		breaker.setOpenMillis(0);
+		assertThat(breaker.allowRequest(NODE)).isTrue();
+		breaker.setOpenMillis(TimeUnit.HOURS.toMillis(1));
+
+		assertThat(breaker.allowRequest(NODE)).isFalse();
+		assertThat(breaker.getState(NODE)).isEqualTo(State.HALF_OPEN);
+	}
+
+	@Test
+	public void testDisabledBreakerAllowsEverything()
+	{
+		breaker.setEnabled(false);
+		open();
+
+		assertThat(breaker.getState(NODE)).isEqualTo(State.CLOSED);
+		assertThat(breaker.allowRequest(NODE)).isTrue();
+	}
+
+	private void open()
+	{
+		for (int i = 0; i < 4; i++)
+		{
+			breaker.recordFailure(NODE);
+		}
+	}
+}
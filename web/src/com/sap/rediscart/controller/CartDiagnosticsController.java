@@ -0,0 +1,100 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import com.sap.rediscart.diagnostics.CartConsistencyReport;
+import com.sap.rediscart.diagnostics.CartDiagnosticsService;
+import com.sap.rediscart.metrics.RedisMetrics;
+
+
+/**
+ * Diagnostics page for operators: redis operation metrics, cart counts per site, consistency checks of a cart or of the
+ * carts of a user, and index rebuilds. Everything below /diagnostics requires the admingroup, see
+ * rediscart-spring-security-config.xml.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+@Controller
+@RequestMapping("/diagnostics")
+public class CartDiagnosticsController
+{
+	@Resource(name = "cartDiagnosticsService")
+	private CartDiagnosticsService cartDiagnosticsService;
+
+	@Resource(name = "redisMetrics")
+	private RedisMetrics redisMetrics;
+
+	@RequestMapping(method = RequestMethod.GET)
+	public String showDiagnostics(@RequestParam(value = "cartCode", required = false) final String cartCode,
+			@RequestParam(value = "userId", required = false) final String userId, final ModelMap model)
+	{
+		final List<CartConsistencyReport> reports = new ArrayList<>();
+		if (StringUtils.isNotBlank(cartCode))
+		{
+			reports.add(cartDiagnosticsService.checkCart(cartCode.trim()));
+		}
+		if (StringUtils.isNotBlank(userId))
+		{
+			reports.addAll(cartDiagnosticsService.checkUser(userId.trim()));
+		}
+		return showPage(cartCode, userId, reports, model);
+	}
+
+	@RequestMapping(value = "/rebuild", method = RequestMethod.POST)
+	public String rebuildIndex(@RequestParam(value = "cartCode", required = false) final String cartCode,
+			@RequestParam(value = "userId", required = false) final String userId, final ModelMap model)
+	{
+		final List<CartConsistencyReport> reports = new ArrayList<>();
+		if (StringUtils.isNotBlank(cartCode))
+		{
+			reports.add(cartDiagnosticsService.rebuildCartIndex(cartCode.trim()));
+		}
+		if (StringUtils.isNotBlank(userId))
+		{
+			reports.addAll(cartDiagnosticsService.rebuildUserIndex(userId.trim()));
+		}
+		return showPage(cartCode, userId, reports, model);
+	}
+
+	private String showPage(final String cartCode, final String userId, final List<CartConsistencyReport> reports,
+			final ModelMap model)
+	{
+		model.addAttribute("operations", new TreeMap<>(redisMetrics.getOperations()));
+		model.addAttribute("operationRates", cartDiagnosticsService.getOperationRates());
+		model.addAttribute("payloads", new TreeMap<>(redisMetrics.getPayloads()));
+		model.addAttribute("codecs", redisMetrics.getCodecs());
+		model.addAttribute("reconciliations", redisMetrics.getReconciliations());
+		model.addAttribute("removals", redisMetrics.getRemovals());
+		model.addAttribute("cartCountsBySite", cartDiagnosticsService.getCartCountsBySite());
+		model.addAttribute("cartCode", cartCode);
+		model.addAttribute("userId", userId);
+		model.addAttribute("reports", reports);
+		return "diagnostics";
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.controller;
+
+import java.util.TreeMap;
+
+import javax.annotation.Resource;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import com.sap.rediscart.service.impl.CartShardRebalancer;
+import com.sap.rediscart.store.impl.CartShardRouter;
+
+
+/**
+ * Shows where the carts of each site are stored and moves a site to another shard with the
+ * {@link CartShardRebalancer}.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+@Controller
+@RequestMapping("/diagnostics/shards")
+public class CartShardsController
+{
+	@Resource(name = "cartShardRouter")
+	private CartShardRouter cartShardRouter;
+
+	@Resource(name = "cartShardRebalancer")
+	private CartShardRebalancer cartShardRebalancer;
+
+	@RequestMapping(method = RequestMethod.GET)
+	public String showShards(final ModelMap model)
+	{
+		return showPage(null, model);
+	}
+
+	@RequestMapping(value = "/move", method = RequestMethod.POST)
+	public String moveSite(@RequestParam("siteId") final String siteId,
+			@RequestParam("targetShard") final String targetShard, final ModelMap model)
+	{
+		String message;
+		try
+		{
+			message = cartShardRebalancer.startMove(siteId.trim(), targetShard.trim()) ? "Move started"
+					: "This node is moving a site already";
+		}
+		catch (final IllegalArgumentException | IllegalStateException e)
+		{
+			message = e.getMessage();
+		}
+		return showPage(message, model);
+	}
+
+	private String showPage(final String message, final ModelMap model)
+	{
+		model.addAttribute("mode", cartShardRouter.getMode());
+		model.addAttribute("shards", cartShardRouter.getShards());
+		model.addAttribute("directory", new TreeMap<>(cartShardRouter.getDirectory()));
+		model.addAttribute("siteAssignments", cartShardRouter.getSiteAssignments());
+		model.addAttribute("status", cartShardRebalancer.getStatus());
+		model.addAttribute("message", message);
+		return "shards";
+	}
+}
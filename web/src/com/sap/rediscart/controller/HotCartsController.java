@@ -0,0 +1,51 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.controller;
+
+import java.util.Date;
+
+import javax.annotation.Resource;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import com.sap.rediscart.metrics.HotCartDetector;
+
+
+/**
+ * Shows the largest, most written and most read carts found by the {@link HotCartDetector}.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+@Controller
+public class HotCartsController
+{
+	@Resource(name = "hotCartDetector")
+	private HotCartDetector hotCartDetector;
+
+	@RequestMapping(value = "/diagnostics/hotcarts", method = RequestMethod.GET)
+	public String showHotCarts(final ModelMap model)
+	{
+		model.addAttribute("largestCarts", hotCartDetector.getLargestCarts());
+		model.addAttribute("mostWrittenCarts", hotCartDetector.getMostWrittenCarts());
+		model.addAttribute("mostReadCarts", hotCartDetector.getMostReadCarts());
+		model.addAttribute("sampleRate", Double.valueOf(hotCartDetector.getSampleRate()));
+		model.addAttribute("windowStart", new Date(hotCartDetector.getWindowStart()));
+		return "hotcarts";
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.controller;
+
+import javax.annotation.Resource;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.sap.rediscart.metrics.RedisMetrics;
+
+
+/**
+ * Scrape endpoint of the redis metrics in the prometheus text format.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+@Controller
+public class RedisMetricsController
+{
+	@Resource(name = "redisMetrics")
+	private RedisMetrics redisMetrics;
+
+	@RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = "text/plain; version=0.0.4; charset=utf-8")
+	@ResponseBody
+	public String scrape()
+	{
+		return redisMetrics.toText();
+	}
+}
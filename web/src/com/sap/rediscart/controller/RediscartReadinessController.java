@@ -0,0 +1,54 @@
+/*
+ * Copyright [2018] [Henter Liu]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sap.rediscart.controller;
+
+import java.util.Set;
+
+import javax.annotation.Resource;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import com.sap.rediscart.service.impl.RediscartWarmer;
+
+
+/**
+ * Readiness probe for load balancers: 503 while the {@link RediscartWarmer} is still warming the node up, with the
+ * steps being retried, 200 once every step has succeeded.
+ *
+ * @author Henter Liu (henterji@163.com)
+ */
+@Controller
+public class RediscartReadinessController
+{
+	@Resource(name = "rediscartWarmer")
+	private RediscartWarmer rediscartWarmer;
+
+	@RequestMapping(value = "/ready", method = RequestMethod.GET, produces = "text/plain; charset=utf-8")
+	public ResponseEntity<String> ready()
+	{
+		if (rediscartWarmer.isReady())
+		{
+			return new ResponseEntity<>("ready", HttpStatus.OK);
+		}
+		final Set<String> failedSteps = rediscartWarmer.getFailedSteps();
+		return new ResponseEntity<>(failedSteps.isEmpty() ? "warming up" : "warming up, failed: " + failedSteps,
+				HttpStatus.SERVICE_UNAVAILABLE);
+	}
+}
@@ -0,0 +1,138 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
+<html>
+<head>
+    <title>Rediscart diagnostics</title>
+    <link rel="stylesheet" href="<c:url value="/static/rediscart-webapp.css"/>" type="text/css"
+          media="screen, projection"/>
+</head>
+<div class="container">
+    <h2>Rediscart diagnostics</h2>
+
+    <p>
+        <a href="<c:url value="/diagnostics/hotcarts"/>">Hot carts</a> |
+        <a href="<c:url value="/diagnostics/shards"/>">Cart shards</a> |
+        <a href="<c:url value="/metrics"/>">Prometheus metrics</a>
+    </p>
+
+    <h3>Operations</h3>
+    <p>Calls per second since the previous page view, latencies in microseconds.</p>
+    <table>
+        <tr><th>Operation</th><th>Calls/s</th><th>Calls</th><th>Errors</th><th>Mean</th><th>p50</th><th>p95</th><th>p99</th><th>Max</th></tr>
+        <c:forEach items="${operations}" var="operation">
+            <c:set var="rate" value="${operationRates[operation.key]}"/>
+            <tr>
+                <td>${operation.key}</td>
+                <td><c:choose><c:when test="${rate lt 0}">-</c:when><c:otherwise><fmt:formatNumber value="${rate}" maxFractionDigits="1"/></c:otherwise></c:choose></td>
+                <td>${operation.value.calls}</td>
+                <td>${operation.value.errors}</td>
+                <td>${operation.value.meanMicros}</td>
+                <td>${operation.value.p50Micros}</td>
+                <td>${operation.value.p95Micros}</td>
+                <td>${operation.value.p99Micros}</td>
+                <td>${operation.value.maxMicros}</td>
+            </tr>
+        </c:forEach>
+    </table>
+
+    <h3>Payload sizes</h3>
+    <p>Serialized values read from and written to redis, in bytes.</p>
+    <table>
+        <tr><th>Direction</th><th>Values</th><th>Mean</th><th>p50</th><th>p95</th><th>p99</th><th>Max</th></tr>
+        <c:forEach items="${payloads}" var="payload">
+            <tr>
+                <td>${payload.key}</td>
+                <td>${payload.value.count}</td>
+                <td>${payload.value.mean}</td>
+                <td>${payload.value.p50}</td>
+                <td>${payload.value.p95}</td>
+                <td>${payload.value.p99}</td>
+                <td>${payload.value.max}</td>
+            </tr>
+        </c:forEach>
+    </table>
+
+    <h3>Compression</h3>
+    <p>Values compressed on write and decompressed on read, CPU time in microseconds.</p>
+    <table>
+        <tr><th>Operation</th><th>Values</th><th>Uncompressed bytes</th><th>Compressed bytes</th><th>Ratio</th><th>Mean</th><th>p99</th></tr>
+        <c:forEach items="${codecs}" var="codec">
+            <tr>
+                <td>${codec.key}</td>
+                <td>${codec.value.calls}</td>
+                <td>${codec.value.uncompressedBytes}</td>
+                <td>${codec.value.compressedBytes}</td>
+                <td><fmt:formatNumber value="${codec.value.ratio}" maxFractionDigits="2"/></td>
+                <td>${codec.value.meanMicros}</td>
+                <td>${codec.value.p99Micros}</td>
+            </tr>
+        </c:forEach>
+    </table>
+
+    <h3>Index reconciliation</h3>
+    <p>
+        Carts and index entries checked by the reconciliation job since startup, and the drift it has found: carts missing
+        from an index, codes in an index the cart does not belong to, and codes of carts that do not exist.
+    </p>
+    <table>
+        <tr><th>Event</th><th>Count</th></tr>
+        <c:forEach items="${reconciliations}" var="reconciliation">
+            <tr><td>${reconciliation.key}</td><td>${reconciliation.value.count}</td></tr>
+        </c:forEach>
+    </table>
+
+    <h3>Stale cart removal</h3>
+    <p>
+        Carts scanned and removed by the stale cart removal job since startup. Skipped carts were stale but leased by
+        somebody else, e.g. while being checked out.
+    </p>
+    <table>
+        <tr><th>Event</th><th>Count</th></tr>
+        <c:forEach items="${removals}" var="removal">
+            <tr><td>${removal.key}</td><td>${removal.value.count}</td></tr>
+        </c:forEach>
+    </table>
+
+    <h3>Carts per site</h3>
+    <table>
+        <tr><th>Site</th><th>Indexed carts</th></tr>
+        <c:forEach items="${cartCountsBySite}" var="site">
+            <tr><td>${site.key}</td><td>${site.value}</td></tr>
+        </c:forEach>
+    </table>
+
+    <h3>Consistency</h3>
+    <p>
+        Checks a cart against the indexes it should be found by, or all carts in the index of a user. Rebuild adds the
+        carts to the missing indexes and drops index entries of carts that do not exist or belong to another user.
+    </p>
+    <form action="<c:url value="/diagnostics"/>" method="GET">
+        <input type="text" name="cartCode" placeholder="Cart code" value="<c:out value="${cartCode}"/>"/>
+        <input type="text" name="userId" placeholder="User id" value="<c:out value="${userId}"/>"/>
+        <input type="submit" value="Check"/>
+    </form>
+    <form action="<c:url value="/diagnostics/rebuild"/>" method="POST">
+        <input type="hidden" name="${_csrf.parameterName}" value="${_csrf.token}"/>
+        <input type="hidden" name="cartCode" value="<c:out value="${cartCode}"/>"/>
+        <input type="hidden" name="userId" value="<c:out value="${userId}"/>"/>
+        <input type="submit" value="Rebuild indexes"/>
+    </form>
+
+    <c:if test="${not empty reports}">
+        <table>
+            <tr><th>Cart</th><th>Stored</th><th>Problems</th><th>Repaired</th></tr>
+            <c:forEach items="${reports}" var="report">
+                <tr>
+                    <td><c:out value="${report.cartCode}"/></td>
+                    <td>${report.cartStored}</td>
+                    <td>
+                        <c:if test="${report.consistent}">none</c:if>
+                        <c:forEach items="${report.problems}" var="problem"><c:out value="${problem}"/><br/></c:forEach>
+                    </td>
+                    <td>${report.repaired}</td>
+                </tr>
+            </c:forEach>
+        </table>
+    </c:if>
+</div>
+</html>
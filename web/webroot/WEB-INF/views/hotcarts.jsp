@@ -0,0 +1,42 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
+<html>
+<head>
+    <title>Hot carts</title>
+    <link rel="stylesheet" href="<c:url value="/static/rediscart-webapp.css"/>" type="text/css"
+          media="screen, projection"/>
+</head>
+<div class="container">
+    <h2>Hot carts</h2>
+
+    <p>
+        Counts are estimated from a sample of <fmt:formatNumber value="${sampleRate}" type="percent"/> of the calls since
+        <fmt:formatDate value="${windowStart}" pattern="yyyy-MM-dd HH:mm:ss"/>. The error is the most the count may be
+        overestimated by.
+    </p>
+
+    <h3>Largest carts</h3>
+    <table>
+        <tr><th>Cart</th><th>Bytes</th><th>Entries</th></tr>
+        <c:forEach items="${largestCarts}" var="cart">
+            <tr><td><c:out value="${cart.cartCode}"/></td><td>${cart.bytes}</td><td>${cart.entryCount}</td></tr>
+        </c:forEach>
+    </table>
+
+    <h3>Most written carts</h3>
+    <table>
+        <tr><th>Cart</th><th>Sampled writes</th><th>Error</th></tr>
+        <c:forEach items="${mostWrittenCarts}" var="estimate">
+            <tr><td><c:out value="${estimate.key}"/></td><td>${estimate.count}</td><td>${estimate.error}</td></tr>
+        </c:forEach>
+    </table>
+
+    <h3>Most read carts</h3>
+    <table>
+        <tr><th>Cart</th><th>Sampled reads</th><th>Error</th></tr>
+        <c:forEach items="${mostReadCarts}" var="estimate">
+            <tr><td><c:out value="${estimate.key}"/></td><td>${estimate.count}</td><td>${estimate.error}</td></tr>
+        </c:forEach>
+    </table>
+</div>
+</html>
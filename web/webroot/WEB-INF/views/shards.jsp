@@ -0,0 +1,38 @@
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<html>
+<head>
+    <title>Cart shards</title>
+    <link rel="stylesheet" href="<c:url value="/static/rediscart-webapp.css"/>" type="text/css"
+          media="screen, projection"/>
+</head>
+<div class="container">
+    <h2>Cart shards</h2>
+
+    <c:if test="${not empty message}">
+        <p><strong><c:out value="${message}"/></strong></p>
+    </c:if>
+
+    <p>
+        Carts are placed by <c:out value="${mode}"/> on the shards <c:out value="${shards}"/>, the first one is the
+        default. Sites not in the directory below are assigned by
+        "<c:out value="${siteAssignments}"/>" or stay on the default shard.
+    </p>
+
+    <h3>Directory</h3>
+    <table>
+        <tr><th>Site</th><th>Shard</th></tr>
+        <c:forEach items="${directory}" var="site">
+            <tr><td><c:out value="${site.key}"/></td><td><c:out value="${site.value}"/></td></tr>
+        </c:forEach>
+    </table>
+
+    <h3>Move a site</h3>
+    <p><c:out value="${status}"/></p>
+    <form action="<c:url value="/diagnostics/shards/move"/>" method="POST">
+        <input type="hidden" name="${_csrf.parameterName}" value="${_csrf.token}"/>
+        <input type="text" name="siteId" placeholder="Site uid"/>
+        <input type="text" name="targetShard" placeholder="Target shard"/>
+        <input type="submit" value="Move"/>
+    </form>
+</div>
+</html>